@@ -31,7 +31,7 @@ import java.util.*;
  * Note: Do not forget to handle additional properties if a new release is going to be rolled out.
  */
 @SuppressWarnings("serial")
-public class AppProperties extends Properties {
+public class AppProperties extends Properties implements PersistenceService.Storable {
 	
 	// property keys
 	
@@ -42,19 +42,35 @@ public class AppProperties extends Properties {
 	
 	// !!! do NOT forget to add a new property to checkDefaults() !!!
 	
+	public static final String AUTOSTART_CONCURRENCY = "autostart.concurrency";		// VMs booting at the same time
+	public static final String AUTOSTART_CPU_PERCENT = "autostart.cpu.percent";		// a booted VM uses less CPU
+	public static final String AUTOSTART_SETTLE_SECONDS = "autostart.settle.seconds";	// minimum boot time of a VM
+	public static final String AUTOSTART_TIMEOUT_SECONDS = "autostart.timeout.seconds";	// maximum boot time of a VM
 	public static final String DEFAULT_CPUS = "cpus"; 
 	public static final String DEFAULT_DISK_SIZE = "disk.size.GB"; 		// in GB
 	public static final String DEFAULT_MEM = "memoryMB"; 				// in MB
+	public static final String DISK_CLUSTER_SIZE_KB = "disk.cluster.size.KB";	// qcow2 cluster size of new disks
+	public static final String DISK_COMPACT_COMPRESS = "disk.compact.compress";	// zstd compression of compacted disks
+	public static final String DISK_COMPACT_MIN_RATIO_PERCENT = "disk.compact.min.ratio.percent";	// file size to allocated size
+	public static final String DISK_CREATE_NATIVE = "disk.create.native";		// create disks without qemu-img
+	public static final String DISK_JOB_IO_PRIORITY = "disk.job.io.priority";	// idle, low or normal (Linux: ionice)
+	public static final String DISK_JOB_RATE_LIMIT_MB = "disk.job.rate.limit.MB";	// MB/s of qemu-img convert, 0: no limit
+	public static final String DISK_JOB_WORKERS = "disk.job.workers";		// disk jobs running at the same time
+	public static final String DISK_LAZY_REFCOUNTS = "disk.lazy.refcounts";	// faster writes, repaired after a crash
+	public static final String DISK_PREALLOCATION = "disk.preallocation";		// off, metadata or full
 	public static final String GIVE_HINTS = "give.hints"; 
 	public static final String INSTALL_DIR = "install.dir"; 				// image directory from the last install of a VM
+	public static final String INSTALL_MEDIA_DIRS = "install.media.dirs";	// ISO directories (path separator separated)
 	public static final String LOOK_AND_FEEL = "lookandfeel"; 
 	public static final String QEMU_CMD = "qemu.command."; 				// a number will be appended
 	public static final String QEMU_IMG = "qemu.image";
 	public static final String VERBOSE = "verbose"; 
 	public static final String VM_DISK_PATH = "vm.disk.path"; 
-	public static final String VM_FILENAME = "vm.filename.";  			// a number for the VM will be appended
+	public static final String VM_FILENAME = "vm.filename.";  			// older releases, migrated into VMRegistry
+	public static final String VM_STOP_GRACE_SECONDS = "vm.stop.grace.seconds";	// ACPI shutdown time before escalating
 	
 	private String pathname;
+	private volatile long version;				// incremented on each change (cache invalidation)
 
 	/**
 	 * Construction from file or it takes the default values.
@@ -89,17 +105,32 @@ public class AppProperties extends Properties {
 	 */
 	private void checkDefaults() {
 		
+		checkProperty(AUTOSTART_CONCURRENCY, "2");
+		checkProperty(AUTOSTART_CPU_PERCENT, "30");		// of the CPUs of the VM
+		checkProperty(AUTOSTART_SETTLE_SECONDS, "15");
+		checkProperty(AUTOSTART_TIMEOUT_SECONDS, "180");
 		checkProperty(DEFAULT_CPUS, "2");
 		checkProperty(DEFAULT_DISK_SIZE, "30");		// GB
 		checkProperty(DEFAULT_MEM, "1000");
+		checkProperty(DISK_CLUSTER_SIZE_KB, "64");
+		checkProperty(DISK_COMPACT_COMPRESS, "false");
+		checkProperty(DISK_COMPACT_MIN_RATIO_PERCENT, "125");
+		checkProperty(DISK_CREATE_NATIVE, "true");
+		checkProperty(DISK_JOB_IO_PRIORITY, "idle");
+		checkProperty(DISK_JOB_RATE_LIMIT_MB, "0");
+		checkProperty(DISK_JOB_WORKERS, "2");
+		checkProperty(DISK_LAZY_REFCOUNTS, "false");
+		checkProperty(DISK_PREALLOCATION, "off");
 		checkProperty(GIVE_HINTS, "true");
 		checkProperty(INSTALL_DIR, "");
+		checkProperty(INSTALL_MEDIA_DIRS, "");
 		checkProperty(LOOK_AND_FEEL, "Nimbus");
 //		checkProperty(QEMU_CMD, "");					// not set here
 //		checkProperty(QEMU_IMG, "");					// not set here
 		checkProperty(VERBOSE, "true");
 		checkProperty(VM_DISK_PATH, "");				// path not set here
 //		checkProperty(VM_FILENAME, "");					// not set here
+		checkProperty(VM_STOP_GRACE_SECONDS, "30");
 		
 	}
 
@@ -156,6 +187,95 @@ public class AppProperties extends Properties {
 		return Integer.parseInt(getProperty(key));
 	}
 
+	/**
+	 * @return the version of the properties, incremented on each change
+	 */
+	public long getVersion() {
+		
+		return version;
+	}
+
+	/**
+	 * Removes all properties and increments the version.
+	 */
+	@Override
+	public synchronized void clear() {
+		
+		super.clear();
+		version++;
+	}
+
+	/**
+	 * Loads properties and increments the version.
+	 */
+	@Override
+	public synchronized void load(InputStream inStream) throws IOException {
+		
+		try {
+			super.load(inStream);
+		} finally {
+			version++;
+		}
+	}
+
+	/**
+	 * Loads properties and increments the version.
+	 */
+	@Override
+	public synchronized void load(Reader reader) throws IOException {
+		
+		try {
+			super.load(reader);
+		} finally {
+			version++;
+		}
+	}
+
+	/**
+	 * Loads XML properties and increments the version.
+	 */
+	@Override
+	public synchronized void loadFromXML(InputStream in) throws IOException, InvalidPropertiesFormatException {
+		
+		try {
+			super.loadFromXML(in);
+		} finally {
+			version++;
+		}
+	}
+
+	/**
+	 * Puts a property and increments the version, setProperty() uses this method.
+	 */
+	@Override
+	public synchronized Object put(Object key, Object value) {
+		
+		Object previous = super.put(key, value);
+		version++;
+		return previous;
+	}
+
+	/**
+	 * Puts properties and increments the version.
+	 */
+	@Override
+	public synchronized void putAll(Map<?, ?> map) {
+		
+		super.putAll(map);
+		version++;
+	}
+
+	/**
+	 * Removes a property and increments the version.
+	 */
+	@Override
+	public synchronized Object remove(Object key) {
+		
+		Object previous = super.remove(key);
+		version++;
+		return previous;
+	}
+
 	/**
 	 * Sets an integer property.
 	 * 
@@ -201,7 +321,8 @@ public class AppProperties extends Properties {
         try {
         	Util.storeToXML(this, "Version " + Version.getAsString(), pathname);
 		} catch (Exception e) {
-			Main.exitOnException(e);
+			// the previous file is still intact (written atomically), keep running
+			Logger.error("cannot store " + pathname, e);
 		}
 	}
 }
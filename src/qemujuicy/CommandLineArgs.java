@@ -31,6 +31,8 @@ public class CommandLineArgs {
 	private int cliIndex;
 	
 	private boolean isVerbose = true;
+	private String headlessCommand;				// command of the headless mode, null for the GUI
+	private String headlessArg;					// argument of the headless command (a VM name) or null
 
 	/**
 	 * Construct CommandLineArgs using the command line arguments.
@@ -56,6 +58,17 @@ public class CommandLineArgs {
             } else if (args[cliIndex].equals("-q")) {
             	// qiet option
             	isVerbose = false;
+            } else if (args[cliIndex].equals("--headless")) {
+            	// needs a command and an optional argument (a VM name), stdout is machine-readable
+            	if (args.length - cliIndex < 2) {
+                   	isValid = false;
+                	return;
+				}
+            	headlessCommand = args[++cliIndex];
+            	if (cliIndex + 1 < args.length) {
+            		headlessArg = args[++cliIndex];
+            	}
+            	isVerbose = false;
 //            } else if (args[cliIndex].equals("-url")) {
 //            	// needs one additional parameter (the URL)
 //            	if (args.length - cliIndex < 2) {
@@ -79,6 +92,30 @@ public class CommandLineArgs {
 		isValid = true;
 	}
 
+	/**
+	 * @return the argument of the headless command (a VM name) or null
+	 */
+	public String getHeadlessArg() {
+		
+		return headlessArg;
+	}
+
+	/**
+	 * @return the headless command (list, start, stop, status, autostart) or null, if running the GUI
+	 */
+	public String getHeadlessCommand() {
+		
+		return headlessCommand;
+	}
+
+	/**
+	 * @return true, if running without GUI (command line mode)
+	 */
+	public boolean isHeadless() {
+		
+		return headlessCommand != null;
+	}
+
 	/**
 	 * @return true if the command line parsing had no errors and incompatibilities, false otherwise
 	 */
@@ -31,6 +31,8 @@ import java.io.*;
  */
 public class Files  {
 	
+	public static final String RUN_DIR_NAME = "run";	// runtime files of running VMs
+	
 	private static Files instance;				// the one and only instance
 	
 	private String homeDirectory;
@@ -67,6 +69,25 @@ public class Files  {
 		return appDir;
 	}
 
+	/**
+	 * Ensure an existing run directory within the application directory, create it if not existing.
+	 * Runtime files of running VMs (e.g. QMP sockets) are stored here.
+	 * 
+	 * @return the File object of the run directory
+	 * @throws IOException
+	 */
+	public static File ensureRunDir() throws IOException {
+		
+		File runDir = new File(instance.appDirPath + RUN_DIR_NAME);
+		if (!runDir.exists()) {
+			runDir.mkdirs();
+		}
+		if (!runDir.isDirectory()) {
+			throw new IOException(Msg.get(CANNOT_CREATE_OR_WRITE_TO_MSG, runDir.getPath()));
+		}
+		return runDir;
+	}
+
 	/**
 	 * Ensure an existing VM disks directory path, create it if not existing.
 	 * The disks of the virtual machines are stored here, the path has to set before.
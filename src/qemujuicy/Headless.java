@@ -0,0 +1,313 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy;
+
+import java.io.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.vm.*;
+
+/**
+ * The headless mode: list, start, stop, status and autostart of the VMs on the command line,
+ * without GUI (no AWT/Swing initialization).
+ *
+ * The output (stdout) is machine-readable, one line per VM, tab separated columns.
+ * Errors are written to stderr, the exit code is 0 on success, 1 on errors and 2
+ * on a wrong command.
+ */
+public class Headless {
+
+	public static final long START_CHECK_MILLIS = 2000;		// a VM refused by QEMU exits within this time (without QMP)
+
+	public static final String AUTOSTART = "autostart";
+	public static final String LIST = "list";
+	public static final String START = "start";
+	public static final String STATUS = "status";
+	public static final String STOP = "stop";
+
+	public static final String RUNNING = "running";
+	public static final String STOPPED = "stopped";
+	public static final String KILLED = "killed";
+	public static final String FAILED = "failed";
+
+	/**
+	 * Deny external construction.
+	 */
+	private Headless() {
+
+	}
+
+	/**
+	 * Starts the autostart VMs detached and staggered, returns when all are ready.
+	 * Output columns: name, state (READY, TIMEOUT or FAILED), time to ready in milliseconds.
+	 *
+	 * @return the exit code
+	 */
+	private static int autostart() {
+
+		ArrayList<VM> autostartList = BootScheduler.findAutostartVms(Main.getVmManager().getVmList());
+		BootScheduler scheduler = new BootScheduler(autostartList, vm -> {
+			Process process = new Qemu().runVmDetached(vm);
+			return process != null ? process.toHandle() : null;
+		});
+		int exitCode = 0;
+		try {
+			for (BootScheduler.BootResult result : scheduler.start().get()) {
+				print(result.getVm().getName(), result.getState().name(), "" + result.getTimeToReadyMillis());
+				if (result.getState() == BootScheduler.BootState.FAILED) {
+					exitCode = 1;
+				}
+			}
+		} catch (Exception e) {
+			return error("autostart failed: " + e.getMessage());
+		}
+		return exitCode;
+	}
+
+	/**
+	 * Prints an error message to stderr and logs it.
+	 *
+	 * @param msg
+	 * @return the exit code 1
+	 */
+	private static int error(String msg) {
+
+		System.err.println(Main.APP_NAME + ": " + msg);
+		Logger.error("headless: " + msg);
+		return 1;
+	}
+
+	/**
+	 * Finds a VM by name, an error is printed if not found.
+	 *
+	 * @param vmName		the name or the safe name of a VM, may be null
+	 * @return the VM or null
+	 */
+	private static VM findVm(String vmName) {
+
+		if (vmName == null) {
+			error("missing VM name");
+			return null;
+		}
+		VM vm = Main.getVmManager().findVm(vmName);
+		if (vm == null) {
+			error("unknown VM '" + vmName + "'");
+		}
+		return vm;
+	}
+
+	/**
+	 * Lists all VMs, columns: name, architecture (QEMU command), accelerator, memory (MB),
+	 * CPUs, properties file.
+	 *
+	 * @return the exit code
+	 */
+	private static int list() {
+
+		for (VM vm : Main.getVmManager().getVmList()) {
+			print(vm.getName(), vm.getArchitecture(), vm.getAccelerator(), "" + vm.getMemorySizeMB(),
+					"" + vm.getCpus(), vm.getPathname());
+		}
+		return 0;
+	}
+
+	/**
+	 * Prints a line of tab separated columns to stdout.
+	 *
+	 * @param columns
+	 */
+	private static void print(String... columns) {
+
+		System.out.println(String.join("\t", columns));
+	}
+
+	/**
+	 * Runs a headless command.
+	 *
+	 * @param command		the command: list, start, stop, status or autostart
+	 * @param arg			the argument of the command (a VM name) or null
+	 * @return the exit code
+	 */
+	public static int run(String command, String arg) {
+
+		long start = System.currentTimeMillis();
+		Logger.info("headless: " + command + (arg != null ? " " + arg : ""));
+		int exitCode;
+		switch (command) {
+		case AUTOSTART:
+			exitCode = autostart();
+			break;
+		case LIST:
+			exitCode = list();
+			break;
+		case START:
+			exitCode = start(arg);
+			break;
+		case STATUS:
+			exitCode = status();
+			break;
+		case STOP:
+			exitCode = stop(arg);
+			break;
+		default:
+			error("unknown command '" + command + "'");
+			Usage.print();
+			return 2;
+		}
+		Logger.info("headless: " + command + " done in " + (System.currentTimeMillis() - start) + "ms");
+		return exitCode;
+	}
+
+	/**
+	 * Starts a VM detached, it keeps running after this program has exited.
+	 * Output columns: name, state (running or failed), pid or exit code.
+	 *
+	 * @param vmName
+	 * @return the exit code
+	 */
+	private static int start(String vmName) {
+
+		VM vm = findVm(vmName);
+		if (vm == null) {
+			return 1;
+		}
+		ProcessHandle running = Qemu.findRunningProcess(vm);
+		if (running != null) {
+			return error("VM '" + vm.getName() + "' is running already, pid " + running.pid());
+		}
+		List<VM> cloneList = Main.getVmManager().getClones(vm);
+		if (!cloneList.isEmpty()) {
+			return error("VM '" + vm.getName() + "' is the base of the linked clones " + VMManager.getNames(cloneList)
+					+ ", its changes would be discarded: start it in the GUI");
+		}
+		Process process = new Qemu().runVmDetached(vm);
+		if (process == null) {
+			return error("cannot start VM '" + vm.getName() + "', see " + Main.LOG_FILE);
+		}
+		// QEMU refuses wrong options or locked images at once: wait for QMP or the exit
+		File socket = new File(Qemu.getRunFilePath(vm, ".qmp"));
+		QmpConnection qmpConnection = OSType.isWindows() ? null : QmpClient.connect(vm.getName(), socket.getPath());
+		try {
+			if (qmpConnection != null) {
+				CompletableFuture.anyOf(qmpConnection.getReadyFuture(), process.onExit())
+						.get(QmpClient.CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			} else {
+				process.onExit().get(START_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception e) {
+			// still running (no QMP) or no QMP connection, the process is checked below
+		}
+		if (qmpConnection != null) {
+			qmpConnection.close();
+		}
+		if (!process.isAlive()) {
+			print(vm.getName(), FAILED, "" + process.exitValue());
+			return error("VM '" + vm.getName() + "' exited with code " + process.exitValue()
+					+ ", see " + Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator
+					+ vm.getNameSafe() + ".log");
+		}
+		print(vm.getName(), RUNNING, "" + process.pid());
+		return 0;
+	}
+
+	/**
+	 * Lists the state of all VMs, columns: name, state (running or stopped), pid and
+	 * uptime in seconds (empty if stopped).
+	 *
+	 * @return the exit code
+	 */
+	private static int status() {
+
+		for (VM vm : Main.getVmManager().getVmList()) {
+			ProcessHandle handle = Qemu.findRunningProcess(vm);
+			if (handle == null) {
+				print(vm.getName(), STOPPED, "", "");
+				continue;
+			}
+			String uptime = handle.info().startInstant()
+					.map(instant -> "" + Duration.between(instant, Instant.now()).getSeconds())
+					.orElse("");
+			print(vm.getName(), RUNNING, "" + handle.pid(), uptime);
+		}
+		return 0;
+	}
+
+	/**
+	 * Stops a VM (ACPI shutdown, escalating after the grace time), also if it has been
+	 * started by the GUI. A VM whose QMP socket stays in use by another client (e.g. the GUI)
+	 * is not stopped. Output columns: name, state (stopped or killed).
+	 *
+	 * @param vmName
+	 * @return the exit code
+	 */
+	private static int stop(String vmName) {
+
+		VM vm = findVm(vmName);
+		if (vm == null) {
+			return 1;
+		}
+		ProcessHandle handle = Qemu.findRunningProcess(vm);
+		if (handle == null) {
+			print(vm.getName(), STOPPED);
+			return 0;
+		}
+		long graceMillis = Main.getPropertyInt(AppProperties.VM_STOP_GRACE_SECONDS) * 1000L;
+		QmpConnection qmpConnection = null;
+		File socket = new File(Qemu.getRunFilePath(vm, ".qmp"));
+		if (socket.exists()) {
+			qmpConnection = QmpClient.connect(vm.getName(), socket.getPath());
+			try {
+				// QEMU serves one QMP client at a time, wait for another client to release the socket
+				qmpConnection.getReadyFuture().get(QmpClient.CONNECT_TIMEOUT_MILLIS + graceMillis,
+						TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				// the socket is used by the GUI or another client, do not terminate a controlled VM
+				qmpConnection.close();
+				return error("VM '" + vm.getName() + "' is controlled by another QMP client (e.g. the GUI), "
+						+ "stop it there");
+			} catch (Exception e) {
+				// QMP not available (e.g. a stale socket), terminate the process
+				Logger.warning("headless: no QMP connection to VM '" + vm.getName() + "': " + e.getMessage());
+				qmpConnection.close();
+				qmpConnection = null;
+			}
+		}
+		try {
+			boolean isTerminated = VMSupervisor.stopProcess(vm.getName(), handle, qmpConnection,
+					System.currentTimeMillis() + graceMillis, null).get();
+			// the runtime files of a terminated QEMU are left over
+			new File(Qemu.getRunFilePath(vm, ".pid")).delete();
+			socket.delete();
+			print(vm.getName(), isTerminated ? KILLED : STOPPED);
+			return 0;
+		} catch (Exception e) {
+			return error("cannot stop VM '" + vm.getName() + "': " + e.getMessage());
+		} finally {
+			if (qmpConnection != null) {
+				qmpConnection.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,336 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy;
+
+import java.util.*;
+
+/**
+ * Minimal JSON parser and serializer, sufficient for protocols like QMP.
+ *
+ * <p>Parsed JSON values are mapped to: object -&gt; LinkedHashMap&lt;String, Object&gt;,
+ * array -&gt; ArrayList&lt;Object&gt;, string -&gt; String, number -&gt; Long (integral)
+ * or Double, true/false -&gt; Boolean, null -&gt; null.</p>
+ */
+public class Json {
+
+	private String text;
+	private int pos;
+
+	/**
+	 * Deny external construction, use the static methods.
+	 */
+	private Json(String text) {
+
+		this.text = text;
+	}
+
+	/**
+	 * Creates an IllegalArgumentException for a syntax error at the current position.
+	 *
+	 * @param msg
+	 */
+	private IllegalArgumentException error(String msg) {
+
+		return new IllegalArgumentException("JSON: " + msg + " at position " + pos);
+	}
+
+	/**
+	 * Expects a character at the current position.
+	 *
+	 * @param c
+	 */
+	private void expect(char c) {
+
+		skipWhiteSpace();
+		if (pos >= text.length() || text.charAt(pos) != c) {
+			throw error("'" + c + "' expected");
+		}
+		pos++;
+	}
+
+	/**
+	 * Returns a member of a JSON object (map) as String.
+	 *
+	 * @param map			the JSON object or null
+	 * @param key
+	 * @return the member as String or null, if not existing or null
+	 */
+	@SuppressWarnings("unchecked")
+	public static String getString(Object map, String key) {
+
+		if (!(map instanceof Map)) {
+			return null;
+		}
+		Object value = ((Map<String, Object>) map).get(key);
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Parses a JSON text.
+	 *
+	 * @param text			the JSON text
+	 * @return the value (see class description)
+	 * @throws IllegalArgumentException on syntax errors
+	 */
+	public static Object parse(String text) {
+
+		Json json = new Json(text);
+		Object value = json.parseValue();
+		json.skipWhiteSpace();
+		if (json.pos < text.length()) {
+			throw json.error("unexpected characters");
+		}
+		return value;
+	}
+
+	private ArrayList<Object> parseArray() {
+
+		ArrayList<Object> list = new ArrayList<>();
+		expect('[');
+		skipWhiteSpace();
+		if (peek() == ']') {
+			pos++;
+			return list;
+		}
+		for (;;) {
+			list.add(parseValue());
+			skipWhiteSpace();
+			char c = next();
+			if (c == ']') {
+				return list;
+			}
+			if (c != ',') {
+				throw error("',' or ']' expected");
+			}
+		}
+	}
+
+	private Object parseLiteral(String literal, Object value) {
+
+		if (!text.startsWith(literal, pos)) {
+			throw error("unexpected characters");
+		}
+		pos += literal.length();
+		return value;
+	}
+
+	private Number parseNumber() {
+
+		int start = pos;
+		boolean isIntegral = true;
+		while (pos < text.length()) {
+			char c = text.charAt(pos);
+			if (c == '.' || c == 'e' || c == 'E') {
+				isIntegral = false;
+			} else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+				break;
+			}
+			pos++;
+		}
+		String number = text.substring(start, pos);
+		try {
+			if (isIntegral) {
+				return Long.valueOf(number);
+			}
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("invalid number '" + number + "'");
+		}
+	}
+
+	private LinkedHashMap<String, Object> parseObject() {
+
+		LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+		expect('{');
+		skipWhiteSpace();
+		if (peek() == '}') {
+			pos++;
+			return map;
+		}
+		for (;;) {
+			skipWhiteSpace();
+			String key = parseString();
+			expect(':');
+			map.put(key, parseValue());
+			skipWhiteSpace();
+			char c = next();
+			if (c == '}') {
+				return map;
+			}
+			if (c != ',') {
+				throw error("',' or '}' expected");
+			}
+		}
+	}
+
+	private String parseString() {
+
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		for (;;) {
+			char c = next();
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+			case 'b':	sb.append('\b'); break;
+			case 'f':	sb.append('\f'); break;
+			case 'n':	sb.append('\n'); break;
+			case 'r':	sb.append('\r'); break;
+			case 't':	sb.append('\t'); break;
+			case 'u':
+				if (pos + 4 > text.length()) {
+					throw error("invalid unicode escape");
+				}
+				try {
+					sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("invalid unicode escape");
+				}
+				pos += 4;
+				break;
+			default:	sb.append(c);			// '"', '\\', '/'
+			}
+		}
+	}
+
+	private Object parseValue() {
+
+		skipWhiteSpace();
+		char c = peek();
+		switch (c) {
+		case '{':	return parseObject();
+		case '[':	return parseArray();
+		case '"':	return parseString();
+		case 't':	return parseLiteral("true", Boolean.TRUE);
+		case 'f':	return parseLiteral("false", Boolean.FALSE);
+		case 'n':	return parseLiteral("null", null);
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				return parseNumber();
+			}
+			throw error("unexpected character '" + c + "'");
+		}
+	}
+
+	private char next() {
+
+		if (pos >= text.length()) {
+			throw error("unexpected end");
+		}
+		return text.charAt(pos++);
+	}
+
+	private char peek() {
+
+		if (pos >= text.length()) {
+			throw error("unexpected end");
+		}
+		return text.charAt(pos);
+	}
+
+	private void skipWhiteSpace() {
+
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			pos++;
+		}
+	}
+
+	/**
+	 * Serializes a value to JSON text, see class description for the supported types.
+	 *
+	 * @param value
+	 * @return the JSON text
+	 */
+	public static String toJson(Object value) {
+
+		StringBuilder sb = new StringBuilder();
+		write(sb, value);
+		return sb.toString();
+	}
+
+	private static void write(StringBuilder sb, Object value) {
+
+		if (value == null) {
+			sb.append("null");
+		} else if (value instanceof String) {
+			writeString(sb, (String) value);
+		} else if (value instanceof Number || value instanceof Boolean) {
+			sb.append(value);
+		} else if (value instanceof Map) {
+			sb.append('{');
+			boolean isFirst = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!isFirst) {
+					sb.append(',');
+				}
+				isFirst = false;
+				writeString(sb, entry.getKey().toString());
+				sb.append(':');
+				write(sb, entry.getValue());
+			}
+			sb.append('}');
+		} else if (value instanceof Collection) {
+			sb.append('[');
+			boolean isFirst = true;
+			for (Object element : (Collection<?>) value) {
+				if (!isFirst) {
+					sb.append(',');
+				}
+				isFirst = false;
+				write(sb, element);
+			}
+			sb.append(']');
+		} else {
+			writeString(sb, value.toString());
+		}
+	}
+
+	private static void writeString(StringBuilder sb, String s) {
+
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':	sb.append("\\\""); break;
+			case '\\':	sb.append("\\\\"); break;
+			case '\n':	sb.append("\\n"); break;
+			case '\r':	sb.append("\\r"); break;
+			case '\t':	sb.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+	}
+}
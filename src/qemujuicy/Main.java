@@ -65,6 +65,7 @@ public class Main {
 	 */
 	public Main(String[] arguments) throws Exception {
 
+		long startMillis = System.currentTimeMillis();
 		instance = this;
 		// parse command line arguments
 		args = new CommandLineArgs(arguments);
@@ -77,7 +78,9 @@ public class Main {
 		}
 		Util.verbose(Msg.get(STARTING_MSG, APP_NAME));
 		OSType.getOS();					// init OS detection
-		Images.init();
+		if (!args.isHeadless()) {
+			Images.init();
+		}
 		Files.init();
 		if (OSType.isWindows()) {
 			Files.ensureAppDir(Files.getHomeDirPath() + APP_DIR_MS_WIN);
@@ -94,13 +97,14 @@ public class Main {
 		properties = new AppProperties(configFilePath, true);
 		Util.verbose("Logging to file " + Files.getAppDirPath() + LOG_FILE + " ...");
 		Logger.init(Files.getAppDirPath() + LOG_FILE);
-		Logger.logErrorsToConsole(true);
+		Logger.logErrorsToConsole(!args.isHeadless());			// headless: errors are printed by Headless
 		Logger.info(APP_NAME + ": started ...");
 		logSystemAndUserInfos();
 		OSType.getOS();
 		OSType.logInfo();
 		Logger.info(APP_NAME + " application directory: '" + Files.getAppDirPath() + "'");
 		Logger.info("reading configuration file: " + CONFIG_FILE);
+		long configMillis = System.currentTimeMillis();
 		// finish the setup
 		if (isFirstStart) {
 			String vmDisksPath = Files.getAppDirPath() + VM_DISKS_DIR;
@@ -111,6 +115,14 @@ public class Main {
 			// read the existing VMs into VMManager
 			vmManager = new VMManager(properties);
 		}
+		long vmsMillis = System.currentTimeMillis();
+		if (args.isHeadless()) {
+			// command line mode, neither AWT nor Swing are initialized
+			int exitCode = Headless.run(args.getHeadlessCommand(), args.getHeadlessArg());
+			Logger.info(APP_NAME + ": headless exit, code " + exitCode);
+			Logger.close();
+			System.exit(exitCode);
+		}
 		// start GUI
 		System.setProperty("awt.useSystemAAFontSettings","on");					// render fonts in a better way
 		Gbc.setDefaultInset(7);				// generic inset to next grid cell
@@ -124,6 +136,15 @@ public class Main {
     		}
     	}
     	mainView = new MainView();
+    	long endMillis = System.currentTimeMillis();
+    	Logger.info("startup: " + (endMillis - startMillis) + "ms, configuration " + (configMillis - startMillis)
+    			+ "ms, VMs " + (vmsMillis - configMillis) + "ms, main window " + (endMillis - vmsMillis) + "ms");
+    	new VMDirectoryWatcher(Main.getProperty(AppProperties.VM_DISK_PATH), vmManager).start();
+    	vmManager.autostart();
+    	int restoredJobs = vmManager.getDiskJobQueue().restore();		// conversions of the last session
+    	if (restoredJobs > 0) {
+    		MainView.setStatusMessage(Msg.get(CONVERT_RESTORED_MSG, restoredJobs));
+    	}
 	}
 
 	/**
@@ -267,6 +288,14 @@ public class Main {
 		return instance.isFirstStart;
 	}
 
+	/**
+	 * @return true, if running without GUI (command line mode), false otherwise
+	 */
+	public static boolean isHeadless() {
+		
+		return instance.args.isHeadless();
+	}
+
 	/**
 	 * Flag for verbose messages sent to System.out.
 	 * 
@@ -352,6 +381,14 @@ public class Main {
 	 */
 	public static void onExit() {
 		
+		if (!VMSupervisor.getRunningVms().isEmpty()) {
+			// stop all VMs in parallel, they all share the grace time
+			Util.verbose("stopping running VMs ...");
+			VMSupervisor.stopAll(getPropertyInt(AppProperties.VM_STOP_GRACE_SECONDS) * 1000L);
+		}
+		instance.vmManager.getDiskJobQueue().shutdown();		// unfinished conversions are restored on start
+		PersistenceService.flushNow();
+		PersistenceService.logStatistics();
  		instance.properties.storeToXML();
  		Logger.info(APP_NAME + ": exit under normal conditions");
 		Logger.close();
@@ -55,22 +55,88 @@ public enum Message {
 	ADVANCED_MSG("Advanced"),
 	APP_DIR_MSG(Main.APP_NAME + " directory"),
 	ARCHITECTURE_MSG("Architecture"),
+	AUTOSTART_MSG("Autostart"),
 	BOOT_MENU_MSG("QEMU boot menu"),
+	CANNOT_CREATE_DISK_MSG("Cannot create the disk image '$(1)', see the log file"),
 	CANNOT_CREATE_OR_WRITE_TO_MSG("Cannot create or write to file '$(1)'"),
+	CLONE_BASE_MSG("The VM '$(1)' is the base of the linked clones: $(2)\n"
+			+ "Delete or flatten the clones first"),
+	CLONE_BASE_INSTALL_MSG("The VM '$(1)' is the base of the linked clones: $(2)\n"
+			+ "Its disk is read-only, an installation would be discarded"),
+	CLONE_BASE_LABEL_MSG("$(1) (base of $(2) clone(s), read-only)"),
+	CLONE_BASE_START_MSG("The VM '$(1)' is the base of the linked clones: $(2)\n"
+			+ "Its disk is read-only: all changes are discarded when it shuts down.\nStart it anyway?"),
+	CLONE_NAME_MSG("$(1) clone"),
+	CLONE_RENAME_FAILED_MSG("Cannot change the backing file of the linked clones of the VM '$(1)',\n"
+			+ "the VM has not been renamed, see the log file"),
+	CLONE_RENAME_RUNNING_MSG("The linked clone(s) of the VM '$(1)' refer to its disk: $(2)\n"
+			+ "Stop them before renaming it"),
+	CLONE_VM_NO_QCOW2_MSG("The VM '$(1)' has no qcow2 disk to clone"),
+	CLONE_VM_RUNNING_MSG("Stop the VM '$(1)' before cloning it"),
+	COMPACT_COMPRESS_JOB_MSG("Compact and compress $(1) (ratio $(2))"),
+	COMPACT_COMPRESS_MSG("Compress (zstd)"),
+	COMPACT_JOB_MSG("Compact $(1) (ratio $(2))"),
+	COMPACT_NO_QCOW2_MSG("The VM '$(1)' has no qcow2 disk to compact"),
+	COMPACT_NONE_MSG("No disk of a stopped VM wastes enough space (ratio $(1) or more)"),
+	COMPACT_QUEUED_MSG("$(1) disk(s) queued for compaction"),
+	COMPACT_SNAPSHOTS_MSG("The disk of the VM '$(1)' has snapshots, compaction would drop them"),
+	COMPACT_VM_RUNNING_MSG("The VM '$(1)' is running or busy"),
+	CONVERT_EXPORT_JOB_MSG("Export $(1) to $(2) ($(3))"),
+	CONVERT_FORMAT_UNKNOWN_MSG("Unknown image format of '$(1)', use the extension .qcow2, .vmdk, .vdi, .vhdx, .vhd, .img or .raw"),
+	CONVERT_IMPORT_DONE_MSG("The VM '$(1)' has been created from the imported disk image"),
+	CONVERT_IMPORT_JOB_MSG("Import $(1) as VM '$(2)'"),
+	CONVERT_IMPORT_NAME_MSG("Name of the VM of the imported disk image"),
+	CONVERT_NO_DISK_MSG("The VM '$(1)' has no disk to export"),
+	CONVERT_NO_IMAGE_MSG("The disk image '$(1)' does not exist"),
+	CONVERT_RESTORED_MSG("$(1) disk conversion(s) of the last session restarted"),
+	CONVERT_SELECT_IMAGE_MSG("Disk images (qcow2, VMDK, VDI, VHDX, VHD, raw)"),
 	COPY_MSG("Copy"),
 	DEVICE_SLOT_NOT_AVAILABLE("No empty device available"),
 	ERROR_LOADING_VM_DLG_MSG("VMManager: error loading VM from '$(1)'"),
 	ERROR_TITLE_DLG_MSG("Error"),
 	EXTRA_PARAMS_MSG("Extra parameters"),
 	DEVICES_MSG("Devices"),
+	DISK_JOBS_MSG("Disk jobs"),
+	DISK_PROFILE_MSG("Disk"),
+	DISK_RENAME_FAILED_MSG("Cannot rename the disk '$(1)' to '$(2)', the VM has not been renamed"),
+	DISK_USAGE_MSG("($(1) of $(2) allocated)"),
 	DEVICES_MANAGER_MSG("Device Manager"),
 	VM_EXITS_ALREADY_MSG("A VM with the name '$(1)' exists already"),
+	VM_FILE_CHANGED_TITLE_MSG("VM changed by another program"),
+	VM_FILE_CONFLICT_MSG("The VM '$(1)' has been changed by another program,\n"
+			+ "but it has unsaved changes too: reload it from its file (the unsaved changes are lost)?"),
 	VM_EXITS_WITH_CODE("The VM exits with code '$(1)', was it already running?"),
+	FLATTEN_DONE_MSG("The VM '$(1)' is independent of its base VM now"),
+	FLATTEN_FAILED_MSG("Flattening the VM '$(1)' failed, see the log file"),
+	FLATTEN_STARTED_MSG("Flattening the VM '$(1)' ..."),
 	FILE_EXITS_ALREADY_MSG("A file '$(1)' exists already"),
 	FIRST_SETUP_DLG_MSG("Setup: should " + Main.APP_NAME + " search for QEMU installations?"),
 	HINTS_MSG("Hints in status line"),
+	JOB_CANCELED_MSG("canceled"),
+	JOB_DONE_MSG("done"),
+	JOB_FAILED_MSG("failed"),
+	JOB_MSG("Job"),
+	JOB_PROGRESS_MSG("Progress"),
+	JOB_QUEUED_MSG("queued"),
+	JOB_RUNNING_MSG("running"),
+	JOB_STATE_MSG("State"),
 	LOCALTIME_MSG("Use local time"),
 	MANAGE_MSG("Manage"),
+	MEDIA_BAD_MSG("The image '$(1)' should not be used: $(2)"),
+	MEDIA_CHECKSUM_MSG("Checksum"),
+	MEDIA_CORRUPT_MSG("corrupt (checksum differs)"),
+	MEDIA_FILE_MSG("File"),
+	MEDIA_INCOMPLETE_MSG("incomplete download"),
+	MEDIA_INVALID_MSG("no ISO9660 image"),
+	MEDIA_LABEL_MSG("Volume label"),
+	MEDIA_NO_CHECKSUM_FILE_MSG("no checksum file"),
+	MEDIA_OS_MSG("OS"),
+	MEDIA_READ_FAILED_MSG("The image '$(1)' cannot be read: $(2)"),
+	MEDIA_SIZE_MSG("Size"),
+	MEDIA_TITLE_MSG("Installation media"),
+	MEDIA_UNVERIFIED_MSG("not verified"),
+	MEDIA_VERIFIED_MSG("verified"),
+	MEDIA_VERIFYING_MSG("verifying ($(1) %)"),
 	MEMORY_MSG("Memory"),
 	MEMORY_DEFAULT_MSG("Default memory ($(1) MB)"),
 	MEMORY_MAX_MSG("Maximum ($(1) MB)"),
@@ -85,14 +151,48 @@ public enum Message {
 	SELECT_QEMU_DLG_EXPLANATION_MSG("To run a virtual machine (VM),\n"
 			+ "a QEMU installation is necessary"),
 	SELECT_QEMU_INSTALL_DIR_LBL_MSG("Select QEMU install directory"),
+	SNAPSHOT_CLONE_BASE_MSG("The VM '$(1)' is the base of linked clones: its disk cannot be reverted,\n"
+			+ "and it has no snapshots while running"),
+	SNAPSHOT_CURRENT_MSG("(current)"),
+	SNAPSHOT_DEFAULT_NAME_MSG("Snapshot $(1)"),
+	SNAPSHOT_DELETE_CONFIRM_MSG("Delete the snapshot '$(1)' of the VM '$(2)'?"),
+	SNAPSHOT_DONE_MSG("$(1) the snapshot '$(2)' of the VM '$(3)': done"),
+	SNAPSHOT_FAILED_MSG("$(1) the snapshot '$(2)' of the VM '$(3)' failed, see the log file"),
+	SNAPSHOT_NAME_EXISTS_MSG("The VM '$(1)' already has a snapshot '$(2)'"),
+	SNAPSHOT_NAME_INVALID_MSG("Invalid snapshot name '$(1)': use up to 64 letters, digits, spaces and . + - _"),
+	SNAPSHOT_NAME_MSG("Name of the snapshot"),
+	SNAPSHOT_NO_QCOW2_MSG("The VM '$(1)' has no qcow2 disk, snapshots are not possible"),
+	SNAPSHOT_NONE_SELECTED_MSG("Select a snapshot first"),
+	SNAPSHOT_OP_CREATE_MSG("Creating"),
+	SNAPSHOT_OP_DELETE_MSG("Deleting"),
+	SNAPSHOT_OP_REVERT_MSG("Reverting to"),
+	SNAPSHOT_PROGRESS_MSG("$(1) the snapshot '$(2)' of the VM '$(3)' ... $(4)"),
+	SNAPSHOT_REVERT_CONFIRM_MSG("Revert the VM '$(1)' to the snapshot '$(2)'?\n"
+			+ "The current state of the VM is lost."),
+	SNAPSHOT_VM_BUSY_MSG("The VM '$(1)' is busy, try again later"),
+	SNAPSHOT_VM_STATE_MSG("VM state $(1)"),
+	SNAPSHOTS_MSG("Snapshots"),
 	SOUND_MSG("Sound"),
 	STARTING_MSG("\nStarting '$(1) ..."),
 	STORE_MSG("Store"),
 	STORE_LINES_MSG("Store \\"),
+	TEMPLATE_COUNT_MSG("Number of VMs"),
+	TEMPLATE_INSTANCE_NAME_MSG("$(1) $(2)"),
+	TEMPLATE_INSTANCES_FAILED_MSG("$(1) of $(2) VMs could not be created, see the log file"),
+	TEMPLATE_MSG("Template"),
+	TEMPLATE_NAME_MSG("Name of the template (an existing template gets a new version)"),
+	TEMPLATE_NONE_MSG("There are no templates, promote a VM to a template first"),
+	TEMPLATE_PROMOTE_FAILED_MSG("The VM '$(1)' could not be promoted to a template, see the log file"),
+	TEMPLATE_PROMOTE_NOT_POSSIBLE_MSG("The VM '$(1)' cannot be promoted: it is running, busy or a linked clone or it has linked clones"),
+	TEMPLATE_PROMOTED_MSG("The VM '$(1)' has been promoted to the template $(2)"),
+	TEMPLATE_ROLLED_OUT_MSG("Template $(1) rolled out to $(2) VMs"),
 	VERBOSE_MSG("Verbose output"),
 	VM_DIR_MSG("Directory of VMs (disks)"),
 	VM_EXIST_ALREADY_MSG("A Vm with that (or similar) name exists already"),
 	VM_MSG("Virtual machine"),
+	VM_NO_OUTPUT_MSG("No output, the VM has not been started yet"),
+	VM_OUTPUT_MSG("QEMU output"),
+	VM_UNSUPPORTED_OPTION_MSG("'$(1)' does not support $(2)"),
 	
 	// hints in status bar: ends with _HINT_MSG
 	CONFIG_DIR_SETTINGS_HINT_MSG("Setup wizard: configure QEMU, settings and directories"),
@@ -105,39 +205,66 @@ public enum Message {
 	ADD_DRIVE_TT_MSG("Add a drive"),
 	ADD_FLOPPY_TT_MSG("Add a floppy disk"),
 	ADD_VM_TT_MSG("Create a virtual machine"),
+	AUTOSTART_TT_MSG("Start the VM when " + Main.APP_NAME + " starts (staggered by priority)"),
+	CLONE_VM_TT_MSG("Create a linked clone of the virtual machine"),
+	COMPACT_ALL_TT_MSG("Compact the disks of all stopped VMs, the most wasteful first"),
+	COMPACT_VM_TT_MSG("Compact the disk of the selected VM"),
 	CONF_GENERAL_SETTINGS_TT_MSG("General settings"),
+	CONVERT_EXPORT_TT_MSG("Export the disk of the selected VM (VMDK, VDI, VHDX, VHD, raw or qcow2)"),
+	CONVERT_IMPORT_TT_MSG("Import a disk image (VMDK, VDI, VHDX, VHD, raw or qcow2) as a new VM"),
 	CONF_FILES_TT_MSG("Files and folders"),
 	COPY_CLIPBOARD_TT_MSG("Copy to clipboard"),
+	FLATTEN_VM_TT_MSG("Flatten the linked clone: copy the disk of its base VM"),
 	LOCALTIME_TT_MSG("Set real time clock to local time (default: utc), required for MS-DOS/Windows "),
 	DISK_IMAGE_VM_TT_MSG("Create or manage a virtual machine disk"),
+	DISK_PROFILE_TT_MSG("Performance profile of the disk: bus, cache and I/O modes (virtio needs drivers in the guest)"),
+	JOB_CANCEL_TT_MSG("Cancel the selected job, its partial output is removed"),
+	MEDIA_ADD_DIR_TT_MSG("Add a directory to the installation media library"),
+	MEDIA_BROWSE_TT_MSG("Select another image file or DVD device"),
+	MEDIA_VERIFY_TT_MSG("Compare the SHA-256 checksum of the selected image to its checksum file (SHA256SUMS, ...)"),
 	MOVE_UP_VM_TT_MSG("Move the VM up"),
 	MOVE_DOWN_VM_TT_MSG("Move the VM down"),
 	SETUP_WIZARD_TT_MSG("Setup Wizard"),
 	QEMU_INSTALLATION_TT_MSG("QEMU installation settings"),
 	REMOVE_DEVICE_TT_MSG("Remove a device"),
 	REMOVE_VM_TT_MSG("Delete virtual machine"),
+	SNAPSHOT_CREATE_TT_MSG("Create a snapshot (of a running VM including its state)"),
+	SNAPSHOT_DELETE_TT_MSG("Delete the selected snapshot"),
+	SNAPSHOT_REVERT_TT_MSG("Revert the VM to the selected snapshot"),
 	START_TT_MSG("Start virtual machine"),
 	STOP_TT_MSG("Stop virtual machine"),
+	TEMPLATE_CREATE_VMS_TT_MSG("Create virtual machines from a template"),
+	TEMPLATE_PROMOTE_TT_MSG("Promote the virtual machine to a template"),
+	TEMPLATE_ROLLOUT_TT_MSG("Roll out a template update to its virtual machines"),
 	STORE_AS_FILE_TT_MSG("Store as file (shell script, bat file) to start this VM"),
 	STORE_AS_FILE_LINES_TT_MSG("Store as file lines (shell script, bat file) to start this VM"),
 	VM_TAB_ADVANCED_PROPERTIES_TT_MSG("Advanced QEMU parameters/usage"),
+	VM_TAB_SNAPSHOTS_TT_MSG("Snapshots of the virtual machine"),
 	VM_TAB_VM_DEVICES_TT_MSG("Virtual machine devices manager"),
 	VM_TAB_VM_PROPERTIES_TT_MSG("Virtual machine general properties"),
 	VM_RUN_INSTALL_TT_MSG("Install virtual machine once from DVD/image file"),
+	VM_OUTPUT_TT_MSG("Show the latest output of QEMU running this VM"),
 	VM_WIZARD_TT_MSG("Create a virtual machine using the VM wizard"),
 	
 	// GUI buttons & menu items text: ends with _BTN_MSG
 	ABOUT_BTN_MSG("About"),
+	ADD_DIR_BTN_MSG("Add directory ..."),
 	APPLY_BTN_MSG("Apply"),
 	BACK_BTN_MSG("Back"),
+	BROWSE_BTN_MSG("Browse ..."),
 	CANCEL_BTN_MSG("Cancel"),
+	COMPACT_ALL_BTN_MSG("Compact all"),
+	COMPACT_VM_BTN_MSG("Compact VM"),
 	CONTRIBUTION_BTN_MSG("Contribution"),
 	CREDITS_BTN_MSG("Credits"),
 	EXIT_BTN_MSG("Exit"),
 	EXIT_APP_BTN_MSG("Exit " + Main.APP_NAME),
+	EXPORT_BTN_MSG("Export ..."),
 	FILE_BTN_MSG("File"),
 	FINISHED_BTN_MSG("Finished"),
 	HELP_BTN_MSG("Help"),
+	IMPORT_BTN_MSG("Import ..."),
+	INSTALL_BTN_MSG("Install"),
 	LICENSE_BTN_MSG("License"),
 	LICENSE_OXYGEN_BTN_MSG("License_Oxygen"),
 	LICENSE_AQEMU_BTN_MSG("License_aqemu"),
@@ -147,8 +274,10 @@ public enum Message {
 	OK_BTN_MSG("Ok"),
 	OPEN_BTN_MSG("Open"),
 	QEMU_SETUP_BTN_MSG("QEMU setup"),
+	REMOVE_FINISHED_BTN_MSG("Remove finished"),
 	SETTINGS_BTN_MSG("Settings"),
 	TEST_BTN_MSG("Test QEMU"),
+	VERIFY_BTN_MSG("Verify"),
 	VM_BTN_MSG("Virtual machine"),
 	VM_WIZARD_MSG("Create a VM using a wizard"),
 	YES_BTN_MSG("Yes"),
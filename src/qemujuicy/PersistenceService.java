@@ -0,0 +1,241 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Debounced persistence of properties (VMProperties, AppProperties).
+ *
+ * Changed properties are marked dirty, they are written on one background thread as soon
+ * as no further change happened for a quiet period. Many changes in a row (e.g. typing into
+ * a text field) result in one write. flushNow() writes at once (exit, starting a VM).
+ *
+ * All files are written by the one persistence thread (write()), so concurrent saves
+ * (e.g. the EDT and a VM watcher thread) cannot interleave.
+ */
+public class PersistenceService {
+
+	public static final long QUIET_MILLIS = 500;			// write after no change within this time
+
+	private static volatile Thread writerThread;
+	private static final ScheduledExecutorService executor =
+			Executors.newSingleThreadScheduledExecutor(runnable -> {
+				writerThread = new Thread(runnable, "persistence");
+				writerThread.setDaemon(true);
+				return writerThread;
+			});
+	// identity: the hash code of Properties changes with their content
+	private static final Set<Storable> dirtySet = Collections.newSetFromMap(new IdentityHashMap<>());
+	private static ScheduledFuture<?> scheduledFlush;
+	private static long markCount;					// number of changes marked dirty
+	private static long writeCount;					// number of writes done
+
+	/**
+	 * Deny external construction.
+	 */
+	private PersistenceService() {
+
+	}
+
+	/**
+	 * Appends to a file on the persistence thread (forced to disk) and waits until it is written.
+	 *
+	 * @param pathname		the path of the file
+	 * @param content		the content to append
+	 * @throws IOException
+	 */
+	public static void append(String pathname, byte[] content) throws IOException {
+
+		run(() -> {
+			try (FileOutputStream out = new FileOutputStream(pathname, true)) {
+				out.write(content);
+				out.getFD().sync();
+			}
+		}, pathname);
+	}
+
+	/**
+	 * Writes all dirty properties, runs on the persistence thread.
+	 */
+	private static void flush() {
+
+		ArrayList<Storable> storeList;
+		synchronized (PersistenceService.class) {
+			storeList = new ArrayList<>(dirtySet);
+			dirtySet.clear();
+			scheduledFlush = null;
+		}
+		for (Storable storable : storeList) {
+			try {
+				storable.storeToXML();
+			} catch (Exception e) {
+				Logger.error("PersistenceService: cannot store " + storable.getPathname(), e);
+			}
+		}
+		synchronized (PersistenceService.class) {
+			writeCount += storeList.size();
+		}
+	}
+
+	/**
+	 * Writes all dirty properties at once and waits until they are written. The flush runs on
+	 * the persistence thread also if nothing is dirty: it waits for a write still running
+	 * (flush() clears the dirty set before writing).
+	 */
+	public static void flushNow() {
+
+		if (Thread.currentThread() == writerThread) {
+			flush();
+			return;
+		}
+		synchronized (PersistenceService.class) {
+			if (!dirtySet.isEmpty() && scheduledFlush != null) {
+				scheduledFlush.cancel(false);
+				scheduledFlush = null;
+			}
+		}
+		try {
+			executor.submit(PersistenceService::flush).get();
+		} catch (InterruptedException | ExecutionException e) {
+			Logger.error("PersistenceService: flush failed", e);
+		}
+	}
+
+	/**
+	 * @return the number of changes marked dirty
+	 */
+	public static synchronized long getMarkCount() {
+
+		return markCount;
+	}
+
+	/**
+	 * @return the number of writes done
+	 */
+	public static synchronized long getWriteCount() {
+
+		return writeCount;
+	}
+
+	/**
+	 * @return the number of writes saved by coalescing changes (pending changes not included)
+	 */
+	public static synchronized long getWritesSaved() {
+
+		return markCount - dirtySet.size() - writeCount;
+	}
+
+	/**
+	 * Logs the statistics.
+	 */
+	public static synchronized void logStatistics() {
+
+		Logger.info("PersistenceService: " + markCount + " changes, " + writeCount + " writes, "
+				+ getWritesSaved() + " writes saved");
+	}
+
+	/**
+	 * Marks properties as changed, they will be written after the quiet period.
+	 *
+	 * @param storable		the changed properties
+	 */
+	public static synchronized void markDirty(Storable storable) {
+
+		dirtySet.add(storable);
+		markCount++;
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+		}
+		scheduledFlush = executor.schedule(PersistenceService::flush, QUIET_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs a file operation on the persistence thread and waits until it is done.
+	 *
+	 * @param operation		the file operation
+	 * @param pathname		the path of the file (error message)
+	 * @throws IOException
+	 */
+	private static void run(FileOperation operation, String pathname) throws IOException {
+
+		if (Thread.currentThread() == writerThread) {
+			operation.run();
+			return;
+		}
+		try {
+			executor.submit(() -> {
+				operation.run();
+				return null;
+			}).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted writing " + pathname);
+		}
+	}
+
+	/**
+	 * Writes a file crash-safe on the persistence thread and waits until it is written.
+	 *
+	 * @param pathname		the path of the file
+	 * @param content		the content of the file
+	 * @throws IOException
+	 */
+	public static void write(String pathname, byte[] content) throws IOException {
+
+		run(() -> Util.writeFileAtomically(pathname, content), pathname);
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * A file operation.
+	 */
+	private interface FileOperation {
+
+		void run() throws IOException;
+	}
+
+	/**
+	 * Properties stored into a XML file.
+	 */
+	public interface Storable {
+
+		/**
+		 * @return the path of the XML file
+		 */
+		String getPathname();
+
+		/**
+		 * Stores the properties into the XML file.
+		 */
+		void storeToXML();
+	}
+}
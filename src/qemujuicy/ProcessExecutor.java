@@ -27,48 +27,160 @@ import java.util.concurrent.*;
 
 /**
  * Executor of a process.
- * The output of the process is stored in a String object.
+ * 
+ * The process is executed asynchronously, stdout and stderr are drained concurrently 
+ * (a process writing more than the pipe buffer cannot block), and stored in String objects.
+ * The output may be streamed line by line (e.g. progress output) using an OutputListener.
+ * On timeout or cancellation of the returned CompletableFuture the process is killed.
  */
 public class ProcessExecutor  {
 
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+	// drains the output streams, two threads per running process, idle threads terminate
+	private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "processExecutor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private String[] command;
+	private OutputListener listener;
 	private Process process;
 
 	private StringBuilder out = new StringBuilder();
-	private int exitValue;
+	private StringBuilder err = new StringBuilder();
+	private int exitValue = -1;
 
 	/**
-	 * Construction and execute a process with a default timeout.
+	 * Construction, use execute() to run a process.
 	 * 
+	 * @param listener			the listener for output lines or null
 	 * @param command			command and parameters
-	 * @throws Exception
 	 */
-	public ProcessExecutor(String... command) throws Exception {
+	private ProcessExecutor(OutputListener listener, String... command) {
 
-		this(10000, command);
+		this.listener = listener;
+		this.command = command;
 	}
 
 	/**
-	 * Construction and execute a process with a defined timeout.
-	 * The caller is responsible for catching the IllegalThreadStateException, if any.
-	 * If a timeout occurs, no output and no exit value will be generated.
+	 * Reads an output stream of the process until its end.
+	 * 
+	 * @param in				the stream
+	 * @param sb				the StringBuilder to store the output
+	 * @param isStdErr			true for stderr, false for stdout
+	 */
+	private void drain(InputStream in, StringBuilder sb, boolean isStdErr) {
+
+		char[] buffer = new char[4096];
+		StringBuilder line = new StringBuilder();
+		try (Reader reader = new InputStreamReader(in)) {
+			int count;
+			while ((count = reader.read(buffer)) > 0) {
+				synchronized (sb) {
+					sb.append(buffer, 0, count);
+				}
+				if (listener == null) {
+					continue;
+				}
+				// progress output often uses '\r' to overwrite the line, it ends a line too
+				for (int i = 0; i < count; i++) {
+					char c = buffer[i];
+					if (c == '\n' || c == '\r') {
+						if (line.length() > 0) {
+							listener.outputLine(line.toString(), isStdErr);
+							line.setLength(0);
+						}
+					} else {
+						line.append(c);
+					}
+				}
+			}
+			if (listener != null && line.length() > 0) {
+				listener.outputLine(line.toString(), isStdErr);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Executes a process asynchronously with the default timeout.
 	 * 
-	 * @param millis			the milliseconds to wait for a timeout (IllegalThreadStateException)
 	 * @param command			command and parameters
-	 * @throws Exception
+	 * @return the future of the executed process, completing exceptionally on errors and timeout
 	 */
-	public ProcessExecutor(long millis, String... command) throws Exception {
-
-		ProcessBuilder builder = new ProcessBuilder(command);
-		process = builder.start();
-		process.waitFor(millis, TimeUnit.MILLISECONDS);
-		exitValue = process.exitValue();
-		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				out.append(line);
-				out.append("\n");
+	public static CompletableFuture<ProcessExecutor> execute(String... command) {
+
+		return execute(DEFAULT_TIMEOUT_MILLIS, null, command);
+	}
+
+	/**
+	 * Executes a process asynchronously.
+	 * The returned future completes after the process has exited and its output has been read. 
+	 * It completes exceptionally with a TimeoutException on timeout, or with the 
+	 * IOException if the process cannot be started. On timeout, cancellation 
+	 * or any other exceptional completion the process is killed.
+	 * 
+	 * @param millis			the milliseconds to wait for a timeout, 0 or less for no timeout
+	 * @param listener			a listener for output lines or null
+	 * @param command			command and parameters
+	 * @return the future of the executed process
+	 */
+	public static CompletableFuture<ProcessExecutor> execute(long millis, 
+			OutputListener listener, String... command) {
+
+		ProcessExecutor procExec = new ProcessExecutor(listener, command);
+		CompletableFuture<ProcessExecutor> future = new CompletableFuture<>();
+		try {
+			procExec.process = new ProcessBuilder(command).start();
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		Process process = procExec.process;
+		CompletableFuture<Void> outDone = CompletableFuture.runAsync(
+				() -> procExec.drain(process.getInputStream(), procExec.out, false), executor);
+		CompletableFuture<Void> errDone = CompletableFuture.runAsync(
+				() -> procExec.drain(process.getErrorStream(), procExec.err, true), executor);
+		CompletableFuture.allOf(outDone, errDone).thenCombine(process.onExit(), (v, p) -> {
+			procExec.exitValue = p.exitValue();
+			return procExec;
+		}).whenComplete((result, throwable) -> {
+			if (throwable != null) {
+				future.completeExceptionally(throwable);
+			} else {
+				future.complete(result);
 			}
-//			System.out.println(out);
+		});
+		if (millis > 0) {
+			future.orTimeout(millis, TimeUnit.MILLISECONDS);
+		}
+		future.whenComplete((result, throwable) -> {
+			if (throwable != null && process.isAlive()) {
+				// timeout, cancellation, or an output error: do not leave the process running
+				process.destroyForcibly();
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @return the command and parameters as one string
+	 */
+	public String getCommandString() {
+
+		return String.join(" ", command);
+	}
+
+	/**
+	 * @return the output of the executed command to stderr
+	 */
+	public String getErrorOutput() {
+
+		synchronized (err) {
+			return err.toString();
 		}
 	}
 
@@ -85,7 +197,9 @@ public class ProcessExecutor  {
 	 */
 	public String getOutput() {
 		
-		return out.toString();
+		synchronized (out) {
+			return out.toString();
+		}
 	}
 	
 	/**
@@ -96,4 +210,20 @@ public class ProcessExecutor  {
 		return process;
 	}
 
+	/************************* inner classes *************************/
+
+	/**
+	 * A listener for the output of a process, line by line.
+	 * It is called on the threads reading the output, and should not block.
+	 */
+	public interface OutputListener {
+
+		/**
+		 * Called for each line (terminated by '\n' or '\r') of output.
+		 * 
+		 * @param line			the line, without line terminator
+		 * @param isStdErr		true if the line has been written to stderr
+		 */
+		void outputLine(String line, boolean isStdErr);
+	}
 }
@@ -0,0 +1,209 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Probes QEMU programs ("--version") concurrently, the results are cached in the
+ * application directory.
+ *
+ * The cache is keyed by the resolved path, the size and the modification time of a
+ * program (its fingerprint), a program is only executed again if it has changed.
+ */
+public class QemuProbe {
+
+	public static final String CACHE_FILE = "qemu-probe.xml";
+	public static final long PROBE_TIMEOUT_MILLIS = 10000;
+
+	private static Properties cache;				// fingerprint -> output of "--version"
+
+	/**
+	 * Deny external construction.
+	 */
+	private QemuProbe() {
+
+	}
+
+	/**
+	 * Returns the fingerprint of a program: its resolved path, size and modification time.
+	 *
+	 * @param cmd			the command, a path or a program name found using the PATH variable
+	 * @return the fingerprint or null, if the program cannot be found
+	 */
+	public static String fingerprint(String cmd) {
+
+		File file = resolve(cmd);
+		if (file == null) {
+			return null;
+		}
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+	}
+
+	/**
+	 * Loads the cache, if not yet done.
+	 */
+	private static void loadCache() {
+
+		if (cache != null) {
+			return;
+		}
+		cache = new Properties();
+		File file = new File(Files.getAppDirPath() + CACHE_FILE);
+		if (!file.exists()) {
+			return;
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			cache.loadFromXML(in);
+		} catch (IOException e) {
+			// just probe again
+			Logger.warning("QemuProbe: cannot read cache " + file.getPath() + ": " + e.getMessage());
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Probes QEMU programs by running "--version", all (changed) programs in parallel.
+	 *
+	 * @param cmdList		the commands, paths or program names found using the PATH variable
+	 * @return a map (in the order of cmdList) of the command and its output, the output is null
+	 * 						if the command cannot be executed
+	 */
+	public static synchronized LinkedHashMap<String, String> probe(List<String> cmdList) {
+
+		loadCache();
+		long start = System.currentTimeMillis();
+		LinkedHashMap<String, String> resultMap = new LinkedHashMap<>();
+		HashMap<String, String> fingerprintMap = new HashMap<>();
+		HashMap<String, CompletableFuture<ProcessExecutor>> futureMap = new HashMap<>();
+		for (String cmd : cmdList) {
+			resultMap.put(cmd, null);
+			if (cmd == null || cmd.trim().equals("")) {
+				continue;
+			}
+			String fingerprint = fingerprint(cmd);
+			if (fingerprint != null && cache.getProperty(fingerprint) != null) {
+				resultMap.put(cmd, cache.getProperty(fingerprint));
+				continue;
+			}
+			Logger.info("looking for QEMU, trying command '" + cmd + "'");
+			Util.verbose("looking for QEMU, trying command '" + cmd + "'");
+			fingerprintMap.put(cmd, fingerprint);
+			futureMap.put(cmd, ProcessExecutor.execute(PROBE_TIMEOUT_MILLIS, null, cmd, "--version"));
+		}
+		boolean isCacheDirty = false;
+		for (Map.Entry<String, CompletableFuture<ProcessExecutor>> entry : futureMap.entrySet()) {
+			String cmd = entry.getKey();
+			try {
+				String output = entry.getValue().get().getOutput();
+				Logger.info("command output:\n" + output);
+				Util.verbose("QEMU -> output:\n" + output);
+				resultMap.put(cmd, output);
+				String fingerprint = fingerprintMap.get(cmd);
+				if (fingerprint != null) {
+					removeCacheEntries(fingerprint.substring(0, fingerprint.indexOf('|') + 1));
+					cache.setProperty(fingerprint, output);
+					isCacheDirty = true;
+				}
+			} catch (Exception e) {
+				// QEMU program with this command does not exist or fails
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				Util.verbose("QEMU not found: " + cause.getMessage());
+				Logger.error("QEMU '" + cmd + "' not found: " + cause.getMessage());
+			}
+		}
+		if (isCacheDirty) {
+			storeCache();
+		}
+		Logger.info("QemuProbe: " + cmdList.size() + " commands, " + futureMap.size()
+				+ " executed, " + (System.currentTimeMillis() - start) + "ms");
+		return resultMap;
+	}
+
+	/**
+	 * Removes all cache entries of a path (outdated fingerprints).
+	 *
+	 * @param pathPrefix		the path of the program, including the separator of the fingerprint
+	 */
+	private static void removeCacheEntries(String pathPrefix) {
+
+		for (String key : cache.stringPropertyNames()) {
+			if (key.startsWith(pathPrefix)) {
+				cache.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Resolves a command to its program file, like the shell does using the PATH variable.
+	 *
+	 * @param cmd			the command, a path or a program name
+	 * @return the program file or null, if not found
+	 */
+	public static File resolve(String cmd) {
+
+		if (cmd == null || cmd.trim().equals("")) {
+			return null;
+		}
+		String[] suffixes = OSType.isWindows() ? new String[] { "", ".exe" } : new String[] { "" };
+		if (cmd.indexOf('/') >= 0 || cmd.indexOf(File.separatorChar) >= 0) {
+			for (String suffix : suffixes) {
+				File file = new File(cmd + suffix);
+				if (file.isFile()) {
+					return file;
+				}
+			}
+			return null;
+		}
+		String path = System.getenv("PATH");
+		if (path == null) {
+			return null;
+		}
+		for (String dir : path.split(File.pathSeparator)) {
+			for (String suffix : suffixes) {
+				File file = new File(dir.isEmpty() ? "." : dir, cmd + suffix);
+				if (file.isFile() && file.canExecute()) {
+					return file;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the cache into the application directory (crash-safe, by the writer thread of the
+	 * PersistenceService).
+	 */
+	private static synchronized void storeCache() {
+
+		// synchronized: the content stored last is the latest, the probe threads store concurrently
+		String pathname = Files.getAppDirPath() + CACHE_FILE;
+		try {
+			Util.storeToXML(cache, "QEMU probe cache, fingerprint (path|size|mtime) -> output of --version", pathname);
+		} catch (IOException e) {
+			Logger.error("QemuProbe: cannot write cache " + pathname, e);
+		}
+	}
+}
@@ -62,44 +62,6 @@ public class QemuSetup {
 		this.isRunnigApp = isRunnigApp;
 	}
 
-	/**
-	 * Check for an installed QEMU (command).
-	 * The resulting command output, if any, is stored in cmdOutput
-	 * 
-	 * @param cmd		the command/path for a QEMU program
-	 * @return true, if running the command works, false otherwise 
-	 */
-	private boolean checkQemuCommandFor(String cmd) {
-		
-		cmdOutput = null;
-		ProcessExecutor procExec = null;
-		try {
-			Util.verbose("looking for QEMU, trying command '" + cmd + "'");
-			Logger.info("looking for QEMU, trying command '" + cmd + "'");
-			procExec = new ProcessExecutor(cmd, "--version");
-			cmdOutput = procExec.getOutput();
-			Logger.info("command output:\n" + procExec.getOutput());
-			Util.verbose("QEMU -> output:\n" + cmdOutput);
-			if (cmdOutput.toLowerCase().indexOf("qemu") >= 0 
-					&& cmdOutput.toLowerCase().indexOf("version") >= 0) {
-				// QEMU available
-				Logger.info("qemu found: " + cmd);
-			}
-			return true;
-		} catch (IOException e) {
-			// QEMU program with this command does not exist
-			Util.verbose("QEMU not found: " + e.getMessage());
-			Logger.error("QEMU '" + cmd + "' not found: " + e.getMessage());
-			return false;
-		} catch (Exception e) {
-			// QEMU program  with this command raises another Exception
-			Util.verbose("QEMU not found: " + e.getMessage());
-			Logger.error("QemuSetup", e);
-			Logger.error("QEMU '" + cmd + "' not found");
-			return false;
-		}
-	}
-
 	/**
 	 * Check for QEMU installation in a directory.
 	 * The results of this check will be set in variables.
@@ -113,20 +75,27 @@ public class QemuSetup {
 		
 		// TODO xxx    QemuSetup je nach OS? Windows + andere testen Suche (+ flavor wie Arch, Ubuntu, Suse, Windows) Suche starten 
 
-		// need qemu-img to create VM disks
+		// need qemu-img to create VM disks, look for emulators, all probed in parallel
+		ArrayList<String> cmdList = new ArrayList<>();
+		cmdList.add(directory + QEMU_IMG);
+		for (Architecture arch : Architecture.ARRAY) {
+			cmdList.add(directory + arch.getQemuCmd());
+		}
+		LinkedHashMap<String, String> outputMap = QemuProbe.probe(cmdList);
 		qemuImgVersion = null;
-		if (checkQemuCommandFor(directory + QEMU_IMG)) {
+		cmdOutput = outputMap.get(directory + QEMU_IMG);
+		if (cmdOutput != null) {
 			qemuImg = directory + QEMU_IMG;
 			qemuImgVersion = scanVersion(cmdOutput);
 			properties.setProperty(AppProperties.QEMU_IMG, qemuImg);
 		}
-		// look for emulators
 		qemuCmdList = new ArrayList<>();
 		versionList = new ArrayList<>();
-		for (Architecture arch : Architecture.ARRAY) {
-			if (checkQemuCommandFor(directory + arch.getQemuCmd())) {
-				qemuCmdList.add(directory + arch.getQemuCmd());
-				versionList.add(scanVersion(cmdOutput));
+		for (String cmd : cmdList.subList(1, cmdList.size())) {
+			String output = outputMap.get(cmd);
+			if (output != null) {
+				qemuCmdList.add(cmd);
+				versionList.add(scanVersion(output));
 			}
 		}
 		for (int i = 0; i < qemuCmdList.size(); i++) {
@@ -151,8 +120,11 @@ public class QemuSetup {
 					+ File.separator + "qemu" + File.separator;
 		}
 		checkQemuInstallation(qemuDir);
-		new SettingsDlg(true, mainView, qemuImg, qemuImgVersion, qemuCmdList, versionList);
-		MainView.setHint(Msg.get(FIRST_VM_HINT_MSG));
+		SwingUtilities.invokeLater(() -> {
+			Main.setQemuSetup(this);
+			new SettingsDlg(true, mainView, qemuImg, qemuImgVersion, qemuCmdList, versionList);
+			MainView.setHint(Msg.get(FIRST_VM_HINT_MSG));
+		});
 	}
 
 	/**
@@ -204,15 +176,17 @@ public class QemuSetup {
 	 */
 	public static void run(MainView mainView, boolean isRunnigApp) {
 
-		SwingUtilities.invokeLater(() -> {
+		// probing runs in the background, only dialogs use the event dispatch thread
+		Thread thread = new Thread(() -> {
 			try {
 				QemuSetup setup = new QemuSetup(mainView, isRunnigApp);
-				Main.setQemuSetup(setup);
 				setup.start();
 			} catch (Exception e) {
 				Logger.error("Unexpected exception, exit", e);
 			}
-		});
+		}, "qemuSetup");
+		thread.setDaemon(true);
+		thread.start();
 	}
 	
 	/**
@@ -224,9 +198,9 @@ public class QemuSetup {
 	private String scanVersion(String output) {
 		
 		String version = "";
-		int i =	cmdOutput.toLowerCase().indexOf("version");
+		int i =	output.toLowerCase().indexOf("version");
 		try {
-			Scanner scanner = new Scanner(cmdOutput.substring(i));
+			Scanner scanner = new Scanner(output.substring(i));
 			version += scanner.next() + " ";
 			version += scanner.next();
 		} catch (Exception e) {	}		// intentionally do nothing
@@ -252,22 +226,31 @@ public class QemuSetup {
 			qemuCmdList = new ArrayList<>();
 			versionList = new ArrayList<>();
 			qemuImg = properties.getProperty(AppProperties.QEMU_IMG);
-			if (checkQemuCommandFor(qemuImg)) {
-				qemuImgVersion = scanVersion(cmdOutput);
-			} else {
-				qemuImg = null;
-				isInstalled = false;
-			}
+			ArrayList<String> cmdList = new ArrayList<>();
+			cmdList.add(qemuImg);
 			for (int i = 0; i < qemuCount; i++) {
 				String cmd = properties.getProperty(AppProperties.QEMU_CMD + i);
 				if (cmd == null || cmd.trim().equals("")) {
 					break;
 				}
-				if (!checkQemuCommandFor(cmd)) {
+				cmdList.add(cmd);
+			}
+			// probe all in parallel, unchanged programs are not executed (cache)
+			LinkedHashMap<String, String> outputMap = QemuProbe.probe(cmdList);
+			cmdOutput = outputMap.get(qemuImg);
+			if (cmdOutput != null) {
+				qemuImgVersion = scanVersion(cmdOutput);
+			} else {
+				qemuImg = null;
+				isInstalled = false;
+			}
+			for (String cmd : cmdList.subList(1, cmdList.size())) {
+				String output = outputMap.get(cmd);
+				if (output == null) {
 					isInstalled = false;
 				}
 				qemuCmdList.add(cmd);
-				versionList.add(scanVersion(cmdOutput));
+				versionList.add(output == null ? "" : scanVersion(output));
 			}
 			if (!isInstalled) {
 				// something went wrong with the installation, clean & do first setup
@@ -280,7 +263,9 @@ public class QemuSetup {
 				firstSetup(mainView);
 				return;
 			}
-			// installation is ok, do nothing (just the main view)
+			// installation is ok, know the capabilities of the emulators (usually cached)
+			QemuCapabilities.preload(qemuCmdList);
+			SwingUtilities.invokeLater(() -> Main.setQemuSetup(this));
 		}
 		Logger.flushIfDirty();
 	}
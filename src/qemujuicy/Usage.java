@@ -48,6 +48,11 @@ public class Usage {
         System.out.println("    -h          ... display this message and exit");
         System.out.println("    -v          ... diplay version and exit");
         System.out.println("    -q          ... quiet, no verbose messages");
+        System.out.println("    --headless list         ... list all VMs (tab separated), no GUI");
+        System.out.println("    --headless status       ... list the state of all VMs (tab separated), no GUI");
+        System.out.println("    --headless start <vm>   ... start a VM (by name) in the background, no GUI");
+        System.out.println("    --headless stop <vm>    ... stop a VM (by name), no GUI");
+        System.out.println("    --headless autostart    ... start the autostart VMs staggered, no GUI");
         System.out.println("    -t          ... do TTT");
         System.out.println("    -url <url>  ... use XY");
         System.out.println("");
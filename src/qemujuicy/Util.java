@@ -24,6 +24,8 @@ package qemujuicy;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
 import java.text.*;
 import java.util.*;
 
@@ -145,6 +147,40 @@ public class Util {
 		return parentDirectory.list(filter);
 	}
 
+	/**
+	 * Forces a directory to disk (a rename within it is persisted), if supported.
+	 * 
+	 * @param dir
+	 */
+	private static void forceDirectory(java.nio.file.Path dir) {
+		
+		if (!OSType.isWindows()) {
+			try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(dir)) {
+				channel.force(true);
+			} catch (IOException e) {
+				// not supported by the file system
+			}
+		}
+	}
+
+	/**
+	 * Formats a size in bytes, e.g. "3.25 GB".
+	 * 
+	 * @param bytes
+	 * @return the formatted size
+	 */
+	public static String formatSize(long bytes) {
+
+		String[] units = { "bytes", "KB", "MB", "GB", "TB" };
+		double size = bytes;
+		int unit = 0;
+		while (size >= 1024 && unit < units.length - 1) {
+			size /= 1024;
+			unit++;
+		}
+		return (unit == 0 ? "" + bytes : DECIMAL_FORMAT2.format(size)) + " " + units[unit];
+	}
+
 	/**
 	 * Returns String of all integer elements of an List, separated by
 	 * another (separation) String (e.g. a space).
@@ -185,6 +221,31 @@ public class Util {
     	Logger.info(sb.toString());
 	}
 
+	/**
+	 * Moves a file written by another process (e.g. qemu-img) durably to its target: the file
+	 * is forced to disk, renamed atomically within the directory and the directory is forced
+	 * too. A crash leaves either the previous target or the complete file.
+	 * 
+	 * @param file
+	 * @param target			within the directory of the file
+	 * @param isReplacing		true, to replace an existing target
+	 * @throws IOException
+	 */
+	public static void moveFileDurably(File file, File target, boolean isReplacing) throws IOException {
+		
+		try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath(), 
+				java.nio.file.StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		if (isReplacing) {
+			java.nio.file.Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, 
+					StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			java.nio.file.Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		forceDirectory(target.getAbsoluteFile().getParentFile().toPath());
+	}
+
 	/**
      * Prompts for a text message in the <i>System.out</i> window, blocks until the user
      * types <i>RETURN/ENTER</i> and returns the string typed in.
@@ -278,27 +339,26 @@ public class Util {
 	}
 	
 	/**
-	 * Runs a process with parameters, returns its output.
+	 * Runs a process with parameters (default timeout), returns its output.
 	 * 
 	 * @param cmdAndParameters		command and parameters
-	 * @return the output of the process or null on exception
+	 * @return the output of the process or null on exception, timeout or an exit value other than 0
 	 */
 	public static String runProcess(String... cmdAndParameters) {
 		
-		String cmdOutput = null;
-		ProcessExecutor procExec = null;
-		String cmdString = "";
+		String cmdString = String.join(" ", cmdAndParameters);
 		try {
-			for (String s : cmdAndParameters) {
-				cmdString += s + " ";
-			}
 			Logger.info("executing: " + " " + cmdString);
 			Util.verbose("executing: " + " " + cmdString);
-			procExec = new ProcessExecutor(cmdAndParameters);
-			cmdOutput = procExec.getOutput();
+			ProcessExecutor procExec = ProcessExecutor.execute(cmdAndParameters).get();
+			String cmdOutput = procExec.getOutput();
 			int exitValue = procExec.getExitValue();
 			Util.verbose("exitValue " + exitValue + " -> output:\n" + cmdOutput);
 			Logger.info("exitValue " + exitValue + " -> output:\n" + cmdOutput);
+			if (exitValue != 0) {
+				Logger.error("executing '" + cmdString + "' failed:\n" + procExec.getErrorOutput());
+				return null;
+			}
 			return cmdOutput;
 		} catch (Exception e) {
 			System.out.println("Exception executing " + cmdString);
@@ -344,27 +404,33 @@ public class Util {
 	 * Store the properties into a XML properties file, to persist them.
 	 * The property keys are sorted before, due to the readability of the file.
 	 * 
+	 * <p>The properties are taken in the calling thread, the file is written by the one
+	 * writer thread of the PersistenceService (writes cannot interleave), crash-safe using 
+	 * a temporary file (see writeFileAtomically()).</p>
+	 * 
 	 * @param properties		the properties to store
 	 * @param comment			a comment within the XML properties file (not null)
 	 * @param pathname			the path name of the XML properties file
-	 * @throws FileNotFoundException 
+	 * @throws IOException 
 	 */
 	public static void storeToXML(Properties properties, String comment, 
-			String pathname) throws FileNotFoundException {
+			String pathname) throws IOException {
 		
     	ArrayList<String> keyList = toSortedKeyList(properties);
-    	// write to file
-    	PrintWriter writer = new PrintWriter(new File(pathname));
-    	writer.println(
+    	StringBuilder sb = new StringBuilder(
     			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
     			+ "<!DOCTYPE properties SYSTEM \"http://java.sun.com/dtd/properties.dtd\">\n"
-    			+ "<properties>");
-    	writer.println("<comment>" + comment + "</comment>");
+    			+ "<properties>\n");
+    	sb.append("<comment>" + toXmlText(comment) + "</comment>\n");
     	for (String key : keyList) {
-        	writer.println("<entry key=\"" + key + "\">" + properties.getProperty(key) + "</entry>");				
+    		String value = properties.getProperty(key);
+    		if (value == null) {
+    			continue;			// removed meanwhile
+    		}
+    		sb.append("<entry key=\"" + toXmlText(key) + "\">" + toXmlText(value) + "</entry>\n");
 		}
-    	writer.println("</properties>");
-    	writer.close();
+    	sb.append("</properties>\n");
+    	PersistenceService.write(pathname, sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
 	}
 
 	/**
@@ -445,6 +511,49 @@ public class Util {
 		return keyList;
 	}
 
+	/**
+	 * Escapes a text for XML element content and attribute values.
+	 * Characters not allowed in XML 1.0 are dropped.
+	 * 
+	 * @param text
+	 * @return the escaped text
+	 */
+	public static String toXmlText(String text) {
+		
+		StringBuilder sb = new StringBuilder(text.length() + 16);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			case '\'':
+				sb.append("&apos;");
+				break;
+			case '\t':
+			case '\n':
+			case '\r':
+				// kept by the parser, also within attribute values
+				sb.append("&#" + (int) c + ";");
+				break;
+			default:
+				if (c >= 0x20) {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
     /**
      * Returns a string of % from a double value.
      * 
@@ -477,6 +586,37 @@ public class Util {
 		}
 	}
 
+	/**
+	 * Writes a file crash-safe: the content is written to a temporary file in the same 
+	 * directory, forced to disk and renamed atomically to the file. A crash or a full disk
+	 * leaves the previous file intact.
+	 * 
+	 * @param pathname			the path of the file
+	 * @param content			the content
+	 * @throws IOException
+	 */
+	public static void writeFileAtomically(String pathname, byte[] content) throws IOException {
+		
+		java.nio.file.Path target = new File(pathname).getAbsoluteFile().toPath();
+		java.nio.file.Path temp = java.nio.file.Files.createTempFile(target.getParent(), 
+				target.getFileName() + ".", ".tmp");
+		try {
+			try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+				out.write(content);
+				out.getFD().sync();
+			}
+			try {
+				java.nio.file.Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, 
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				java.nio.file.Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			java.nio.file.Files.deleteIfExists(temp);
+		}
+		forceDirectory(target.getParent());
+	}
+
 	/**
      * Do System.out.println of a text string to console, if the verbose flag property is on (default).
      *
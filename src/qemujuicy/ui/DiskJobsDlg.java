@@ -0,0 +1,278 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.ui;
+
+import java.awt.*;
+
+import javax.swing.*;
+import javax.swing.border.*;
+import javax.swing.table.*;
+
+import qemujuicy.*;
+import qemujuicy.vm.*;
+
+import static qemujuicy.Images.*;
+import static qemujuicy.Message.*;
+
+/**
+ * A non-modal JDialog showing the disk jobs (compaction, import and export) with their progress.
+ */
+@SuppressWarnings("serial")
+public class DiskJobsDlg extends JDialog {
+
+	private static DiskJobsDlg instance;			// at most one dialog
+
+	private JTable jobTbl;
+	private JobTableModel jobTableModel;
+	private JCheckBox compressChk;
+	private DiskJobQueue.DiskJobListener listener;
+	private volatile boolean isRefreshPending;		// coalesces the refreshes of progress events
+
+	/**
+	 * Create the dialog and show it.
+	 *
+	 * @param mainView
+	 */
+	private DiskJobsDlg(MainView mainView) {
+
+		super(mainView);
+		setTitle(Msg.get(DISK_JOBS_MSG));
+		setIconImage(Images.get(HARDDISK).getImage());
+		setModal(false);
+		setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.setBorder(new EmptyBorder(16, 22, 16, 22));
+		getContentPane().add(panel, BorderLayout.CENTER);
+		// job table
+		jobTableModel = new JobTableModel();
+		jobTbl = new JTable(jobTableModel) {
+			@Override
+			public String getToolTipText(java.awt.event.MouseEvent event) {
+
+				int row = rowAtPoint(event.getPoint());
+				return row >= 0 ? jobTableModel.getJob(row).getError() : null;
+			}
+		};
+		jobTbl.setRowHeight(Gui.COMP_HEIGHT + 2);
+		jobTbl.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		jobTbl.getColumnModel().getColumn(JobTableModel.PROGRESS).setCellRenderer(new ProgressCellRenderer());
+		jobTbl.getColumnModel().getColumn(JobTableModel.JOB).setPreferredWidth(320);
+		JScrollPane scrollPane = new JScrollPane(jobTbl);
+		scrollPane.setPreferredSize(new Dimension(720, 260));
+		panel.add(scrollPane, BorderLayout.CENTER);
+		// buttons
+		JPanel buttonPnl = new JPanel();
+		panel.add(buttonPnl, BorderLayout.SOUTH);
+		compressChk = new JCheckBox(Msg.get(COMPACT_COMPRESS_MSG),
+				Main.getPropertyBool(AppProperties.DISK_COMPACT_COMPRESS));
+		buttonPnl.add(compressChk);
+		JButton compactVmBtn = new JButton(Msg.get(COMPACT_VM_BTN_MSG));
+		compactVmBtn.setToolTipText(Msg.get(COMPACT_VM_TT_MSG));
+		compactVmBtn.addActionListener(e -> {
+			int selectedIndex = mainView.vmList.getSelectedIndex();
+			if (selectedIndex >= 0) {
+				Main.getVmManager().compactVm(this, selectedIndex, compressChk.isSelected());
+			}
+		});
+		buttonPnl.add(compactVmBtn);
+		JButton compactAllBtn = new JButton(Msg.get(COMPACT_ALL_BTN_MSG));
+		compactAllBtn.setToolTipText(Msg.get(COMPACT_ALL_TT_MSG));
+		compactAllBtn.addActionListener(e -> Main.getVmManager().compactAllVms(this, compressChk.isSelected()));
+		buttonPnl.add(compactAllBtn);
+		JButton importBtn = new JButton(Msg.get(IMPORT_BTN_MSG));
+		importBtn.setToolTipText(Msg.get(CONVERT_IMPORT_TT_MSG));
+		importBtn.addActionListener(e -> Main.getVmManager().importVm(this));
+		buttonPnl.add(importBtn);
+		JButton exportBtn = new JButton(Msg.get(EXPORT_BTN_MSG));
+		exportBtn.setToolTipText(Msg.get(CONVERT_EXPORT_TT_MSG));
+		exportBtn.addActionListener(e -> {
+			int selectedIndex = mainView.vmList.getSelectedIndex();
+			if (selectedIndex >= 0) {
+				Main.getVmManager().exportVm(this, selectedIndex);
+			}
+		});
+		buttonPnl.add(exportBtn);
+		JButton cancelJobBtn = new JButton(Msg.get(CANCEL_BTN_MSG));
+		cancelJobBtn.setToolTipText(Msg.get(JOB_CANCEL_TT_MSG));
+		cancelJobBtn.addActionListener(e -> {
+			int selectedRow = jobTbl.getSelectedRow();
+			if (selectedRow >= 0) {
+				Main.getVmManager().getDiskJobQueue().cancel(jobTableModel.getJob(selectedRow));
+			}
+		});
+		buttonPnl.add(cancelJobBtn);
+		JButton removeFinishedBtn = new JButton(Msg.get(REMOVE_FINISHED_BTN_MSG));
+		removeFinishedBtn.addActionListener(e -> {
+			Main.getVmManager().getDiskJobQueue().removeFinished();
+			refresh();
+		});
+		buttonPnl.add(removeFinishedBtn);
+		JButton okBtn = CompFactory.createOkButton();
+		okBtn.addActionListener(e -> dispose());
+		buttonPnl.add(okBtn);
+		// refresh on job changes, coalesced on the event dispatch thread
+		listener = (job, isStateChange) -> {
+			if (!isRefreshPending) {
+				isRefreshPending = true;
+				SwingUtilities.invokeLater(() -> refresh());
+			}
+		};
+		Main.getVmManager().getDiskJobQueue().addListener(listener);
+		refresh();
+		pack();
+		Gui.center(this);
+		setVisible(true);
+	}
+
+	/**
+	 * Shows the dialog, an already open dialog is brought to front.
+	 *
+	 * @param mainView
+	 */
+	public static void create(MainView mainView) {
+
+		if (instance != null && instance.isDisplayable()) {
+			instance.toFront();
+			return;
+		}
+		instance = new DiskJobsDlg(mainView);
+	}
+
+	@Override
+	public void dispose() {
+
+		Main.getVmManager().getDiskJobQueue().removeListener(listener);
+		super.dispose();
+	}
+
+	/**
+	 * Reloads the jobs from the queue, keeps the selection.
+	 */
+	private void refresh() {
+
+		isRefreshPending = false;
+		int selectedRow = jobTbl.getSelectedRow();
+		jobTableModel.setJobs(Main.getVmManager().getDiskJobQueue().getJobs());
+		if (selectedRow >= 0 && selectedRow < jobTableModel.getRowCount()) {
+			jobTbl.setRowSelectionInterval(selectedRow, selectedRow);
+		}
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The table model of the jobs.
+	 */
+	class JobTableModel extends AbstractTableModel {
+
+		public static final int VM = 0;
+		public static final int JOB = 1;
+		public static final int STATE = 2;
+		public static final int PROGRESS = 3;
+
+		private java.util.List<DiskJob> jobList = new java.util.ArrayList<>();
+
+		@Override
+		public int getColumnCount() {
+
+			return 4;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+
+			switch (column) {
+			case VM:
+				return "VM";
+			case JOB:
+				return Msg.get(JOB_MSG);
+			case STATE:
+				return Msg.get(JOB_STATE_MSG);
+			default:
+				return Msg.get(JOB_PROGRESS_MSG);
+			}
+		}
+
+		/**
+		 * @param row
+		 * @return the job of a row
+		 */
+		public DiskJob getJob(int row) {
+
+			return jobList.get(row);
+		}
+
+		@Override
+		public int getRowCount() {
+
+			return jobList.size();
+		}
+
+		@Override
+		public Object getValueAt(int row, int column) {
+
+			DiskJob job = jobList.get(row);
+			switch (column) {
+			case VM:
+				return job.getVm() != null ? job.getVm().getName() : "";
+			case JOB:
+				return job.getDescription();
+			case STATE:
+				return job.getState().getDisplayName();
+			default:
+				return job.getPercent();
+			}
+		}
+
+		/**
+		 * @param jobList
+		 */
+		public void setJobs(java.util.List<DiskJob> jobList) {
+
+			this.jobList = jobList;
+			fireTableDataChanged();
+		}
+	}
+
+	/**
+	 * Renders the progress (percent) as progress bar.
+	 */
+	class ProgressCellRenderer extends JProgressBar implements TableCellRenderer {
+
+		public ProgressCellRenderer() {
+
+			super(0, 1000);
+			setStringPainted(true);
+		}
+
+		@Override
+		public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+				boolean hasFocus, int row, int column) {
+
+			double percent = (Double) value;
+			setValue((int) (percent * 10));
+			setString(Util.DECIMAL_FORMAT2.format(percent) + " %");
+			return this;
+		}
+	}
+}
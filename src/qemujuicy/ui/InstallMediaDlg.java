@@ -0,0 +1,381 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.ui;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+import javax.swing.*;
+import javax.swing.Timer;
+import javax.swing.border.*;
+import javax.swing.table.*;
+
+import qemujuicy.*;
+import qemujuicy.vm.*;
+import qemujuicy.vm.InstallMediaLibrary.*;
+
+import static qemujuicy.Images.*;
+import static qemujuicy.Message.*;
+
+/**
+ * A modal JDialog to select the installation image of a VM from the install media library.
+ *
+ * <p>The cached media are shown at once, the directories are rescanned in the background.
+ * An image with a checksum file is verified before it is used, a corrupt or incomplete
+ * image is refused (another file can still be selected by "Browse ...").</p>
+ */
+@SuppressWarnings("serial")
+public class InstallMediaDlg extends JDialog {
+
+	public static final int REFRESH_MILLIS = 500;		// the progress of checksum computations
+
+	private InstallMediaLibrary library;
+	private JTable mediaTbl;
+	private MediaTableModel mediaTableModel;
+	private JButton installBtn;
+	private Timer refreshTimer;
+	private String selectedPath;
+
+	/**
+	 * Create the dialog, use select().
+	 *
+	 * @param mainView
+	 */
+	private InstallMediaDlg(MainView mainView) {
+
+		super(mainView);
+		library = Main.getVmManager().getInstallMediaLibrary();
+		setTitle(Msg.get(MEDIA_TITLE_MSG));
+		setIconImage(Images.get(CD_DVD).getImage());
+		setModal(true);
+		setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.setBorder(new EmptyBorder(16, 22, 16, 22));
+		getContentPane().add(panel, BorderLayout.CENTER);
+		// media table
+		mediaTableModel = new MediaTableModel();
+		mediaTbl = new JTable(mediaTableModel) {
+			@Override
+			public String getToolTipText(MouseEvent event) {
+
+				int row = rowAtPoint(event.getPoint());
+				return row >= 0 ? mediaTableModel.getMedium(row).getPath() : null;
+			}
+		};
+		mediaTbl.setRowHeight(Gui.COMP_HEIGHT + 2);
+		mediaTbl.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		mediaTbl.getColumnModel().getColumn(MediaTableModel.FILE).setPreferredWidth(260);
+		mediaTbl.getColumnModel().getColumn(MediaTableModel.LABEL).setPreferredWidth(180);
+		mediaTbl.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent event) {
+
+				if (event.getClickCount() == 2 && installBtn.isEnabled()) {
+					install();
+				}
+			}
+		});
+		JScrollPane scrollPane = new JScrollPane(mediaTbl);
+		scrollPane.setPreferredSize(new Dimension(760, 300));
+		panel.add(scrollPane, BorderLayout.CENTER);
+		// buttons
+		JPanel buttonPnl = new JPanel();
+		panel.add(buttonPnl, BorderLayout.SOUTH);
+		JButton addDirBtn = new JButton(Msg.get(ADD_DIR_BTN_MSG));
+		addDirBtn.setToolTipText(Msg.get(MEDIA_ADD_DIR_TT_MSG));
+		addDirBtn.addActionListener(e -> addDirectory());
+		buttonPnl.add(addDirBtn);
+		JButton browseBtn = new JButton(Msg.get(BROWSE_BTN_MSG));
+		browseBtn.setToolTipText(Msg.get(MEDIA_BROWSE_TT_MSG));
+		browseBtn.addActionListener(e -> browse());
+		buttonPnl.add(browseBtn);
+		JButton verifyBtn = new JButton(Msg.get(VERIFY_BTN_MSG));
+		verifyBtn.setToolTipText(Msg.get(MEDIA_VERIFY_TT_MSG));
+		verifyBtn.addActionListener(e -> {
+			int selectedRow = mediaTbl.getSelectedRow();
+			if (selectedRow >= 0) {
+				Medium medium = mediaTableModel.getMedium(selectedRow);
+				library.verify(medium).whenComplete((verified, ex) -> SwingUtilities.invokeLater(() -> {
+					if (ex != null && isDisplayable()) {
+						Gui.errorDlg(this, Msg.get(MEDIA_READ_FAILED_MSG, medium, ex.getCause().getMessage()),
+								Msg.get(ERROR_TITLE_DLG_MSG));
+					}
+				}));
+			}
+		});
+		buttonPnl.add(verifyBtn);
+		installBtn = new JButton(Msg.get(INSTALL_BTN_MSG), Images.scale(Images.OK_BUTTON, Gui.BUTTON_ICON_SIZE));
+		installBtn.addActionListener(e -> install());
+		buttonPnl.add(installBtn);
+		JButton cancelBtn = CompFactory.createCancelButton();
+		cancelBtn.addActionListener(e -> dispose());
+		buttonPnl.add(cancelBtn);
+		// the cached media now, the scanned media later, the progress of checksums meanwhile
+		setMedia(library.getMedia());
+		rescan();
+		refreshTimer = new Timer(REFRESH_MILLIS, e -> mediaTbl.repaint());
+		refreshTimer.start();
+		pack();
+		Gui.center(this);
+		setVisible(true);
+	}
+
+	/**
+	 * Adds a directory to the library (INSTALL_MEDIA_DIRS) and rescans.
+	 */
+	private void addDirectory() {
+
+		FileChooserDlg chooser = new FileChooserDlg(
+				Msg.get(SELECT_DIR_MSG),
+				Msg.get(OK_BTN_MSG),
+				Msg.get(OK_BTN_MSG),
+				JFileChooser.DIRECTORIES_ONLY,
+				null);
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		AppProperties properties = Main.getProperties();
+		String dirs = properties.getProperty(AppProperties.INSTALL_MEDIA_DIRS).trim();
+		String dir = chooser.getSelectedFile().getAbsolutePath();
+		properties.setProperty(AppProperties.INSTALL_MEDIA_DIRS, dirs.isEmpty() ? dir : dirs + File.pathSeparator + dir);
+		properties.storeToXML();
+		rescan();
+	}
+
+	/**
+	 * Selects an image file or DVD device by a file chooser (without the library checks),
+	 * its directory is remembered (INSTALL_DIR) and becomes a part of the library.
+	 */
+	private void browse() {
+
+		AppProperties properties = Main.getProperties();
+		FileChooserDlg chooser = new FileChooserDlg(
+				Msg.get(MEDIA_TITLE_MSG),
+				Msg.get(OK_BTN_MSG),
+				Msg.get(OK_BTN_MSG),
+				JFileChooser.FILES_ONLY,
+				null);
+		String installDir = properties.getProperty(AppProperties.INSTALL_DIR);	// might not exist or could be empty
+		File dir = new File(installDir);
+		if (!installDir.trim().equals("") && dir.isDirectory()) {
+			// previous install from that directory, use it
+			chooser.setCurrentDirectory(dir);
+		}
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		// remember the install directory
+		properties.setProperty(AppProperties.INSTALL_DIR, chooser.getCurrentDirectory().getAbsolutePath());
+		properties.storeToXML();
+		selectedPath = chooser.getSelectedFile().getPath();
+		dispose();
+	}
+
+	@Override
+	public void dispose() {
+
+		if (refreshTimer != null) {
+			refreshTimer.stop();
+		}
+		super.dispose();
+	}
+
+	/**
+	 * Uses the selected image: a bad image is refused, an unverified image with a checksum file
+	 * is verified first.
+	 */
+	private void install() {
+
+		int selectedRow = mediaTbl.getSelectedRow();
+		if (selectedRow < 0) {
+			return;
+		}
+		Medium medium = mediaTableModel.getMedium(selectedRow);
+		if (medium.getState().isBad()) {
+			Gui.errorDlg(this, Msg.get(MEDIA_BAD_MSG, medium, medium.getState().getDisplayName()),
+					Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		if (medium.getState() != State.UNVERIFIED
+				|| InstallMediaLibrary.findExpectedSha256(new File(medium.getPath())) == null) {
+			// verified or nothing to verify against
+			selectedPath = medium.getPath();
+			dispose();
+			return;
+		}
+		installBtn.setEnabled(false);
+		library.verify(medium).whenComplete((verified, e) -> SwingUtilities.invokeLater(() -> {
+			installBtn.setEnabled(true);
+			if (!isDisplayable()) {
+				return;								// canceled meanwhile
+			}
+			if (e != null) {
+				Gui.errorDlg(this, Msg.get(MEDIA_READ_FAILED_MSG, medium, e.getCause().getMessage()),
+						Msg.get(ERROR_TITLE_DLG_MSG));
+			} else if (verified.getState().isBad()) {
+				Gui.errorDlg(this, Msg.get(MEDIA_BAD_MSG, medium, verified.getState().getDisplayName()),
+						Msg.get(ERROR_TITLE_DLG_MSG));
+			} else {
+				selectedPath = medium.getPath();
+				dispose();
+			}
+		}));
+	}
+
+	/**
+	 * Rescans the library in the background, the checksum files of media verified before are
+	 * read again (they may have been added meanwhile).
+	 */
+	private void rescan() {
+
+		CompletableFuture.supplyAsync(() -> {
+			java.util.List<Medium> mediumList = library.scan();
+			for (Medium medium : mediumList) {
+				if (medium.getSha256() != null) {
+					library.verify(medium);
+				}
+			}
+			return mediumList;
+		}).whenComplete((mediumList, e) -> SwingUtilities.invokeLater(() -> {
+			if (e != null) {
+				Logger.error("InstallMediaDlg: scan failed", e);
+			} else if (isDisplayable()) {
+				setMedia(mediumList);
+			}
+		}));
+	}
+
+	/**
+	 * Shows the image selection dialog.
+	 *
+	 * @param mainView
+	 * @return the path of the selected image or null, if canceled
+	 */
+	public static String select(MainView mainView) {
+
+		return new InstallMediaDlg(mainView).selectedPath;
+	}
+
+	/**
+	 * Sets the media of the table, keeps the selection.
+	 *
+	 * @param mediumList
+	 */
+	private void setMedia(java.util.List<Medium> mediumList) {
+
+		int selectedRow = mediaTbl.getSelectedRow();
+		String selected = selectedRow >= 0 ? mediaTableModel.getMedium(selectedRow).getPath() : null;
+		mediaTableModel.setMedia(mediumList);
+		for (int row = 0; row < mediumList.size(); row++) {
+			if (mediumList.get(row).getPath().equals(selected)) {
+				mediaTbl.setRowSelectionInterval(row, row);
+			}
+		}
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The table model of the media.
+	 */
+	class MediaTableModel extends AbstractTableModel {
+
+		public static final int LABEL = 0;
+		public static final int FILE = 1;
+		public static final int OS = 2;
+		public static final int SIZE = 3;
+		public static final int CHECKSUM = 4;
+
+		private java.util.List<Medium> mediumList = new java.util.ArrayList<>();
+
+		@Override
+		public int getColumnCount() {
+
+			return 5;
+		}
+
+		@Override
+		public String getColumnName(int column) {
+
+			switch (column) {
+			case LABEL:
+				return Msg.get(MEDIA_LABEL_MSG);
+			case FILE:
+				return Msg.get(MEDIA_FILE_MSG);
+			case OS:
+				return Msg.get(MEDIA_OS_MSG);
+			case SIZE:
+				return Msg.get(MEDIA_SIZE_MSG);
+			default:
+				return Msg.get(MEDIA_CHECKSUM_MSG);
+			}
+		}
+
+		/**
+		 * @param row
+		 * @return the medium of a row
+		 */
+		public Medium getMedium(int row) {
+
+			return mediumList.get(row);
+		}
+
+		@Override
+		public int getRowCount() {
+
+			return mediumList.size();
+		}
+
+		@Override
+		public Object getValueAt(int row, int column) {
+
+			Medium medium = mediumList.get(row);
+			switch (column) {
+			case LABEL:
+				return medium.getVolumeLabel();
+			case FILE:
+				return medium.toString();
+			case OS:
+				return medium.getOsType() != null ? qemujuicy.vm.VM.OS_NAMES[medium.getOsType().ordinal()] : "";
+			case SIZE:
+				return Util.formatSize(medium.getSize());
+			default:
+				if (library.isVerifying(medium)) {
+					return Msg.get(MEDIA_VERIFYING_MSG, (int) medium.getPercent());
+				}
+				return medium.getState().getDisplayName();
+			}
+		}
+
+		/**
+		 * @param mediumList
+		 */
+		public void setMedia(java.util.List<Medium> mediumList) {
+
+			this.mediumList = mediumList;
+			fireTableDataChanged();
+		}
+	}
+}
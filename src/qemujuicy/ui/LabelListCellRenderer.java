@@ -56,17 +56,26 @@ public class LabelListCellRenderer extends DefaultListCellRenderer {
 		switch (type) {
 		case VM: 		// render the selected VM
 		 	VM vm = Main.getVmManager().getVm(index);
-			label.setText(" " + vm.getName());
+			int cloneCount = Main.getVmManager().getClones(vm).size();
+			// the base of linked clones is started read-only (-snapshot)
+			label.setText(" " + (cloneCount == 0 ? vm.getName() 
+					: Msg.get(Message.CLONE_BASE_LABEL_MSG, vm.getName(), "" + cloneCount)));
 			label.setIcon(vm.getImageIcon());
 			return label;
 		case DEVICE: 	// render the selected device
-			
-			// TODO next step to do 
-
-			
-			Device device = Main.getVmManager().getDeviceListModel().get(index);
+			VM.VMDevice vmDevice = Main.getVmManager().getDeviceListModel().get(index);
+			Device device = vmDevice.getDevice();
 		 	VM vm2 = Main.getVmManager().getSelectedVm();
-			label.setText(device.getDisplayName() + ":   " + vm2.getProperty(device.getPropertyName()));
+			String text = device.getDisplayName() + ":   " + vm2.getProperty(device.getPropertyName());
+			if (device.isDrive()) {
+				// allocated vs. virtual size (qcow2 metadata, read in the background)
+				Qcow2Image image = vmDevice.getImage(list::repaint);
+				if (image != null) {
+					text += "   " + Msg.get(Message.DISK_USAGE_MSG, Util.formatSize(image.getAllocatedSize()),
+							Util.formatSize(image.getVirtualSize()));
+				}
+			}
+			label.setText(text);
 			label.setIcon(device.getImageIcon());
 			return label;
 		default:
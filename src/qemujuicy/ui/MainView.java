@@ -33,6 +33,7 @@ import javax.swing.border.*;
 import javax.swing.event.*;
 import javax.swing.plaf.*;
 import javax.swing.text.*;
+import javax.swing.tree.*;
 
 import qemujuicy.*;
 import qemujuicy.vm.*;
@@ -52,17 +53,25 @@ public class MainView extends JFrame implements ActionListener {
 	public final static String DEVICE_ADD_CD_DVD = "DeviceAddCdDvd";
 	public final static String DEVICE_ADD_DRIVE = "DeviceAddDrive";
 	public final static String DEVICE_ADD_FLOPPY = "DeviceAddFloppy";
+	public final static String CLONE_VM = "CloneVM";
 	public final static String DEVICE_REMOVE = "DeviceRemove";
 	public final static String DISK_IMAGE = "DiskImage";
 	public final static String EXIT = "Exit";
+	public final static String FLATTEN_VM = "FlattenVM";
 	public final static String HELP = "Help";
 	public final static String MOVE_DOWN = "MoveDown";
 	public final static String MOVE_UP = "MoveUp";
 	public final static String REMOVE_VM = "RemoveVM";
 	public final static String QEMU_SETUP = "QemuSetup";
 	public final static String SETTINGS = "Settings";
+	public final static String SNAPSHOT_CREATE = "SnapshotCreate";
+	public final static String SNAPSHOT_DELETE = "SnapshotDelete";
+	public final static String SNAPSHOT_REVERT = "SnapshotRevert";
 	public final static String START_VM = "StartVM";
 	public final static String STOP_VM = "StopVM";
+	public final static String TEMPLATE_CREATE_VMS = "TemplateCreateVMs";
+	public final static String TEMPLATE_PROMOTE = "TemplatePromote";
+	public final static String TEMPLATE_ROLLOUT = "TemplateRollout";
 	public final static String VM_RUN_INSTALL = "VMRunInstall";
 	public final static String VM_WIZARD = "VMWizard";
 
@@ -85,14 +94,21 @@ public class MainView extends JFrame implements ActionListener {
 	private JComboBox<String> cpusCbx;
 	private JSlider memorySld;
 	private JComboBox<String> soundCbx;
+	private JComboBox<String> diskProfileCbx;
 	private JCheckBox verboseChk;
 	private JCheckBox localtimeChk;
 	private JCheckBox bootMenuChk;
+	private JCheckBox autostartChk;
+	private JButton vmOutputBtn;
 	private JRadioButton addParametersRBt;			// Advanced tab
 	private JRadioButton qemuDefinitionRBt;
 	private JTextArea qemuParamsTxa;
 	private JTextArea extraParamsTxa;
 	private JList<VM.VMDevice> deviceList;
+	private JPanel snapshotPnl;						// Snapshots tab
+	private JTree snapshotTree;
+	private JProgressBar snapshotProgressBar;
+	private SnapshotManager.Catalog snapshotCatalog;	// shown by snapshotTree
 	// toolbar buttons
 	private JButton btnStart;
 	private JButton btnStop;
@@ -106,6 +122,9 @@ public class MainView extends JFrame implements ActionListener {
 	private JMenuItem menuItemStart;
 	private JMenuItem menuItemStop;
 	private JMenuItem menuItemRemoveVM;
+	private JMenuItem menuItemCloneVM;
+	private JMenuItem menuItemFlattenVM;
+	private JMenuItem menuItemPromoteVM;
 	private JMenuItem menuItemRunVmInstall;
 
 	// other components
@@ -161,11 +180,17 @@ public class MainView extends JFrame implements ActionListener {
 		String actionCmd = event.getActionCommand();
 		if (actionCmd.equals(ABOUT)) {
 			new AboutDlg(this);
+		} else if (actionCmd.equals(CLONE_VM)) {
+			Main.getVmManager().cloneVm(vmList.getSelectedIndex());
 		} else if (actionCmd.equals(DEVICE_ADD_CD_DVD)) {
 			Device.addCD(this, vmList, deviceList);
+		} else if (actionCmd.equals(DISK_IMAGE)) {
+			DiskJobsDlg.create(this);
 		} else if (actionCmd.equals(EXIT)) {
             dispose();
             Main.onExit();
+		} else if (actionCmd.equals(FLATTEN_VM)) {
+			Main.getVmManager().flattenVm(this, vmList.getSelectedIndex());
 		} else if (actionCmd.equals(HELP)) {
 			Main.getHelp().show();
 		} else if (actionCmd.equals(MOVE_DOWN)) {
@@ -182,8 +207,22 @@ public class MainView extends JFrame implements ActionListener {
 			Main.getVmManager().runInstallVm(this, vmList);
 		} else if (actionCmd.equals(SETTINGS)) {
 			SettingsDlg.create(this);
+		} else if (actionCmd.equals(SNAPSHOT_CREATE)) {
+			Main.getVmManager().createSnapshot(this, vmList.getSelectedIndex());
+		} else if (actionCmd.equals(SNAPSHOT_DELETE)) {
+			Main.getVmManager().deleteSnapshot(this, vmList.getSelectedIndex(), getSelectedSnapshotName());
+		} else if (actionCmd.equals(SNAPSHOT_REVERT)) {
+			Main.getVmManager().revertSnapshot(this, vmList.getSelectedIndex(), getSelectedSnapshotName());
 		} else if (actionCmd.equals(START_VM)) {
 			Main.getVmManager().runVm(this, vmList, null);
+		} else if (actionCmd.equals(STOP_VM)) {
+			Main.getVmManager().stopVm(this, vmList);
+		} else if (actionCmd.equals(TEMPLATE_CREATE_VMS)) {
+			Main.getVmManager().createVmsFromTemplate(this);
+		} else if (actionCmd.equals(TEMPLATE_PROMOTE)) {
+			Main.getVmManager().promoteVm(this, vmList.getSelectedIndex());
+		} else if (actionCmd.equals(TEMPLATE_ROLLOUT)) {
+			Main.getVmManager().rolloutTemplate(this);
 		} else if (actionCmd.equals(VM_WIZARD)) {
 	           new VMWizard();
         } else {
@@ -202,15 +241,23 @@ public class MainView extends JFrame implements ActionListener {
 	 */
 	private void actionStoreButton(boolean separateLines) {
 		
-		ArrayList<String> cmdList = Qemu.createCommandList(qemuParamsTxa.getText());
-		Qemu.addExtraParameters(cmdList, Main.getVm(vmList.getSelectedIndex()));
+		VM vm = Main.getVm(vmList.getSelectedIndex());
+		String script;
+		if (vm.getPropertyBool(VMProperties.FULL_QEMU_DEFINITION)) {
+			// the full definition is edited in the text area
+			ArrayList<String> cmdList = Qemu.createCommandList(qemuParamsTxa.getText());
+			Qemu.addExtraParameters(cmdList, vm);
+			script = Qemu.toCommandStringStore(cmdList, separateLines);
+		} else {
+			script = Qemu.getCommand(vm).toScript(vm, separateLines);
+		}
 		FileChooserDlg chooser = new FileChooserDlg(Msg.get(SAVE_TO_FILE_MSG), 
 				Msg.get(OK_BTN_MSG), Msg.get(OK_BTN_MSG), 
 				JFileChooser.FILES_ONLY, null);
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
 	        String path = chooser.getSelectedFile().getPath();
 	        try {
-				Util.writeFile(path, Qemu.toCommandStringStore(cmdList, separateLines));
+				Util.writeFile(path, script);
 				new File(path).setExecutable(true);
 			} catch (IOException e2) {
 				Logger.error("Cannot write commands to file '" + path + "'", e2);
@@ -407,6 +454,50 @@ public class MainView extends JFrame implements ActionListener {
 //		advancedPnl.add(Gbc.filler(), new Gbc(0, row, 1, 1, 0, 10, "V"));
 	}
 
+	/**
+	 * Create and add the Snapshots tab to the VM properties tabbed pane
+	 * 
+	 * @param tabbedPane
+	 */
+	private void addSnapshotsTab(JTabbedPane tabbedPane) {
+
+		snapshotPnl = createTabPanel(tabbedPane, 
+				Msg.get(SNAPSHOTS_MSG), HARDDISK, Msg.get(VM_TAB_SNAPSHOTS_TT_MSG));
+		int row = 0;
+		// chapter
+		JLabel label = CompFactory.createChapterLabel(Msg.get(SNAPSHOTS_MSG));
+		snapshotPnl.add(label, new Gbc(0, row, 13, 1, 0, 0, "W H"));
+		row++;
+		// indentation, once only: non-chapter components start on column 1
+		snapshotPnl.add(CompFactory.createTabIndentation(), new Gbc(0, row, 1, 1, 0, 0, "W H"));
+		// buttons create, revert, delete
+		int pixels = 28;		// images will be scaled down to # of pixels
+		JButton btnCreate = createToolBarButton(null, Images.scale(Images.VM_WIZARD, pixels), 
+				0, Msg.get(SNAPSHOT_CREATE_TT_MSG), SNAPSHOT_CREATE);
+		snapshotPnl.add(btnCreate, new Gbc(2, row, 1, 1, 0, 0, "W H"));
+		JButton btnRevert = createToolBarButton(null, Images.scale(Images.BACK_BUTTON, pixels), 
+				0, Msg.get(SNAPSHOT_REVERT_TT_MSG), SNAPSHOT_REVERT);
+		snapshotPnl.add(btnRevert, new Gbc(3, row, 1, 1, 0, 0, "W H"));
+		JButton btnDelete = createToolBarButton(null, Images.scale(Images.LIST_REMOVE, pixels - 4), 
+				0, Msg.get(SNAPSHOT_DELETE_TT_MSG), SNAPSHOT_DELETE);
+		snapshotPnl.add(btnDelete, new Gbc(4, row, 1, 1, 0, 0, "W H"));
+		// progress of the running job
+		snapshotProgressBar = new JProgressBar(0, 100);
+		snapshotProgressBar.setStringPainted(true);
+		snapshotProgressBar.setVisible(false);
+		snapshotPnl.add(snapshotProgressBar, new Gbc(6, row, 8, 1, 1.0, 0, "W H"));
+		row++;
+		// snapshot tree
+		snapshotTree = new JTree(new DefaultTreeModel(new DefaultMutableTreeNode()));
+		snapshotTree.getSelectionModel().setSelectionMode(TreeSelectionModel.SINGLE_TREE_SELECTION);
+		snapshotTree.setCellRenderer(new SnapshotTreeCellRenderer());
+		JScrollPane scrollPane = new JScrollPane(snapshotTree, 
+				ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
+				ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+		scrollPane.setPreferredSize(new Dimension(640, 300));
+		snapshotPnl.add(scrollPane, new Gbc(2, row, 14, 1, 1.0, 1.0, "B"));
+	}
+
 	/**
 	 * Create and add the VM tab to the VM properties tabbed pane
 	 * 
@@ -459,6 +550,10 @@ public class MainView extends JFrame implements ActionListener {
 		vmPnl.add(acceleratorCbx, new Gbc(5, row, 1, 1, 0, 0, "W H", insets));
 		acceleratorCbx.setPreferredSize(new Dimension(160, Gui.DEFAULT_BTN_HEIGHT));
 		acceleratorCbx.setMaximumRowCount(15);
+		acceleratorCbx.setRenderer(new SupportedListCellRenderer(index -> {
+			QemuCapabilities capabilities = getSelectedQemuCapabilities();
+			return capabilities == null || Accelerator.ARRAY[index].isSupportedBy(capabilities);
+		}));
 		acceleratorCbx.addActionListener(e -> {
 			if (acceleratorCbx.getSelectedIndex() >= 0) {
 				storeVmProperty(VMProperties.ACCELERATOR, 
@@ -518,6 +613,10 @@ public class MainView extends JFrame implements ActionListener {
 		vmPnl.add(soundCbx, new Gbc(2, row, 1, 1, 0, 0, "W H", insets));
 		soundCbx.setPreferredSize(new Dimension(160, Gui.DEFAULT_BTN_HEIGHT));
 		soundCbx.setMaximumRowCount(15);
+		soundCbx.setRenderer(new SupportedListCellRenderer(index -> {
+			QemuCapabilities capabilities = getSelectedQemuCapabilities();
+			return capabilities == null || Sound.ARRAY[index].isSupportedBy(capabilities);
+		}));
 		soundCbx.addActionListener(e -> {
 			if (soundCbx.getSelectedIndex() >= 0) {
 				storeVmProperty(VMProperties.SOUND, 
@@ -533,6 +632,21 @@ public class MainView extends JFrame implements ActionListener {
 		}
 		verboseChk.addActionListener(e -> storeVmProperty(VMProperties.VERBOSE, "" + verboseChk.isSelected()));
 		row++;
+		// disk profile
+		JLabel diskProfileLbl = CompFactory.createTabLabel(Msg.get(DISK_PROFILE_MSG));
+		diskProfileLbl.setToolTipText(Msg.get(DISK_PROFILE_TT_MSG));
+		vmPnl.add(diskProfileLbl, new Gbc(1, row, 1, 1, 0, 0, "W H", insets));
+		diskProfileCbx = new JComboBox<String>(DiskProfile.Preset.getNameArray());
+		vmPnl.add(diskProfileCbx, new Gbc(2, row, 1, 1, 0, 0, "W H", insets));
+		diskProfileCbx.setPreferredSize(new Dimension(160, Gui.DEFAULT_BTN_HEIGHT));
+		diskProfileCbx.setToolTipText(Msg.get(DISK_PROFILE_TT_MSG));
+		diskProfileCbx.addActionListener(e -> {
+			int index = diskProfileCbx.getSelectedIndex();
+			if (index >= 0 && DiskProfile.Preset.ARRAY[index].getSpec() != null) {
+				// custom: the profile of the VM file is kept
+				storeVmProperty(VMProperties.DRIVE_HDA_PROFILE, DiskProfile.Preset.ARRAY[index].getSpec());
+			}
+		});
 		// -rtc base=localtime flag
 		localtimeChk = new JCheckBox(Msg.get(Message.LOCALTIME_MSG));
 		vmPnl.add(localtimeChk, new Gbc(5, row, 1, 1, 0, 0, "W H", insets));
@@ -553,6 +667,21 @@ public class MainView extends JFrame implements ActionListener {
 		}
 		bootMenuChk.addActionListener(e -> 
 			storeVmProperty(VMProperties.QEMU_BOOT_MENU, "" + bootMenuChk.isSelected()));
+		// QEMU output of the VM
+		vmOutputBtn = CompFactory.createButton(Msg.get(VM_OUTPUT_MSG), Msg.get(VM_OUTPUT_TT_MSG));
+		vmPnl.add(vmOutputBtn, new Gbc(2, row, 1, 1, 0, 0, "W", insets));
+		vmOutputBtn.addActionListener(e -> showVmOutput());
+		row++;
+		// autostart flag
+		autostartChk = new JCheckBox(Msg.get(AUTOSTART_MSG));
+		vmPnl.add(autostartChk, new Gbc(5, row, 1, 1, 0, 0, "W H", insets));
+		autostartChk.setToolTipText(Msg.get(AUTOSTART_TT_MSG));
+		if (selectedIndex >= 0) {
+			VMProperties props = Main.getVmProperties(selectedIndex);
+			autostartChk.setSelected(props.getPropertyBool(VMProperties.AUTOSTART));
+		}
+		autostartChk.addActionListener(e -> 
+			storeVmProperty(VMProperties.AUTOSTART, "" + autostartChk.isSelected()));
 		// push the above
 		row++;
 		vmPnl.add(Gbc.filler(), new Gbc(0, row, 1, 1, 0, 10, "V"));
@@ -600,6 +729,18 @@ public class MainView extends JFrame implements ActionListener {
 		menu.addSeparator();
 		menuItemRemoveVM = createMenuItem(Msg.get(REMOVE_VM_TT_MSG), true, REMOVE_VM, null);
 		menu.add(menuItemRemoveVM);
+		menu.addSeparator();
+		menuItemCloneVM = createMenuItem(Msg.get(CLONE_VM_TT_MSG), true, CLONE_VM, null);
+		menu.add(menuItemCloneVM);
+		menuItemFlattenVM = createMenuItem(Msg.get(FLATTEN_VM_TT_MSG), true, FLATTEN_VM, null);
+		menu.add(menuItemFlattenVM);
+		menu.addSeparator();
+		menuItemPromoteVM = createMenuItem(Msg.get(TEMPLATE_PROMOTE_TT_MSG), true, TEMPLATE_PROMOTE, null);
+		menu.add(menuItemPromoteVM);
+		menuItem = createMenuItem(Msg.get(TEMPLATE_CREATE_VMS_TT_MSG), true, TEMPLATE_CREATE_VMS, null);
+		menu.add(menuItem);
+		menuItem = createMenuItem(Msg.get(TEMPLATE_ROLLOUT_TT_MSG), true, TEMPLATE_ROLLOUT, null);
+		menu.add(menuItem);
 		
 		// TODO xxx    MainView JMenu VM entries 
 
@@ -688,6 +829,21 @@ public class MainView extends JFrame implements ActionListener {
 		return panel;
 	}
 
+	/**
+	 * Creates the tree node of a snapshot and its children.
+	 * 
+	 * @param node
+	 * @return the tree node
+	 */
+	private DefaultMutableTreeNode createSnapshotTreeNode(SnapshotManager.Node node) {
+
+		DefaultMutableTreeNode treeNode = new DefaultMutableTreeNode(node);
+		for (SnapshotManager.Node child : node.getChildren()) {
+			treeNode.add(createSnapshotTreeNode(child));
+		}
+		return treeNode;
+	}
+
 	/**
 	 * Creates the toolbar for this view.
 	 * Enable/disable the JToolBar buttons in buttonEnabler().
@@ -757,6 +913,28 @@ public class MainView extends JFrame implements ActionListener {
 		return button;
 	}
 
+	/**
+	 * @return the name of the snapshot selected in the snapshot tree or null
+	 */
+	private String getSelectedSnapshotName() {
+
+		TreePath path = snapshotTree.getSelectionPath();
+		if (path == null) {
+			return null;
+		}
+		Object userObject = ((DefaultMutableTreeNode) path.getLastPathComponent()).getUserObject();
+		return userObject instanceof SnapshotManager.Node ? ((SnapshotManager.Node) userObject).getName() : null;
+	}
+
+	/**
+	 * @return the (cached) capabilities of the emulator of the selected architecture or null, if not known
+	 */
+	private QemuCapabilities getSelectedQemuCapabilities() {
+
+		int index = architectureCbx.getSelectedIndex();
+		return index < 0 ? null : QemuCapabilities.getIfCached(Architecture.getQemuCmd(index));
+	}
+
 	/**
 	 * @return the selection index of the architecture JComboBox
 	 */
@@ -824,6 +1002,7 @@ public class MainView extends JFrame implements ActionListener {
 		// tabs for VM properties
 		addVmTab(vmTabbedPane);
 		addDevicesTab(vmTabbedPane);
+		addSnapshotsTab(vmTabbedPane);
 		addAdvancedTab(vmTabbedPane);
 		
 		// help button
@@ -872,6 +1051,47 @@ public class MainView extends JFrame implements ActionListener {
 		MainView.instance.statusLbl.setText(text);
 	}
 
+	/**
+	 * Shows the progress of a snapshot job, the snapshot tree is updated when it is done.
+	 * 
+	 * @param job
+	 */
+	public void showSnapshotJob(SnapshotManager.Job job) {
+
+		if (job.isDone()) {
+			snapshotProgressBar.setVisible(false);
+			updateSnapshotTree();
+			return;
+		}
+		snapshotProgressBar.setVisible(true);
+		snapshotProgressBar.setIndeterminate(job.getPercent() < 0);
+		snapshotProgressBar.setValue(Math.max(0, job.getPercent()));
+		snapshotProgressBar.setString(job.getVm().getName() + ": " + job.getOperation().getDisplayName() 
+				+ " '" + job.getName() + "'" + (job.getPercent() < 0 ? "" : " " + job.getPercent() + " %"));
+	}
+
+	/**
+	 * Shows the latest output of QEMU for the selected VM.
+	 */
+	private void showVmOutput() {
+
+		VM vm = Main.getVm(vmList.getSelectedIndex());
+		if (vm == null) {
+			return;
+		}
+		VMOutputSink sink = vm.getOutputSink();
+		String output = sink == null ? Msg.get(VM_NO_OUTPUT_MSG) : sink.tail(VMOutputSink.RING_SIZE);
+		JTextArea outputTxa = new JTextArea(output, 30, 100);
+		outputTxa.setEditable(false);
+		outputTxa.setFont(new Font(Font.MONOSPACED, Font.PLAIN, outputTxa.getFont().getSize()));
+		outputTxa.setCaretPosition(output.length());
+		JScrollPane scrollPane = new JScrollPane(outputTxa, 
+				ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED,
+				ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+		JOptionPane.showMessageDialog(this, scrollPane, 
+				Msg.get(QEMU_OUTPUT_LBL_MSG) + vm.getName(), JOptionPane.PLAIN_MESSAGE);
+	}
+
 	/**
 	 * Store a property of the selected VM and write the properties file to save it.
 	 * Usually called from a component vale change.
@@ -892,19 +1112,20 @@ public class MainView extends JFrame implements ActionListener {
 			return;
 		}
 		vm.setProperty(propertyKey, value);
-		vm.getVmProperties().storeToXML();
+		PersistenceService.markDirty(vm.getVmProperties());		// e.g. typing: written once after a quiet period
 		Logger.info("VM '" + vm.getName() + "': changed " + propertyKey + " -> " + value);
 	}
 
 	/**
 	 * Update all components with the properties of the selected VM.
-	 * Usually called on selection of a VM.
+	 * Usually called on selection of a VM or if the selected VM has been reloaded.
 	 */
-	private void updateVmComponents() {
+	public void updateVmComponents() {
 		
 		int selectedIndex = vmList.getSelectedIndex();
 		Main.getVmManager().fillVmDeviceModel(selectedIndex);
 		if (selectedIndex < 0) {
+			updateSnapshotTree();
 			return;
 		}
 		VM vm = Main.getVmManager().getVm(selectedIndex);
@@ -916,9 +1137,11 @@ public class MainView extends JFrame implements ActionListener {
 		memorySld.setValue(vm.getMemorySizeMB());
 		VMProperties props = Main.getVmProperties(selectedIndex);
 		soundCbx.setSelectedIndex(Sound.findCbxIndexFor(vm));
+		diskProfileCbx.setSelectedIndex(DiskProfile.Preset.findCbxIndexFor(vm));
 		verboseChk.setSelected(props.getPropertyBool(VMProperties.VERBOSE));
 		localtimeChk.setSelected(props.getPropertyBool(VMProperties.LOCALTIME));
 		bootMenuChk.setSelected(props.getPropertyBool(VMProperties.QEMU_BOOT_MENU));
+		autostartChk.setSelected(props.getPropertyBool(VMProperties.AUTOSTART));
 		// tab Advanced
 		if (props.getPropertyBool(VMProperties.FULL_QEMU_DEFINITION)) {
 			// full QEMU definition (ignore other settings)
@@ -930,7 +1153,7 @@ public class MainView extends JFrame implements ActionListener {
 				// nothing has been set before, generate the default from the VM properties
 				SwingUtilities.invokeLater(() -> {
 					// invokeLater() is needed, since MainView setup is not finished on first call (startup)
-					qemuParamsTxa.setText(Qemu.toTextAreaString(Qemu.createCommandList(vm, null)));
+					qemuParamsTxa.setText(Qemu.getCommand(vm).getTextAreaString());
 				});
 			} else {
 				qemuParamsTxa.setText(Qemu.toTextAreaString(cmd));
@@ -942,10 +1165,46 @@ public class MainView extends JFrame implements ActionListener {
 			qemuParamsTxa.setBackground(Gui.ABOUT_PANEL_BACKGROUND);
 			SwingUtilities.invokeLater(() -> {
 				// invokeLater() is needed, since MainView setup is not finished on first call (startup)
-				qemuParamsTxa.setText(Qemu.toTextAreaString(Qemu.createCommandList(vm, null)));
+				qemuParamsTxa.setText(Qemu.getCommand(vm).getTextAreaString());
 			});
 		}
 		extraParamsTxa.setText(vm.getExtraParamsTextAreaString());
+		// tab Snapshots
+		updateSnapshotTree();
+	}
+
+	/**
+	 * Fills the snapshot tree with the snapshot catalog of the selected VM, 
+	 * it is rebuilt only if the catalog has changed.
+	 */
+	private void updateSnapshotTree() {
+
+		VM vm = Main.getVm(vmList.getSelectedIndex());
+		SnapshotManager.Catalog catalog = vm != null ? Main.getVmManager().getSnapshotManager().getCatalog(vm) : null;
+		if (catalog == snapshotCatalog) {
+			return;
+		}
+		String selectedName = getSelectedSnapshotName();
+		snapshotCatalog = catalog;
+		DefaultMutableTreeNode root = new DefaultMutableTreeNode(vm);
+		if (catalog != null) {
+			for (SnapshotManager.Node node : catalog.getRoots()) {
+				root.add(createSnapshotTreeNode(node));
+			}
+		}
+		snapshotTree.setModel(new DefaultTreeModel(root));
+		for (int i = 0; i < snapshotTree.getRowCount(); i++) {
+			snapshotTree.expandRow(i);
+		}
+		// keep the selection, if the snapshot still exists
+		for (int i = 0; selectedName != null && i < snapshotTree.getRowCount(); i++) {
+			Object userObject = ((DefaultMutableTreeNode) snapshotTree.getPathForRow(i)
+					.getLastPathComponent()).getUserObject();
+			if (userObject instanceof SnapshotManager.Node 
+					&& ((SnapshotManager.Node) userObject).getName().equals(selectedName)) {
+				snapshotTree.setSelectionRow(i);
+			}
+		}
 	}
 
 	/**
@@ -965,6 +1224,9 @@ public class MainView extends JFrame implements ActionListener {
 			menuItemStop.setEnabled(false);
 			btnRemoveVM.setEnabled(false);
 			menuItemRemoveVM.setEnabled(false);
+			menuItemCloneVM.setEnabled(false);
+			menuItemFlattenVM.setEnabled(false);
+			menuItemPromoteVM.setEnabled(false);
 			Gui.enableComponents(vmTabbedPane, false);
 			return;
 		}
@@ -976,11 +1238,31 @@ public class MainView extends JFrame implements ActionListener {
 			menuItemStart.setEnabled(false);
 			btnRunVmInstall.setEnabled(false);
 			menuItemRunVmInstall.setEnabled(false);
-			btnStop.setEnabled(true);
-			menuItemStop.setEnabled(true);
+			btnStop.setEnabled(!vm.isStopping());		// a stop is in progress
+			menuItemStop.setEnabled(!vm.isStopping());
 			btnRemoveVM.setEnabled(false);
 			menuItemRemoveVM.setEnabled(false);
 			btnDiskImage.setEnabled(false);
+			// the disk of a base VM is read-only (-snapshot)
+			menuItemCloneVM.setEnabled(!Main.getVmManager().getClones(vm).isEmpty());
+			menuItemFlattenVM.setEnabled(false);
+			menuItemPromoteVM.setEnabled(false);
+			Gui.enableComponents(vmTabbedPane, false);
+			vmOutputBtn.setEnabled(true);			// the output is of interest while running
+			Gui.enableComponents(snapshotPnl, true);		// live snapshots (QMP)
+		} else if (vm.isDiskBusy()) {
+			btnStart.setEnabled(false);
+			menuItemStart.setEnabled(false);
+			btnRunVmInstall.setEnabled(false);
+			menuItemRunVmInstall.setEnabled(false);
+			btnStop.setEnabled(false);
+			menuItemStop.setEnabled(false);
+			btnRemoveVM.setEnabled(false);
+			menuItemRemoveVM.setEnabled(false);
+			btnDiskImage.setEnabled(false);
+			menuItemCloneVM.setEnabled(false);
+			menuItemFlattenVM.setEnabled(false);
+			menuItemPromoteVM.setEnabled(false);
 			Gui.enableComponents(vmTabbedPane, false);
 		} else {
 			btnStart.setEnabled(true);
@@ -992,6 +1274,9 @@ public class MainView extends JFrame implements ActionListener {
 			btnRemoveVM.setEnabled(true);
 			menuItemRemoveVM.setEnabled(true);
 			btnDiskImage.setEnabled(true);
+			menuItemCloneVM.setEnabled(true);
+			menuItemFlattenVM.setEnabled(vm.isClone());
+			menuItemPromoteVM.setEnabled(!vm.isClone() && Main.getVmManager().getClones(vm).isEmpty());
 			Gui.enableComponents(vmTabbedPane, true);
 		}
 		// not touched:
@@ -1001,6 +1286,30 @@ public class MainView extends JFrame implements ActionListener {
 	
 	/************************* inner classes *************************/
 	
+	/**
+	 * Renders the nodes of the snapshot tree: the VM and its snapshots, the current one is marked.
+	 */
+	class SnapshotTreeCellRenderer extends DefaultTreeCellRenderer {
+
+		@Override
+		public Component getTreeCellRendererComponent(JTree tree, Object value, boolean isSelected, 
+				boolean isExpanded, boolean isLeaf, int row, boolean hasFocus) {
+
+			super.getTreeCellRendererComponent(tree, value, isSelected, isExpanded, isLeaf, row, hasFocus);
+			Object userObject = ((DefaultMutableTreeNode) value).getUserObject();
+			if (userObject instanceof VM) {
+				setText(((VM) userObject).getName());
+				setIcon(Images.scale(((VM) userObject).getImageIcon(), 16));
+			} else if (userObject instanceof SnapshotManager.Node) {
+				SnapshotManager.Node node = (SnapshotManager.Node) userObject;
+				boolean isCurrent = snapshotCatalog != null && snapshotCatalog.getCurrent() == node;
+				setText(node + (isCurrent ? "   " + Msg.get(SNAPSHOT_CURRENT_MSG) : ""));
+				setIcon(Images.scale(Images.get(DISK), 16));
+			}
+			return this;
+		}
+	}
+
 	/**
 	 * A DocumentListener for a VM property.
 	 */
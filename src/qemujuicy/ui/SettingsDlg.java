@@ -281,6 +281,9 @@ public class SettingsDlg extends JDialog implements ActionListener {
 	public static void create(MainView mainView) {
 		
 		QemuSetup setup = Main.getQemuSetup();
+		if (setup == null) {
+			return;						// QEMU setup still probing
+		}
 		new SettingsDlg(false, mainView, setup.getQemuImg(), setup.getQemuImgVersion(), 
 				setup.getQemuCmdList(), setup.getVersionList());
 	}
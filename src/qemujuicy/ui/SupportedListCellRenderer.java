@@ -0,0 +1,61 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.ui;
+
+import java.awt.*;
+import java.util.function.*;
+
+import javax.swing.*;
+
+/**
+ * A list cell renderer (e.g. for JComboBox) greying out entries not supported
+ * by the QEMU installation.
+ */
+@SuppressWarnings("serial")
+public class SupportedListCellRenderer extends DefaultListCellRenderer {
+
+	private IntPredicate isSupported;
+
+	/**
+	 * Construction.
+	 *
+	 * @param isSupported		tests if the entry at an index is supported
+	 */
+	public SupportedListCellRenderer(IntPredicate isSupported) {
+
+		this.isSupported = isSupported;
+	}
+
+	@Override
+	public Component getListCellRendererComponent(JList<?> list, Object value,
+			int index, boolean isSelected, boolean cellHasFocus) {
+
+		Component component = super.getListCellRendererComponent(list,
+				value, index, isSelected, cellHasFocus);
+		if (index >= 0) {
+			// index -1 is the combo box itself, the selected entry
+			component.setEnabled(isSupported.test(index));
+		}
+		return component;
+	}
+}
@@ -266,6 +266,16 @@ public class VMWizard extends JDialog implements ActionListener {
 		} else {
 			vmProperties.setProperty(LOCALTIME, "" + false);
 		}
+		switch (VM.OSType.values()[osCbx.getSelectedIndex()]) {
+		case LINUX, BSD, DEBIAN, UBUNTU, OPENSUSE, RHEL, ARCH, MINT, FEDORA:
+			// virtio drivers are part of the installation media, io_uring and O_DIRECT are Linux only
+			vmProperties.setProperty(DRIVE_HDA_PROFILE, OSType.isLinux() 
+					? DiskProfile.Preset.VIRTIO_BLK.getSpec() : DiskProfile.Preset.VIRTIO_WRITEBACK.getSpec());
+			break;
+		default:
+			vmProperties.setProperty(DRIVE_HDA_PROFILE, DiskProfile.Preset.COMPATIBLE.getSpec());
+			break;
+		}
 		
 		// TODO xxx    VMWizard additional properties 
 		
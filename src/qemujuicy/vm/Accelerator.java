@@ -23,8 +23,7 @@
 package qemujuicy.vm;
 
 import java.util.EnumSet;
-
-import qemujuicy.*;
+import java.util.HashMap;
 
 /**
  * Enumeration of (almost) all accelerators supported by QEMU. 
@@ -45,6 +44,7 @@ public enum Accelerator {
 	
 	public static final EnumSet<Accelerator> ALL = EnumSet.allOf(Accelerator.class);
 	public static final Accelerator[] ARRAY = ALL.toArray(new Accelerator[0]);
+	private static final HashMap<String, Integer> INDEX_MAP = createIndexMap();	// name -> index
 	
 	private String name;
 	private String accelOption;
@@ -57,6 +57,18 @@ public enum Accelerator {
 		this.sysInfo = sysInfo;
 	}
 
+	/**
+	 * @return the map of the names to the JComboBox selection index
+	 */
+	private static HashMap<String, Integer> createIndexMap() {
+		
+		HashMap<String, Integer> indexMap = new HashMap<>();
+		for (int i = 0; i < ARRAY.length; i++) {
+			indexMap.put(ARRAY[i].name, i);
+		}
+		return indexMap;
+	}
+
 	/**
 	 * Finds the JComboBox selection index for the accelerator of a VM.
 	 * 
@@ -66,12 +78,7 @@ public enum Accelerator {
 	public static int findCbxIndexFor(VM vm) {
 		
 		String accel = vm.getAccelerator();
-		for (int i = 0; i < ARRAY.length; i++) {
-			if (ARRAY[i].name.equals(accel)) {
-				return i;
-			}
-		}
-		return -1;
+		return INDEX_MAP.getOrDefault(accel, -1);
 	}
 	
 	/**
@@ -84,9 +91,13 @@ public enum Accelerator {
 	}
 	
 	/**
+	 * Gets the accelerator option for a VM, BEST_GUESS is resolved by the AcceleratorDetector
+	 * using the guest architecture of the VM and the capabilities of its emulator.
+	 * 
+	 * @param vm
 	 * @return the accelerator option or null
 	 */
-	public String getAccelOptionString() {
+	public String getAccelOptionString(VM vm) {
 		
 		if (this.equals(NONE)) {
 			return null;
@@ -94,40 +105,27 @@ public enum Accelerator {
 		if (!this.equals(BEST_GUESS)) {
 			return accelOption;
 		}
-		int archSelIndex = Main.getMainView().getArchitectureCbxSelectedIndex();
-		Architecture architecture = null;
-		if (archSelIndex >= 0) {
-			architecture = Architecture.values()[archSelIndex];
-		} else {
+		int archIndex = Architecture.findCbxIndexFor(vm);
+		if (archIndex < 0) {
 			return "kvm:tcg";		// this should never happen
 		}
-		// try to guess the best options for the CPU, the host (and guest) of the VM
-		if (OSType.isLinux()) {
-			if (architecture.equals(Architecture.PC_X86_64) 
-					|| architecture.equals(Architecture.PC_I386)) {
-				return "kvm:tcg";
-			} else {
-				
-				// TODO xxx    Accelerator 	ARM? (Android on ARM?), Raspberry Pi (Ubuntu & others), Cubieboard, ...
-				// test: qemu-system-aarch64 -accel help
-				// qemu-system-arm (ubuntu only?)
-				// , RISK-V? MIPS? ...
-				
-				return "kvm:tcg";
-			}
-		} else if (OSType.isWindows()) {
-
-			// TODO xxx    Accelerator 		Windows, depending on guest: whpx? (dependencies, auto detection?)
-			// can one query if whpx is working? (also if guest is Linux?)
-
-			return "kvm:tcg";
-		}
-		
-		// TODO xxx    Accelerator 		others?
-		// ARM-Windows on ARM Macs
-		// Note that HAXM can only be used on Windows Enterprise/Pro/Education - not with HOME (2021)
+		Architecture architecture = Architecture.ARRAY[archIndex];
+		QemuCapabilities capabilities = QemuCapabilities.getIfCached(architecture.getQemuCmd());
+		return AcceleratorDetector.getDefault().detect(architecture, capabilities).getAccelOption();
+	}
+	
+	/**
+	 * Checks if this accelerator is supported by an emulator.
+	 * 
+	 * @param capabilities		the capabilities of the emulator
+	 * @return true, if supported (BEST_GUESS and NONE always are), false otherwise
+	 */
+	public boolean isSupportedBy(QemuCapabilities capabilities) {
 		
-		return "kvm:tcg";
+		if (accelOption.equals("")) {
+			return true;
+		}
+		return capabilities.supports(QemuCapabilities.Kind.ACCEL, accelOption);
 	}
 	
 	/**
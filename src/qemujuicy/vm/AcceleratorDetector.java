@@ -0,0 +1,285 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+/**
+ * Detection of the fastest working accelerator for a VM (Accelerator.BEST_GUESS).
+ *
+ * <p>The decision depends on the host (OS, architecture, /dev/kvm access, CPU virtualization
+ * flags, nested virtualization), the guest architecture and the accelerators compiled into the
+ * emulator (QemuCapabilities). Decisions are cached and logged with their reason.</p>
+ *
+ * The roots of /proc, /dev and /sys may be changed, e.g. for tests with a fake file system.
+ */
+public class AcceleratorDetector {
+
+	private static AcceleratorDetector instance = new AcceleratorDetector("/proc", "/dev", "/sys",
+			System.getProperty("os.arch", ""), OSType.getOS());
+
+	private String procRoot;
+	private String devRoot;
+	private String sysRoot;
+	private String hostArch;
+	private OSType osType;
+	private final Map<String, Decision> decisionMap = new ConcurrentHashMap<>();
+
+	/**
+	 * Construction.
+	 *
+	 * @param procRoot		the path of /proc
+	 * @param devRoot		the path of /dev
+	 * @param sysRoot		the path of /sys
+	 * @param hostArch		the host architecture, as in the system property "os.arch"
+	 * @param osType		the host operating system
+	 */
+	public AcceleratorDetector(String procRoot, String devRoot, String sysRoot, String hostArch, OSType osType) {
+
+		this.procRoot = procRoot;
+		this.devRoot = devRoot;
+		this.sysRoot = sysRoot;
+		this.hostArch = hostArch;
+		this.osType = osType;
+	}
+
+	/**
+	 * Clears the cached decisions, e.g. after changing the QEMU installation.
+	 */
+	public void clear() {
+
+		decisionMap.clear();
+	}
+
+	/**
+	 * Detects the accelerator for a guest architecture, the decision is cached.
+	 *
+	 * @param architecture		the guest architecture
+	 * @param capabilities		the capabilities of the emulator or null, if not known
+	 * @return the decision
+	 */
+	public Decision detect(Architecture architecture, QemuCapabilities capabilities) {
+
+		String key = architecture.name() + "|" + (capabilities != null ? capabilities.getQemuCmd() : "");
+		return decisionMap.computeIfAbsent(key, k -> {
+			Decision decision = detectUncached(architecture, capabilities);
+			Logger.info("AcceleratorDetector: " + architecture.getName() + " -> '"
+					+ decision.getAccelOption() + "': " + decision.getReason());
+			return decision;
+		});
+	}
+
+	/**
+	 * Detects the accelerator for a guest architecture.
+	 *
+	 * @param architecture		the guest architecture
+	 * @param capabilities		the capabilities of the emulator or null, if not known
+	 * @return the decision
+	 */
+	private Decision detectUncached(Architecture architecture, QemuCapabilities capabilities) {
+
+		if (!architecture.isAccelerableOn(hostArch)) {
+			return new Decision("tcg", "guest " + architecture.getName() + " is not compatible to host "
+					+ hostArch + ", emulation only");
+		}
+		switch (osType) {
+		case LINUX:
+			return detectKvm(capabilities);
+		case WINDOWS:
+			return detectHypervisor("whpx", "Windows Hypervisor Platform", capabilities);
+		case MAC:
+			return detectHypervisor("hvf", "macOS Hypervisor.framework", capabilities);
+		default:
+			return new Decision("tcg", "no known hardware accelerator on " + osType);
+		}
+	}
+
+	/**
+	 * Detects an OS hypervisor accelerator, which cannot be checked without running QEMU.
+	 *
+	 * @param accel			the accelerator
+	 * @param description	the description of the hypervisor
+	 * @param capabilities	the capabilities of the emulator or null, if not known
+	 * @return the decision
+	 */
+	private Decision detectHypervisor(String accel, String description, QemuCapabilities capabilities) {
+
+		if (!isSupported(capabilities, accel)) {
+			return new Decision("tcg", "emulator does not support " + accel);
+		}
+		// QEMU falls back to TCG, if the hypervisor is not enabled
+		return new Decision(accel + ":tcg", description + ", TCG as fallback");
+	}
+
+	/**
+	 * Detects KVM on Linux: /dev/kvm has to be accessible, the CPU has to provide
+	 * virtualization (x86: vmx/svm flags, these are also present in a VM with nested
+	 * virtualization enabled). Within a VM the KVM module of the CPU (kvm_intel, kvm_amd) has
+	 * to be loaded, its nested parameter is the nested virtualization state. TCG stays the
+	 * fallback, KVM may still fail at runtime (e.g. another hypervisor uses VT-x/AMD-V).
+	 *
+	 * @param capabilities	the capabilities of the emulator or null, if not known
+	 * @return the decision
+	 */
+	private Decision detectKvm(QemuCapabilities capabilities) {
+
+		if (!isSupported(capabilities, "kvm")) {
+			return new Decision("tcg", "emulator does not support kvm");
+		}
+		File kvm = new File(devRoot, "kvm");
+		if (!kvm.exists()) {
+			return new Decision("tcg", kvm.getPath() + " does not exist (kvm module not loaded?)");
+		}
+		if (!kvm.canRead() || !kvm.canWrite()) {
+			return new Decision("tcg", "no access to " + kvm.getPath() + " (add the user to the group 'kvm')");
+		}
+		String flags = readCpuFlags();
+		String nested = readNested();
+		StringBuilder reason = new StringBuilder(kvm.getPath() + " accessible");
+		if (flags == null) {
+			reason.append(", CPU flags unknown");
+		} else if (hostArch.equals("amd64") || hostArch.equals("x86_64") || hostArch.equals("x86")) {
+			boolean hasVmx = flags.contains(" vmx ");
+			boolean hasSvm = flags.contains(" svm ");
+			if (!hasVmx && !hasSvm) {
+				return new Decision("tcg", "CPU without virtualization (vmx/svm), disabled in BIOS/UEFI?");
+			}
+			reason.append(hasVmx ? ", CPU vmx" : ", CPU svm");
+			if (flags.contains(" hypervisor ")) {
+				// QemuJuicy runs within a VM, nested virtualization is provided by the outer hypervisor
+				if (nested == null && new File(sysRoot, "module").isDirectory()) {
+					return new Decision("tcg", "nested within a VM, but " + (hasVmx ? "kvm_intel" : "kvm_amd")
+							+ " is not loaded (nested virtualization not available)");
+				}
+				reason.append(", nested within a VM");
+			}
+		}
+		if (nested != null) {
+			reason.append(", nested virtualization " + (nested.equals("Y") || nested.equals("1") ? "on" : "off"));
+		}
+		if (capabilities == null) {
+			reason.append(", emulator capabilities unknown");
+		}
+		return new Decision("kvm:tcg", reason + ", TCG as fallback");
+	}
+
+	/**
+	 * @return the default detector (using the real /proc, /dev and /sys)
+	 */
+	public static AcceleratorDetector getDefault() {
+
+		return instance;
+	}
+
+	/**
+	 * @param capabilities	the capabilities of the emulator or null, if not known
+	 * @param accel
+	 * @return true, if the accelerator is supported or the capabilities are unknown
+	 */
+	private boolean isSupported(QemuCapabilities capabilities, String accel) {
+
+		return capabilities == null || capabilities.supports(QemuCapabilities.Kind.ACCEL, accel);
+	}
+
+	/**
+	 * Reads the CPU flags of the first CPU from cpuinfo.
+	 *
+	 * @return the flags surrounded by blanks (" flag1 flag2 "), or null if not available
+	 */
+	private String readCpuFlags() {
+
+		File cpuinfo = new File(procRoot, "cpuinfo");
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(cpuinfo), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int i = line.indexOf(':');
+				if (i > 0 && line.substring(0, i).trim().equals("flags")) {
+					return " " + line.substring(i + 1).trim() + " ";
+				}
+			}
+		} catch (IOException e) {
+			// not available
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the nested virtualization parameter of the KVM module (Intel or AMD).
+	 *
+	 * @return the parameter ("Y", "N", "1", "0") or null, if not available
+	 */
+	private String readNested() {
+
+		for (String module : new String[] { "kvm_intel", "kvm_amd" }) {
+			File file = new File(sysRoot, "module/" + module + "/parameters/nested");
+			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				String line = reader.readLine();
+				if (line != null) {
+					return line.trim();
+				}
+			} catch (IOException e) {
+				// module not loaded
+			}
+		}
+		return null;
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * A decision of the detector: the accelerator option and the reason.
+	 */
+	public static class Decision {
+
+		private String accelOption;
+		private String reason;
+
+		public Decision(String accelOption, String reason) {
+
+			this.accelOption = accelOption;
+			this.reason = reason;
+		}
+
+		/**
+		 * @return the accelerator option for "-machine accel=", e.g. "kvm" or "kvm:tcg"
+		 */
+		public String getAccelOption() {
+
+			return accelOption;
+		}
+
+		/**
+		 * @return the reason of the decision
+		 */
+		public String getReason() {
+
+			return reason;
+		}
+	}
+}
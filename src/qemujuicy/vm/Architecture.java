@@ -23,6 +23,7 @@
 package qemujuicy.vm;
 
 import java.util.EnumSet;
+import java.util.HashMap;
 
 /**
  * Enumeration of (almost) all CPU architectures supported by QEMU. 
@@ -30,27 +31,42 @@ import java.util.EnumSet;
  */
 public enum Architecture {
 	
-    PC_X86_64("PC x86 (64 bit)", "qemu-system-x86_64"),
-    PC_I386("PC i386", "qemu-system-i386"),
-    ARM64("ARM64 (AArch64)", "qemu-system-aarch64"),
-    ARM("ARM", "qemu-system-arm"),
+    PC_X86_64("PC x86 (64 bit)", "qemu-system-x86_64", "amd64", "x86_64"),
+    PC_I386("PC i386", "qemu-system-i386", "x86", "i386", "i686", "amd64", "x86_64"),
+    ARM64("ARM64 (AArch64)", "qemu-system-aarch64", "aarch64", "arm64"),
+    ARM("ARM", "qemu-system-arm", "arm"),
     AVR("AVR (Arduino)", "qemu-system-avr"),
-    MIPS64("MIPS64", "qemu-system-mips64"),
-    PPC64("PowerPC", "qemu-system-ppc64"),
-    RISC_V("Risc-V", "qemu-system-riscv64"),
+    MIPS64("MIPS64", "qemu-system-mips64", "mips64", "mips64el"),
+    PPC64("PowerPC", "qemu-system-ppc64", "ppc64", "ppc64le"),
+    RISC_V("Risc-V", "qemu-system-riscv64", "riscv64"),
     SPARC64("SPARC64", "qemu-system-sparc64"),
     ;
 	
 	public static final EnumSet<Architecture> ALL = EnumSet.allOf(Architecture.class);
 	public static final Architecture[] ARRAY = ALL.toArray(new Architecture[0]);
+	private static final HashMap<String, Integer> INDEX_MAP = createIndexMap();	// qemu command -> index
 	
 	private String name;
 	private String qemuCmd;
+	private String[] hostArchs;			// host architectures (os.arch) able to run this guest accelerated
 	
-	Architecture(String name, String qemuCmd) {
+	Architecture(String name, String qemuCmd, String... hostArchs) {
 		
 		this.name = name;
 		this.qemuCmd = qemuCmd;
+		this.hostArchs = hostArchs;
+	}
+
+	/**
+	 * @return the map of the QEMU commands to the JComboBox selection index
+	 */
+	private static HashMap<String, Integer> createIndexMap() {
+		
+		HashMap<String, Integer> indexMap = new HashMap<>();
+		for (int i = 0; i < ARRAY.length; i++) {
+			indexMap.put(ARRAY[i].qemuCmd, i);
+		}
+		return indexMap;
 	}
 
 	/**
@@ -62,12 +78,7 @@ public enum Architecture {
 	public static int findCbxIndexFor(VM vm) {
 		
 		String arch = vm.getArchitecture();
-		for (int i = 0; i < ARRAY.length; i++) {
-			if (ARRAY[i].qemuCmd.equals(arch)) {
-				return i;
-			}
-		}
-		return -1;
+		return INDEX_MAP.getOrDefault(arch, -1);
 	}
 	
 	/**
@@ -115,6 +126,23 @@ public enum Architecture {
 		
 		return ARRAY[index].qemuCmd;
 	}
+
+	/**
+	 * Checks if a host is able to run a guest of this architecture hardware accelerated 
+	 * (KVM, WHPX, HVF, ...), the guest architecture has to be compatible to the host.
+	 * 
+	 * @param hostArch		the host architecture, as in the system property "os.arch"
+	 * @return true, if compatible, false otherwise
+	 */
+	public boolean isAccelerableOn(String hostArch) {
+		
+		for (String arch : hostArchs) {
+			if (arch.equals(hostArch)) {
+				return true;
+			}
+		}
+		return false;
+	}
 }
 
 
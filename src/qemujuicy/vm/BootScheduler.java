@@ -0,0 +1,277 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import qemujuicy.*;
+
+/**
+ * Starts the autostart VMs staggered, to avoid a boot storm (all VMs competing for disk I/O
+ * and CPU at once).
+ *
+ * The VMs start in the order of their priority (higher first), at most "concurrency" VMs boot
+ * at the same time. A booting VM is ready, if its QEMU process is running for the settle time
+ * and its CPU usage has dropped below a threshold, or if the timeout has passed. Then the
+ * next VM is admitted. The time to ready of each VM is recorded.
+ */
+public class BootScheduler {
+
+	public static final long POLL_MILLIS = 1000;			// check booting VMs at this interval
+
+	/**
+	 * The result of booting a VM.
+	 */
+	public enum BootState {
+
+		READY,				// settled, the CPU usage has dropped
+		TIMEOUT,			// still busy after the timeout, admitted the next one anyway
+		FAILED,				// not started or exited while booting
+	}
+
+	private final ScheduledExecutorService executor =
+			Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "bootScheduler");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private final LinkedList<VM> queue;
+	private final Function<VM, ProcessHandle> starter;
+	private final int concurrency;
+	private final long settleMillis;
+	private final int cpuPercent;
+	private final long timeoutMillis;
+	private final ArrayList<BootResult> resultList = new ArrayList<>();
+	private final CompletableFuture<List<BootResult>> future = new CompletableFuture<>();
+	private int bootingCount;						// admitted VMs not yet ready
+	private long startMillis;
+
+	/**
+	 * Construction, the limits are taken from the application properties.
+	 *
+	 * @param vmList		the VMs to start, in the order to start them
+	 * @param starter		starts a VM, returns the QEMU process or null, if the VM cannot be started
+	 */
+	public BootScheduler(List<VM> vmList, Function<VM, ProcessHandle> starter) {
+
+		this.queue = new LinkedList<>(vmList);
+		this.starter = starter;
+		concurrency = Math.max(1, Main.getPropertyInt(AppProperties.AUTOSTART_CONCURRENCY));
+		settleMillis = Main.getPropertyInt(AppProperties.AUTOSTART_SETTLE_SECONDS) * 1000L;
+		cpuPercent = Main.getPropertyInt(AppProperties.AUTOSTART_CPU_PERCENT);
+		timeoutMillis = Main.getPropertyInt(AppProperties.AUTOSTART_TIMEOUT_SECONDS) * 1000L;
+	}
+
+	/**
+	 * Admits VMs as long as less than "concurrency" VMs are booting, completes the
+	 * future if all VMs are done. Runs on the scheduler thread.
+	 */
+	private void admit() {
+
+		while (bootingCount < concurrency && !queue.isEmpty()) {
+			VM vm = queue.removeFirst();
+			bootingCount++;
+			long delayMillis = vm.getStartDelaySeconds() * 1000L;
+			Logger.info("autostart: admitting VM '" + vm.getName() + "'"
+					+ (delayMillis > 0 ? ", starting in " + delayMillis + "ms" : ""));
+			executor.schedule(() -> boot(vm), delayMillis, TimeUnit.MILLISECONDS);
+		}
+		if (bootingCount == 0 && queue.isEmpty()) {
+			Logger.info("autostart: " + resultList.size() + " VMs done in "
+					+ (System.currentTimeMillis() - startMillis) + "ms");
+			executor.shutdown();
+			future.complete(new ArrayList<>(resultList));
+		}
+	}
+
+	/**
+	 * Starts a VM and watches it until it is ready. Runs on the scheduler thread.
+	 *
+	 * @param vm
+	 */
+	private void boot(VM vm) {
+
+		long bootStartMillis = System.currentTimeMillis();
+		ProcessHandle handle = null;
+		try {
+			handle = starter.apply(vm);
+		} catch (Exception e) {
+			Logger.error("autostart: cannot start VM '" + vm.getName() + "'", e);
+		}
+		if (handle == null) {
+			finished(vm, BootState.FAILED, bootStartMillis);
+			return;
+		}
+		watch(vm, handle, bootStartMillis, cpuNanos(handle), System.nanoTime());
+	}
+
+	/**
+	 * @param handle
+	 * @return the CPU time used by a process in nanoseconds, or -1 if not available
+	 */
+	private static long cpuNanos(ProcessHandle handle) {
+
+		return handle.info().totalCpuDuration().map(duration -> duration.toNanos()).orElse(-1L);
+	}
+
+	/**
+	 * Finds the VMs to start automatically, in the order of their priority (higher first,
+	 * the same priority in the order of the VM list). Running VMs are skipped.
+	 *
+	 * @param vmList
+	 * @return the autostart VMs
+	 */
+	public static ArrayList<VM> findAutostartVms(List<VM> vmList) {
+
+		ArrayList<VM> autostartList = new ArrayList<>();
+		for (VM vm : vmList) {
+			if (vm.isAutostart() && !vm.isRunning() && Qemu.findRunningProcess(vm) == null) {
+				autostartList.add(vm);
+			}
+		}
+		autostartList.sort((vm1, vm2) -> Integer.compare(vm2.getPriority(), vm1.getPriority()));
+		return autostartList;
+	}
+
+	/**
+	 * Records the result of a booting VM and admits the next ones.
+	 *
+	 * @param vm
+	 * @param state
+	 * @param bootStartMillis	the start time of the VM
+	 */
+	private void finished(VM vm, BootState state, long bootStartMillis) {
+
+		BootResult result = new BootResult(vm, state, System.currentTimeMillis() - bootStartMillis);
+		resultList.add(result);
+		Logger.info("autostart: VM '" + vm.getName() + "' " + state + " after "
+				+ result.getTimeToReadyMillis() + "ms");
+		bootingCount--;
+		admit();
+	}
+
+	/**
+	 * @return the future of the results (in the order the VMs got ready), completing
+	 * 			if all VMs are ready (or failed)
+	 */
+	public CompletableFuture<List<BootResult>> getFuture() {
+
+		return future;
+	}
+
+	/**
+	 * Starts the scheduler, it returns at once.
+	 *
+	 * @return the future of the results (in the order the VMs got ready)
+	 */
+	public CompletableFuture<List<BootResult>> start() {
+
+		startMillis = System.currentTimeMillis();
+		Logger.info("autostart: " + queue.size() + " VMs, concurrency " + concurrency
+				+ ", settle " + settleMillis + "ms, CPU " + cpuPercent + "%, timeout " + timeoutMillis + "ms");
+		executor.execute(this::admit);
+		return future;
+	}
+
+	/**
+	 * Checks a booting VM, schedules the next check if not yet ready. Runs on the scheduler thread.
+	 *
+	 * @param vm
+	 * @param handle			the QEMU process
+	 * @param bootStartMillis	the start time of the VM
+	 * @param lastCpuNanos		the CPU time of the process at the last check (or -1)
+	 * @param lastNanos			the time of the last check
+	 */
+	private void watch(VM vm, ProcessHandle handle, long bootStartMillis, long lastCpuNanos, long lastNanos) {
+
+		if (!handle.isAlive()) {
+			finished(vm, BootState.FAILED, bootStartMillis);
+			return;
+		}
+		long uptimeMillis = System.currentTimeMillis() - bootStartMillis;
+		long nowCpuNanos = cpuNanos(handle);
+		long nowNanos = System.nanoTime();
+		if (uptimeMillis >= timeoutMillis) {
+			finished(vm, BootState.TIMEOUT, bootStartMillis);
+			return;
+		}
+		if (uptimeMillis >= settleMillis) {
+			// CPU usage in percent of the CPUs of the VM, unknown CPU times count as idle
+			long usage = 0;
+			if (nowCpuNanos >= 0 && lastCpuNanos >= 0 && nowNanos > lastNanos) {
+				usage = (nowCpuNanos - lastCpuNanos) * 100 / ((nowNanos - lastNanos) * Math.max(1, vm.getCpus()));
+			}
+			if (usage < cpuPercent) {
+				finished(vm, BootState.READY, bootStartMillis);
+				return;
+			}
+		}
+		executor.schedule(() -> watch(vm, handle, bootStartMillis, nowCpuNanos, nowNanos),
+				POLL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The result of booting a VM: its state and the time to ready.
+	 */
+	public static class BootResult {
+
+		private VM vm;
+		private BootState state;
+		private long timeToReadyMillis;
+
+		public BootResult(VM vm, BootState state, long timeToReadyMillis) {
+
+			this.vm = vm;
+			this.state = state;
+			this.timeToReadyMillis = timeToReadyMillis;
+		}
+
+		/**
+		 * @return the state
+		 */
+		public BootState getState() {
+
+			return state;
+		}
+
+		/**
+		 * @return the time from the start of the VM until it was ready (or timed out or failed)
+		 */
+		public long getTimeToReadyMillis() {
+
+			return timeToReadyMillis;
+		}
+
+		/**
+		 * @return the VM
+		 */
+		public VM getVm() {
+
+			return vm;
+		}
+	}
+}
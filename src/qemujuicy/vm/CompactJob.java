@@ -0,0 +1,243 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.Message.*;
+
+/**
+ * Compacts the qcow2 disk of a stopped VM: "qemu-img convert" writes a copy without the unused
+ * clusters (leaked, discarded or zeroed, optionally zstd compressed) next to the disk, the copy
+ * replaces the disk atomically if it is valid and the disk has not been changed meanwhile.
+ *
+ * <p>An overlay (linked clone, template instance) stays an overlay of its backing file.
+ * A disk with internal snapshots is not compacted, qemu-img convert would drop them.</p>
+ */
+public class CompactJob extends DiskJob {
+
+	public static final String TEMP_SUFFIX = ".compact";
+
+	private String diskPath;
+	private boolean isCompressed;
+	private double wasteRatio;
+
+	/**
+	 * Construction, the waste ratio (the priority) is determined now.
+	 *
+	 * @param vm
+	 * @param isCompressed		true, to compress the disk (zstd)
+	 */
+	public CompactJob(VM vm, boolean isCompressed) {
+
+		super(vm);
+		this.diskPath = Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator + vm.getDriveHdaName();
+		this.isCompressed = isCompressed;
+		Qcow2Image image = Qcow2Image.get(diskPath);
+		wasteRatio = image != null ? getWasteRatio(image) : 0;
+	}
+
+	/**
+	 * Checks if the disk of a VM can be compacted now.
+	 *
+	 * @param vm
+	 * @return null, if possible, the reason otherwise
+	 */
+	public static String check(VM vm) {
+
+		String diskPath = Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator + vm.getDriveHdaName();
+		Qcow2Image image = Qcow2Image.get(diskPath);
+		if (image == null) {
+			return Msg.get(COMPACT_NO_QCOW2_MSG, vm.getName());
+		}
+		if (vm.isDiskBusy()) {
+			return Msg.get(COMPACT_VM_RUNNING_MSG, vm.getName());
+		}
+		VM runningVm = findRunning(vm);
+		if (runningVm != null) {
+			return Msg.get(COMPACT_VM_RUNNING_MSG, runningVm.getName());
+		}
+		if (!image.getSnapshotList().isEmpty()) {
+			return Msg.get(COMPACT_SNAPSHOTS_MSG, vm.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * Creates compaction jobs for the VMs whose disk wastes at least a given ratio and can be
+	 * compacted now, the worst disks first.
+	 *
+	 * @param vmList
+	 * @param minRatio			the minimum waste ratio (file size to allocated size)
+	 * @param isCompressed		true, to compress the disks (zstd)
+	 * @return the jobs
+	 */
+	public static List<CompactJob> createCandidates(List<VM> vmList, double minRatio, boolean isCompressed) {
+
+		ArrayList<CompactJob> jobList = new ArrayList<>();
+		for (VM vm : vmList) {
+			if (check(vm) == null) {
+				CompactJob job = new CompactJob(vm, isCompressed);
+				if (job.getWasteRatio() >= minRatio) {
+					jobList.add(job);
+				}
+			}
+		}
+		jobList.sort(Comparator.comparingDouble((CompactJob job) -> job.getWasteRatio()).reversed());
+		return jobList;
+	}
+
+	@Override
+	protected CompletableFuture<Boolean> execute() {
+
+		String reason = check(vm);
+		if (reason != null) {
+			return CompletableFuture.failedFuture(new IOException(reason));
+		}
+		Qcow2Image image = Qcow2Image.get(diskPath);
+		File diskFile = new File(diskPath);
+		File tempFile = new File(diskPath + TEMP_SUFFIX);
+		tempFile.delete();						// a leftover of an aborted job
+		long lastModified = diskFile.lastModified();
+		ArrayList<String> args = new ArrayList<>(List.of("convert", "-p", "-O", "qcow2"));
+		String options = "cluster_size=" + image.getClusterSize();
+		if (isCompressed) {
+			args.add("-c");
+			options += ",compression_type=zstd";
+		}
+		args.add("-o");
+		args.add(options);
+		if (image.getBackingFile() != null) {
+			// keep the overlay: only the clusters differing from the backing file are written
+			args.add("-B");
+			args.add(image.getBackingFile());
+			if (image.getBackingFormat() != null) {
+				args.add("-F");
+				args.add(image.getBackingFormat());
+			}
+		}
+		int rateLimitMB = Main.getPropertyInt(AppProperties.DISK_JOB_RATE_LIMIT_MB);
+		if (rateLimitMB > 0) {
+			args.add("-r");
+			args.add(rateLimitMB + "M");
+		}
+		args.add(diskPath);
+		args.add(tempFile.getPath());
+		vm.setDiskBusy(true);
+		return runQemuImg(args).thenApply(procExec -> {
+			swap(image, diskFile, tempFile, lastModified);
+			return true;
+		}).whenComplete((isDone, e) -> {
+			if (e != null) {
+				tempFile.delete();
+			}
+			vm.setDiskBusy(false);
+		});
+	}
+
+	/**
+	 * Finds a running VM using the disk: the VM or a linked clone (it reads the disk), also if
+	 * started by another instance or headless.
+	 *
+	 * @param vm
+	 * @return the running VM or null, if none
+	 */
+	private static VM findRunning(VM vm) {
+
+		if (vm.isRunningAnywhere()) {
+			return vm;
+		}
+		for (VM clone : Main.getVmManager().getClones(vm)) {
+			if (clone.isRunningAnywhere()) {
+				return clone;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String getDescription() {
+
+		return Msg.get(isCompressed ? COMPACT_COMPRESS_JOB_MSG : COMPACT_JOB_MSG, new File(diskPath).getName(),
+				Util.DECIMAL_FORMAT2.format(wasteRatio));
+	}
+
+	@Override
+	public double getPriority() {
+
+		return wasteRatio;
+	}
+
+	/**
+	 * @return the ratio of the file size to the allocated size (data and metadata) when the job
+	 * 			has been created, 1.0 for a disk without waste
+	 */
+	public double getWasteRatio() {
+
+		return wasteRatio;
+	}
+
+	/**
+	 * @param image
+	 * @return the ratio of the file size to the allocated size (data and metadata)
+	 */
+	public static double getWasteRatio(Qcow2Image image) {
+
+		return (double) image.getFileSize() / Math.max(image.getClusterSize(), image.getAllocatedSize());
+	}
+
+	/**
+	 * Replaces the disk by the compacted copy (durable atomic rename within the VM directory).
+	 *
+	 * @param image				the disk before compaction
+	 * @param diskFile
+	 * @param tempFile			the compacted copy
+	 * @param lastModified		the modification time of the disk at the start
+	 */
+	private void swap(Qcow2Image image, File diskFile, File tempFile, long lastModified) {
+
+		try {
+			Qcow2Image compacted = Qcow2Image.read(tempFile);
+			if (compacted.getVirtualSize() != image.getVirtualSize()) {
+				throw new IOException("compacted disk has a different size: " + compacted.getVirtualSize());
+			}
+			if (diskFile.lastModified() != lastModified) {
+				throw new IOException("the disk has been changed during compaction");
+			}
+			VM runningVm = findRunning(vm);
+			if (runningVm != null) {
+				throw new IOException("VM '" + runningVm.getName() + "' has been started during compaction");
+			}
+			// forced to disk before and after the rename: a crash leaves the old or the compacted disk
+			Util.moveFileDurably(tempFile, diskFile, true);
+			Logger.info("CompactJob: " + diskFile.getName() + ": " + Util.formatSize(image.getFileSize())
+					+ " -> " + Util.formatSize(compacted.getFileSize()));
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		}
+	}
+}
@@ -0,0 +1,343 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.swing.*;
+
+import qemujuicy.*;
+import qemujuicy.ui.*;
+
+import static qemujuicy.Message.*;
+
+/**
+ * Converts a disk image with "qemu-img convert": the import of an image (VMDK, VDI, VHDX, raw, ...)
+ * as the qcow2 disk of a new VM, or the export of the disk of a stopped VM to another format.
+ *
+ * <p>qemu-img writes into a temporary file next to the target, which is renamed atomically when
+ * the conversion is done and removed if it fails or is canceled. An import is written directly
+ * into the VM directory, the new VM uses the converted image as is (the data is written once).</p>
+ *
+ * <p>A conversion is persisted by the DiskJobQueue until it is finished, an interrupted conversion
+ * is restarted from the beginning (see toProperties() and fromProperties()).</p>
+ */
+public class ConvertJob extends DiskJob {
+
+	public static final String TEMP_SUFFIX = ".part";
+	// the image formats by file extension, "vpc" is the qemu-img name of VHD
+	public static final Map<String, String> FORMAT_MAP = Map.of("qcow2", "qcow2", "qcow", "qcow",
+			"vmdk", "vmdk", "vdi", "vdi", "vhdx", "vhdx", "vhd", "vpc", "img", "raw", "raw", "raw");
+
+	// persistence keys, the prefix of the job is prepended
+	private static final String DIRECTION_KEY = "direction";
+	private static final String SOURCE_KEY = "source";
+	private static final String TARGET_KEY = "target";
+	private static final String VM_ID_KEY = "vm.id";
+	private static final String VM_NAME_KEY = "vm.name";
+
+	private Direction direction;
+	private String sourcePath;
+	private String targetPath;
+	private String vmName;						// import: the name of the new VM
+
+	/**
+	 * Construction.
+	 *
+	 * @param direction
+	 * @param vm				export: the VM of the disk, import: null
+	 * @param sourcePath
+	 * @param targetPath
+	 * @param vmName			import: the name of the new VM, export: null
+	 */
+	private ConvertJob(Direction direction, VM vm, String sourcePath, String targetPath, String vmName) {
+
+		super(vm);
+		this.direction = direction;
+		this.sourcePath = sourcePath;
+		this.targetPath = targetPath;
+		this.vmName = vmName;
+	}
+
+	/**
+	 * Checks if the disk of a VM can be exported now.
+	 *
+	 * @param vm
+	 * @return null, if possible, the reason otherwise
+	 */
+	public static String checkExport(VM vm) {
+
+		if (vm.isRunningAnywhere() || vm.isDiskBusy()) {
+			return Msg.get(COMPACT_VM_RUNNING_MSG, vm.getName());
+		}
+		if (vm.getDriveHdaName().isBlank() || !new File(getDiskPath(vm)).isFile()) {
+			return Msg.get(CONVERT_NO_DISK_MSG, vm.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * Checks if a disk image can be imported as a new VM.
+	 *
+	 * @param sourcePath
+	 * @param vmName			the name of the new VM
+	 * @return null, if possible, the reason otherwise
+	 */
+	public static String checkImport(String sourcePath, String vmName) {
+
+		if (!new File(sourcePath).isFile()) {
+			return Msg.get(CONVERT_NO_IMAGE_MSG, sourcePath);
+		}
+		if (!Main.getVmManager().isNameFree(vmName)) {
+			return Msg.get(VM_EXITS_ALREADY_MSG, vmName);
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the export of the disk of a VM.
+	 *
+	 * @param vm
+	 * @param targetPath		the path of the exported image, its extension defines the format
+	 * @return the job
+	 */
+	public static ConvertJob createExport(VM vm, String targetPath) {
+
+		return new ConvertJob(Direction.EXPORT, vm, getDiskPath(vm), targetPath, null);
+	}
+
+	/**
+	 * Creates the import of a disk image as a new VM, its qcow2 disk is created in the VM directory.
+	 *
+	 * @param sourcePath		the image to import
+	 * @param vmName			the name of the new VM
+	 * @return the job
+	 */
+	public static ConvertJob createImport(String sourcePath, String vmName) {
+
+		String targetPath = Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator
+				+ vmName.replace(" ", "_") + ".qcow2";
+		return new ConvertJob(Direction.IMPORT, null, sourcePath, targetPath, vmName);
+	}
+
+	@Override
+	protected CompletableFuture<Boolean> execute() {
+
+		String reason = direction == Direction.IMPORT ? checkImport(sourcePath, vmName) : checkExport(vm);
+		if (reason == null && new File(targetPath).exists()) {
+			reason = Msg.get(FILE_EXITS_ALREADY_MSG, targetPath);
+		}
+		if (reason != null) {
+			return CompletableFuture.failedFuture(new IOException(reason));
+		}
+		File tempFile = new File(targetPath + TEMP_SUFFIX);
+		tempFile.delete();						// a leftover of an interrupted job
+		String targetFormat = getFormat(targetPath);
+		ArrayList<String> args = new ArrayList<>(List.of("convert", "-p"));
+		String sourceFormat = direction == Direction.EXPORT && Qcow2Image.get(sourcePath) != null
+				? "qcow2" : getFormat(sourcePath);
+		if (sourceFormat != null) {
+			args.add("-f");
+			args.add(sourceFormat);			// no probing, raw images are not detected safely
+		}
+		args.add("-O");
+		args.add(targetFormat);
+		if (targetFormat.equals("qcow2")) {
+			args.add("-o");
+			args.add("cluster_size=" + Main.getPropertyInt(AppProperties.DISK_CLUSTER_SIZE_KB) * 1024);
+		}
+		int rateLimitMB = Main.getPropertyInt(AppProperties.DISK_JOB_RATE_LIMIT_MB);
+		if (rateLimitMB > 0) {
+			args.add("-r");
+			args.add(rateLimitMB + "M");
+		}
+		args.add(sourcePath);
+		args.add(tempFile.getPath());
+		if (vm != null) {
+			vm.setDiskBusy(true);
+		}
+		return runQemuImg(args).thenApply(procExec -> {
+			try {
+				Util.moveFileDurably(tempFile, new File(targetPath), false);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			Logger.info("ConvertJob: " + sourcePath + " -> " + targetPath + " ("
+					+ Util.formatSize(new File(targetPath).length()) + ")");
+			if (direction == Direction.IMPORT) {
+				createVm();
+			}
+			return true;
+		}).whenComplete((isDone, e) -> {
+			if (e != null) {
+				tempFile.delete();
+			}
+			if (vm != null) {
+				vm.setDiskBusy(false);
+			}
+		});
+	}
+
+	/**
+	 * Creates the VM of an imported disk (on the event dispatch thread), like the VM wizard does
+	 * with the default settings.
+	 */
+	private void createVm() {
+
+		AppProperties appProps = Main.getProperties();
+		String vmNameSafe = vmName.replace(" ", "_");
+		String vmFilename = vmNameSafe + ".xml";
+		Qcow2Image image = Qcow2Image.get(targetPath);
+		long sizeGB = image != null ? (image.getVirtualSize() + (1L << 30) - 1) >> 30 : 0;
+		VMProperties vmProperties;
+		try {
+			vmProperties = new VMProperties(new File(targetPath).getParent() + File.separator + vmFilename, false);
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+		vmProperties.setProperty(VMProperties.VM_NAME, vmName);
+		vmProperties.setProperty(VMProperties.VM_NAME_SAFE, vmNameSafe);
+		vmProperties.setProperty(VMProperties.VM_FILENAME, vmFilename);
+		vmProperties.setProperty(VMProperties.DRIVE_HDA_NAME, new File(targetPath).getName());
+		vmProperties.setProperty(VMProperties.DRIVE_HDA_SIZE_GB, "" + sizeGB);
+		vmProperties.setProperty(VMProperties.CREATION_TYPICAL, "" + true);
+		vmProperties.setProperty(VMProperties.INSTALLED_FROM_PATH, sourcePath);
+		vmProperties.setProperty(VMProperties.OS, VM.OSType.OTHER.name());
+		vmProperties.setProperty(VMProperties.ICON_PATH, Images.OS_ICON_OTHER_PATH);
+		vmProperties.setProperty(VMProperties.NETWORK, "" + true);
+		vmProperties.setProperty(VMProperties.CPUS, appProps.getProperty(AppProperties.DEFAULT_CPUS));
+		vmProperties.setProperty(VMProperties.VM_MEMORY_MB, appProps.getProperty(AppProperties.DEFAULT_MEM));
+		vmProperties.setProperty(VMProperties.VM_QEMU, Architecture.PC_X86_64.getQemuCmd());
+		vmProperties.setProperty(VMProperties.ACCELERATOR, Accelerator.BEST_GUESS.getName());
+		vmProperties.setProperty(VMProperties.QEMU_BOOT_MENU, "" + false);
+		vmProperties.setProperty(VMProperties.LOCALTIME, "" + false);
+		Util.logProperties(getClass().getSimpleName() + ": creating imported VM with properties:", vmProperties);
+		SwingUtilities.invokeLater(() -> {
+			Main.getVmManager().createVM(vmProperties, true);
+			if (Main.getMainView() != null) {
+				MainView.setStatusMessage(Msg.get(CONVERT_IMPORT_DONE_MSG, vmName));
+			}
+		});
+	}
+
+	/**
+	 * Restores a persisted job, see toProperties().
+	 *
+	 * @param properties
+	 * @param prefix			the prefix of the keys of the job
+	 * @return the job or null, if the job cannot be restored (the VM does not exist anymore)
+	 */
+	public static ConvertJob fromProperties(Properties properties, String prefix) {
+
+		Direction direction = Direction.valueOf(properties.getProperty(prefix + DIRECTION_KEY));
+		String sourcePath = properties.getProperty(prefix + SOURCE_KEY);
+		String targetPath = properties.getProperty(prefix + TARGET_KEY);
+		if (direction == Direction.IMPORT) {
+			return new ConvertJob(direction, null, sourcePath, targetPath, properties.getProperty(prefix + VM_NAME_KEY));
+		}
+		VM vm = Main.getVmManager().getVmById(properties.getProperty(prefix + VM_ID_KEY));
+		if (vm == null || !getDiskPath(vm).equals(sourcePath)) {
+			Logger.warning("ConvertJob: VM of '" + sourcePath + "' not found, the export is dropped");
+			return null;
+		}
+		return new ConvertJob(direction, vm, sourcePath, targetPath, null);
+	}
+
+	@Override
+	public String getDescription() {
+
+		if (direction == Direction.IMPORT) {
+			return Msg.get(CONVERT_IMPORT_JOB_MSG, new File(sourcePath).getName(), vmName);
+		}
+		return Msg.get(CONVERT_EXPORT_JOB_MSG, new File(sourcePath).getName(), targetPath, getFormat(targetPath));
+	}
+
+	/**
+	 * @return the direction (import or export)
+	 */
+	public Direction getDirection() {
+
+		return direction;
+	}
+
+	/**
+	 * @param vm
+	 * @return the path of the disk (hda) of a VM
+	 */
+	private static String getDiskPath(VM vm) {
+
+		return Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator + vm.getDriveHdaName();
+	}
+
+	/**
+	 * Gets the format of an image by its file extension.
+	 *
+	 * @param path
+	 * @return the qemu-img format or null, if the extension is unknown
+	 */
+	public static String getFormat(String path) {
+
+		String name = new File(path).getName();
+		int index = name.lastIndexOf('.');
+		return index < 0 ? null : FORMAT_MAP.get(name.substring(index + 1).toLowerCase());
+	}
+
+	/**
+	 * @return the path of the converted image
+	 */
+	public String getTargetPath() {
+
+		return targetPath;
+	}
+
+	/**
+	 * Stores the job into properties (DiskJobQueue), see fromProperties().
+	 *
+	 * @param properties
+	 * @param prefix			the prefix of the keys of the job
+	 */
+	public void toProperties(Properties properties, String prefix) {
+
+		properties.setProperty(prefix + DIRECTION_KEY, direction.name());
+		properties.setProperty(prefix + SOURCE_KEY, sourcePath);
+		properties.setProperty(prefix + TARGET_KEY, targetPath);
+		if (direction == Direction.IMPORT) {
+			properties.setProperty(prefix + VM_NAME_KEY, vmName);
+		} else {
+			properties.setProperty(prefix + VM_ID_KEY, vm.getId());
+		}
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The direction of a conversion.
+	 */
+	public enum Direction {
+
+		IMPORT,			// an image becomes the disk of a new VM
+		EXPORT;			// the disk of a VM is written to an image
+	}
+}
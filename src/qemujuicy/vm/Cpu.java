@@ -23,6 +23,7 @@
 package qemujuicy.vm;
 
 import java.util.EnumSet;
+import java.util.HashMap;
 
 /**
  * Enumeration of CPU count (NUMAs) used by QEMU. 
@@ -50,6 +51,7 @@ public enum Cpu {
 	
 	public static final EnumSet<Cpu> ALL = EnumSet.allOf(Cpu.class);
 	public static final Cpu[] ARRAY = ALL.toArray(new Cpu[0]);
+	private static final HashMap<String, Integer> INDEX_MAP = createIndexMap();	// count -> index
 	
 	private String count;
 	private int cpus;
@@ -65,6 +67,18 @@ public enum Cpu {
 		}
 	}
 
+	/**
+	 * @return the map of the counts to the JComboBox selection index
+	 */
+	private static HashMap<String, Integer> createIndexMap() {
+		
+		HashMap<String, Integer> indexMap = new HashMap<>();
+		for (int i = 0; i < ARRAY.length; i++) {
+			indexMap.put(ARRAY[i].count, i);
+		}
+		return indexMap;
+	}
+
 	/**
 	 * Finds the JComboBox selection index for the number of CPUS of a VM.
 	 * 
@@ -79,12 +93,7 @@ public enum Cpu {
 			return ARRAY.length - 1;
 		}
 		String cpu = "" + cpus;
-		for (int i = 0; i < ARRAY.length; i++) {
-			if (ARRAY[i].count.equals(cpu)) {
-				return i;
-			}
-		}
-		return -1;
+		return INDEX_MAP.getOrDefault(cpu, -1);
 	}
 
 	/**
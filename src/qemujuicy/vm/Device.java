@@ -90,9 +90,9 @@ public enum Device {
 		}
 		
 		
-		path erfragen
+//		path erfragen
 		
-		enabler für die device tab buttons
+//		enabler für die device tab buttons
 		
 		
 //		vm.addDevice();
@@ -138,6 +138,14 @@ public enum Device {
 		return propertyName;
 	}
 	
+	/**
+	 * @return true, if the device is a disk drive (hda, hdb, hdd)
+	 */
+	public boolean isDrive() {
+		
+		return this == HDA || this == HDB || this == HDD;
+	}
+	
 	/**
 	 * @return true, if the device is not set in the VM, false otherwise
 	 */
@@ -0,0 +1,344 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.Message.*;
+
+/**
+ * A long-running job on a disk image (compaction, conversion), executed by a DiskJobQueue.
+ *
+ * <p>Subclasses implement execute(), usually by running qemu-img with runQemuImg(): the progress
+ * of "qemu-img -p" is parsed into the progress of the job, qemu-img runs with the configured I/O
+ * priority (DISK_JOB_IO_PRIORITY, ionice on Linux).</p>
+ */
+public abstract class DiskJob {
+
+	public static final Pattern PROGRESS_PATTERN = Pattern.compile("\\((\\d+(?:\\.\\d+)?)/100%\\)");
+
+	private static final AtomicLong nextId = new AtomicLong();
+
+	protected VM vm;
+	private long id = nextId.incrementAndGet();
+	private volatile State state = State.QUEUED;
+	private volatile double percent;
+	private volatile String error;
+	private volatile long startMillis;
+	private volatile long endMillis;
+	private volatile boolean isCancelRequested;
+	private volatile CompletableFuture<ProcessExecutor> processFuture;	// the running qemu-img or null
+	private DiskJobQueue queue;					// set by DiskJobQueue.submit()
+
+	/**
+	 * Construction.
+	 *
+	 * @param vm			the VM of the disk or null
+	 */
+	protected DiskJob(VM vm) {
+
+		this.vm = vm;
+	}
+
+	/**
+	 * Cancels the running job (called by the queue): qemu-img is killed, the job fails with a 
+	 * CancellationException, subclasses remove their partial output then.
+	 */
+	void cancel() {
+
+		isCancelRequested = true;
+		CompletableFuture<ProcessExecutor> future = processFuture;
+		if (future != null) {
+			future.cancel(false);			// ProcessExecutor kills the process
+		}
+	}
+
+	/**
+	 * Executes the job, called by the queue on start.
+	 *
+	 * @return the future, completing with true or exceptionally (the reason) on failure
+	 */
+	protected abstract CompletableFuture<Boolean> execute();
+
+	/**
+	 * @return the description of the job (the operation and the disk)
+	 */
+	public abstract String getDescription();
+
+	/**
+	 * @return the duration in milliseconds, up to now if still running, 0 if not started
+	 */
+	public long getDurationMillis() {
+
+		if (startMillis == 0) {
+			return 0;
+		}
+		return (endMillis > 0 ? endMillis : System.currentTimeMillis()) - startMillis;
+	}
+
+	/**
+	 * @return the reason of the failure or null
+	 */
+	public String getError() {
+
+		return error;
+	}
+
+	/**
+	 * @return the id (the order of creation)
+	 */
+	public long getId() {
+
+		return id;
+	}
+
+	/**
+	 * Gets the I/O priority prefix for a command, according to DISK_JOB_IO_PRIORITY.
+	 * Only Linux (ionice) is supported, the prefix is empty otherwise.
+	 *
+	 * @return the prefix, e.g. ["ionice", "-c3"], may be empty
+	 */
+	public static List<String> getIoPriorityPrefix() {
+
+		String priority = Main.getProperty(AppProperties.DISK_JOB_IO_PRIORITY);
+		if (!OSType.isLinux() || priority == null || priority.equals("normal")) {
+			return List.of();
+		}
+		for (String path : new String[] { "/usr/bin/ionice", "/bin/ionice" }) {
+			if (new File(path).canExecute()) {
+				return priority.equals("low") ? List.of(path, "-c2", "-n7") : List.of(path, "-c3");
+			}
+		}
+		Logger.warning("DiskJob: ionice not found, I/O priority '" + priority + "' ignored");
+		return List.of();
+	}
+
+	/**
+	 * @return the progress in percent (0.0 - 100.0)
+	 */
+	public double getPercent() {
+
+		return percent;
+	}
+
+	/**
+	 * The priority of the job within the queue, jobs with a higher priority start first.
+	 * It must not change while the job is queued.
+	 *
+	 * @return the priority, 0 by default
+	 */
+	public double getPriority() {
+
+		return 0;
+	}
+
+	/**
+	 * @return the state
+	 */
+	public State getState() {
+
+		return state;
+	}
+
+	/**
+	 * @return the VM of the disk or null
+	 */
+	public VM getVm() {
+
+		return vm;
+	}
+
+	/**
+	 * @return true, if the job has been canceled or is going to be canceled
+	 */
+	public boolean isCancelRequested() {
+
+		return isCancelRequested;
+	}
+
+	/**
+	 * @return true, if the job is done, failed or canceled
+	 */
+	public boolean isFinished() {
+
+		return state != State.QUEUED && state != State.RUNNING;
+	}
+
+	/**
+	 * Runs qemu-img with the I/O priority prefix, parsing its progress (option "-p") into the
+	 * progress of this job.
+	 *
+	 * @param args			the arguments of qemu-img
+	 * @return the future, completing exceptionally if qemu-img fails or the job is canceled
+	 */
+	protected CompletableFuture<ProcessExecutor> runQemuImg(List<String> args) {
+
+		if (isCancelRequested) {
+			return CompletableFuture.failedFuture(new CancellationException());
+		}
+		ArrayList<String> cmdList = new ArrayList<>(getIoPriorityPrefix());
+		cmdList.add(Qemu.getQemuImg());
+		cmdList.addAll(args);
+		String[] cmd = cmdList.toArray(new String[0]);
+		String cmdString = String.join(" ", cmd);
+		Logger.info("executing: " + cmdString);
+		if (vm != null) {
+			vm.verbose("executing: " + cmdString);
+		}
+		processFuture = ProcessExecutor.execute(0, (line, isStdErr) -> {
+			Matcher matcher = PROGRESS_PATTERN.matcher(line);
+			if (matcher.find()) {
+				setPercent(Double.parseDouble(matcher.group(1)));
+			} else if (!line.isBlank() && vm != null) {
+				vm.verbose(line);
+			}
+		}, cmd);
+		if (isCancelRequested) {
+			processFuture.cancel(false);			// canceled while starting
+		}
+		return processFuture.thenApply(procExec -> {
+			if (procExec.getExitValue() != 0) {
+				throw new CompletionException(new IOException("qemu-img: exit value "
+						+ procExec.getExitValue() + ": " + procExec.getErrorOutput().trim()));
+			}
+			return procExec;
+		});
+	}
+
+	/**
+	 * Sets the progress and notifies the listeners of the queue.
+	 *
+	 * @param percent
+	 */
+	protected void setPercent(double percent) {
+
+		if (percent != this.percent) {
+			this.percent = percent;
+			if (queue != null) {
+				queue.notifyListeners(this, false);
+			}
+		}
+	}
+
+	/**
+	 * @param queue			the queue executing this job
+	 */
+	void setQueue(DiskJobQueue queue) {
+
+		this.queue = queue;
+	}
+
+	/**
+	 * Starts the job (called by the queue), the state changes to RUNNING and finally to DONE,
+	 * FAILED or CANCELED.
+	 *
+	 * @return the future, completing when the job is finished (never exceptionally)
+	 */
+	CompletableFuture<Boolean> start() {
+
+		startMillis = System.currentTimeMillis();
+		state = State.RUNNING;
+		Logger.info("DiskJob: started: " + getDescription());
+		CompletableFuture<Boolean> future;
+		try {
+			future = execute();
+		} catch (RuntimeException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+		setState(State.RUNNING);			// notified after execute(), that may mark the disk busy
+		return future.handle((isDone, e) -> {
+			endMillis = System.currentTimeMillis();
+			processFuture = null;
+			if (e != null && isCancelRequested) {
+				Logger.info("DiskJob: canceled: " + getDescription());
+				setState(State.CANCELED);
+				return false;
+			}
+			if (e != null) {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				error = cause.getMessage();
+				Logger.error("DiskJob: failed: " + getDescription() + ": " + error);
+				setState(State.FAILED);
+				return false;
+			}
+			Logger.info("DiskJob: done: " + getDescription() + " (" + getDurationMillis() + " ms)");
+			percent = 100;
+			setState(State.DONE);
+			return true;
+		});
+	}
+
+	/**
+	 * Sets the state and notifies the listeners of the queue.
+	 *
+	 * @param state
+	 */
+	protected void setState(State state) {
+
+		this.state = state;
+		if (queue != null) {
+			queue.notifyListeners(this, true);
+		}
+	}
+
+	@Override
+	public String toString() {
+
+		return getDescription();
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The states of a job.
+	 */
+	public enum State {
+
+		QUEUED(JOB_QUEUED_MSG),
+		RUNNING(JOB_RUNNING_MSG),
+		DONE(JOB_DONE_MSG),
+		FAILED(JOB_FAILED_MSG),
+		CANCELED(JOB_CANCELED_MSG);
+
+		private Message message;
+
+		State(Message message) {
+
+			this.message = message;
+		}
+
+		/**
+		 * @return the localized name of the state
+		 */
+		public String getDisplayName() {
+
+			return Msg.get(message);
+		}
+	}
+}
@@ -0,0 +1,353 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+/**
+ * The queue of the disk jobs: the queued jobs are started by priority (then by creation),
+ * at most DISK_JOB_WORKERS jobs run at the same time.
+ *
+ * <p>The unfinished conversions (ConvertJob) are persisted into JOBS_FILE, they are restarted
+ * by restore() after a restart of the application.</p>
+ */
+public class DiskJobQueue implements PersistenceService.Storable {
+
+	public static final String JOBS_FILE = "disk-jobs.xml";
+
+	private static final String COUNT_KEY = "count";
+	private static final String JOB_KEY = "job.";		// the index and a dot are appended
+
+	private final PriorityQueue<DiskJob> pendingQueue = new PriorityQueue<>(
+			Comparator.comparingDouble(DiskJob::getPriority).reversed().thenComparingLong(DiskJob::getId));
+	private final ArrayList<DiskJob> jobList = new ArrayList<>();		// all jobs, until removed
+	private final List<DiskJobListener> listenerList = new CopyOnWriteArrayList<>();
+	private int runningCount;
+	private String pathname;
+	private List<ConvertJob> shutdownList;		// the conversions interrupted by shutdown()
+
+	/**
+	 * Construction.
+	 *
+	 * @param dirPath			the directory of JOBS_FILE (ending with a separator)
+	 */
+	public DiskJobQueue(String dirPath) {
+
+		pathname = dirPath + JOBS_FILE;
+	}
+
+	/**
+	 * Adds a listener for state changes and progress of the jobs.
+	 *
+	 * @param listener
+	 */
+	public void addListener(DiskJobListener listener) {
+
+		listenerList.add(listener);
+	}
+
+	/**
+	 * Cancels a job: a queued job is removed from the queue, a running job is stopped and
+	 * removes its partial output. A finished job is not changed.
+	 *
+	 * @param job
+	 */
+	public void cancel(DiskJob job) {
+
+		synchronized (this) {
+			if (job.isFinished()) {
+				return;
+			}
+			if (!pendingQueue.remove(job)) {
+				job.cancel();				// running
+				return;
+			}
+		}
+		job.cancel();
+		Logger.info("DiskJobQueue: canceled: " + job.getDescription());
+		job.setState(DiskJob.State.CANCELED);
+		markDirty(job);
+	}
+
+	/**
+	 * Finds a queued or running job of a VM.
+	 *
+	 * @param vm
+	 * @return the job or null
+	 */
+	public synchronized DiskJob findActiveJob(VM vm) {
+
+		for (DiskJob job : jobList) {
+			if (job.getVm() == vm && !job.isFinished()) {
+				return job;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a copy of the list of all jobs (queued, running and finished), oldest first
+	 */
+	public synchronized List<DiskJob> getJobs() {
+
+		return new ArrayList<>(jobList);
+	}
+
+	/**
+	 * @return the path of JOBS_FILE
+	 */
+	@Override
+	public String getPathname() {
+
+		return pathname;
+	}
+
+	/**
+	 * @return the number of jobs running at the same time (DISK_JOB_WORKERS, at least 1)
+	 */
+	public static int getWorkers() {
+
+		return Math.max(1, Main.getPropertyInt(AppProperties.DISK_JOB_WORKERS));
+	}
+
+	/**
+	 * Called if a job has finished, starts the next jobs.
+	 *
+	 * @param job
+	 */
+	private synchronized void jobFinished(DiskJob job) {
+
+		runningCount--;
+		markDirty(job);
+		startJobs();
+	}
+
+	/**
+	 * Marks JOBS_FILE dirty, if a job is persisted.
+	 *
+	 * @param job
+	 */
+	private void markDirty(DiskJob job) {
+
+		if (job instanceof ConvertJob && shutdownList == null) {
+			PersistenceService.markDirty(this);
+		}
+	}
+
+	/**
+	 * Notifies the listeners, called by the jobs.
+	 *
+	 * @param job
+	 * @param isStateChange		true, if the state has changed, false for progress
+	 */
+	void notifyListeners(DiskJob job, boolean isStateChange) {
+
+		for (DiskJobListener listener : listenerList) {
+			try {
+				listener.jobChanged(job, isStateChange);
+			} catch (RuntimeException e) {
+				Logger.error("DiskJobQueue: listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Restores the conversions persisted in JOBS_FILE and queues them again, they start
+	 * from the beginning.
+	 *
+	 * @return the number of restored jobs
+	 */
+	public int restore() {
+
+		File file = new File(pathname);
+		if (!file.exists()) {
+			return 0;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.loadFromXML(in);
+		} catch (IOException e) {
+			Logger.error("DiskJobQueue: cannot read " + pathname, e);
+			return 0;
+		}
+		ArrayList<ConvertJob> restoredList = new ArrayList<>();
+		int count = Integer.parseInt(properties.getProperty(COUNT_KEY, "0"));
+		for (int i = 0; i < count; i++) {
+			try {
+				ConvertJob job = ConvertJob.fromProperties(properties, JOB_KEY + i + ".");
+				if (job != null) {
+					restoredList.add(job);
+				}
+			} catch (RuntimeException e) {
+				Logger.error("DiskJobQueue: cannot restore job " + i + " of " + pathname, e);
+			}
+		}
+		Logger.info("DiskJobQueue: " + restoredList.size() + " conversion(s) restored");
+		submitAll(restoredList);
+		return restoredList.size();
+	}
+
+	/**
+	 * Removes the finished jobs from the list of jobs.
+	 */
+	public synchronized void removeFinished() {
+
+		jobList.removeIf(DiskJob::isFinished);
+	}
+
+	/**
+	 * Removes a listener.
+	 *
+	 * @param listener
+	 */
+	public void removeListener(DiskJobListener listener) {
+
+		listenerList.remove(listener);
+	}
+
+	/**
+	 * Stops the queue on exit: the running jobs are canceled (qemu-img is killed), the unfinished
+	 * conversions remain persisted and are restored on the next start. Call PersistenceService.flushNow()
+	 * afterwards.
+	 */
+	public void shutdown() {
+
+		List<DiskJob> runningList = new ArrayList<>();
+		synchronized (this) {
+			if (shutdownList != null) {
+				return;
+			}
+			shutdownList = new ArrayList<>();
+			for (DiskJob job : jobList) {
+				if (!job.isFinished() && job instanceof ConvertJob) {
+					shutdownList.add((ConvertJob) job);
+				}
+				if (job.getState() == DiskJob.State.RUNNING) {
+					runningList.add(job);
+				}
+			}
+			pendingQueue.clear();
+		}
+		PersistenceService.markDirty(this);
+		for (DiskJob job : runningList) {
+			job.cancel();
+		}
+	}
+
+	/**
+	 * Starts queued jobs, as long as there are free workers.
+	 */
+	private synchronized void startJobs() {
+
+		int workers = getWorkers();
+		while (runningCount < workers && !pendingQueue.isEmpty()) {
+			DiskJob job = pendingQueue.poll();
+			runningCount++;
+			// start asynchronously: a job failing at once must not recurse into this method
+			CompletableFuture.runAsync(() -> job.start().thenRun(() -> jobFinished(job)));
+		}
+	}
+
+	/**
+	 * Submits a job, it is started as soon as a worker is free and there is no job of higher priority.
+	 *
+	 * @param job
+	 */
+	public void submit(DiskJob job) {
+
+		submitAll(List.of(job));
+	}
+
+	/**
+	 * Submits jobs at once, they are started by priority.
+	 *
+	 * @param jobs
+	 */
+	public void submitAll(List<? extends DiskJob> jobs) {
+
+		synchronized (this) {
+			for (DiskJob job : jobs) {
+				job.setQueue(this);
+				jobList.add(job);
+				pendingQueue.add(job);
+			}
+		}
+		for (DiskJob job : jobs) {
+			Logger.info("DiskJobQueue: queued: " + job.getDescription() + " (priority " + job.getPriority() + ")");
+			notifyListeners(job, true);
+			markDirty(job);
+		}
+		startJobs();
+	}
+
+	/**
+	 * Stores the unfinished conversions into JOBS_FILE, an empty file if there are none.
+	 */
+	@Override
+	public void storeToXML() {
+
+		Properties properties = new Properties();
+		List<ConvertJob> convertList;
+		synchronized (this) {
+			convertList = shutdownList;
+			if (convertList == null) {
+				convertList = new ArrayList<>();
+				for (DiskJob job : jobList) {
+					if (!job.isFinished() && job instanceof ConvertJob) {
+						convertList.add((ConvertJob) job);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < convertList.size(); i++) {
+			convertList.get(i).toProperties(properties, JOB_KEY + i + ".");
+		}
+		properties.setProperty(COUNT_KEY, "" + convertList.size());
+		try {
+			Util.storeToXML(properties, "Disk jobs, Version " + Version.getAsString(), pathname);
+		} catch (IOException e) {
+			Logger.error("DiskJobQueue: cannot store " + pathname, e);
+		}
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * A listener for the jobs of a queue. It is called on the threads of the jobs, and must not block.
+	 */
+	public interface DiskJobListener {
+
+		/**
+		 * Called if the state or the progress of a job has changed.
+		 *
+		 * @param job
+		 * @param isStateChange		true, if the state has changed (queued, started, finished),
+		 * 							false for progress
+		 */
+		void jobChanged(DiskJob job, boolean isStateChange);
+	}
+}
@@ -0,0 +1,504 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+/**
+ * The performance profile of a drive: the bus of the guest device, the host cache and I/O modes,
+ * discard and zero detection, a dedicated iothread and the number of virtio queues.
+ *
+ * <p>A profile is stored per drive in the VM properties as a spec like
+ * "bus=virtio-blk,cache=none,aio=io_uring,discard=unmap,detect-zeroes=unmap,iothread=on,queues=auto"
+ * (DRIVE_HDA_PROFILE), an empty spec is the profile of older releases: a plain -drive (emulated IDE,
+ * the defaults of QEMU). The other profiles are emitted as -blockdev/-device pairs.</p>
+ *
+ * <p>A profile is adapted to the host before use (adaptTo()): io_uring needs a Linux host and an
+ * emulator linked with liburing, bypassing the host cache needs a file system supporting direct
+ * I/O (not some network file systems). Otherwise aio=threads and cache=writeback are used.</p>
+ */
+public class DiskProfile {
+
+	public static final String IOTHREAD_PREFIX = "iothread-";	// the id of the iothread of a drive
+	public static final String FILE_NODE_SUFFIX = "-file";		// the node name of the protocol layer
+	public static final int ELF_SCAN_SIZE = 8 * 1024 * 1024;	// the libraries are listed at the start
+
+	private static final byte[] LIBURING = "liburing.so".getBytes(StandardCharsets.US_ASCII);
+	private static final Map<String, Boolean> ioUringMap = new ConcurrentHashMap<>();		// by emulator fingerprint
+	private static final Map<String, Boolean> directIoMap = new ConcurrentHashMap<>();	// by directory
+	private static final OpenOption DIRECT = findDirectOption();			// null, if not available
+
+	private Bus bus = Bus.IDE;
+	private String cache = "writeback";			// none or writeback
+	private String aio = "threads";				// io_uring, native or threads
+	private boolean isDiscard;					// discard=unmap
+	private String detectZeroes = "off";		// off, on or unmap
+	private boolean isIothread;
+	private int queues;							// virtio queues, 0: the number of vCPUs
+	private boolean isLegacy;					// a plain -drive
+
+	/**
+	 * Construction, use parse().
+	 */
+	private DiskProfile() {
+	}
+
+	/**
+	 * Adapts the profile to the host: the aio mode falls back to threads, if the host or the
+	 * emulator does not support it (io_uring: Linux and liburing, native: Linux or Windows),
+	 * the host cache is used, if the file system of the disk does not support direct I/O.
+	 *
+	 * @param qemuCmd		the emulator
+	 * @param diskPath
+	 * @return the adapted profile
+	 */
+	public DiskProfile adaptTo(String qemuCmd, String diskPath) {
+
+		if (isLegacy) {
+			return this;
+		}
+		boolean isAioSupported;
+		switch (aio) {
+		case "io_uring":
+			isAioSupported = isIoUringSupported(qemuCmd);
+			break;
+		case "native":
+			isAioSupported = OSType.isLinux() || OSType.isWindows();
+			break;
+		default:
+			isAioSupported = true;
+			break;
+		}
+		return adaptTo(isAioSupported, !cache.equals("none") || isDirectIoSupported(diskPath));
+	}
+
+	/**
+	 * @param isAioSupported		true, if the aio mode is supported
+	 * @param isDirectIo			true, if direct I/O (cache=none) is supported
+	 * @return the adapted profile (a copy)
+	 */
+	DiskProfile adaptTo(boolean isAioSupported, boolean isDirectIo) {
+
+		DiskProfile profile = new DiskProfile();
+		profile.bus = bus;
+		profile.cache = cache.equals("none") && !isDirectIo ? "writeback" : cache;
+		profile.aio = isAioSupported ? aio : "threads";
+		profile.isDiscard = isDiscard;
+		profile.detectZeroes = detectZeroes;
+		profile.isIothread = isIothread;
+		profile.queues = queues;
+		profile.isLegacy = isLegacy;
+		return profile;
+	}
+
+	/**
+	 * @param value
+	 * @param validValues
+	 * @return the value, if valid
+	 * @throws IllegalArgumentException if the value is not valid
+	 */
+	private static String check(String value, String... validValues) {
+
+		if (!Arrays.asList(validValues).contains(value)) {
+			throw new IllegalArgumentException("invalid value");
+		}
+		return value;
+	}
+
+	/**
+	 * Creates the arguments of a drive: a plain -drive for the legacy profile, otherwise an iothread
+	 * (optional), -blockdev for the protocol and the format layer and -device for the guest device.
+	 * A drive of a VM started with -snapshot (the base of linked clones) is emitted as -drive with
+	 * "snapshot=on" instead of -blockdev, -snapshot does not apply to -blockdev.
+	 *
+	 * @param name				the name of the drive (node name), e.g. "hda"
+	 * @param diskPath
+	 * @param cpus				the number of vCPUs of the VM, 0 if not set
+	 * @param isSnapshot		true, to write the changes into a temporary file
+	 * @return the arguments
+	 */
+	public List<String> createArgs(String name, String diskPath, int cpus, boolean isSnapshot) {
+
+		ArrayList<String> argList = new ArrayList<>();
+		if (isLegacy) {
+			argList.add("-drive");
+			argList.add("file=" + diskPath + ",index=0,media=disk");
+			return argList;
+		}
+		String format = getFormat(diskPath);
+		String cacheOption = "cache.direct=" + (cache.equals("none") ? "on" : "off");
+		String discardOption = isDiscard ? ",discard=unmap" : "";
+		if (isIothread && bus != Bus.IDE) {
+			argList.add("-object");
+			argList.add("iothread,id=" + IOTHREAD_PREFIX + name);
+		}
+		if (isSnapshot) {
+			argList.add("-drive");
+			argList.add("if=none,id=" + name + ",file=" + escape(diskPath) + ",format=" + format + ",cache=" + cache
+					+ ",aio=" + getAio() + discardOption + ",detect-zeroes=" + getDetectZeroes() + ",snapshot=on");
+		} else {
+			argList.add("-blockdev");
+			argList.add("driver=file,node-name=" + name + FILE_NODE_SUFFIX + ",filename=" + escape(diskPath)
+					+ "," + cacheOption + ",aio=" + getAio() + discardOption);
+			argList.add("-blockdev");
+			argList.add("driver=" + format + ",node-name=" + name + ",file=" + name + FILE_NODE_SUFFIX
+					+ "," + cacheOption + discardOption + ",detect-zeroes=" + getDetectZeroes());
+		}
+		int queueCount = Math.max(1, queues > 0 ? queues : cpus);
+		String iothread = isIothread ? ",iothread=" + IOTHREAD_PREFIX + name : "";
+		switch (bus) {
+		case VIRTIO_BLK:
+			argList.add("-device");
+			argList.add("virtio-blk-pci,drive=" + name + iothread + ",num-queues=" + queueCount);
+			break;
+		case VIRTIO_SCSI:
+			argList.add("-device");
+			argList.add("virtio-scsi-pci,id=scsi-" + name + iothread + ",num_queues=" + queueCount);
+			argList.add("-device");
+			argList.add("scsi-hd,drive=" + name + ",bus=scsi-" + name + ".0");
+			break;
+		default:
+			argList.add("-device");
+			argList.add("ide-hd,drive=" + name);
+			break;
+		}
+		return argList;
+	}
+
+	/**
+	 * Escapes a value of a QEMU option list (a comma is doubled).
+	 *
+	 * @param value
+	 * @return the escaped value
+	 */
+	private static String escape(String value) {
+
+		return value.replace(",", ",,");
+	}
+
+	/**
+	 * Finds the JDK specific open option for direct I/O: com.sun.nio.file.ExtendedOpenOption.DIRECT
+	 * of the module jdk.unsupported, which may be missing (e.g. a reduced runtime image). It is looked
+	 * up by reflection to keep the dependency in one place.
+	 *
+	 * @return the open option or null, if not available
+	 */
+	private static OpenOption findDirectOption() {
+
+		try {
+			return (OpenOption) Class.forName("com.sun.nio.file.ExtendedOpenOption").getField("DIRECT").get(null);
+		} catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the aio mode, "native" needs the host cache bypassed (cache=none), threads are used otherwise
+	 */
+	private String getAio() {
+
+		return aio.equals("native") && !cache.equals("none") ? "threads" : aio;
+	}
+
+	/**
+	 * @return the bus of the guest device
+	 */
+	public Bus getBus() {
+
+		return bus;
+	}
+
+	/**
+	 * @return the zero detection, "unmap" needs discard=unmap, "on" is used otherwise
+	 */
+	private String getDetectZeroes() {
+
+		return detectZeroes.equals("unmap") && !isDiscard ? "on" : detectZeroes;
+	}
+
+	/**
+	 * @param diskPath
+	 * @return the format of a disk image: qcow2 (by its header) or by its extension, raw by default
+	 */
+	private static String getFormat(String diskPath) {
+
+		if (Qcow2Image.get(diskPath) != null) {
+			return "qcow2";
+		}
+		String format = ConvertJob.getFormat(diskPath);
+		return format != null ? format : "raw";
+	}
+
+	/**
+	 * @param vm
+	 * @return the profile of the disk (hda) of a VM
+	 */
+	public static DiskProfile getHdaProfile(VM vm) {
+
+		return parse(vm.getProperty(VMProperties.DRIVE_HDA_PROFILE));
+	}
+
+	/**
+	 * Checks if the file system of a disk supports direct I/O (O_DIRECT), the result is cached
+	 * per directory. Without the open option DIRECT of the JDK the host cache is used.
+	 *
+	 * @param diskPath
+	 * @return true, if supported or unknown (the disk does not exist yet)
+	 */
+	public static boolean isDirectIoSupported(String diskPath) {
+
+		File diskFile = new File(diskPath).getAbsoluteFile();
+		if (!diskFile.isFile()) {
+			return true;
+		}
+		return directIoMap.computeIfAbsent(diskFile.getParent(), dir -> {
+			if (DIRECT == null) {
+				Logger.info("DiskProfile: the JDK cannot check direct I/O, using the host cache");
+				return false;
+			}
+			try {
+				FileChannel.open(diskFile.toPath(), StandardOpenOption.READ, DIRECT).close();
+				return true;
+			} catch (UnsupportedOperationException e) {
+				return true;				// the JDK cannot check it on this platform, QEMU can
+			} catch (IOException e) {
+				Logger.info("DiskProfile: no direct I/O in " + dir + ", using the host cache: " + e.getMessage());
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Checks if an emulator supports io_uring: a Linux host and an emulator linked with liburing,
+	 * the result is cached per emulator binary.
+	 *
+	 * @param qemuCmd
+	 * @return true, if supported
+	 */
+	public static boolean isIoUringSupported(String qemuCmd) {
+
+		String fingerprint = OSType.isLinux() ? QemuProbe.fingerprint(qemuCmd) : null;
+		if (fingerprint == null) {
+			return false;
+		}
+		return ioUringMap.computeIfAbsent(fingerprint, key -> {
+			File file = QemuProbe.resolve(qemuCmd);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), ELF_SCAN_SIZE));
+				for (int i = 0; i <= buffer.limit() - LIBURING.length; i++) {
+					int j = 0;
+					while (j < LIBURING.length && buffer.get(i + j) == LIBURING[j]) {
+						j++;
+					}
+					if (j == LIBURING.length) {
+						return true;
+					}
+				}
+				Logger.info("DiskProfile: " + file + " is not linked with liburing, using aio=threads");
+				return false;
+			} catch (IOException e) {
+				Logger.warning("DiskProfile: cannot read " + file + ": " + e.getMessage());
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * @return true, if the drive is a plain -drive (the defaults of QEMU)
+	 */
+	public boolean isLegacy() {
+
+		return isLegacy;
+	}
+
+	/**
+	 * Parses a spec, unknown keys and invalid values are logged and ignored (the defaults are used).
+	 *
+	 * @param spec		the spec, empty or null for the legacy profile
+	 * @return the profile
+	 */
+	public static DiskProfile parse(String spec) {
+
+		DiskProfile profile = new DiskProfile();
+		if (spec == null || spec.isBlank()) {
+			profile.isLegacy = true;
+			return profile;
+		}
+		for (String option : spec.split(",")) {
+			int index = option.indexOf('=');
+			String key = index < 0 ? option.trim() : option.substring(0, index).trim();
+			String value = index < 0 ? "" : option.substring(index + 1).trim();
+			try {
+				switch (key) {
+				case "bus":
+					profile.bus = Bus.of(value);
+					break;
+				case "cache":
+					profile.cache = check(value, "none", "writeback");
+					break;
+				case "aio":
+					profile.aio = check(value, "io_uring", "native", "threads");
+					break;
+				case "discard":
+					profile.isDiscard = check(value, "unmap", "ignore").equals("unmap");
+					break;
+				case "detect-zeroes":
+					profile.detectZeroes = check(value, "off", "on", "unmap");
+					break;
+				case "iothread":
+					profile.isIothread = check(value, "on", "off").equals("on");
+					break;
+				case "queues":
+					profile.queues = value.equals("auto") ? 0 : Integer.parseInt(value);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown key");
+				}
+			} catch (IllegalArgumentException e) {
+				Logger.warning("DiskProfile: '" + option + "' ignored in '" + spec + "': " + e.getMessage());
+			}
+		}
+		return profile;
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The bus of the guest device of a drive.
+	 */
+	public enum Bus {
+
+		IDE("ide"),
+		VIRTIO_BLK("virtio-blk"),
+		VIRTIO_SCSI("virtio-scsi");
+
+		private String spec;
+
+		Bus(String spec) {
+
+			this.spec = spec;
+		}
+
+		/**
+		 * @param spec		the name within a profile spec
+		 * @return the bus
+		 * @throws IllegalArgumentException if unknown
+		 */
+		public static Bus of(String spec) {
+
+			for (Bus bus : values()) {
+				if (bus.spec.equals(spec)) {
+					return bus;
+				}
+			}
+			throw new IllegalArgumentException("unknown bus");
+		}
+	}
+
+	/**
+	 * The profiles selectable in the VM tab, a spec set otherwise (edited in the VM file) is "custom".
+	 */
+	public enum Preset {
+
+		COMPATIBLE("Compatible (IDE, QEMU defaults)", ""),
+		VIRTIO_BLK("Fast: virtio-blk, iothread",
+				"bus=virtio-blk,cache=none,aio=io_uring,discard=unmap,detect-zeroes=unmap,iothread=on,queues=auto"),
+		VIRTIO_SCSI("Fast: virtio-scsi, iothread",
+				"bus=virtio-scsi,cache=none,aio=io_uring,discard=unmap,detect-zeroes=unmap,iothread=on,queues=auto"),
+		VIRTIO_WRITEBACK("virtio-blk, host cache",
+				"bus=virtio-blk,cache=writeback,aio=threads,discard=unmap,detect-zeroes=unmap,iothread=on,queues=auto"),
+		IDE_DIRECT("IDE, no host cache", "bus=ide,cache=none,aio=native,discard=unmap,detect-zeroes=unmap"),
+		CUSTOM("Custom (VM file)", null),
+		;
+
+		public static final Preset[] ARRAY = values();
+
+		private String name;
+		private String spec;
+
+		/**
+		 * Construction.
+		 *
+		 * @param name		the name to be displayed
+		 * @param spec		the profile spec, null for custom
+		 */
+		Preset(String name, String spec) {
+
+			this.name = name;
+			this.spec = spec;
+		}
+
+		/**
+		 * Finds the JComboBox selection index for the disk profile of a VM.
+		 *
+		 * @param vm
+		 * @return the JComboBox selection index
+		 */
+		public static int findCbxIndexFor(VM vm) {
+
+			String spec = vm.getProperty(VMProperties.DRIVE_HDA_PROFILE).trim();
+			for (int i = 0; i < ARRAY.length; i++) {
+				if (spec.equals(ARRAY[i].spec)) {
+					return i;
+				}
+			}
+			return CUSTOM.ordinal();
+		}
+
+		/**
+		 * @return the name
+		 */
+		public String getName() {
+
+			return name;
+		}
+
+		/**
+		 * @return an array of the preset names
+		 */
+		public static String[] getNameArray() {
+
+			String[] array = new String[ARRAY.length];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = ARRAY[i].name;
+			}
+			return array;
+		}
+
+		/**
+		 * @return the profile spec, null for custom
+		 */
+		public String getSpec() {
+
+			return spec;
+		}
+	}
+}
@@ -0,0 +1,586 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.Message.*;
+
+/**
+ * The library of installation media: the ISO images in the directories INSTALL_MEDIA_DIRS and
+ * INSTALL_DIR (the directory of the last installation).
+ *
+ * <p>A scan reads the ISO9660 primary volume descriptor of new or changed images (memory-mapped):
+ * the volume label, the OS (guessed from the label and the file name) and the size of the volume,
+ * an image shorter than its volume is an incomplete download. The SHA-256 checksum is computed on
+ * demand and compared to a checksum file in the directory of the image (SHA256SUMS, *.sha256, ...).
+ * The results are cached by path, size and modification time in CACHE_FILE, a scan of unchanged
+ * images only lists the directories.</p>
+ */
+public class InstallMediaLibrary implements PersistenceService.Storable {
+
+	public static final String CACHE_FILE = "install-media.xml";
+	public static final int SECTOR_SIZE = 2048;
+	public static final int PVD_SECTOR = 16;				// the first volume descriptor
+	public static final int CHUNK_SIZE = 64 * 1024 * 1024;	// mapped and hashed at once
+	public static final int CHECKSUM_THREADS = 4;			// images hashed in parallel
+
+	private static final String SEPARATOR = "|";
+	// checksum lines: "<hex> *<name>" (sha256sum) or "SHA256 (<name>) = <hex>" (BSD style, Fedora)
+	private static final Pattern SUM_PATTERN = Pattern.compile("^([0-9a-fA-F]{64})\\s+\\*?(.+)$");
+	private static final Pattern BSD_SUM_PATTERN = Pattern.compile("^SHA256 \\((.+)\\) = ([0-9a-fA-F]{64})$");
+	private static final Pattern SUMS_FILE_PATTERN = Pattern.compile("(?i).*(sha256|checksum).*");
+	// the OS by volume label or file name, the first match wins
+	private static final Object[][] OS_PATTERNS = {
+			{ Pattern.compile("(?i)ubuntu|kubuntu|xubuntu"), VM.OSType.UBUNTU },
+			{ Pattern.compile("(?i)linux.?mint"), VM.OSType.MINT },
+			{ Pattern.compile("(?i)debian"), VM.OSType.DEBIAN },
+			{ Pattern.compile("(?i)fedora"), VM.OSType.FEDORA },
+			{ Pattern.compile("(?i)rhel|red.?hat|centos|rocky|alma"), VM.OSType.RHEL },
+			{ Pattern.compile("(?i)opensuse|suse"), VM.OSType.OPENSUSE },
+			{ Pattern.compile("(?i)^arch|archlinux"), VM.OSType.ARCH },
+			{ Pattern.compile("(?i)freebsd|openbsd|netbsd|dragonfly"), VM.OSType.BSD },
+			{ Pattern.compile("(?i)minix"), VM.OSType.MINIX },
+			{ Pattern.compile("(?i)solaris|^sol_|openindiana"), VM.OSType.SOLARIS },
+			{ Pattern.compile("(?i)^(cccoma|cpba|ccsa|ssscfre|sss_|esd-iso|irm_|grmc|j[mc]_)|win(dows)?[ _-]?\\d"),
+					VM.OSType.WINDOWS },
+			{ Pattern.compile("(?i)linux"), VM.OSType.LINUX },
+	};
+
+	private static final ExecutorService executor = Executors.newFixedThreadPool(CHECKSUM_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "installMedia");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// the read ahead of the checksum tasks: a pool of its own, a checksum task waits for its read ahead
+	private static final ExecutorService prefetchExecutor = Executors.newFixedThreadPool(CHECKSUM_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "installMediaPrefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private String pathname;
+	private final TreeMap<String, Medium> mediumMap = new TreeMap<>();		// path -> medium
+	private final ConcurrentHashMap<String, CompletableFuture<Medium>> verifyMap = new ConcurrentHashMap<>();
+
+	/**
+	 * Construction, loads the cache.
+	 *
+	 * @param dirPath			the directory of CACHE_FILE (ending with a separator)
+	 */
+	public InstallMediaLibrary(String dirPath) {
+
+		pathname = dirPath + CACHE_FILE;
+		load();
+	}
+
+	/**
+	 * Computes the SHA-256 checksum of a file: the file is mapped chunk by chunk, the next chunk
+	 * is loaded (read ahead, by prefetchExecutor) in parallel while the current chunk is hashed.
+	 *
+	 * @param medium
+	 * @return the checksum (hex)
+	 * @throws IOException
+	 */
+	private static String computeSha256(Medium medium) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		try (FileChannel channel = FileChannel.open(Paths.get(medium.path), StandardOpenOption.READ)) {
+			long size = channel.size();
+			CompletableFuture<MappedByteBuffer> next = mapChunk(channel, 0, size);
+			for (long position = 0; position < size; position += CHUNK_SIZE) {
+				MappedByteBuffer chunk = next.join();
+				next = mapChunk(channel, position + CHUNK_SIZE, size);
+				digest.update(chunk);
+				medium.hashedBytes = Math.min(size, position + CHUNK_SIZE);
+			}
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	/**
+	 * Detects the OS of an image by its volume label, by its file name otherwise.
+	 *
+	 * @param volumeLabel
+	 * @param filename
+	 * @return the OS or null, if unknown
+	 */
+	public static VM.OSType detectOs(String volumeLabel, String filename) {
+
+		for (String text : new String[] { volumeLabel, filename }) {
+			for (Object[] osPattern : OS_PATTERNS) {
+				if (text != null && ((Pattern) osPattern[0]).matcher(text).find()) {
+					return (VM.OSType) osPattern[1];
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the expected checksum of an image in the checksum files of its directory.
+	 *
+	 * @param isoFile
+	 * @return the checksum (lower case hex) or null, if there is none
+	 */
+	public static String findExpectedSha256(File isoFile) {
+
+		File[] sumsFiles = isoFile.getParentFile().listFiles(file -> file.isFile() && file.length() < 1024 * 1024
+				&& SUMS_FILE_PATTERN.matcher(file.getName()).matches());
+		if (sumsFiles == null) {
+			return null;
+		}
+		String name = isoFile.getName();
+		for (File sumsFile : sumsFiles) {
+			try {
+				List<String> lineList = java.nio.file.Files.readAllLines(sumsFile.toPath(), StandardCharsets.ISO_8859_1);
+				for (String line : lineList) {
+					line = line.trim();
+					Matcher matcher = SUM_PATTERN.matcher(line);
+					if (matcher.matches() && new File(matcher.group(2).trim()).getName().equals(name)) {
+						return matcher.group(1).toLowerCase();
+					}
+					matcher = BSD_SUM_PATTERN.matcher(line);
+					if (matcher.matches() && new File(matcher.group(1)).getName().equals(name)) {
+						return matcher.group(2).toLowerCase();
+					}
+				}
+				if (sumsFile.getName().equalsIgnoreCase(name + ".sha256") && lineList.size() > 0
+						&& lineList.get(0).trim().matches("[0-9a-fA-F]{64}")) {
+					return lineList.get(0).trim().toLowerCase();		// the checksum only
+				}
+			} catch (IOException e) {
+				Logger.warning("InstallMediaLibrary: cannot read " + sumsFile + ": " + e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param path
+	 * @return the medium of an image (scanned before) or null
+	 */
+	public synchronized Medium get(String path) {
+
+		return mediumMap.get(path);
+	}
+
+	/**
+	 * @return the directories of the library: INSTALL_MEDIA_DIRS and INSTALL_DIR, without duplicates
+	 */
+	public static List<File> getDirectories() {
+
+		LinkedHashSet<File> dirSet = new LinkedHashSet<>();
+		String dirs = Main.getProperty(AppProperties.INSTALL_MEDIA_DIRS) + File.pathSeparator
+				+ Main.getProperty(AppProperties.INSTALL_DIR);
+		for (String dir : dirs.split(Pattern.quote(File.pathSeparator))) {
+			if (!dir.isBlank() && new File(dir.trim()).isDirectory()) {
+				dirSet.add(new File(dir.trim()).getAbsoluteFile());
+			}
+		}
+		return new ArrayList<>(dirSet);
+	}
+
+	/**
+	 * @return the media of the last scan (or of the cache, if not scanned yet), sorted by path
+	 */
+	public synchronized List<Medium> getMedia() {
+
+		return new ArrayList<>(mediumMap.values());
+	}
+
+	/**
+	 * @return the path of CACHE_FILE
+	 */
+	@Override
+	public String getPathname() {
+
+		return pathname;
+	}
+
+	/**
+	 * @param medium
+	 * @return true, if the checksum of an image is being computed
+	 */
+	public boolean isVerifying(Medium medium) {
+
+		return verifyMap.containsKey(medium.path);
+	}
+
+	/**
+	 * Loads the cache, the media are checked by the next scan.
+	 */
+	private void load() {
+
+		File file = new File(pathname);
+		if (!file.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.loadFromXML(in);
+		} catch (IOException e) {
+			Logger.error("InstallMediaLibrary: cannot read " + pathname, e);
+			return;
+		}
+		for (String path : properties.stringPropertyNames()) {
+			try {
+				mediumMap.put(path, Medium.of(path, properties.getProperty(path)));
+			} catch (RuntimeException e) {
+				Logger.warning("InstallMediaLibrary: invalid cache entry ignored: " + path);
+			}
+		}
+	}
+
+	/**
+	 * Maps a chunk of a file and loads it into memory asynchronously.
+	 *
+	 * @param channel
+	 * @param position
+	 * @param size			the size of the file
+	 * @return the future of the chunk, an empty buffer at the end of the file
+	 */
+	private static CompletableFuture<MappedByteBuffer> mapChunk(FileChannel channel, long position, long size) {
+
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				long length = Math.max(0, Math.min(CHUNK_SIZE, size - position));
+				return channel.map(FileChannel.MapMode.READ_ONLY, Math.min(position, size), length).load();
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, prefetchExecutor);
+	}
+
+	/**
+	 * Reads the primary volume descriptor of an ISO9660 image (memory-mapped).
+	 *
+	 * @param medium		the medium, its label, OS and volume size are set
+	 * @throws IOException if the file is not an ISO9660 image
+	 */
+	private static void readVolumeDescriptor(Medium medium) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(medium.path), StandardOpenOption.READ)) {
+			if (channel.size() < (PVD_SECTOR + 1) * SECTOR_SIZE) {
+				throw new IOException("too short for an ISO9660 image");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, PVD_SECTOR * SECTOR_SIZE, SECTOR_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			byte[] identifier = new byte[5];
+			buffer.get(1, identifier);
+			if (buffer.get(0) != 1 || !new String(identifier, StandardCharsets.US_ASCII).equals("CD001")) {
+				throw new IOException("no ISO9660 primary volume descriptor");
+			}
+			byte[] label = new byte[32];
+			buffer.get(40, label);
+			medium.volumeLabel = new String(label, StandardCharsets.US_ASCII).trim().replace(SEPARATOR, "_");
+			long blocks = buffer.getInt(80) & 0xffffffffL;		// both-endian, the little endian part
+			int blockSize = buffer.getShort(128) & 0xffff;
+			medium.volumeSize = blocks * blockSize;
+		}
+		medium.osType = detectOs(medium.volumeLabel, new File(medium.path).getName());
+	}
+
+	/**
+	 * Scans the directories of the library (not recursively) for ISO images. Only new or changed
+	 * images (size, modification time) are read, the others are taken from the cache.
+	 *
+	 * @return the media, sorted by path
+	 */
+	public List<Medium> scan() {
+
+		long startNanos = System.nanoTime();
+		TreeMap<String, Medium> scannedMap = new TreeMap<>();
+		int readCount = 0;
+		for (File dir : getDirectories()) {
+			File[] isoFiles = dir.listFiles(file -> file.isFile() && file.getName().toLowerCase().endsWith(".iso"));
+			if (isoFiles == null) {
+				continue;
+			}
+			for (File isoFile : isoFiles) {
+				String path = isoFile.getPath();
+				Medium medium = get(path);
+				if (medium == null || medium.size != isoFile.length() || medium.lastModified != isoFile.lastModified()) {
+					medium = new Medium(path, isoFile.length(), isoFile.lastModified());
+					try {
+						readVolumeDescriptor(medium);
+					} catch (IOException e) {
+						Logger.warning("InstallMediaLibrary: " + path + ": " + e.getMessage());
+						medium.isInvalid = true;
+					}
+					readCount++;
+				}
+				scannedMap.put(path, medium);
+			}
+		}
+		boolean isChanged;
+		synchronized (this) {
+			isChanged = readCount > 0 || !scannedMap.keySet().equals(mediumMap.keySet());
+			mediumMap.clear();
+			mediumMap.putAll(scannedMap);
+		}
+		if (isChanged) {
+			PersistenceService.markDirty(this);
+		}
+		Logger.info("InstallMediaLibrary: " + scannedMap.size() + " images, " + readCount + " read ("
+				+ (System.nanoTime() - startNanos) / 1000000 + " ms)");
+		return new ArrayList<>(scannedMap.values());
+	}
+
+	/**
+	 * Stores the cache: a line per medium, keyed by its path.
+	 */
+	@Override
+	public void storeToXML() {
+
+		Properties properties = new Properties();
+		for (Medium medium : getMedia()) {
+			properties.setProperty(medium.path, medium.toCacheEntry());
+		}
+		try {
+			Util.storeToXML(properties, "Install media cache, Version " + Version.getAsString(), pathname);
+		} catch (IOException e) {
+			Logger.error("InstallMediaLibrary: cannot store " + pathname, e);
+		}
+	}
+
+	/**
+	 * Verifies the checksum of an image in the background, the checksum is computed only once
+	 * (until the image changes). Concurrent calls for the same image share the computation.
+	 *
+	 * @param medium
+	 * @return the future of the verified medium (its state is set), completing exceptionally
+	 * 			if the image cannot be read
+	 */
+	public CompletableFuture<Medium> verify(Medium medium) {
+
+		if (medium.sha256 != null) {
+			medium.expectedSha256 = findExpectedSha256(new File(medium.path));		// may be added later
+			return CompletableFuture.completedFuture(medium);
+		}
+		return verifyMap.computeIfAbsent(medium.path, path -> CompletableFuture.supplyAsync(() -> {
+			long startNanos = System.nanoTime();
+			try {
+				String sha256 = computeSha256(medium);
+				medium.expectedSha256 = findExpectedSha256(new File(medium.path));
+				medium.sha256 = sha256;
+				Logger.info("InstallMediaLibrary: " + medium.path + ": " + medium.getState() + " ("
+						+ (System.nanoTime() - startNanos) / 1000000 + " ms)");
+				PersistenceService.markDirty(this);
+				return medium;
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor).whenComplete((result, e) -> verifyMap.remove(path)));
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * An ISO image of the library.
+	 */
+	public static class Medium {
+
+		private String path;
+		private long size;
+		private long lastModified;
+		private volatile String volumeLabel = "";
+		private volatile VM.OSType osType;				// null, if unknown
+		private volatile long volumeSize;				// the size of the volume by its descriptor
+		private volatile boolean isInvalid;				// no ISO9660 image
+		private volatile String sha256;					// null, if not computed yet
+		private volatile String expectedSha256;			// of a checksum file, null if none
+		private volatile long hashedBytes;
+
+		/**
+		 * Construction.
+		 *
+		 * @param path
+		 * @param size
+		 * @param lastModified
+		 */
+		Medium(String path, long size, long lastModified) {
+
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return the OS guessed from the volume label or the file name, null if unknown
+		 */
+		public VM.OSType getOsType() {
+
+			return osType;
+		}
+
+		/**
+		 * @return the path of the image
+		 */
+		public String getPath() {
+
+			return path;
+		}
+
+		/**
+		 * @return the progress of the checksum computation in percent
+		 */
+		public double getPercent() {
+
+			return size > 0 ? hashedBytes * 100.0 / size : 100;
+		}
+
+		/**
+		 * @return the SHA-256 checksum or null, if not computed yet
+		 */
+		public String getSha256() {
+
+			return sha256;
+		}
+
+		/**
+		 * @return the size of the image in bytes
+		 */
+		public long getSize() {
+
+			return size;
+		}
+
+		/**
+		 * @return the state of the image (the checks done so far)
+		 */
+		public State getState() {
+
+			if (isInvalid) {
+				return State.INVALID;
+			}
+			if (volumeSize > size) {
+				return State.INCOMPLETE;			// the download has been interrupted
+			}
+			if (sha256 == null) {
+				return State.UNVERIFIED;
+			}
+			if (expectedSha256 == null) {
+				return State.NO_CHECKSUM_FILE;
+			}
+			return sha256.equals(expectedSha256) ? State.VERIFIED : State.CORRUPT;
+		}
+
+		/**
+		 * @return the volume label (empty if not an ISO9660 image)
+		 */
+		public String getVolumeLabel() {
+
+			return volumeLabel;
+		}
+
+		/**
+		 * Creates a medium of a cache entry, see toCacheEntry().
+		 *
+		 * @param path
+		 * @param entry
+		 * @return the medium
+		 */
+		static Medium of(String path, String entry) {
+
+			String[] fields = entry.split(Pattern.quote(SEPARATOR), -1);
+			Medium medium = new Medium(path, Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+			medium.volumeLabel = fields[2];
+			medium.osType = fields[3].isEmpty() ? null : VM.OSType.valueOf(fields[3]);
+			medium.volumeSize = Long.parseLong(fields[4]);
+			medium.isInvalid = Boolean.parseBoolean(fields[5]);
+			medium.sha256 = fields[6].isEmpty() ? null : fields[6];
+			return medium;
+		}
+
+		/**
+		 * @return the cache entry: size, modification time, label, OS, volume size, invalid and checksum
+		 */
+		String toCacheEntry() {
+
+			return String.join(SEPARATOR, "" + size, "" + lastModified, volumeLabel,
+					osType != null ? osType.name() : "", "" + volumeSize, "" + isInvalid, sha256 != null ? sha256 : "");
+		}
+
+		@Override
+		public String toString() {
+
+			return new File(path).getName();
+		}
+	}
+
+	/**
+	 * The states of an image, the checks done so far.
+	 */
+	public enum State {
+
+		UNVERIFIED(MEDIA_UNVERIFIED_MSG, false),			// the checksum has not been computed yet
+		NO_CHECKSUM_FILE(MEDIA_NO_CHECKSUM_FILE_MSG, false),	// computed, but there is nothing to compare with
+		VERIFIED(MEDIA_VERIFIED_MSG, false),
+		CORRUPT(MEDIA_CORRUPT_MSG, true),					// the checksum differs
+		INCOMPLETE(MEDIA_INCOMPLETE_MSG, true),				// shorter than its volume
+		INVALID(MEDIA_INVALID_MSG, true);					// no ISO9660 image
+
+		private Message message;
+		private boolean isBad;
+
+		State(Message message, boolean isBad) {
+
+			this.message = message;
+			this.isBad = isBad;
+		}
+
+		/**
+		 * @return the localized name of the state
+		 */
+		public String getDisplayName() {
+
+			return Msg.get(message);
+		}
+
+		/**
+		 * @return true, if the image should not be used
+		 */
+		public boolean isBad() {
+
+			return isBad;
+		}
+	}
+}
@@ -0,0 +1,647 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+/**
+ * The metadata of a qcow2 disk image, read directly from the file (memory mapped) instead
+ * of running "qemu-img info": virtual size, allocated clusters, the backing file chain,
+ * the snapshots and the dirty/corrupt flags.
+ *
+ * <p>Only the header, the header extensions, the L1 table, the refcount table with its
+ * refcount blocks and the snapshot table are read, never guest data. The metadata of an
+ * image in use by a running VM may be in flux (the image is dirty), the values are a
+ * snapshot then.</p>
+ *
+ * Images are cached by path and validated by the modification time and the size of the
+ * file (get()), so refreshing hundreds of images costs two stats per image.
+ */
+public class Qcow2Image {
+
+	public static final int MAGIC = 0x514649fb;				// "QFI\xfb"
+	public static final int MAX_CHAIN = 16;					// maximum length of a backing file chain
+
+	public static final long INCOMPAT_DIRTY = 1L << 0;		// refcounts may be inconsistent (lazy refcounts, in use)
+	public static final long INCOMPAT_CORRUPT = 1L << 1;	// QEMU found corrupted metadata
+
+	private static final int EXT_END = 0;
+	private static final int EXT_BACKING_FORMAT = 0xe2792aca;
+	private static final long OFFSET_MASK = 0x00fffffffffffe00L;	// host offset within L1/refcount table entries
+
+	private static final Map<String, Qcow2Image> cacheMap = new ConcurrentHashMap<>();
+
+	private String path;
+	private long lastModified;
+	private long fileSize;
+	private int version;
+	private int clusterBits;
+	private long virtualSize;
+	private int cryptMethod;
+	private long incompatibleFeatures;
+	private int refcountBits;
+	private int l1Size;
+	private int l2TablesAllocated;
+	private long allocatedClusters;
+	private String backingFile;					// as stored in the image, null if none
+	private String backingFormat;				// null, if not stored
+	private List<String> backingChain;			// resolved paths of the backing files
+	private List<Snapshot> snapshotList;
+
+	/**
+	 * Construction, use get() or read().
+	 *
+	 * @param path
+	 */
+	private Qcow2Image(String path) {
+
+		this.path = path;
+	}
+
+	/**
+	 * Clears the cache.
+	 */
+	public static void clearCache() {
+
+		cacheMap.clear();
+	}
+
+	/**
+	 * Counts the clusters with a refcount > 0 (data and metadata).
+	 *
+	 * @param channel
+	 * @param refcountTableOffset
+	 * @param refcountTableClusters
+	 * @return the number of allocated clusters
+	 * @throws IOException
+	 */
+	private long countAllocatedClusters(FileChannel channel, long refcountTableOffset,
+			int refcountTableClusters) throws IOException {
+
+		long clusterSize = getClusterSize();
+		long tableSize = Math.min(refcountTableClusters * clusterSize, fileSize - refcountTableOffset);
+		if (refcountTableOffset <= 0 || tableSize <= 0) {
+			return 0;
+		}
+		ByteBuffer table = map(channel, refcountTableOffset, tableSize);
+		long count = 0;
+		for (int i = 0; i + 8 <= table.limit(); i += 8) {
+			long blockOffset = table.getLong(i) & OFFSET_MASK;
+			if (blockOffset == 0 || blockOffset + clusterSize > fileSize) {
+				continue;
+			}
+			count += countNonZero(map(channel, blockOffset, clusterSize));
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the non-zero entries of a refcount block.
+	 *
+	 * @param block
+	 * @return the number of clusters with a refcount > 0
+	 */
+	private long countNonZero(ByteBuffer block) {
+
+		long count = 0;
+		switch (refcountBits) {
+		case 64:
+			for (int i = 0; i < block.limit(); i += 8) {
+				count += block.getLong(i) != 0 ? 1 : 0;
+			}
+			break;
+		case 32:
+			for (int i = 0; i < block.limit(); i += 4) {
+				count += block.getInt(i) != 0 ? 1 : 0;
+			}
+			break;
+		case 16:
+			for (int i = 0; i < block.limit(); i += 2) {
+				count += block.getShort(i) != 0 ? 1 : 0;
+			}
+			break;
+		default:
+			// 1, 2, 4 or 8 bits: several refcounts per byte
+			int mask = (1 << refcountBits) - 1;
+			for (int i = 0; i < block.limit(); i++) {
+				int b = block.get(i) & 0xff;
+				for (int bit = 0; bit < 8; bit += refcountBits) {
+					count += ((b >>> bit) & mask) != 0 ? 1 : 0;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the metadata of an image, cached as long as the file is unchanged.
+	 *
+	 * @param path		the path of the image
+	 * @return the metadata or null, if the file does not exist or is not a qcow2 image
+	 */
+	public static Qcow2Image get(String path) {
+
+		File file = new File(path);
+		long lastModified = file.lastModified();
+		long size = file.length();
+		Qcow2Image image = cacheMap.get(path);
+		if (image != null && image.lastModified == lastModified && image.fileSize == size) {
+			return image;
+		}
+		if (lastModified == 0 || !isQcow2(file)) {
+			cacheMap.remove(path);
+			return null;
+		}
+		try {
+			image = read(file);
+			cacheMap.put(path, image);
+			return image;
+		} catch (IOException e) {
+			Logger.warning("Qcow2Image: cannot read " + path + ": " + e.getMessage());
+			cacheMap.remove(path);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of allocated clusters (data and metadata)
+	 */
+	public long getAllocatedClusters() {
+
+		return allocatedClusters;
+	}
+
+	/**
+	 * @return the size of the allocated clusters (data and metadata) in bytes
+	 */
+	public long getAllocatedSize() {
+
+		return allocatedClusters << clusterBits;
+	}
+
+	/**
+	 * @return the resolved paths of the backing files, the direct backing file first (empty if none)
+	 */
+	public List<String> getBackingChain() {
+
+		return backingChain;
+	}
+
+	/**
+	 * @return the backing file as stored in the image or null, if none
+	 */
+	public String getBackingFile() {
+
+		return backingFile;
+	}
+
+	/**
+	 * @return the format of the backing file or null, if not stored
+	 */
+	public String getBackingFormat() {
+
+		return backingFormat;
+	}
+
+	/**
+	 * @return the cluster size in bytes
+	 */
+	public long getClusterSize() {
+
+		return 1L << clusterBits;
+	}
+
+	/**
+	 * @return the encryption method (0 none, 1 AES, 2 LUKS)
+	 */
+	public int getCryptMethod() {
+
+		return cryptMethod;
+	}
+
+	/**
+	 * @return the size of the image file in bytes
+	 */
+	public long getFileSize() {
+
+		return fileSize;
+	}
+
+	/**
+	 * @return the number of L2 tables allocated
+	 */
+	public int getL2TablesAllocated() {
+
+		return l2TablesAllocated;
+	}
+
+	/**
+	 * @return the path of the image
+	 */
+	public String getPath() {
+
+		return path;
+	}
+
+	/**
+	 * @return the snapshots (unmodifiable)
+	 */
+	public List<Snapshot> getSnapshotList() {
+
+		return snapshotList;
+	}
+
+	/**
+	 * @return the qcow2 version (2 or 3)
+	 */
+	public int getVersion() {
+
+		return version;
+	}
+
+	/**
+	 * @return the virtual size (as seen by the guest) in bytes
+	 */
+	public long getVirtualSize() {
+
+		return virtualSize;
+	}
+
+	/**
+	 * @return true, if QEMU has marked the metadata as corrupt
+	 */
+	public boolean isCorrupt() {
+
+		return (incompatibleFeatures & INCOMPAT_CORRUPT) != 0;
+	}
+
+	/**
+	 * @return true, if the image has not been closed cleanly (or is in use)
+	 */
+	public boolean isDirty() {
+
+		return (incompatibleFeatures & INCOMPAT_DIRTY) != 0;
+	}
+
+	/**
+	 * @param file
+	 * @return true, if the file starts with the qcow2 magic
+	 */
+	public static boolean isQcow2(File file) {
+
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Maps a region of the image file, big endian.
+	 *
+	 * @param channel
+	 * @param offset
+	 * @param size
+	 * @return the buffer
+	 * @throws IOException
+	 */
+	private ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+
+		if (offset < 0 || size < 0 || offset + size > fileSize || size > Integer.MAX_VALUE) {
+			throw new IOException("metadata out of range: offset " + offset + ", size " + size);
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Reads the metadata of an image, including the backing file chain.
+	 *
+	 * @param file
+	 * @return the metadata
+	 * @throws IOException		if the file cannot be read or is not a valid qcow2 image
+	 */
+	public static Qcow2Image read(File file) throws IOException {
+
+		Qcow2Image image = new Qcow2Image(file.getPath());
+		image.lastModified = file.lastModified();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			image.fileSize = channel.size();
+			image.readMetadata(channel);
+		}
+		image.backingChain = image.resolveBackingChain(file);
+		return image;
+	}
+
+	/**
+	 * Reads the header, the header extensions, the L1, refcount and snapshot tables.
+	 *
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void readMetadata(FileChannel channel) throws IOException {
+
+		ByteBuffer header = readAt(channel, 0, (int) Math.min(fileSize, 4096));
+		if (header.limit() < 72 || header.getInt(0) != MAGIC) {
+			throw new IOException("not a qcow2 image");
+		}
+		version = header.getInt(4);
+		long backingFileOffset = header.getLong(8);
+		int backingFileSize = header.getInt(16);
+		clusterBits = header.getInt(20);
+		virtualSize = header.getLong(24);
+		cryptMethod = header.getInt(32);
+		l1Size = header.getInt(36);
+		long l1TableOffset = header.getLong(40);
+		long refcountTableOffset = header.getLong(48);
+		int refcountTableClusters = header.getInt(56);
+		int nbSnapshots = header.getInt(60);
+		long snapshotsOffset = header.getLong(64);
+		int headerLength = 72;
+		refcountBits = 16;
+		if (version >= 3) {
+			if (header.limit() < 104) {
+				throw new IOException("truncated qcow2 header");
+			}
+			incompatibleFeatures = header.getLong(72);
+			refcountBits = 1 << header.getInt(96);
+			headerLength = header.getInt(100);
+		}
+		if (version < 2 || clusterBits < 9 || clusterBits > 21 || refcountBits > 64 || headerLength > header.limit()) {
+			throw new IOException("unsupported qcow2 header (version " + version + ")");
+		}
+		// header extensions
+		int pos = (headerLength + 7) & ~7;
+		while (pos + 8 <= header.limit()) {
+			int type = header.getInt(pos);
+			int length = header.getInt(pos + 4);
+			if (type == EXT_END || pos + 8 + length > header.limit()) {
+				break;
+			}
+			if (type == EXT_BACKING_FORMAT) {
+				backingFormat = readString(header, pos + 8, length);
+			}
+			pos += 8 + ((length + 7) & ~7);
+		}
+		if (backingFileOffset != 0 && backingFileSize > 0) {
+			backingFile = readString(readAt(channel, backingFileOffset, backingFileSize), 0, backingFileSize);
+		}
+		// L1 table: allocated L2 tables
+		if (l1Size > 0) {
+			ByteBuffer l1Table = map(channel, l1TableOffset, l1Size * 8L);
+			for (int i = 0; i < l1Size; i++) {
+				if ((l1Table.getLong(i * 8) & OFFSET_MASK) != 0) {
+					l2TablesAllocated++;
+				}
+			}
+		}
+		allocatedClusters = countAllocatedClusters(channel, refcountTableOffset, refcountTableClusters);
+		snapshotList = Collections.unmodifiableList(readSnapshots(channel, snapshotsOffset, nbSnapshots));
+	}
+
+	/**
+	 * Reads a region of the image file into a buffer, big endian.
+	 *
+	 * @param channel
+	 * @param offset
+	 * @param size
+	 * @return the buffer
+	 * @throws IOException
+	 */
+	private ByteBuffer readAt(FileChannel channel, long offset, int size) throws IOException {
+
+		if (offset < 0 || size < 0 || offset + size > fileSize) {
+			throw new IOException("metadata out of range: offset " + offset + ", size " + size);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+		return buffer.flip();
+	}
+
+	/**
+	 * Reads the backing file name of an image (header only).
+	 *
+	 * @param file
+	 * @return the backing file as stored in the image or null, if none or not a qcow2 image
+	 */
+	private static String readBackingFile(File file) {
+
+		Qcow2Image image = new Qcow2Image(file.getPath());
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			image.fileSize = channel.size();
+			ByteBuffer header = image.readAt(channel, 0, 20);
+			if (header.getInt(0) != MAGIC) {
+				return null;
+			}
+			long offset = header.getLong(8);
+			int size = header.getInt(16);
+			if (offset == 0 || size <= 0) {
+				return null;
+			}
+			return readString(image.readAt(channel, offset, size), 0, size);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the snapshot table, entry by entry (the size of the table is not stored).
+	 *
+	 * @param channel
+	 * @param offset
+	 * @param count
+	 * @return the snapshots
+	 * @throws IOException
+	 */
+	private ArrayList<Snapshot> readSnapshots(FileChannel channel, long offset, int count) throws IOException {
+
+		ArrayList<Snapshot> list = new ArrayList<>();
+		if (count <= 0 || offset <= 0) {
+			return list;
+		}
+		long pos = offset;
+		for (int i = 0; i < count; i++) {
+			ByteBuffer entry = readAt(channel, pos, 40);
+			int idSize = entry.getShort(12) & 0xffff;
+			int nameSize = entry.getShort(14) & 0xffff;
+			long dateSeconds = entry.getInt(16) & 0xffffffffL;
+			long vmClockNanos = entry.getLong(24);
+			long vmStateSize = entry.getInt(32) & 0xffffffffL;
+			int extraSize = entry.getInt(36);
+			if (extraSize < 0 || extraSize > 65536) {
+				throw new IOException("invalid snapshot table entry " + i);
+			}
+			ByteBuffer rest = readAt(channel, pos + 40, extraSize + idSize + nameSize);
+			long diskSize = virtualSize;
+			if (extraSize >= 8) {
+				vmStateSize = rest.getLong(0);
+			}
+			if (extraSize >= 16) {
+				diskSize = rest.getLong(8);
+			}
+			String id = readString(rest, extraSize, idSize);
+			String name = readString(rest, extraSize + idSize, nameSize);
+			list.add(new Snapshot(id, name, dateSeconds * 1000, vmClockNanos, vmStateSize, diskSize));
+			pos = (pos + 40 + extraSize + idSize + nameSize + 7) & ~7L;
+		}
+		return list;
+	}
+
+	/**
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 * @return the UTF-8 string at the offset
+	 */
+	private static String readString(ByteBuffer buffer, int offset, int length) {
+
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Resolves the backing file chain, a relative backing file is relative to the image
+	 * referring to it. The chain ends at a missing or non-qcow2 file, a loop or MAX_CHAIN.
+	 *
+	 * @param file		the image
+	 * @return the paths of the backing files
+	 */
+	private List<String> resolveBackingChain(File file) {
+
+		ArrayList<String> chain = new ArrayList<>();
+		String backing = backingFile;
+		File current = file;
+		while (backing != null && chain.size() < MAX_CHAIN) {
+			File backingPath = new File(backing);
+			if (!backingPath.isAbsolute()) {
+				backingPath = new File(current.getAbsoluteFile().getParentFile(), backing);
+			}
+			String resolved = backingPath.getPath();
+			if (chain.contains(resolved) || resolved.equals(file.getPath())) {
+				Logger.warning("Qcow2Image: backing file loop at " + resolved);
+				break;
+			}
+			chain.add(resolved);
+			backing = readBackingFile(backingPath);		// null for raw or missing files
+			current = backingPath;
+		}
+		return Collections.unmodifiableList(chain);
+	}
+
+	@Override
+	public String toString() {
+
+		return path + ": qcow2 v" + version + ", virtual " + virtualSize + " bytes, allocated "
+				+ getAllocatedSize() + " bytes, cluster " + getClusterSize() + " bytes, "
+				+ l2TablesAllocated + "/" + l1Size + " L2 tables, " + snapshotList.size() + " snapshots"
+				+ (backingFile != null ? ", backing " + backingFile : "")
+				+ (isDirty() ? ", dirty" : "") + (isCorrupt() ? ", corrupt" : "");
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * An internal snapshot of a qcow2 image.
+	 */
+	public static class Snapshot {
+
+		private String id;
+		private String name;
+		private long dateMillis;
+		private long vmClockNanos;
+		private long vmStateSize;
+		private long diskSize;
+
+		public Snapshot(String id, String name, long dateMillis, long vmClockNanos, long vmStateSize, long diskSize) {
+
+			this.id = id;
+			this.name = name;
+			this.dateMillis = dateMillis;
+			this.vmClockNanos = vmClockNanos;
+			this.vmStateSize = vmStateSize;
+			this.diskSize = diskSize;
+		}
+
+		/**
+		 * @return the creation time (wall clock)
+		 */
+		public long getDateMillis() {
+
+			return dateMillis;
+		}
+
+		/**
+		 * @return the virtual size of the disk at the snapshot
+		 */
+		public long getDiskSize() {
+
+			return diskSize;
+		}
+
+		/**
+		 * @return the id
+		 */
+		public String getId() {
+
+			return id;
+		}
+
+		/**
+		 * @return the name (tag)
+		 */
+		public String getName() {
+
+			return name;
+		}
+
+		/**
+		 * @return the guest clock at the snapshot in nanoseconds
+		 */
+		public long getVmClockNanos() {
+
+			return vmClockNanos;
+		}
+
+		/**
+		 * @return the size of the saved VM state (RAM, devices), 0 for a disk-only snapshot
+		 */
+		public long getVmStateSize() {
+
+			return vmStateSize;
+		}
+	}
+}
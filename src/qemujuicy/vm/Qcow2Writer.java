@@ -0,0 +1,448 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Creates an empty qcow2 (version 3) image natively, without running "qemu-img create".
+ *
+ * <p>Supported: the cluster size, lazy refcounts, a backing file (with its format) and the
+ * preallocation modes off, metadata and full. The layout is the one of qemu-img: header,
+ * refcount table, refcount blocks, L1 table, then (preallocated) L2 tables and data clusters.
+ * Refcounts are 16 bits wide, there is no compression or encryption.</p>
+ *
+ * An existing file is never overwritten. A partially written image is deleted.
+ */
+public class Qcow2Writer {
+
+	public static final int DEFAULT_CLUSTER_SIZE = 65536;
+	public static final int MIN_CLUSTER_SIZE = 512;
+	public static final int MAX_CLUSTER_SIZE = 2 * 1024 * 1024;
+
+	private static final int VERSION = 3;
+	private static final int REFCOUNT_ORDER = 4;				// 16 bit refcounts
+	private static final int HEADER_LENGTH = 112;				// including the compression type
+	private static final long COMPAT_LAZY_REFCOUNTS = 1L << 0;
+	private static final long OFLAG_COPIED = 1L << 63;			// refcount == 1 (L1 and L2 entries)
+	private static final int EXT_END = 0;
+	private static final int EXT_BACKING_FORMAT = 0xe2792aca;
+
+	/**
+	 * The preallocation modes.
+	 */
+	public enum Preallocation {
+
+		OFF,				// header and tables only, clusters are allocated on write
+		METADATA,			// all L2 tables and data clusters allocated, the file is sparse
+		FULL,				// as METADATA, the data clusters are written with zeros
+		;
+
+		/**
+		 * @param name		the name as used by qemu-img ("off", "metadata", "full")
+		 * @return the mode, OFF if unknown
+		 */
+		public static Preallocation of(String name) {
+
+			for (Preallocation mode : values()) {
+				if (mode.name().equalsIgnoreCase(name.trim())) {
+					return mode;
+				}
+			}
+			return OFF;
+		}
+	}
+
+	private String path;
+	private long virtualSize;
+	private int clusterSize = DEFAULT_CLUSTER_SIZE;
+	private boolean lazyRefcounts;
+	private Preallocation preallocation = Preallocation.OFF;
+	private String backingFile;
+	private String backingFormat;
+
+	/**
+	 * Construction.
+	 *
+	 * @param path				the image file to create
+	 * @param virtualSize		the virtual size in bytes, 0 to take the size of the backing file
+	 */
+	public Qcow2Writer(String path, long virtualSize) {
+
+		this.path = path;
+		this.virtualSize = virtualSize;
+	}
+
+	/**
+	 * Changes the backing file stored in the header of an existing image, the data is not
+	 * touched (as "qemu-img rebase -u"). Used if a backing file has been renamed.
+	 * Other header extensions are kept.
+	 *
+	 * @param path				the image
+	 * @param backingFile		the new backing file, relative to the image or absolute
+	 * @param backingFormat		the format of the backing file or null
+	 * @throws IOException		if the image cannot be read or written or the header is full
+	 */
+	public static void changeBackingFile(String path, String backingFile, String backingFormat) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer start = ByteBuffer.allocate(104);
+			channel.read(start, 0);
+			if (start.getInt(0) != Qcow2Image.MAGIC) {
+				throw new IOException("not a qcow2 image: " + path);
+			}
+			int headerClusterSize = 1 << start.getInt(20);
+			int headerLength = start.getInt(4) >= 3 ? start.getInt(100) : 72;
+			ByteBuffer header = ByteBuffer.allocate(headerClusterSize);
+			channel.read(header, 0);
+			// keep the extensions, except the backing format
+			ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+			int pos = headerLength;
+			while (pos + 8 <= headerClusterSize) {
+				int type = header.getInt(pos);
+				int length = header.getInt(pos + 4);
+				int next = (pos + 8 + length + 7) & ~7;
+				if (type == EXT_END || length < 0 || next > headerClusterSize) {
+					break;
+				}
+				if (type != EXT_BACKING_FORMAT) {
+					extensions.write(header.array(), pos, next - pos);
+				}
+				pos = next;
+			}
+			ByteBuffer newHeader = ByteBuffer.allocate(headerClusterSize);
+			newHeader.put(header.array(), 0, headerLength);
+			try {
+				if (backingFile != null && backingFormat != null) {
+					byte[] format = backingFormat.getBytes(StandardCharsets.UTF_8);
+					newHeader.putInt(EXT_BACKING_FORMAT);
+					newHeader.putInt(format.length);
+					newHeader.put(format);
+					newHeader.position((newHeader.position() + 7) & ~7);
+				}
+				newHeader.put(extensions.toByteArray());
+				newHeader.putInt(EXT_END);
+				newHeader.putInt(0);
+				newHeader.putLong(8, 0);
+				newHeader.putInt(16, 0);
+				if (backingFile != null) {
+					byte[] name = backingFile.getBytes(StandardCharsets.UTF_8);
+					newHeader.putLong(8, newHeader.position());
+					newHeader.putInt(16, name.length);
+					newHeader.put(name);
+				}
+			} catch (BufferOverflowException e) {
+				throw new IOException("backing file name too long: " + backingFile);
+			}
+			writeAt(channel, newHeader.clear(), 0);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Creates the image.
+	 *
+	 * @return the path of the created image
+	 * @throws IOException		if the file exists or cannot be written
+	 */
+	public String create() throws IOException {
+
+		if (clusterSize < MIN_CLUSTER_SIZE || clusterSize > MAX_CLUSTER_SIZE || Integer.bitCount(clusterSize) != 1) {
+			throw new IOException("invalid cluster size " + clusterSize);
+		}
+		long size = virtualSize;
+		if (size <= 0 && backingFile != null) {
+			size = findBackingSize();
+		}
+		if (size <= 0) {
+			throw new IOException("invalid virtual size " + size);
+		}
+		size = (size + 511) & ~511L;					// sectors
+		Layout layout = new Layout(size);
+		Path file = Paths.get(path);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			write(channel, size, layout);
+			channel.force(true);
+		} catch (FileAlreadyExistsException e) {
+			throw new IOException("image exists already: " + path);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return path;
+	}
+
+	/**
+	 * @return the virtual size of the backing file
+	 * @throws IOException
+	 */
+	private long findBackingSize() throws IOException {
+
+		File backing = new File(backingFile);
+		if (!backing.isAbsolute()) {
+			backing = new File(new File(path).getAbsoluteFile().getParentFile(), backingFile);
+		}
+		Qcow2Image image = Qcow2Image.get(backing.getPath());
+		if (image != null) {
+			return image.getVirtualSize();
+		}
+		if (!backing.isFile()) {
+			throw new IOException("backing file not found: " + backing);
+		}
+		return backing.length();						// raw
+	}
+
+	/**
+	 * Sets a backing file, the new image contains the changes only.
+	 *
+	 * @param backingFile		the backing file, relative to the new image or absolute
+	 * @param backingFormat		the format of the backing file ("qcow2", "raw") or null
+	 * @return this writer
+	 */
+	public Qcow2Writer setBackingFile(String backingFile, String backingFormat) {
+
+		this.backingFile = backingFile;
+		this.backingFormat = backingFormat;
+		return this;
+	}
+
+	/**
+	 * @param clusterSize		the cluster size in bytes, a power of 2 (512 .. 2M)
+	 * @return this writer
+	 */
+	public Qcow2Writer setClusterSize(int clusterSize) {
+
+		this.clusterSize = clusterSize;
+		return this;
+	}
+
+	/**
+	 * @param lazyRefcounts		true to update the refcounts lazily (faster writes, repaired after a crash)
+	 * @return this writer
+	 */
+	public Qcow2Writer setLazyRefcounts(boolean lazyRefcounts) {
+
+		this.lazyRefcounts = lazyRefcounts;
+		return this;
+	}
+
+	/**
+	 * @param preallocation
+	 * @return this writer
+	 */
+	public Qcow2Writer setPreallocation(Preallocation preallocation) {
+
+		this.preallocation = preallocation;
+		return this;
+	}
+
+	/**
+	 * Writes the image.
+	 *
+	 * @param channel
+	 * @param size			the virtual size
+	 * @param layout
+	 * @throws IOException
+	 */
+	private void write(FileChannel channel, long size, Layout layout) throws IOException {
+
+		// header
+		ByteBuffer header = ByteBuffer.allocate(clusterSize).order(ByteOrder.BIG_ENDIAN);
+		header.putInt(Qcow2Image.MAGIC);
+		header.putInt(VERSION);
+		header.putLong(0);								// backing file offset, set below
+		header.putInt(0);								// backing file size
+		header.putInt(Integer.numberOfTrailingZeros(clusterSize));
+		header.putLong(size);
+		header.putInt(0);								// no encryption
+		header.putInt(layout.l1Size);
+		header.putLong(layout.l1Offset);
+		header.putLong(layout.refcountTableOffset);
+		header.putInt(layout.refcountTableClusters);
+		header.putInt(0);								// no snapshots
+		header.putLong(0);
+		header.putLong(0);								// incompatible features
+		header.putLong(lazyRefcounts ? COMPAT_LAZY_REFCOUNTS : 0);
+		header.putLong(0);								// autoclear features
+		header.putInt(REFCOUNT_ORDER);
+		header.putInt(HEADER_LENGTH);
+		header.put((byte) 0);							// compression type zlib
+		header.position(HEADER_LENGTH);
+		if (backingFormat != null) {
+			byte[] format = backingFormat.getBytes(StandardCharsets.UTF_8);
+			header.putInt(EXT_BACKING_FORMAT);
+			header.putInt(format.length);
+			header.put(format);
+			header.position((header.position() + 7) & ~7);
+		}
+		header.putInt(EXT_END);
+		header.putInt(0);
+		if (backingFile != null) {
+			byte[] name = backingFile.getBytes(StandardCharsets.UTF_8);
+			if (header.position() + name.length > clusterSize) {
+				throw new IOException("backing file name too long");
+			}
+			header.putLong(8, header.position());
+			header.putInt(16, name.length);
+			header.put(name);
+		}
+		writeAt(channel, header.clear(), 0);
+		// refcount table and blocks: all clusters of the layout are used once
+		ByteBuffer table = ByteBuffer.allocate(layout.refcountTableClusters * clusterSize);
+		for (int i = 0; i < layout.refcountBlocks; i++) {
+			table.putLong(i * 8, layout.refcountBlocksOffset + (long) i * clusterSize);
+		}
+		writeAt(channel, table, layout.refcountTableOffset);
+		ByteBuffer block = ByteBuffer.allocate(clusterSize);
+		long refcountsPerBlock = clusterSize * 8L / (1 << REFCOUNT_ORDER);
+		for (int i = 0; i < layout.refcountBlocks; i++) {
+			Arrays.fill(block.array(), (byte) 0);
+			long first = i * refcountsPerBlock;
+			long count = Math.min(refcountsPerBlock, layout.totalClusters - first);
+			for (int j = 0; j < count; j++) {
+				block.putShort(j * 2, (short) 1);
+			}
+			writeAt(channel, block, layout.refcountBlocksOffset + (long) i * clusterSize);
+		}
+		// L1 table and preallocated L2 tables
+		ByteBuffer l1Table = ByteBuffer.allocate(layout.l1Clusters * clusterSize);
+		if (layout.l2Tables > 0) {
+			for (int i = 0; i < layout.l1Size; i++) {
+				l1Table.putLong(i * 8, (layout.l2Offset + (long) i * clusterSize) | OFLAG_COPIED);
+			}
+			long dataCluster = 0;
+			ByteBuffer l2Table = ByteBuffer.allocate(clusterSize);
+			int entries = clusterSize / 8;
+			for (int i = 0; i < layout.l2Tables; i++) {
+				for (int j = 0; j < entries; j++) {
+					long entry = 0;
+					if (dataCluster < layout.dataClusters) {
+						entry = (layout.dataOffset + dataCluster * clusterSize) | OFLAG_COPIED;
+						dataCluster++;
+					}
+					l2Table.putLong(j * 8, entry);
+				}
+				writeAt(channel, l2Table, layout.l2Offset + (long) i * clusterSize);
+			}
+		}
+		writeAt(channel, l1Table, layout.l1Offset);
+		// data clusters
+		long fileSize = layout.totalClusters * clusterSize;
+		if (preallocation == Preallocation.FULL) {
+			ByteBuffer zeros = ByteBuffer.allocate(Math.max(clusterSize, 1024 * 1024));
+			for (long pos = layout.dataOffset; pos < fileSize; pos += zeros.capacity()) {
+				zeros.clear().limit((int) Math.min(zeros.capacity(), fileSize - pos));
+				writeAt(channel, zeros, pos);
+			}
+		} else if (channel.size() < fileSize) {
+			// sparse: extend the file to the preallocated clusters
+			writeAt(channel, ByteBuffer.allocate(1), fileSize - 1);
+		}
+	}
+
+	/**
+	 * Writes a buffer completely at a position.
+	 *
+	 * @param channel
+	 * @param buffer
+	 * @param position
+	 * @throws IOException
+	 */
+	private static void writeAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		buffer.rewind();
+		long pos = position;
+		while (buffer.hasRemaining()) {
+			pos += channel.write(buffer, pos);
+		}
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The cluster layout of a new image.
+	 */
+	private class Layout {
+
+		int l1Size;						// L1 entries
+		int l1Clusters;
+		long l2Tables;					// preallocated L2 tables
+		long dataClusters;				// preallocated data clusters
+		int refcountTableClusters;
+		int refcountBlocks;
+		long totalClusters;
+		long refcountTableOffset;
+		long refcountBlocksOffset;
+		long l1Offset;
+		long l2Offset;
+		long dataOffset;
+
+		/**
+		 * Computes the layout: the number of refcount blocks depends on the total number
+		 * of clusters, which includes the refcount blocks (iterated until stable).
+		 *
+		 * @param size		the virtual size
+		 */
+		Layout(long size) throws IOException {
+
+			long guestClusters = (size + clusterSize - 1) / clusterSize;
+			long entries = clusterSize / 8;
+			long l1 = (guestClusters + entries - 1) / entries;
+			if (l1 * 8 > 32L * 1024 * 1024) {
+				throw new IOException("virtual size too large for cluster size " + clusterSize);
+			}
+			l1Size = (int) l1;
+			l1Clusters = (int) Math.max(1, (l1Size * 8L + clusterSize - 1) / clusterSize);
+			if (preallocation != Preallocation.OFF) {
+				l2Tables = l1Size;
+				dataClusters = guestClusters;
+			}
+			long refcountsPerBlock = clusterSize * 8L / (1 << REFCOUNT_ORDER);
+			long blocks = 1;
+			long tableClusters = 1;
+			while (true) {
+				long total = 1 + tableClusters + blocks + l1Clusters + l2Tables + dataClusters;
+				long neededBlocks = (total + refcountsPerBlock - 1) / refcountsPerBlock;
+				long neededTable = Math.max(1, (neededBlocks * 8 + clusterSize - 1) / clusterSize);
+				if (neededBlocks == blocks && neededTable == tableClusters) {
+					totalClusters = total;
+					break;
+				}
+				blocks = neededBlocks;
+				tableClusters = neededTable;
+			}
+			refcountBlocks = (int) blocks;
+			refcountTableClusters = (int) tableClusters;
+			refcountTableOffset = clusterSize;
+			refcountBlocksOffset = refcountTableOffset + (long) refcountTableClusters * clusterSize;
+			l1Offset = refcountBlocksOffset + (long) refcountBlocks * clusterSize;
+			l2Offset = l1Offset + (long) l1Clusters * clusterSize;
+			dataOffset = l2Offset + l2Tables * clusterSize;
+		}
+	}
+}
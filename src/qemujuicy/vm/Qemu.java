@@ -22,6 +22,8 @@
  */
 package qemujuicy.vm;
 
+import static qemujuicy.Message.*;
+
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -29,12 +31,15 @@ import java.util.concurrent.*;
 import javax.swing.*;
 
 import qemujuicy.*;
+import qemujuicy.ui.*;
 
 /**
  * Actions related to the QEMU programs like "qemu-img", "qemu-system-x86_64" and others.
  */
 public class Qemu {
 
+	public static final long DISK_IMAGE_TIMEOUT_MILLIS = 60000;
+
 	/**
 	 * Adds the extra parameters of the VM to the command list, if any.
 	 * 
@@ -54,6 +59,53 @@ public class Qemu {
 		scanner.close();
 	}
 
+	/**
+	 * Adds a pid file (within the run directory) to the command list, if the command list 
+	 * does not define one already.
+	 * 
+	 * @param cmdList
+	 * @param vm
+	 */
+	public static void addPidFile(ArrayList<String> cmdList, VM vm) {
+
+		if (cmdList.contains("-pidfile")) {
+			return;
+		}
+		try {
+			Files.ensureRunDir();
+			cmdList.add("-pidfile");
+			cmdList.add(getRunFilePath(vm, ".pid"));
+		} catch (IOException e) {
+			Logger.error("Cannot create the pid file for VM '" + vm.getName() + "'", e);
+		}
+	}
+
+	/**
+	 * Adds a QMP socket (within the run directory) to the command list, not on Windows 
+	 * and not if the command list already defines a QMP socket.
+	 * 
+	 * @param cmdList
+	 * @param vm
+	 * @return the path of the QMP socket or null, if no socket has been added
+	 */
+	public static String addQmpSocket(ArrayList<String> cmdList, VM vm) {
+
+		if (OSType.isWindows() || cmdList.contains("-qmp")) {
+			return null;
+		}
+		try {
+			Files.ensureRunDir();
+			String socketPath = getRunFilePath(vm, ".qmp");
+			new File(socketPath).delete();				// a stale socket of a previous run
+			cmdList.add("-qmp");
+			cmdList.add("unix:" + socketPath + ",server=on,wait=off");
+			return socketPath;
+		} catch (IOException e) {
+			Logger.error("Cannot create the QMP socket for VM '" + vm.getName() + "'", e);
+			return null;
+		}
+	}
+
 	/**
 	 * Create a QEMU command ArrayList for a VM, using a string of parameters.
 	 * 
@@ -81,6 +133,21 @@ public class Qemu {
 	 */
 	public static ArrayList<String> createCommandList(VM vm, String vmInstallPath) {
 		
+		return createCommandList(vm, vmInstallPath, false);
+	}
+
+	/**
+	 * Create a QEMU command ArrayList for a VM, using its properties. The disk is emitted according
+	 * to its profile (DiskProfile).
+	 * 
+	 * @param vm				the VM
+	 * @param vmInstallPath		an one-time installation image path or null for an 
+	 * 							existing and installed VM
+	 * @param isSnapshot		true, if the VM is started with -snapshot (the disk is not changed)
+	 * @return the command ArrayList
+	 */
+	private static ArrayList<String> createCommandList(VM vm, String vmInstallPath, boolean isSnapshot) {
+		
 		String qemuCmd = Architecture.ARRAY[Architecture.findCbxIndexFor(vm)].getQemuCmd();
 		String diskPath = Main.getProperty(AppProperties.VM_DISK_PATH)+ File.separator + vm.getDriveHdaName();
 		int maxMemMB = vm.getMemorySizeMB();
@@ -91,7 +158,7 @@ public class Qemu {
 //		cmdList.add("-monitor");
 //		cmdList.add("stdio");
 		
-		String accel = Accelerator.ARRAY[Accelerator.findCbxIndexFor(vm)].getAccelOptionString();
+		String accel = Accelerator.ARRAY[Accelerator.findCbxIndexFor(vm)].getAccelOptionString(vm);
 		if (accel != null) {			// else -> advanced tab/default tcg
 			cmdList.add("-machine");
 			cmdList.add("accel=" + accel);
@@ -105,8 +172,8 @@ public class Qemu {
 		cmdList.add(maxMemMB + "M");
 //		"-m", maxMemMB/4 + "M,slots=3,maxmem=" + maxMemMB + "M",   		// min 512M
 		
-		cmdList.add("-drive");
-		cmdList.add("file=" + diskPath + ",index=0,media=disk");
+		cmdList.addAll(DiskProfile.getHdaProfile(vm).adaptTo(qemuCmd, diskPath)
+				.createArgs("hda", diskPath, vm.getCpus(), isSnapshot));
 		
 		// TODO xxx    Qemu runVm()      change hard coded CDROM  
 		
@@ -128,7 +195,7 @@ public class Qemu {
 		
 		// TODO xxx    Qemu runVm()      change hard coded nic / networking  
 		cmdList.add("-nic");
-		cmdList.add("user,ipv6=off,model=e1000,mac=52:54:98:76:54:32");	
+		cmdList.add("user,ipv6=off,model=e1000,mac=" + vm.getMacAddress());	
 
 		int soundIndex = Sound.findCbxIndexFor(vm);
 		if (soundIndex > 0) {					// if == 0 -> advanced tab/default#
@@ -141,37 +208,276 @@ public class Qemu {
 	}
 
 	/**
-	 * Creates a VM disk image.
+	 * Creates a VM disk image: natively (Qcow2Writer) unless disabled, with qemu-img otherwise
+	 * or if the native creation failed. An existing image is never overwritten.
 	 * 
 	 * @param vm	the VM
-	 * @return true, if the commend worked, false otherwise (Exception caught)
+	 * @return true, if the image has been created, false otherwise (Exception caught)
 	 */
 	public boolean createDiskImage(VM vm) {
 
-		String qemuImg = "qemu-img";
-		String diskPath = Main.getProperty(AppProperties.VM_DISK_PATH)+ File.separator + vm.getDriveHdaName();
-		String output = Util.runProcess(qemuImg, "create", "-f", "qcow2", diskPath, vm.getDriveHdaSizeGB() + "G");
-		return output != null ? true : false;		
+		return createDiskImage(vm, null);
 	}
 
 	/**
-	 * Runs a VM.
+	 * Creates a VM disk image, see createDiskImage(VM) and createLinkedDiskImage().
+	 * 
+	 * @param vm				the VM
+	 * @param backingName		the backing image (within the VM directory) or null
+	 * @return true, if the image has been created, false otherwise (Exception caught)
+	 */
+	private boolean createDiskImage(VM vm, String backingName) {
+
+		String vmDir = Main.getProperty(AppProperties.VM_DISK_PATH);
+		String diskPath = vmDir + File.separator + vm.getDriveHdaName();
+		long virtualSize = backingName != null ? 0 : vm.getDriveHdaSizeGB() * 1024L * 1024 * 1024;
+		int clusterSize = Main.getPropertyInt(AppProperties.DISK_CLUSTER_SIZE_KB) * 1024;
+		String preallocation = Main.getProperty(AppProperties.DISK_PREALLOCATION);
+		boolean lazyRefcounts = Main.getPropertyBool(AppProperties.DISK_LAZY_REFCOUNTS);
+		if (backingName != null) {
+			// an overlay: same cluster size as its backing image, allocated on write
+			Qcow2Image backing = Qcow2Image.get(vmDir + File.separator + backingName);
+			if (backing != null) {
+				clusterSize = (int) backing.getClusterSize();
+			}
+			preallocation = Qcow2Writer.Preallocation.OFF.name().toLowerCase();
+		}
+		if (new File(diskPath).exists()) {
+			Logger.error("creating disk image failed, file exists: " + diskPath);
+			return false;
+		}
+		long startNanos = System.nanoTime();
+		if (Main.getPropertyBool(AppProperties.DISK_CREATE_NATIVE)) {
+			try {
+				Qcow2Writer writer = new Qcow2Writer(diskPath, virtualSize)
+						.setClusterSize(clusterSize)
+						.setLazyRefcounts(lazyRefcounts)
+						.setPreallocation(Qcow2Writer.Preallocation.of(preallocation));
+				if (backingName != null) {
+					writer.setBackingFile(backingName, "qcow2");
+				}
+				writer.create();
+				String msg = "disk image created natively: " + diskPath + " ("
+						+ (System.nanoTime() - startNanos) / 1000000 + " ms)";
+				Logger.info(msg);
+				vm.verbose(msg);
+				return true;
+			} catch (Exception e) {
+				Logger.warning("creating disk image natively failed, using qemu-img: " + e.getMessage());
+			}
+		}
+		String options = "cluster_size=" + clusterSize + ",preallocation=" + preallocation
+				+ ",lazy_refcounts=" + (lazyRefcounts ? "on" : "off");
+		ArrayList<String> cmdList = new ArrayList<>(List.of(getQemuImg(), "create", "-f", "qcow2", "-o", options));
+		if (backingName != null) {
+			cmdList.addAll(List.of("-b", backingName, "-F", "qcow2", diskPath));
+		} else {
+			cmdList.addAll(List.of(diskPath, vm.getDriveHdaSizeGB() + "G"));
+		}
+		String[] cmd = cmdList.toArray(new String[0]);
+		String cmdString = String.join(" ", cmd);
+		Logger.info("executing: " + cmdString);
+		vm.verbose("executing: " + cmdString);
+		try {
+			ProcessExecutor procExec = ProcessExecutor.execute(DISK_IMAGE_TIMEOUT_MILLIS, 
+					(line, isStdErr) -> vm.verbose(line), cmd).get();
+			if (procExec.getExitValue() != 0) {
+				Logger.error("creating disk image failed, exit value " + procExec.getExitValue() 
+						+ ":\n" + procExec.getErrorOutput());
+				return false;
+			}
+			Logger.info("disk image created: " + diskPath + " (" + (System.nanoTime() - startNanos) / 1000000 + " ms)");
+			return true;
+		} catch (Exception e) {
+			Logger.error("Exception executing: " + cmdString, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Creates the disk image of a linked clone: an empty qcow2 overlay, whose backing file 
+	 * is the disk of the base VM. Only the changes of the clone are written to its image.
+	 * 
+	 * @param vm				the clone
+	 * @param backingName		the disk image of the base VM (within the VM directory)
+	 * @return true, if the image has been created, false otherwise (Exception caught)
+	 */
+	public boolean createLinkedDiskImage(VM vm, String backingName) {
+
+		return createDiskImage(vm, backingName);
+	}
+
+	/**
+	 * Creates the command list to run a VM: the generated or the full QEMU definition, 
+	 * including the extra parameters. Options the emulator does not support are reported.
 	 * 
 	 * @param vm				the VM to run
 	 * @param vmInstallPath		an one-time installation image path or null for an 
 	 * 							existing and installed VM
-	 * @return true, if the command worked, false otherwise (Exception caught)
+	 * @return the command list or null, if the emulator does not support an option
 	 */
-	public boolean runVm(VM vm, String vmInstallPath) {
+	private ArrayList<String> createRunCommandList(VM vm, String vmInstallPath) {
 
 		ArrayList<String> cmdList = null;
+		List<VM> cloneList = Main.getVmManager().getClones(vm);
 		if (vm.getPropertyBool(VMProperties.FULL_QEMU_DEFINITION)) {
 			String cmd = vm.getProperty(VMProperties.FULL_QEMU_DEFINITION_CMD).trim();
 			cmdList = createCommandList(cmd);
+		} else if (vmInstallPath == null && (cloneList.isEmpty() || DiskProfile.getHdaProfile(vm).isLegacy())) {
+			cmdList = new ArrayList<>(getCommand(vm).getArgList());
 		} else {
-			cmdList = createCommandList(vm, vmInstallPath);
+			// -snapshot does not apply to -blockdev, the disk of the base of linked clones is a -drive
+			cmdList = createCommandList(vm, vmInstallPath, !cloneList.isEmpty());
 		}
 		addExtraParameters(cmdList, vm);
+		if (!cloneList.isEmpty()) {
+			// linked clones depend on the disk: write the changes to a temporary file (confirmed by the user)
+			cmdList.add("-snapshot");
+			String msg = "VM '" + vm.getName() + "' is the base of " + cloneList.size() 
+					+ " linked clone(s), started with -snapshot (changes are discarded)";
+			Logger.info(msg);
+			vm.verbose(msg);
+		}
+		// fail fast on options the emulator does not support (known from the capabilities cache)
+		QemuCapabilities capabilities = QemuCapabilities.getIfCached(cmdList.get(0));
+		String unsupported = capabilities != null ? capabilities.findUnsupported(cmdList) : null;
+		if (unsupported != null) {
+			String msg = Msg.get(VM_UNSUPPORTED_OPTION_MSG, cmdList.get(0), unsupported);
+			Logger.error("VM '" + vm.getName() + "': " + msg);
+			vm.verbose(msg);
+			if (Main.getMainView() != null) {
+				SwingUtilities.invokeLater(() -> Gui.errorDlg(Main.getMainView(), msg, 
+						Msg.get(ERROR_TITLE_DLG_MSG)));
+			}
+			return null;
+		}
+		return cmdList;
+	}
+
+	/**
+	 * Copies the data of the backing chain into the disk image of a linked clone and removes
+	 * the backing file ("qemu-img rebase -b ''"). Runs in the background, it may take long.
+	 * 
+	 * @param vm		the linked clone (not running)
+	 * @return the future, true if the disk image is detached
+	 */
+	public CompletableFuture<Boolean> flattenDiskImage(VM vm) {
+
+		String diskPath = Main.getProperty(AppProperties.VM_DISK_PATH)+ File.separator + vm.getDriveHdaName();
+		String[] cmd = { getQemuImg(), "rebase", "-f", "qcow2", "-b", "", diskPath };
+		String cmdString = String.join(" ", cmd);
+		Logger.info("executing: " + cmdString);
+		vm.verbose("executing: " + cmdString);
+		long startNanos = System.nanoTime();
+		return ProcessExecutor.execute(0, (line, isStdErr) -> vm.verbose(line), cmd).handle((procExec, e) -> {
+			if (e != null) {
+				Logger.error("Exception executing: " + cmdString, e);
+				return false;
+			}
+			if (procExec.getExitValue() != 0) {
+				Logger.error("flattening disk image failed, exit value " + procExec.getExitValue() 
+						+ ":\n" + procExec.getErrorOutput());
+				return false;
+			}
+			Logger.info("disk image flattened: " + diskPath + " (" + (System.nanoTime() - startNanos) / 1000000 + " ms)");
+			return true;
+		});
+	}
+
+	/**
+	 * Gets the QEMU command generated from the properties of a VM (installed VM, without the
+	 * extra parameters). The command is cached by the VM until its properties, the application
+	 * properties, the capabilities of the emulator or the disk (created, replaced, written)
+	 * change.
+	 * 
+	 * @param vm
+	 * @return the command
+	 */
+	public static QemuCommand getCommand(VM vm) {
+		
+		VMProperties vmProperties = vm.getVmProperties();
+		long vmVersion = vmProperties.getVersion();
+		long appVersion = Main.getProperties().getVersion();
+		QemuCapabilities capabilities = QemuCapabilities.getIfLoaded(vm.getArchitecture());
+		// the disk profile is adapted to the disk (format, direct I/O), 0 if it does not exist
+		long diskModified = new File(Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator 
+				+ vm.getDriveHdaName()).lastModified();
+		QemuCommand command = vm.getCommand();
+		if (command == null 
+				|| !command.isValidFor(vmProperties, vmVersion, appVersion, capabilities, diskModified)) {
+			command = new QemuCommand(createCommandList(vm, null), vmProperties, vmVersion, appVersion, 
+					capabilities, diskModified);
+			vm.setCommand(command);
+		}
+		return command;
+	}
+
+	/**
+	 * @return the configured qemu-img program, "qemu-img" (PATH) if not configured
+	 */
+	public static String getQemuImg() {
+
+		String qemuImg = Main.getProperty(AppProperties.QEMU_IMG);
+		return qemuImg == null || qemuImg.isBlank() ? "qemu-img" : qemuImg;
+	}
+
+	/**
+	 * Finds the running QEMU process of a VM by its pid file, also if the VM has been started 
+	 * by another QemuJuicy instance (e.g. in headless mode).
+	 * 
+	 * @param vm
+	 * @return the process or null, if the VM is not running
+	 */
+	public static ProcessHandle findRunningProcess(VM vm) {
+
+		File pidFile = new File(getRunFilePath(vm, ".pid"));
+		if (!pidFile.isFile()) {
+			return null;
+		}
+		try {
+			long pid = Long.parseLong(new String(java.nio.file.Files.readAllBytes(pidFile.toPath())).trim());
+			ProcessHandle handle = ProcessHandle.of(pid).orElse(null);
+			if (handle == null || !handle.isAlive()) {
+				return null;
+			}
+			// the pid of a stale pid file may have been reused by another program
+			String command = handle.info().command().orElse("qemu");
+			return command.contains("qemu") ? handle : null;
+		} catch (IOException | NumberFormatException e) {
+			Logger.warning("cannot read pid file " + pidFile.getPath() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the path of a runtime file of a VM within the run directory.
+	 * 
+	 * @param vm
+	 * @param suffix		the file suffix, e.g. ".pid" or ".qmp"
+	 * @return the path
+	 */
+	public static String getRunFilePath(VM vm, String suffix) {
+
+		return Files.getAppDirPath() + Files.RUN_DIR_NAME + File.separator + vm.getNameSafe() + suffix;
+	}
+
+	/**
+	 * Runs a VM.
+	 * 
+	 * @param vm				the VM to run
+	 * @param vmInstallPath		an one-time installation image path or null for an 
+	 * 							existing and installed VM
+	 * @return true, if the command worked, false otherwise (Exception caught)
+	 */
+	public boolean runVm(VM vm, String vmInstallPath) {
+
+		PersistenceService.flushNow();			// the VM runs with the stored properties
+		ArrayList<String> cmdList = createRunCommandList(vm, vmInstallPath);
+		if (cmdList == null) {
+			return false;
+		}
+		String qmpSocketPath = addQmpSocket(cmdList, vm);
+		addPidFile(cmdList, vm);
 		// process the generated command
 		String[] cmdArr = cmdList.toArray(new String[0]);
 		String cmdString = toCommandString(cmdList);
@@ -179,11 +485,19 @@ public class Qemu {
 		vm.verbose("executing: " + " " + cmdString);
 		try {
 			ProcessBuilder builder = new ProcessBuilder(cmdArr);
+			builder.redirectErrorStream(true);			// one stream to drain
 			Process process = builder.start();
-			VmRunnable runnable = new VmRunnable(vm, process);
-			Thread vmWatcherThread = Executors.defaultThreadFactory().newThread(runnable);
-			vmWatcherThread.setName("vmWatcherThread_" + vm.getNameSafe());
-			vmWatcherThread.start();
+			if (qmpSocketPath != null) {
+				QmpConnection qmpConnection = QmpClient.connect(vm.getName(), qmpSocketPath);
+				qmpConnection.addEventListener((connection, event, data) -> 
+						vm.verbose("QMP event " + event + " " + data));
+				vm.setQmpConnection(qmpConnection);
+			}
+			VMSupervisor.supervise(vm, process);
+			VMOutputSink sink = new VMOutputSink(Main.getProperty(AppProperties.VM_DISK_PATH) 
+					+ File.separator + vm.getNameSafe() + ".log");
+			vm.setOutputSink(sink);
+			VMOutputDrainer.drain(process, sink);
 			return true;
 		} catch (Exception e) {
 			// something went completely wrong
@@ -193,20 +507,62 @@ public class Qemu {
 		}
 	}
 
+	/**
+	 * Runs a VM detached from QemuJuicy (headless mode): the VM is not supervised, its output 
+	 * goes to the log file directly, it keeps running after QemuJuicy has exited.
+	 * Without a display (e.g. on a server) the VM gets "-display none", if no display is defined.
+	 * The base of linked clones is not started, nobody could confirm that its changes are discarded.
+	 * 
+	 * @param vm				the VM to run
+	 * @return the process or null, if the VM cannot be started
+	 */
+	public Process runVmDetached(VM vm) {
+
+		List<VM> cloneList = Main.getVmManager().getClones(vm);
+		if (!cloneList.isEmpty()) {
+			Logger.error("VM '" + vm.getName() + "' not started, it is the base of the linked clones "
+					+ VMManager.getNames(cloneList) + " (changes would be discarded)");
+			return null;
+		}
+		ArrayList<String> cmdList = createRunCommandList(vm, null);
+		if (cmdList == null) {
+			return null;
+		}
+		if (!OSType.isWindows() && !OSType.isMac() && System.getenv("DISPLAY") == null 
+				&& System.getenv("WAYLAND_DISPLAY") == null 
+				&& !cmdList.contains("-display") && !cmdList.contains("-nographic")) {
+			cmdList.add("-display");
+			cmdList.add("none");
+		}
+		addQmpSocket(cmdList, vm);
+		addPidFile(cmdList, vm);
+		String cmdString = toCommandString(cmdList);
+		Logger.info("executing detached: " + cmdString);
+		try {
+			ProcessBuilder builder = new ProcessBuilder(cmdList);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(new File(Main.getProperty(AppProperties.VM_DISK_PATH) 
+					+ File.separator + vm.getNameSafe() + ".log"));
+			return builder.start();
+		} catch (Exception e) {
+			Logger.error("Error running the VM '" + vm.getName() + "'", e); 
+			return null;
+		}
+	}
+
 	/**
 	 * Creates a command string from an ArrayList of command and parameters.
 	 * 
 	 * @param cmdList			the ArrayList
 	 * @return the command string
 	 */
-	public static String toCommandString(ArrayList<String> cmdList) {
+	public static String toCommandString(List<String> cmdList) {
 
-		String[] cmdArr = cmdList.toArray(new String[0]);
-		String cmdString = "";
-		for (String s : cmdArr) {
-			cmdString += s + " ";
+		StringBuilder sb = new StringBuilder();
+		for (String s : cmdList) {
+			sb.append(s).append(' ');
 		}
-		return cmdString;
+		return sb.toString();
 	}
 
 	/**
@@ -216,29 +572,29 @@ public class Qemu {
 	 * @param separateLines			separate QEMU parameters on lines + "\"
 	 * @return the command string
 	 */
-	public static String toCommandStringStore(ArrayList<String> cmdList, boolean separateLines) {
+	public static String toCommandStringStore(List<String> cmdList, boolean separateLines) {
 
-		String cmdString = "";
-		String cmdEndString = "";;
+		StringBuilder sb = new StringBuilder();
+		String cmdEndString = "";
 		if (OSType.isLinux() || OSType.isUnix() || OSType.isMac()) {
-			cmdString = "#!/bin/sh\n# script created by QemuJuicy\n";
+			sb.append("#!/bin/sh\n# script created by QemuJuicy\n");
 			cmdEndString = " $*";
 		} else if (OSType.isWindows()) {
 			cmdEndString = " %*";
 		}
 		if (!separateLines) {
-			return cmdString + toCommandString(cmdList) + cmdEndString;  
+			return sb.append(toCommandString(cmdList)).append(cmdEndString).toString();  
 		}
 		// separated lines
-		String[] cmdArr = cmdList.toArray(new String[0]);
-		cmdString += cmdArr[0] + " \\" + System.lineSeparator();
-		for (int i = 1; i < cmdArr.length; i++) {
-			cmdString += cmdArr[i] + " ";
-			if (i < cmdArr.length - 1 && !cmdArr[i].startsWith("-")) {
-				cmdString += " \\" + System.lineSeparator();
+		sb.append(cmdList.get(0)).append(" \\").append(System.lineSeparator());
+		for (int i = 1; i < cmdList.size(); i++) {
+			String arg = cmdList.get(i);
+			sb.append(arg).append(' ');
+			if (i < cmdList.size() - 1 && !arg.startsWith("-")) {
+				sb.append(" \\").append(System.lineSeparator());
 			}
 		}
-		return cmdString + cmdEndString;
+		return sb.append(cmdEndString).toString();
 	}
 	
 	/**
@@ -264,7 +620,7 @@ public class Qemu {
 	 * @param cmdList			the list of the command with options
 	 * @return the text area string
 	 */
-	public static String toTextAreaString(ArrayList<String> cmdList) {
+	public static String toTextAreaString(List<String> cmdList) {
 		
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < 2; i++) {
@@ -285,39 +641,4 @@ public class Qemu {
 		}
 		return sb.toString();
 	}
-	
-	/************************* inner classes *************************/
-	
-	/**
-	 * A Runnable for a thread to watch if the VM is running.
-	 */
-	private class VmRunnable implements Runnable {
-
-		private VM vm;					// the VM to watch
-		private Process process;		// the process of the VM
-
-		public VmRunnable(VM vm, Process process) {
-			
-			this.vm = vm;
-			this.process = process;
-		}
-		
-		public void run() {
-			
-			vm.setProcess(process);
-			for (;;) {
-				if (!process.isAlive()) {
-					vm.setIsRunning(false);
-					vm.setProcess(null);
-					SwingUtilities.invokeLater(() -> {
-						vm.verbose("VM '" + vm.getName() + "' has exited");
-						Logger.info("VM '" + vm.getName() + "' has exited");
-						Main.getMainView().vmListSelectionEnabler();
-					});
-					break;
-				}
-				Util.sleep(200);		// meanwhile be polite to the others
-			}
-		}
-	}
 }
@@ -0,0 +1,456 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+/**
+ * The capabilities (accelerators, machines, CPU models, devices, audio drivers) of a
+ * QEMU emulator, queried once per emulator binary ("-accel help", ...).
+ *
+ * <p>The names are kept as sorted arrays (binary search), the capabilities of all
+ * emulators are cached in the application directory, keyed by the fingerprint
+ * (path, size, modification time) of the emulator binary.</p>
+ */
+public class QemuCapabilities {
+
+	public static final String CACHE_FILE = "qemu-capabilities.xml";
+	public static final long QUERY_TIMEOUT_MILLIS = 10000;
+	public static final long RECHECK_MILLIS = 5000;		// check the binary for changes at most this often
+
+	private static final Map<String, QemuCapabilities> capabilitiesMap = new ConcurrentHashMap<>();	// by command
+	private static Properties cache;				// fingerprint|kind -> names, separated by ' '
+
+	private String qemuCmd;
+	private String fingerprint;
+	private volatile long checkedMillis = System.currentTimeMillis();	// last check of the fingerprint
+	private final EnumMap<Kind, String[]> namesMap = new EnumMap<>(Kind.class);
+
+	/**
+	 * Construction.
+	 *
+	 * @param qemuCmd			the QEMU emulator command
+	 * @param fingerprint		the fingerprint of the emulator binary
+	 */
+	private QemuCapabilities(String qemuCmd, String fingerprint) {
+
+		this.qemuCmd = qemuCmd;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Checks a name, if it is supported.
+	 *
+	 * @param kind
+	 * @param name			the name or null (nothing to check)
+	 * @return a description if not supported, null otherwise
+	 */
+	private String check(Kind kind, String name) {
+
+		if (name == null || name.equals("help") || name.equals("?") || supports(kind, name)) {
+			return null;
+		}
+		return kind.option + " '" + name + "'";
+	}
+
+	/**
+	 * Checks a command list for options the emulator does not support: accelerators,
+	 * machine types, CPU models, devices and audio drivers.
+	 *
+	 * @param cmdList			the command and parameters (the command itself is ignored)
+	 * @return a description of the first unsupported option, null if all are supported
+	 */
+	public String findUnsupported(List<String> cmdList) {
+
+		for (int i = 0; i < cmdList.size() - 1; i++) {
+			String option = cmdList.get(i);
+			String value = cmdList.get(i + 1);
+			String unsupported = null;
+			switch (option) {
+			case "-accel":
+				unsupported = findUnsupportedAccel(getOptionValue(value, "accel"));
+				break;
+			case "-machine":
+			case "-M":
+				unsupported = check(Kind.MACHINE, getOptionValue(value, "type"));
+				if (unsupported == null) {
+					unsupported = findUnsupportedAccel(getKeyValue(value, "accel"));
+				}
+				break;
+			case "-cpu":
+				unsupported = check(Kind.CPU, getOptionValue(value, null));
+				break;
+			case "-device":
+				unsupported = check(Kind.DEVICE, getOptionValue(value, "driver"));
+				break;
+			case "-audiodev":
+				unsupported = check(Kind.AUDIODEV, getOptionValue(value, "driver"));
+				break;
+			default:
+				continue;
+			}
+			if (unsupported != null) {
+				return unsupported;
+			}
+			i++;						// the value has been checked
+		}
+		return null;
+	}
+
+	/**
+	 * Checks an accelerator list like "kvm:tcg", QEMU uses the first working one.
+	 *
+	 * @param accel
+	 * @return a description if no accelerator of the list is supported, null otherwise
+	 */
+	private String findUnsupportedAccel(String accel) {
+
+		if (accel == null) {
+			return null;
+		}
+		for (String name : accel.split(":")) {
+			if (check(Kind.ACCEL, name) == null) {
+				return null;
+			}
+		}
+		return Kind.ACCEL.option + " '" + accel + "'";
+	}
+
+	/**
+	 * Returns the capabilities of an emulator, they are queried if they are not cached
+	 * (this may take some time, the emulator is executed).
+	 *
+	 * @param qemuCmd			the emulator command
+	 * @return the capabilities or null, if the emulator does not exist
+	 */
+	public static QemuCapabilities get(String qemuCmd) {
+
+		QemuCapabilities capabilities = getIfCached(qemuCmd);
+		if (capabilities == null) {
+			capabilities = query(qemuCmd);
+		}
+		return capabilities;
+	}
+
+	/**
+	 * Returns the capabilities of an emulator if in memory, without checking the emulator
+	 * or the cache file (e.g. to validate cached data cheaply).
+	 *
+	 * @param qemuCmd			the emulator command
+	 * @return the capabilities or null, if not in memory
+	 */
+	public static QemuCapabilities getIfLoaded(String qemuCmd) {
+
+		return qemuCmd != null ? capabilitiesMap.get(qemuCmd) : null;
+	}
+
+	/**
+	 * Returns the capabilities of an emulator if already known (in memory or in the cache
+	 * file and the emulator has not changed), without executing the emulator.
+	 *
+	 * @param qemuCmd			the emulator command
+	 * @return the capabilities or null, if not known
+	 */
+	public static QemuCapabilities getIfCached(String qemuCmd) {
+
+		if (qemuCmd == null) {
+			return null;
+		}
+		QemuCapabilities capabilities = capabilitiesMap.get(qemuCmd);
+		long now = System.currentTimeMillis();
+		if (capabilities != null && now - capabilities.checkedMillis < RECHECK_MILLIS) {
+			return capabilities;		// e.g. rendering combo boxes, do not stat the binary again
+		}
+		String fingerprint = QemuProbe.fingerprint(qemuCmd);
+		if (fingerprint == null) {
+			return null;
+		}
+		if (capabilities != null && capabilities.fingerprint.equals(fingerprint)) {
+			capabilities.checkedMillis = now;
+			return capabilities;
+		}
+		synchronized (QemuCapabilities.class) {
+			loadCache();
+			if (cache.getProperty(fingerprint + "|" + Kind.ACCEL) == null) {
+				return null;
+			}
+			capabilities = new QemuCapabilities(qemuCmd, fingerprint);
+			for (Kind kind : Kind.values()) {
+				String names = cache.getProperty(fingerprint + "|" + kind, "");
+				capabilities.namesMap.put(kind, names.isEmpty() ? new String[0] : names.split(" "));
+			}
+		}
+		capabilitiesMap.put(qemuCmd, capabilities);
+		return capabilities;
+	}
+
+	/**
+	 * Returns the value of a "key=value" part of an option value like "pc,accel=kvm".
+	 *
+	 * @param value			the value of the option
+	 * @param key
+	 * @return the value or null, if not found
+	 */
+	private static String getKeyValue(String value, String key) {
+
+		for (String part : value.split(",")) {
+			if (part.startsWith(key + "=")) {
+				return part.substring(key.length() + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param kind
+	 * @return the sorted names of a kind, the array is empty if unknown
+	 */
+	public String[] getNames(Kind kind) {
+
+		return namesMap.get(kind).clone();
+	}
+
+	/**
+	 * Returns the main value of an option like "pc,accel=kvm" (type is "pc"), "driver=pa,id=pa1"
+	 * (driver is "pa") or "alsa,id=snd0" (driver is "alsa").
+	 *
+	 * @param value			the value of the option
+	 * @param key			the key, if the main value may be given as "key=value", or null
+	 * @return the value or null, if not found
+	 */
+	private static String getOptionValue(String value, String key) {
+
+		String first = value.split(",")[0];
+		if (!first.contains("=")) {
+			return first.isEmpty() ? null : first;
+		}
+		return key == null ? null : getKeyValue(value, key);
+	}
+
+	/**
+	 * @return the QEMU emulator command
+	 */
+	public String getQemuCmd() {
+
+		return qemuCmd;
+	}
+
+	/**
+	 * Loads the cache file, if not yet done.
+	 */
+	private static void loadCache() {
+
+		if (cache != null) {
+			return;
+		}
+		cache = new Properties();
+		File file = new File(Files.getAppDirPath() + CACHE_FILE);
+		if (!file.exists()) {
+			return;
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			cache.loadFromXML(in);
+		} catch (IOException e) {
+			Logger.warning("QemuCapabilities: cannot read cache " + file.getPath() + ": " + e.getMessage());
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Parses the output of a help query ("-device help", ...) into sorted names.
+	 *
+	 * @param kind
+	 * @param output
+	 * @return the sorted names
+	 */
+	static String[] parse(Kind kind, String output) {
+
+		TreeSet<String> nameSet = new TreeSet<>();
+		ArrayList<String[]> tokensList = new ArrayList<>();
+		for (String line : output.split("\n")) {
+			String trimmed = line.trim();
+			if (kind == Kind.DEVICE) {
+				// name "e1000", bus PCI, alias "e1000-82540em", desc "Intel Gigabit Ethernet"
+				int i = trimmed.indexOf("name \"");
+				if (i >= 0) {
+					int end = trimmed.indexOf('"', i + 6);
+					if (end > i + 6) {
+						nameSet.add(trimmed.substring(i + 6, end));
+					}
+				}
+				continue;
+			}
+			if (trimmed.isEmpty()) {
+				if (kind == Kind.CPU && !tokensList.isEmpty()) {
+					break;				// CPU models are followed by CPU flags etc.
+				}
+				continue;
+			}
+			if (trimmed.endsWith(":")) {
+				continue;				// a header like "Supported machines are:"
+			}
+			tokensList.add(trimmed.split("\\s+"));
+		}
+		// CPU models may be prefixed by the architecture on each line, like "x86 Broadwell"
+		boolean isPrefixed = tokensList.size() > 1;
+		for (String[] tokens : tokensList) {
+			if (tokens.length < 2 || !tokens[0].equals(tokensList.get(0)[0])) {
+				isPrefixed = false;
+				break;
+			}
+		}
+		for (String[] tokens : tokensList) {
+			nameSet.add(isPrefixed ? tokens[1] : tokens[0]);
+		}
+		return nameSet.toArray(new String[0]);
+	}
+
+	/**
+	 * Loads or queries the capabilities of emulators in parallel, e.g. after the QEMU setup.
+	 *
+	 * @param qemuCmdList		the emulator commands
+	 */
+	public static void preload(List<String> qemuCmdList) {
+
+		ArrayList<CompletableFuture<QemuCapabilities>> futureList = new ArrayList<>();
+		for (String qemuCmd : qemuCmdList) {
+			if (getIfCached(qemuCmd) == null) {
+				futureList.add(CompletableFuture.supplyAsync(() -> query(qemuCmd)));
+			}
+		}
+		for (CompletableFuture<QemuCapabilities> future : futureList) {
+			future.join();
+		}
+	}
+
+	/**
+	 * Queries the capabilities of an emulator (all kinds in parallel), and caches them.
+	 *
+	 * @param qemuCmd			the emulator command
+	 * @return the capabilities or null, if the emulator does not exist or fails
+	 */
+	private static QemuCapabilities query(String qemuCmd) {
+
+		String fingerprint = QemuProbe.fingerprint(qemuCmd);
+		if (fingerprint == null) {
+			return null;
+		}
+		long start = System.currentTimeMillis();
+		EnumMap<Kind, CompletableFuture<ProcessExecutor>> futureMap = new EnumMap<>(Kind.class);
+		for (Kind kind : Kind.values()) {
+			futureMap.put(kind, ProcessExecutor.execute(QUERY_TIMEOUT_MILLIS, null,
+					qemuCmd, kind.option, "help"));
+		}
+		QemuCapabilities capabilities = new QemuCapabilities(qemuCmd, fingerprint);
+		for (Kind kind : Kind.values()) {
+			try {
+				ProcessExecutor procExec = futureMap.get(kind).get();
+				capabilities.namesMap.put(kind, procExec.getExitValue() == 0
+						? parse(kind, procExec.getOutput()) : new String[0]);
+			} catch (Exception e) {
+				Logger.error("QemuCapabilities: '" + qemuCmd + " " + kind.option + " help' failed: "
+						+ e.getMessage());
+				return null;
+			}
+		}
+		Logger.info("QemuCapabilities: queried '" + qemuCmd + "' in " + (System.currentTimeMillis() - start)
+				+ "ms, " + capabilities.namesMap.get(Kind.DEVICE).length + " devices");
+		synchronized (QemuCapabilities.class) {
+			loadCache();
+			String pathPrefix = fingerprint.substring(0, fingerprint.indexOf('|') + 1);
+			for (String key : cache.stringPropertyNames()) {
+				if (key.startsWith(pathPrefix)) {
+					cache.remove(key);			// outdated fingerprint
+				}
+			}
+			for (Kind kind : Kind.values()) {
+				cache.setProperty(fingerprint + "|" + kind, String.join(" ", capabilities.namesMap.get(kind)));
+			}
+			storeCache();
+		}
+		capabilitiesMap.put(qemuCmd, capabilities);
+		return capabilities;
+	}
+
+	/**
+	 * Stores the cache file (crash-safe, by the writer thread of the PersistenceService).
+	 */
+	private static synchronized void storeCache() {
+
+		// synchronized: the content stored last is the latest, the probe threads store concurrently
+		String pathname = Files.getAppDirPath() + CACHE_FILE;
+		try {
+			Util.storeToXML(cache, "QEMU capabilities, fingerprint (path|size|mtime)|kind -> names", pathname);
+		} catch (IOException e) {
+			Logger.error("QemuCapabilities: cannot write cache " + pathname, e);
+		}
+	}
+
+	/**
+	 * Checks if a name is supported, e.g. supports(Kind.DEVICE, "virtio-net-pci").
+	 * If the emulator did not report any names of the kind, all names are considered supported.
+	 *
+	 * @param kind
+	 * @param name
+	 * @return true, if supported (or unknown), false otherwise
+	 */
+	public boolean supports(Kind kind, String name) {
+
+		String[] names = namesMap.get(kind);
+		return names.length == 0 || Arrays.binarySearch(names, name) >= 0;
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The kinds of capabilities, with the QEMU option to query them.
+	 */
+	public enum Kind {
+
+		ACCEL("-accel"),
+		MACHINE("-machine"),
+		CPU("-cpu"),
+		DEVICE("-device"),
+		AUDIODEV("-audiodev"),
+		;
+
+		private String option;
+
+		Kind(String option) {
+
+			this.option = option;
+		}
+
+		/**
+		 * @return the QEMU option
+		 */
+		public String getOption() {
+
+			return option;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.util.*;
+
+/**
+ * An immutable QEMU command line of a VM, generated from its properties: the argument list,
+ * the display string, the text area string and the script export.
+ *
+ * The command is cached per VM (see Qemu.getCommand()) and valid as long as neither the VM
+ * properties nor the application properties have changed (version counters), the
+ * emulator capabilities are the same (accelerator detection) and the disk has not been created
+ * or changed (the disk profile is adapted to its format and file system).
+ */
+public class QemuCommand {
+
+	private final List<String> argList;
+	private final String commandString;
+	private final String textAreaString;
+	private final VMProperties vmProperties;		// the properties the command has been generated from
+	private final long vmVersion;
+	private final long appVersion;
+	private final QemuCapabilities capabilities;	// null, if not known
+	private final long diskModified;				// 0, if the disk did not exist
+
+	/**
+	 * Construction.
+	 *
+	 * @param argList			the command and its arguments
+	 * @param vmProperties		the properties the command has been generated from
+	 * @param vmVersion			the version of the VM properties
+	 * @param appVersion		the version of the application properties
+	 * @param capabilities		the emulator capabilities used or null
+	 * @param diskModified		the last modification time of the disk, 0 if it does not exist
+	 */
+	public QemuCommand(List<String> argList, VMProperties vmProperties, long vmVersion, long appVersion,
+			QemuCapabilities capabilities, long diskModified) {
+
+		this.argList = Collections.unmodifiableList(new ArrayList<>(argList));
+		this.vmProperties = vmProperties;
+		this.vmVersion = vmVersion;
+		this.appVersion = appVersion;
+		this.capabilities = capabilities;
+		this.diskModified = diskModified;
+		commandString = Qemu.toCommandString(this.argList);
+		textAreaString = Qemu.toTextAreaString(this.argList);
+	}
+
+	/**
+	 * @return the command and its arguments (unmodifiable)
+	 */
+	public List<String> getArgList() {
+
+		return argList;
+	}
+
+	/**
+	 * @return the command line as one string
+	 */
+	public String getCommandString() {
+
+		return commandString;
+	}
+
+	/**
+	 * @return the command line for a text area, an option and its value per line
+	 */
+	public String getTextAreaString() {
+
+		return textAreaString;
+	}
+
+	/**
+	 * @param vmProperties		the current properties of the VM
+	 * @param vmVersion			the current version of the VM properties
+	 * @param appVersion		the current version of the application properties
+	 * @param capabilities		the current emulator capabilities or null
+	 * @param diskModified		the current modification time of the disk, 0 if it does not exist
+	 * @return true, if the command is still valid
+	 */
+	public boolean isValidFor(VMProperties vmProperties, long vmVersion, long appVersion,
+			QemuCapabilities capabilities, long diskModified) {
+
+		return this.vmProperties == vmProperties && this.vmVersion == vmVersion
+				&& this.appVersion == appVersion && this.capabilities == capabilities
+				&& this.diskModified == diskModified;
+	}
+
+	/**
+	 * @param vm				the VM, its extra parameters are appended
+	 * @param separateLines		one option per line
+	 * @return the command as a shell script or batch file
+	 */
+	public String toScript(VM vm, boolean separateLines) {
+
+		ArrayList<String> cmdList = new ArrayList<>(argList);
+		Qemu.addExtraParameters(cmdList, vm);
+		return Qemu.toCommandStringStore(cmdList, separateLines);
+	}
+}
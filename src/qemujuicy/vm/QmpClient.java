@@ -0,0 +1,157 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+/**
+ * Client of the QMP (QEMU Machine Protocol) sockets of all running VMs.
+ *
+ * There is no thread per VM: one selector thread multiplexes all QmpConnection objects,
+ * including connecting (QEMU creates the socket shortly after the process has started).
+ */
+public class QmpClient {
+
+	public static final long CONNECT_TIMEOUT_MILLIS = 10000;	// QEMU has to create the socket within this time
+	public static final long CONNECT_RETRY_MILLIS = 50;
+
+	private static final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+	private static final ArrayList<QmpConnection> connectingList = new ArrayList<>();	// selector thread only
+	private static Selector selector;
+	private static Thread thread;
+
+	/**
+	 * Deny external construction.
+	 */
+	private QmpClient() {
+
+	}
+
+	/**
+	 * Connects to the QMP socket of a VM.
+	 * The connection is returned immediately, use its ready future or just execute commands,
+	 * they are sent as soon as the connection is established.
+	 *
+	 * @param name				the name of the connection (VM), for logging
+	 * @param socketPath		the path of the QMP Unix domain socket
+	 * @return the connection
+	 */
+	public static QmpConnection connect(String name, String socketPath) {
+
+		QmpConnection connection = new QmpConnection(name, socketPath);
+		runOnSelectorThread(() -> {
+			connection.setConnectDeadline(System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS);
+			connectingList.add(connection);
+		});
+		return connection;
+	}
+
+	/**
+	 * Retries connecting all connections not yet connected, on the selector thread.
+	 */
+	private static void retryConnects() {
+
+		long now = System.currentTimeMillis();
+		for (Iterator<QmpConnection> iter = connectingList.iterator(); iter.hasNext(); ) {
+			QmpConnection connection = iter.next();
+			if (connection.isClosed() || connection.tryConnect(selector)) {
+				iter.remove();
+			} else if (now > connection.getConnectDeadline()) {
+				iter.remove();
+				connection.closeOnSelectorThread(new IOException("cannot connect to "
+						+ connection.getSocketPath() + " within " + CONNECT_TIMEOUT_MILLIS + "ms"));
+			}
+		}
+	}
+
+	/**
+	 * The selector thread loop.
+	 */
+	private static void run() {
+
+		for (;;) {
+			Runnable task;
+			while ((task = taskQueue.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Logger.error("QmpClient: task failed", e);
+				}
+			}
+			retryConnects();
+			try {
+				selector.select(connectingList.isEmpty() ? 0 : CONNECT_RETRY_MILLIS);
+			} catch (IOException e) {
+				Logger.error("QmpClient: select failed", e);
+				Util.sleep(CONNECT_RETRY_MILLIS);
+				continue;
+			}
+			for (SelectionKey key : selector.selectedKeys()) {
+				QmpConnection connection = (QmpConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isConnectable()) {
+						connection.finishConnect();
+					}
+					if (key.isValid() && key.isReadable()) {
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.write();
+					}
+				} catch (IOException | CancelledKeyException e) {
+					connection.closeOnSelectorThread(e instanceof IOException ? (IOException) e
+							: new IOException(e));
+				}
+			}
+			selector.selectedKeys().clear();
+		}
+	}
+
+	/**
+	 * Runs a task on the selector thread, starts the thread if necessary.
+	 *
+	 * @param task
+	 */
+	static void runOnSelectorThread(Runnable task) {
+
+		synchronized (QmpClient.class) {
+			if (thread == null) {
+				try {
+					selector = Selector.open();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				thread = new Thread(QmpClient::run, "qmpClient");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		taskQueue.add(task);
+		selector.wakeup();
+	}
+}
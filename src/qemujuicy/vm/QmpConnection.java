@@ -0,0 +1,495 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import qemujuicy.*;
+
+/**
+ * A connection to the QMP (QEMU Machine Protocol) socket of a running VM.
+ *
+ * <p>All I/O is done by the selector thread of QmpClient. Commands may be executed
+ * from any thread, they are pipelined and their responses are correlated by id.
+ * Futures of commands and event listeners are completed/called on the selector thread,
+ * they must not block (use the async methods of CompletableFuture for blocking follow-ups).</p>
+ */
+public class QmpConnection {
+
+	public static final String EVENT_BLOCK_JOB_COMPLETED = "BLOCK_JOB_COMPLETED";
+	public static final String EVENT_RESUME = "RESUME";
+	public static final String EVENT_SHUTDOWN = "SHUTDOWN";
+	public static final String EVENT_STOP = "STOP";
+
+	private String name;
+	private String socketPath;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private long connectDeadline;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+	private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();		// selector thread only
+	private final Map<Long, CompletableFuture<Object>> pendingMap = new ConcurrentHashMap<>();
+	private final AtomicLong nextId = new AtomicLong();
+	private final List<QmpEventListener> listenerList = new CopyOnWriteArrayList<>();
+	private final ArrayList<Runnable> deferredList = new ArrayList<>();	// commands issued before ready
+	private final CompletableFuture<QmpConnection> ready = new CompletableFuture<>();
+	private final CompletableFuture<QmpConnection> closed = new CompletableFuture<>();
+	private volatile Map<String, Object> greeting;
+	private volatile boolean isClosed;
+
+	/**
+	 * Construction, use QmpClient.connect().
+	 *
+	 * @param name				the name of the connection (VM), for logging
+	 * @param socketPath		the path of the QMP Unix domain socket
+	 */
+	QmpConnection(String name, String socketPath) {
+
+		this.name = name;
+		this.socketPath = socketPath;
+	}
+
+	/**
+	 * Adds a listener for asynchronous QMP events.
+	 *
+	 * @param listener
+	 */
+	public void addEventListener(QmpEventListener listener) {
+
+		listenerList.add(listener);
+	}
+
+	/**
+	 * Closes the connection, pending commands complete exceptionally.
+	 */
+	public void close() {
+
+		QmpClient.runOnSelectorThread(() -> closeOnSelectorThread(null));
+	}
+
+	/**
+	 * Closes the connection on the selector thread.
+	 *
+	 * @param cause			the reason or null for a regular close
+	 */
+	void closeOnSelectorThread(IOException cause) {
+
+		if (isClosed) {
+			return;
+		}
+		isClosed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// intentionally do nothing
+			}
+		}
+		IOException e = cause != null ? cause : new IOException("QMP connection '" + name + "' closed");
+		if (cause != null) {
+			Logger.warning("QMP '" + name + "': " + cause.getMessage());
+		}
+		synchronized (deferredList) {
+			ready.completeExceptionally(e);
+			sendDeferred();					// fails them, the connection is closed
+		}
+		for (Long id : pendingMap.keySet()) {
+			CompletableFuture<Object> future = pendingMap.remove(id);
+			if (future != null) {
+				future.completeExceptionally(e);
+			}
+		}
+		closed.complete(this);
+	}
+
+	/**
+	 * Called on the selector thread if the socket is connected.
+	 *
+	 * @param selector
+	 */
+	void connected(Selector selector) throws IOException {
+
+		key = channel.register(selector, writeQueue.isEmpty() ? SelectionKey.OP_READ
+				: SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+		Logger.info("QMP '" + name + "': connected to " + socketPath);
+	}
+
+	/**
+	 * Executes a QMP command without arguments.
+	 *
+	 * @param command		the command, e.g. "query-status"
+	 * @return the future of the "return" value of the command
+	 */
+	public CompletableFuture<Object> execute(String command) {
+
+		return execute(command, null);
+	}
+
+	/**
+	 * Executes a QMP command, as soon as the connection is ready.
+	 * The future completes exceptionally with a QmpException, if QEMU returns an error,
+	 * or with an IOException, if the connection fails.
+	 *
+	 * @param command		the command, e.g. "system_powerdown"
+	 * @param arguments		the arguments of the command or null
+	 * @return the future of the "return" value of the command
+	 */
+	public CompletableFuture<Object> execute(String command, Map<String, Object> arguments) {
+
+		synchronized (deferredList) {
+			if (!ready.isDone()) {
+				// keep the order of the commands, they are sent as soon as the connection is ready
+				CompletableFuture<Object> future = new CompletableFuture<>();
+				deferredList.add(() -> send(command, arguments).whenComplete((value, throwable) -> {
+					if (throwable != null) {
+						future.completeExceptionally(throwable);
+					} else {
+						future.complete(value);
+					}
+				}));
+				return future;
+			}
+		}
+		return send(command, arguments);
+	}
+
+	/**
+	 * Finishes a pending connect, called on the selector thread.
+	 */
+	void finishConnect() throws IOException {
+
+		if (channel.finishConnect()) {
+			key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ
+					: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			Logger.info("QMP '" + name + "': connected to " + socketPath);
+		}
+	}
+
+	/**
+	 * @return the future completed after the connection has been closed
+	 */
+	public CompletableFuture<QmpConnection> getClosedFuture() {
+
+		return closed;
+	}
+
+	/**
+	 * @return the deadline of connecting (System.currentTimeMillis())
+	 */
+	long getConnectDeadline() {
+
+		return connectDeadline;
+	}
+
+	/**
+	 * @return the greeting of the QMP server (containing the QEMU version) or null, if not yet connected
+	 */
+	public Map<String, Object> getGreeting() {
+
+		return greeting;
+	}
+
+	/**
+	 * @return the name of the connection (VM)
+	 */
+	public String getName() {
+
+		return name;
+	}
+
+	/**
+	 * @return the future completed as soon as the connection is ready for commands
+	 */
+	public CompletableFuture<QmpConnection> getReadyFuture() {
+
+		return ready;
+	}
+
+	/**
+	 * @return the path of the QMP socket
+	 */
+	public String getSocketPath() {
+
+		return socketPath;
+	}
+
+	/**
+	 * Handles a received QMP message (greeting, response or event).
+	 *
+	 * @param line			one JSON object
+	 */
+	@SuppressWarnings("unchecked")
+	private void handleMessage(String line) {
+
+		Object parsed;
+		try {
+			parsed = Json.parse(line);
+		} catch (IllegalArgumentException e) {
+			Logger.warning("QMP '" + name + "': " + e.getMessage() + ": " + line);
+			return;
+		}
+		if (!(parsed instanceof Map)) {
+			return;
+		}
+		Map<String, Object> msg = (Map<String, Object>) parsed;
+		if (msg.containsKey("QMP")) {
+			// greeting, enter command mode
+			greeting = msg;
+			send("qmp_capabilities", null).whenComplete((value, throwable) -> {
+				if (throwable != null) {
+					closeOnSelectorThread(new IOException("qmp_capabilities failed: " + throwable.getMessage()));
+					return;
+				}
+				synchronized (deferredList) {
+					ready.complete(this);
+					sendDeferred();
+				}
+			});
+		} else if (msg.containsKey("event")) {
+			String event = msg.get("event").toString();
+			Object data = msg.get("data");
+			Map<String, Object> dataMap = data instanceof Map ? (Map<String, Object>) data : new HashMap<>();
+			for (QmpEventListener listener : listenerList) {
+				try {
+					listener.qmpEvent(this, event, dataMap);
+				} catch (RuntimeException e) {
+					Logger.error("QMP '" + name + "': event listener failed", e);
+				}
+			}
+		} else if (msg.get("id") instanceof Long) {
+			CompletableFuture<Object> future = pendingMap.remove(msg.get("id"));
+			if (future == null) {
+				return;
+			}
+			if (msg.containsKey("error")) {
+				future.completeExceptionally(new QmpException(Json.getString(msg.get("error"), "class"),
+						Json.getString(msg.get("error"), "desc")));
+			} else {
+				future.complete(msg.get("return"));
+			}
+		}
+	}
+
+	/**
+	 * @return true, if the connection has been closed
+	 */
+	public boolean isClosed() {
+
+		return isClosed;
+	}
+
+	/**
+	 * Reads from the socket, called on the selector thread.
+	 */
+	void read() throws IOException {
+
+		int count = channel.read(readBuffer);
+		if (count < 0) {
+			closeOnSelectorThread(new IOException("connection closed by QEMU"));
+			return;
+		}
+		readBuffer.flip();
+		while (readBuffer.hasRemaining()) {
+			byte b = readBuffer.get();
+			if (b != '\n') {
+				lineBuffer.write(b);
+				continue;
+			}
+			String line = lineBuffer.toString(StandardCharsets.UTF_8).trim();
+			lineBuffer.reset();
+			if (!line.isEmpty()) {
+				handleMessage(line);
+			}
+		}
+		readBuffer.clear();
+	}
+
+	/**
+	 * Removes a listener for asynchronous QMP events.
+	 *
+	 * @param listener
+	 */
+	public void removeEventListener(QmpEventListener listener) {
+
+		listenerList.remove(listener);
+	}
+
+	/**
+	 * Sends a command, not waiting for the connection to be ready.
+	 *
+	 * @param command
+	 * @param arguments		the arguments or null
+	 * @return the future of the "return" value of the command
+	 */
+	private CompletableFuture<Object> send(String command, Map<String, Object> arguments) {
+
+		long id = nextId.getAndIncrement();
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		pendingMap.put(id, future);
+		if (isClosed) {
+			pendingMap.remove(id);
+			future.completeExceptionally(new IOException("QMP connection '" + name + "' closed"));
+			return future;
+		}
+		LinkedHashMap<String, Object> msg = new LinkedHashMap<>();
+		msg.put("execute", command);
+		if (arguments != null) {
+			msg.put("arguments", arguments);
+		}
+		msg.put("id", id);
+		ByteBuffer bytes = ByteBuffer.wrap((Json.toJson(msg) + "\n").getBytes(StandardCharsets.UTF_8));
+		QmpClient.runOnSelectorThread(() -> {
+			if (isClosed) {
+				return;
+			}
+			writeQueue.add(bytes);
+			if (key != null && key.isValid()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @param connectDeadline 	the deadline of connecting (System.currentTimeMillis())
+	 */
+	void setConnectDeadline(long connectDeadline) {
+
+		this.connectDeadline = connectDeadline;
+	}
+
+	/**
+	 * Sends the commands issued before the connection has been ready, in order.
+	 * The caller has to synchronize on the deferredList.
+	 */
+	private void sendDeferred() {
+
+		for (Runnable deferred : deferredList) {
+			deferred.run();
+		}
+		deferredList.clear();
+	}
+
+	/**
+	 * Tries to connect to the socket, called on the selector thread.
+	 * QEMU creates the socket shortly after start, therefore this is retried by the QmpClient.
+	 *
+	 * @param selector
+	 * @return true, if connected (or connecting is pending), false to retry later
+	 */
+	boolean tryConnect(Selector selector) {
+
+		if (!new File(socketPath).exists()) {
+			return false;
+		}
+		try {
+			channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+			channel.configureBlocking(false);
+			if (channel.connect(UnixDomainSocketAddress.of(socketPath))) {
+				connected(selector);
+			} else {
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+			return true;
+		} catch (IOException e) {
+			// socket file exists, but QEMU does not yet listen (or a stale file)
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				// intentionally do nothing
+			}
+			channel = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Writes queued commands to the socket, called on the selector thread.
+	 */
+	void write() throws IOException {
+
+		while (!writeQueue.isEmpty()) {
+			ByteBuffer buffer = writeQueue.peek();
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				return;					// socket buffer full, wait for OP_WRITE
+			}
+			writeQueue.poll();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * An error returned by QEMU for a QMP command.
+	 */
+	public static class QmpException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private String errorClass;
+
+		public QmpException(String errorClass, String desc) {
+
+			super(errorClass + ": " + desc);
+			this.errorClass = errorClass;
+		}
+
+		/**
+		 * @return the QMP error class, e.g. "GenericError" or "CommandNotFound"
+		 */
+		public String getErrorClass() {
+
+			return errorClass;
+		}
+	}
+
+	/**
+	 * A listener for asynchronous QMP events like SHUTDOWN, STOP, RESUME, BLOCK_JOB_COMPLETED.
+	 * It is called on the selector thread of the QmpClient, and must not block.
+	 */
+	public interface QmpEventListener {
+
+		/**
+		 * Called for each event received.
+		 *
+		 * @param connection	the connection receiving the event
+		 * @param event			the name of the event
+		 * @param data			the data of the event, may be empty
+		 */
+		void qmpEvent(QmpConnection connection, String event, Map<String, Object> data);
+	}
+}
@@ -0,0 +1,665 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.Message.*;
+
+/**
+ * The internal (qcow2) snapshots of the VMs.
+ *
+ * <p>The catalog of a VM is read from the snapshot table of its disk (Qcow2Image, cached as long
+ * as the file is unchanged), no process is spawned for a listing. The lineage of the snapshots
+ * (the snapshot a snapshot has been taken from) is not stored in qcow2, it is kept in the
+ * properties SNAPSHOT_PARENTS and SNAPSHOT_CURRENT of the VM, to show the snapshots as tree.</p>
+ *
+ * Snapshots of a stopped VM are created, reverted and deleted by "qemu-img snapshot", snapshots
+ * of a running VM by the QMP jobs snapshot-save, snapshot-load and snapshot-delete (including
+ * the VM state). All operations run asynchronously as a Job, reporting their progress.
+ */
+public class SnapshotManager {
+
+	public static final long JOB_POLL_MILLIS = 200;			// query-jobs interval of live snapshot jobs
+	public static final long JOB_TIMEOUT_MILLIS = 0;		// qemu-img: no timeout, the VM state may be large
+	public static final Pattern NAME_PATTERN = Pattern.compile("[\\w .+-]{1,64}");
+
+	private final Map<VM, Catalog> catalogMap = new ConcurrentHashMap<>();
+	private final AtomicLong nextJobId = new AtomicLong();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "SnapshotJobs");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Waits for a QMP job to conclude, polling query-jobs for its status and progress.
+	 * The concluded job is dismissed.
+	 *
+	 * @param job
+	 * @param qmpConnection
+	 * @param jobId				the QMP job id
+	 * @return the future, completing exceptionally if the job fails
+	 */
+	private CompletableFuture<Boolean> awaitQmpJob(Job job, QmpConnection qmpConnection, String jobId) {
+
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		scheduler.schedule(() -> pollQmpJob(job, qmpConnection, jobId, future), JOB_POLL_MILLIS,
+				TimeUnit.MILLISECONDS);
+		return future;
+	}
+
+	/**
+	 * Checks if an operation is possible for a VM.
+	 * The disk of a base VM of linked clones must not be reverted, a running base VM uses a
+	 * temporary overlay (-snapshot).
+	 *
+	 * @param vm
+	 * @param operation
+	 * @param hasClones			true, if the VM has linked clones
+	 * @return null, if possible, the reason otherwise
+	 */
+	public String check(VM vm, Operation operation, boolean hasClones) {
+
+		if (!getCatalog(vm).isSupported()) {
+			return Msg.get(SNAPSHOT_NO_QCOW2_MSG, vm.getName());
+		}
+		if (vm.isDiskBusy() || vm.isStopping()) {
+			return Msg.get(SNAPSHOT_VM_BUSY_MSG, vm.getName());
+		}
+		if (hasClones && (vm.isRunning() || operation == Operation.REVERT)) {
+			return Msg.get(SNAPSHOT_CLONE_BASE_MSG, vm.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the QMP node name of the disk of a running VM (query-block).
+	 *
+	 * @param qmpConnection
+	 * @param diskPath
+	 * @return the future of the node name, completing exceptionally if not found
+	 */
+	@SuppressWarnings("unchecked")
+	private CompletableFuture<String> findNodeName(QmpConnection qmpConnection, String diskPath) {
+
+		return qmpConnection.execute("query-block").thenApply(result -> {
+			String canonicalPath = toCanonicalPath(diskPath);
+			for (Object block : (List<Object>) result) {
+				Object inserted = ((Map<String, Object>) block).get("inserted");
+				String file = Json.getString(inserted, "file");
+				if (file != null && toCanonicalPath(file).equals(canonicalPath)) {
+					return Json.getString(inserted, "node-name");
+				}
+			}
+			throw new CompletionException(new IOException("no block node for " + diskPath));
+		});
+	}
+
+	/**
+	 * Gets the snapshot catalog of a VM. It is rebuilt only if the disk or the lineage has
+	 * changed since the last call.
+	 *
+	 * @param vm
+	 * @return the catalog, not supported if the VM has no qcow2 disk
+	 */
+	public Catalog getCatalog(VM vm) {
+
+		Qcow2Image image = Qcow2Image.get(getDiskPath(vm));
+		String parents = vm.getProperty(VMProperties.SNAPSHOT_PARENTS);
+		String current = vm.getProperty(VMProperties.SNAPSHOT_CURRENT);
+		Catalog catalog = catalogMap.get(vm);
+		if (catalog == null || catalog.image != image || !catalog.parents.equals(parents)
+				|| !catalog.current.equals(current)) {
+			catalog = new Catalog(image, parents, current);
+			catalogMap.put(vm, catalog);
+		}
+		return catalog;
+	}
+
+	/**
+	 * @param vm
+	 * @return the path of the disk of the VM (hda)
+	 */
+	private String getDiskPath(VM vm) {
+
+		return Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator + vm.getDriveHdaName();
+	}
+
+	/**
+	 * Parses the property SNAPSHOT_PARENTS ("name=parent;...").
+	 *
+	 * @param parents
+	 * @return the parent by name
+	 */
+	private static LinkedHashMap<String, String> parseParents(String parents) {
+
+		LinkedHashMap<String, String> parentMap = new LinkedHashMap<>();
+		for (String entry : parents.split(";")) {
+			int index = entry.indexOf('=');
+			if (index > 0) {
+				parentMap.put(entry.substring(0, index), entry.substring(index + 1));
+			}
+		}
+		return parentMap;
+	}
+
+	/**
+	 * Polls the status and progress of a QMP job, reschedules itself until the job has concluded.
+	 *
+	 * @param job
+	 * @param qmpConnection
+	 * @param jobId
+	 * @param future			completed if the job has concluded
+	 */
+	@SuppressWarnings("unchecked")
+	private void pollQmpJob(Job job, QmpConnection qmpConnection, String jobId, CompletableFuture<Boolean> future) {
+
+		qmpConnection.execute("query-jobs").thenAccept(result -> {
+			Map<String, Object> info = null;
+			for (Object qmpJob : (List<Object>) result) {
+				if (jobId.equals(Json.getString(qmpJob, "id"))) {
+					info = (Map<String, Object>) qmpJob;
+				}
+			}
+			if (info == null) {
+				future.completeExceptionally(new IOException("QMP job " + jobId + " has vanished"));
+				return;
+			}
+			Object current = info.get("current-progress");
+			Object total = info.get("total-progress");
+			if (current instanceof Number && total instanceof Number && ((Number) total).longValue() > 0) {
+				job.setPercent((int) (((Number) current).longValue() * 100 / ((Number) total).longValue()));
+			}
+			if (!"concluded".equals(Json.getString(info, "status"))) {
+				scheduler.schedule(() -> pollQmpJob(job, qmpConnection, jobId, future), JOB_POLL_MILLIS,
+						TimeUnit.MILLISECONDS);
+				return;
+			}
+			String error = Json.getString(info, "error");
+			qmpConnection.execute("job-dismiss", Map.of("id", jobId));
+			if (error != null) {
+				future.completeExceptionally(new IOException(error));
+			} else {
+				future.complete(true);
+			}
+		}).exceptionally(e -> {
+			future.completeExceptionally(e);
+			return null;
+		});
+	}
+
+	/**
+	 * Runs a job of a running VM by QMP.
+	 *
+	 * @param job
+	 * @return the future, completing exceptionally on errors
+	 */
+	private CompletableFuture<Boolean> runLive(Job job) {
+
+		QmpConnection qmpConnection = job.getVm().getQmpConnection();
+		if (qmpConnection == null) {
+			return CompletableFuture.failedFuture(new IOException("no QMP connection"));
+		}
+		String jobId = "snapshot-" + nextJobId.incrementAndGet();
+		Operation operation = job.getOperation();
+		return findNodeName(qmpConnection, getDiskPath(job.getVm())).thenCompose(nodeName -> {
+			LinkedHashMap<String, Object> args = new LinkedHashMap<>();
+			args.put("job-id", jobId);
+			args.put("tag", job.getName());
+			if (operation != Operation.DELETE) {
+				args.put("vmstate", nodeName);
+			}
+			args.put("devices", List.of(nodeName));
+			return qmpConnection.execute(operation.getQmpCommand(), args);
+		}).thenCompose(result -> awaitQmpJob(job, qmpConnection, jobId));
+	}
+
+	/**
+	 * Runs a job of a stopped VM by qemu-img.
+	 *
+	 * @param job
+	 * @return the future, completing exceptionally on errors
+	 */
+	private CompletableFuture<Boolean> runQemuImg(Job job) {
+
+		VM vm = job.getVm();
+		String[] cmd = { Qemu.getQemuImg(), "snapshot", job.getOperation().getQemuImgOption(),
+				job.getName(), getDiskPath(vm) };
+		String cmdString = String.join(" ", cmd);
+		Logger.info("executing: " + cmdString);
+		vm.verbose("executing: " + cmdString);
+		return ProcessExecutor.execute(JOB_TIMEOUT_MILLIS, (line, isStdErr) -> vm.verbose(line), cmd)
+				.thenApply(procExec -> {
+					if (procExec.getExitValue() != 0) {
+						throw new CompletionException(new IOException("exit value " + procExec.getExitValue()
+								+ ":\n" + procExec.getErrorOutput()));
+					}
+					return true;
+				});
+	}
+
+	/**
+	 * Starts a snapshot operation: by QMP if the VM is running, by qemu-img otherwise.
+	 * The disk of the VM is busy until the job is done, the lineage is updated if it succeeds.
+	 *
+	 * @param vm
+	 * @param operation
+	 * @param name				the name (tag) of the snapshot
+	 * @param listener			called on progress and completion (any thread), may be null
+	 * @return the job
+	 */
+	public Job start(VM vm, Operation operation, String name, Consumer<Job> listener) {
+
+		Job job = new Job(vm, operation, name, vm.isRunning(), listener);
+		Logger.info("SnapshotManager: " + operation + " '" + name + "' of the VM '" + vm.getName()
+				+ (job.isLive() ? "' (live)" : "'"));
+		long startNanos = System.nanoTime();
+		vm.setDiskBusy(true);
+		CompletableFuture<Boolean> future;
+		try {
+			future = job.isLive() ? runLive(job) : runQemuImg(job);
+		} catch (RuntimeException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+		future.handle((isDone, e) -> {
+			vm.setDiskBusy(false);
+			if (e != null) {
+				Logger.error("SnapshotManager: " + operation + " '" + name + "' of the VM '"
+						+ vm.getName() + "' failed: " + e.getMessage());
+				job.finish(false);
+				return false;
+			}
+			updateLineage(vm, operation, name);
+			Logger.info("SnapshotManager: " + operation + " '" + name + "' of the VM '" + vm.getName()
+					+ "' done (" + (System.nanoTime() - startNanos) / 1000000 + " ms)");
+			job.finish(true);
+			return true;
+		});
+		return job;
+	}
+
+	/**
+	 * @param path
+	 * @return the canonical path or the absolute path, if not resolvable
+	 */
+	private static String toCanonicalPath(String path) {
+
+		try {
+			return new File(path).getCanonicalPath();
+		} catch (IOException e) {
+			return new File(path).getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Updates the lineage of the snapshots of a VM after a successful operation:
+	 * a new snapshot is a child of the current one and becomes current, a reverted one becomes
+	 * current, the children of a deleted one get its parent.
+	 *
+	 * @param vm
+	 * @param operation
+	 * @param name
+	 */
+	private void updateLineage(VM vm, Operation operation, String name) {
+
+		LinkedHashMap<String, String> parentMap = parseParents(vm.getProperty(VMProperties.SNAPSHOT_PARENTS));
+		String current = vm.getProperty(VMProperties.SNAPSHOT_CURRENT);
+		switch (operation) {
+		case CREATE:
+			parentMap.remove(name);
+			if (NAME_PATTERN.matcher(current).matches()) {
+				parentMap.put(name, current);
+			}
+			current = name;
+			break;
+		case REVERT:
+			current = name;
+			break;
+		case DELETE:
+			String parent = parentMap.remove(name);
+			parentMap.replaceAll((child, childParent) ->
+					childParent.equals(name) ? (parent != null ? parent : "") : childParent);
+			parentMap.values().removeIf(String::isEmpty);
+			if (current.equals(name)) {
+				current = parent != null ? parent : "";
+			}
+			break;
+		}
+		StringBuilder sb = new StringBuilder();
+		parentMap.forEach((child, parent) -> sb.append(sb.length() > 0 ? ";" : "").append(child)
+				.append('=').append(parent));
+		vm.setProperty(VMProperties.SNAPSHOT_PARENTS, sb.toString());
+		vm.setProperty(VMProperties.SNAPSHOT_CURRENT, current);
+		PersistenceService.markDirty(vm.getVmProperties());
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * The snapshots of a VM, indexed by name and arranged as tree by their lineage.
+	 */
+	public static class Catalog {
+
+		private Qcow2Image image;
+		private String parents;
+		private String current;
+		private LinkedHashMap<String, Node> nodeMap = new LinkedHashMap<>();
+		private ArrayList<Node> rootList = new ArrayList<>();
+
+		/**
+		 * Construction.
+		 *
+		 * @param image			the disk or null, if it is not a qcow2 image
+		 * @param parents		the property SNAPSHOT_PARENTS
+		 * @param current		the property SNAPSHOT_CURRENT
+		 */
+		Catalog(Qcow2Image image, String parents, String current) {
+
+			this.image = image;
+			this.parents = parents;
+			this.current = current;
+			if (image == null) {
+				return;
+			}
+			ArrayList<Qcow2Image.Snapshot> snapshotList = new ArrayList<>(image.getSnapshotList());
+			snapshotList.sort(Comparator.comparingLong(Qcow2Image.Snapshot::getDateMillis));
+			for (Qcow2Image.Snapshot snapshot : snapshotList) {
+				nodeMap.putIfAbsent(snapshot.getName(), new Node(snapshot));
+			}
+			// a parent has to be older than its child, that excludes cycles
+			Map<String, String> parentMap = parseParents(parents);
+			ArrayList<Node> attachedList = new ArrayList<>();
+			for (Node node : nodeMap.values()) {
+				Node parent = nodeMap.get(parentMap.getOrDefault(node.getName(), ""));
+				if (parent != null && attachedList.contains(parent)) {
+					parent.childList.add(node);
+					node.parent = parent;
+				} else {
+					rootList.add(node);
+				}
+				attachedList.add(node);
+			}
+		}
+
+		/**
+		 * @param name
+		 * @return the snapshot node or null, if not existing
+		 */
+		public Node get(String name) {
+
+			return nodeMap.get(name);
+		}
+
+		/**
+		 * @return the current snapshot (created or reverted to last) or null
+		 */
+		public Node getCurrent() {
+
+			return nodeMap.get(current);
+		}
+
+		/**
+		 * @return the snapshots without (known) parent, oldest first
+		 */
+		public List<Node> getRoots() {
+
+			return rootList;
+		}
+
+		/**
+		 * @return the number of snapshots
+		 */
+		public int getSize() {
+
+			return nodeMap.size();
+		}
+
+		/**
+		 * @return true, if the VM has a qcow2 disk
+		 */
+		public boolean isSupported() {
+
+			return image != null;
+		}
+	}
+
+	/**
+	 * A snapshot operation in progress.
+	 */
+	public static class Job {
+
+		private VM vm;
+		private Operation operation;
+		private String name;
+		private boolean isLive;
+		private Consumer<Job> listener;
+		private volatile int percent = -1;
+		private CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+		Job(VM vm, Operation operation, String name, boolean isLive, Consumer<Job> listener) {
+
+			this.vm = vm;
+			this.operation = operation;
+			this.name = name;
+			this.isLive = isLive;
+			this.listener = listener;
+		}
+
+		/**
+		 * Completes the job.
+		 *
+		 * @param isDone		true, if successful
+		 */
+		void finish(boolean isDone) {
+
+			if (isDone) {
+				percent = 100;
+			}
+			future.complete(isDone);
+			if (listener != null) {
+				listener.accept(this);
+			}
+		}
+
+		/**
+		 * @return the future, completing with true if successful
+		 */
+		public CompletableFuture<Boolean> getFuture() {
+
+			return future;
+		}
+
+		/**
+		 * @return the name of the snapshot
+		 */
+		public String getName() {
+
+			return name;
+		}
+
+		/**
+		 * @return the operation
+		 */
+		public Operation getOperation() {
+
+			return operation;
+		}
+
+		/**
+		 * @return the progress in percent, -1 if unknown (qemu-img does not report it)
+		 */
+		public int getPercent() {
+
+			return percent;
+		}
+
+		/**
+		 * @return the VM
+		 */
+		public VM getVm() {
+
+			return vm;
+		}
+
+		/**
+		 * @return true, if the job is done
+		 */
+		public boolean isDone() {
+
+			return future.isDone();
+		}
+
+		/**
+		 * @return true, if the VM is running (QMP), false for qemu-img
+		 */
+		public boolean isLive() {
+
+			return isLive;
+		}
+
+		/**
+		 * Sets the progress and notifies the listener.
+		 *
+		 * @param percent
+		 */
+		void setPercent(int percent) {
+
+			if (percent != this.percent) {
+				this.percent = percent;
+				if (listener != null) {
+					listener.accept(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A snapshot of the catalog with its children.
+	 */
+	public static class Node {
+
+		private Qcow2Image.Snapshot snapshot;
+		private Node parent;
+		private ArrayList<Node> childList = new ArrayList<>();
+
+		Node(Qcow2Image.Snapshot snapshot) {
+
+			this.snapshot = snapshot;
+		}
+
+		/**
+		 * @return the snapshots taken from this one, oldest first
+		 */
+		public List<Node> getChildren() {
+
+			return childList;
+		}
+
+		/**
+		 * @return the name (tag)
+		 */
+		public String getName() {
+
+			return snapshot.getName();
+		}
+
+		/**
+		 * @return the parent or null
+		 */
+		public Node getParent() {
+
+			return parent;
+		}
+
+		/**
+		 * @return the snapshot table entry
+		 */
+		public Qcow2Image.Snapshot getSnapshot() {
+
+			return snapshot;
+		}
+
+		@Override
+		public String toString() {
+
+			String text = snapshot.getName() + "   " + Util.DATE_FORMAT1.format(new Date(snapshot.getDateMillis()));
+			if (snapshot.getVmStateSize() > 0) {
+				text += "   " + Msg.get(SNAPSHOT_VM_STATE_MSG, Util.formatSize(snapshot.getVmStateSize()));
+			}
+			return text;
+		}
+	}
+
+	/**
+	 * The snapshot operations.
+	 */
+	public enum Operation {
+
+		CREATE("-c", "snapshot-save", SNAPSHOT_OP_CREATE_MSG),
+		REVERT("-a", "snapshot-load", SNAPSHOT_OP_REVERT_MSG),
+		DELETE("-d", "snapshot-delete", SNAPSHOT_OP_DELETE_MSG);
+
+		private String qemuImgOption;
+		private String qmpCommand;
+		private Message message;
+
+		Operation(String qemuImgOption, String qmpCommand, Message message) {
+
+			this.qemuImgOption = qemuImgOption;
+			this.qmpCommand = qmpCommand;
+			this.message = message;
+		}
+
+		/**
+		 * @return the localized name of the operation
+		 */
+		public String getDisplayName() {
+
+			return Msg.get(message);
+		}
+
+		/**
+		 * @return the option of "qemu-img snapshot"
+		 */
+		public String getQemuImgOption() {
+
+			return qemuImgOption;
+		}
+
+		/**
+		 * @return the QMP command (a job)
+		 */
+		public String getQmpCommand() {
+
+			return qmpCommand;
+		}
+	}
+}
@@ -22,7 +22,9 @@
  */
 package qemujuicy.vm;
 
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashMap;
 
 /**
  * Enumeration of sound hardware used by QEMU. 
@@ -45,6 +47,7 @@ public enum Sound {
 	
 	public static final EnumSet<Sound> ALL = EnumSet.allOf(Sound.class);
 	public static final Sound[] ARRAY = ALL.toArray(new Sound[0]);
+	private static final HashMap<String, Integer> INDEX_MAP = createIndexMap();	// name -> index
 	
 	private String name;
 	private String[] qemuParameters;
@@ -61,6 +64,18 @@ public enum Sound {
 		this.qemuParameters = qemuParameters;
 	}
 
+	/**
+	 * @return the map of the names to the JComboBox selection index
+	 */
+	private static HashMap<String, Integer> createIndexMap() {
+		
+		HashMap<String, Integer> indexMap = new HashMap<>();
+		for (int i = 0; i < ARRAY.length; i++) {
+			indexMap.put(ARRAY[i].name(), i);
+		}
+		return indexMap;
+	}
+
 	/**
 	 * Finds the JComboBox selection index for the sound method/card of a VM.
 	 * 
@@ -74,12 +89,7 @@ public enum Sound {
 			// Sound.NONE value
 			return 0;
 		}
-		for (int i = 0; i < ARRAY.length; i++) {
-			if (ARRAY[i].name().equals(sound)) {
-				return i;
-			}
-		}
-		return 0;
+		return INDEX_MAP.getOrDefault(sound, 0);
 	}
 
 	/**
@@ -102,6 +112,17 @@ public enum Sound {
 		return array;
 	}
 	
+	/**
+	 * Checks if this sound method/card (audio driver and devices) is supported by an emulator.
+	 * 
+	 * @param capabilities		the capabilities of the emulator
+	 * @return true, if supported, false otherwise
+	 */
+	public boolean isSupportedBy(QemuCapabilities capabilities) {
+		
+		return capabilities.findUnsupported(Arrays.asList(qemuParameters)) == null;
+	}
+	
 	/**
 	 * @param index
 	 * @return the name of the sound
@@ -0,0 +1,439 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.Message.*;
+
+/**
+ * The golden image templates, stored in the subdirectory "templates" of the VM directory.
+ *
+ * <p>A template consists of a prototype (VMProperties without the identity of a VM, stored in
+ * "templates/&lt;name&gt;.xml") and a read-only disk per version ("templates/&lt;name&gt;-vN.qcow2").
+ * The VMs created from a template (instances) have a qcow2 overlay, whose backing file is the
+ * template disk. The properties TEMPLATE and TEMPLATE_VERSION of an instance track, which
+ * template version it depends on.</p>
+ *
+ * A template is updated by promoting one of its instances again, that creates a new version.
+ * The instances still use the old version until the update is rolled out: the overlay of an
+ * instance is replaced by a new overlay of the new version, the old overlay is kept
+ * ("&lt;disk&gt;.vN") as long as the user does not delete it.
+ */
+public class TemplateLibrary {
+
+	public static final String DIR_NAME = "templates";
+	public static final int INSTANCE_THREADS = 8;			// instances created in parallel
+	public static final long CONVERT_TIMEOUT_MILLIS = 0;	// no timeout, converting a disk may take long
+	// the disk and the MAC address of an instance within the full QEMU definition of a prototype
+	public static final String DISK_PLACEHOLDER = "${drive.hda.name}";
+	public static final String MAC_PLACEHOLDER = "${mac.address}";
+
+	private VMManager vmManager;
+	private String vmDir;
+	private TreeMap<String, Template> templateMap = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+	/**
+	 * Construction, loads the templates.
+	 *
+	 * @param vmManager
+	 * @param vmDir			the VM directory
+	 */
+	public TemplateLibrary(VMManager vmManager, String vmDir) {
+
+		this.vmManager = vmManager;
+		this.vmDir = vmDir;
+		load();
+	}
+
+	/**
+	 * Creates an overlay disk of a template version.
+	 *
+	 * @param diskName		the overlay (within the VM directory)
+	 * @param template
+	 * @param version
+	 * @throws IOException
+	 */
+	private void createOverlay(String diskName, Template template, int version) throws IOException {
+
+		new Qcow2Writer(vmDir + File.separator + diskName, 0)
+				.setLazyRefcounts(Main.getPropertyBool(AppProperties.DISK_LAZY_REFCOUNTS))
+				.setBackingFile(template.getDiskName(version), "qcow2")
+				.create();
+	}
+
+	/**
+	 * Creates VMs from a template in parallel: each gets a free name ("&lt;template&gt; N"), a unique
+	 * MAC address and its own overlay of the current template disk. The VMs are not added to
+	 * the VM manager.
+	 *
+	 * @param template
+	 * @param count			the number of VMs
+	 * @return the new VMs (fewer than count, if some failed)
+	 */
+	public List<VM> createInstances(Template template, int count) {
+
+		long startMillis = System.currentTimeMillis();
+		// reserve the names and MAC addresses first, then create the disks and files in parallel
+		ArrayList<String> nameList = new ArrayList<>();
+		LinkedHashSet<String> macSet = new LinkedHashSet<>();
+		for (int n = 1; nameList.size() < count; n++) {
+			String name = Msg.get(TEMPLATE_INSTANCE_NAME_MSG, template.getName(), "" + n);
+			if (vmManager.isNameFree(name)) {
+				nameList.add(name);
+				macSet.add(vmManager.createMacAddress(macSet));
+			}
+		}
+		Iterator<String> macIterator = macSet.iterator();
+		int threads = Math.max(1, Math.min(count, INSTANCE_THREADS));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "templateInstance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ArrayList<Future<VM>> futureList = new ArrayList<>();
+		for (String name : nameList) {
+			String mac = macIterator.next();
+			futureList.add(executor.submit(() -> createInstance(template, name, mac)));
+		}
+		executor.shutdown();
+		ArrayList<VM> vmList = new ArrayList<>();
+		for (int i = 0; i < futureList.size(); i++) {
+			try {
+				vmList.add(futureList.get(i).get());
+			} catch (Exception e) {
+				Logger.error("TemplateLibrary: cannot create VM '" + nameList.get(i) + "' from template '"
+						+ template.getName() + "'", e instanceof ExecutionException ? e.getCause() : e);
+			}
+		}
+		Logger.info("TemplateLibrary: created " + vmList.size() + " of " + count + " VMs from template '"
+				+ template.getName() + "' v" + template.getVersion() + " in "
+				+ (System.currentTimeMillis() - startMillis) + "ms on " + threads + " threads");
+		return vmList;
+	}
+
+	/**
+	 * Creates a VM from a template: its properties file and its overlay disk.
+	 *
+	 * @param template
+	 * @param name			the free name of the VM
+	 * @param mac			the unique MAC address
+	 * @return the VM
+	 * @throws Exception
+	 */
+	private VM createInstance(Template template, String name, String mac) throws Exception {
+
+		String nameSafe = name.replace(" ", "_");
+		String filename = nameSafe + ".xml";
+		String diskName = nameSafe + ".qcow2";
+		VMProperties vmProperties = new VMProperties(vmDir + File.separator + filename, false);
+		vmProperties.putAll(template.getPrototype());
+		vmProperties.setProperty(VMProperties.VM_ID, VMRegistry.createId());
+		vmProperties.setProperty(VMProperties.VM_NAME, name);
+		vmProperties.setProperty(VMProperties.VM_NAME_SAFE, nameSafe);
+		vmProperties.setProperty(VMProperties.VM_FILENAME, filename);
+		vmProperties.setProperty(VMProperties.DRIVE_HDA_NAME, diskName);
+		vmProperties.setProperty(VMProperties.MAC_ADDRESS, mac);
+		if (vmProperties.getPropertyBool(VMProperties.FULL_QEMU_DEFINITION)
+				&& !vmProperties.getProperty(VMProperties.FULL_QEMU_DEFINITION_CMD).contains(DISK_PLACEHOLDER)) {
+			// a prototype of an older release: the definition would use the disk of another VM
+			Logger.warning("TemplateLibrary: full QEMU definition of template '" + template.getName()
+					+ "' not used by VM '" + name + "'");
+			vmProperties.setProperty(VMProperties.FULL_QEMU_DEFINITION, "false");
+		}
+		vmProperties.rewriteFullDefinition(DISK_PLACEHOLDER, diskName, MAC_PLACEHOLDER, mac);
+		createOverlay(diskName, template, template.getVersion());
+		vmProperties.storeToXML();
+		return new VM(vmProperties);
+	}
+
+	/**
+	 * @param name
+	 * @return the template or null, if not found
+	 */
+	public synchronized Template get(String name) {
+
+		return templateMap.get(name);
+	}
+
+	/**
+	 * @param template
+	 * @return the VMs created from the template (any version)
+	 */
+	public List<VM> getInstances(Template template) {
+
+		ArrayList<VM> instanceList = new ArrayList<>();
+		for (VM vm : vmManager.getVmList()) {
+			if (template.getName().equals(vm.getProperty(VMProperties.TEMPLATE))) {
+				instanceList.add(vm);
+			}
+		}
+		return instanceList;
+	}
+
+	/**
+	 * @return the templates, sorted by name
+	 */
+	public synchronized List<Template> getTemplates() {
+
+		return new ArrayList<>(templateMap.values());
+	}
+
+	/**
+	 * Loads the prototypes of the templates directory.
+	 */
+	private synchronized void load() {
+
+		File[] files = new File(vmDir, DIR_NAME).listFiles((dir, name) -> name.endsWith(".xml"));
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			try {
+				Template template = new Template(new VMProperties(file.getPath(), true));
+				templateMap.put(template.getName(), template);
+			} catch (Exception e) {
+				Logger.error("TemplateLibrary: cannot load template " + file, e);
+			}
+		}
+		Logger.info("TemplateLibrary: " + templateMap.size() + " templates");
+	}
+
+	/**
+	 * Promotes a stopped VM to a template or to a new version of the template: its disk becomes
+	 * the read-only template disk and the VM continues as instance of the template, using a new
+	 * overlay. The disk of an instance is merged with its backing chain by qemu-img, the disk of
+	 * another VM is moved. Runs on a background thread, the VM must not be used meanwhile.
+	 *
+	 * @param vm			the stopped VM (not a linked clone, no linked clones)
+	 * @param name			the name of the template
+	 * @return the template
+	 * @throws IOException
+	 */
+	public Template promote(VM vm, String name) throws IOException {
+
+		long startMillis = System.currentTimeMillis();
+		Template template = get(name);
+		int version = template == null ? 1 : template.getVersion() + 1;
+		String nameSafe = template == null ? name.replace(" ", "_") : template.getNameSafe();
+		Path dirPath = Paths.get(vmDir, DIR_NAME);
+		java.nio.file.Files.createDirectories(dirPath);
+		String diskName = vm.getDriveHdaName();
+		Path diskPath = Paths.get(vmDir, diskName);
+		Path templateDiskPath = dirPath.resolve(nameSafe + "-v" + version + ".qcow2");
+		Qcow2Image image = Qcow2Image.get(diskPath.toString());
+		if (image == null) {
+			throw new IOException("no qcow2 disk: " + diskPath);
+		}
+		if (image.getBackingFile() == null) {
+			java.nio.file.Files.move(diskPath, templateDiskPath);
+		} else {
+			// merge the overlay and its backing chain into one image
+			String[] cmd = { Qemu.getQemuImg(), "convert", "-O", "qcow2", diskPath.toString(),
+					templateDiskPath.toString() };
+			Logger.info("executing: " + String.join(" ", cmd));
+			try {
+				ProcessExecutor procExec = ProcessExecutor.execute(CONVERT_TIMEOUT_MILLIS, null, cmd).get();
+				if (procExec.getExitValue() != 0) {
+					throw new IOException("qemu-img convert failed: " + procExec.getErrorOutput());
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				java.nio.file.Files.deleteIfExists(templateDiskPath);
+				throw new IOException("qemu-img convert failed", e);
+			}
+			java.nio.file.Files.delete(diskPath);		// merged into the template disk
+		}
+		templateDiskPath.toFile().setReadOnly();
+		// the prototype: the properties without the identity of the VM
+		VMProperties prototype;
+		try {
+			prototype = new VMProperties(dirPath.resolve(nameSafe + ".xml").toString(), false);
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		prototype.putAll(vm.getVmProperties());
+		prototype.setProperty(VMProperties.VM_NAME, name);
+		prototype.setProperty(VMProperties.VM_NAME_SAFE, nameSafe);
+		for (String key : new String[] { VMProperties.VM_ID, VMProperties.VM_FILENAME,
+				VMProperties.DRIVE_HDA_NAME, VMProperties.MAC_ADDRESS, VMProperties.CLONE_OF }) {
+			prototype.setProperty(key, "");
+		}
+		// a full definition refers to the disk and the MAC address of each instance
+		prototype.rewriteFullDefinition(diskName, DISK_PLACEHOLDER, vm.getMacAddress(), MAC_PLACEHOLDER);
+		prototype.setProperty(VMProperties.AUTOSTART, "false");
+		prototype.setProperty(VMProperties.TEMPLATE, name);
+		prototype.setProperty(VMProperties.TEMPLATE_VERSION, version);
+		prototype.storeToXML();
+		template = new Template(prototype);
+		synchronized (this) {
+			templateMap.put(name, template);
+		}
+		// the VM continues as an instance
+		createOverlay(diskName, template, version);
+		vm.setProperty(VMProperties.TEMPLATE, name);
+		vm.setProperty(VMProperties.TEMPLATE_VERSION, "" + version);
+		PersistenceService.markDirty(vm.getVmProperties());
+		Logger.info("TemplateLibrary: VM '" + vm.getName() + "' promoted to template '" + name + "' v"
+				+ version + " in " + (System.currentTimeMillis() - startMillis) + "ms");
+		return template;
+	}
+
+	/**
+	 * Rolls out the current version of a template: each stopped instance using an older version
+	 * gets a new overlay of the current template disk (in parallel). The old overlay is kept as
+	 * "&lt;disk&gt;.vN". Running or busy instances and instances with linked clones are skipped.
+	 *
+	 * @param template
+	 * @return the updated instances
+	 */
+	public List<VM> rollout(Template template) {
+
+		long startMillis = System.currentTimeMillis();
+		int version = template.getVersion();
+		ArrayList<VM> updateList = new ArrayList<>();
+		for (VM vm : getInstances(template)) {
+			int vmVersion = vm.getVmProperties().getPropertyInt(VMProperties.TEMPLATE_VERSION);
+			if (vmVersion >= version) {
+				continue;
+			}
+			if (vm.isRunningAnywhere() || vm.isDiskBusy() || !vmManager.getClones(vm).isEmpty()) {
+				Logger.warning("TemplateLibrary: VM '" + vm.getName() + "' skipped, it is running or in use");
+				continue;
+			}
+			updateList.add(vm);
+		}
+		int threads = Math.max(1, Math.min(updateList.size(), INSTANCE_THREADS));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "templateRollout");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ArrayList<Future<?>> futureList = new ArrayList<>();
+		for (VM vm : updateList) {
+			futureList.add(executor.submit(() -> {
+				String diskName = vm.getDriveHdaName();
+				int vmVersion = vm.getVmProperties().getPropertyInt(VMProperties.TEMPLATE_VERSION);
+				Path diskPath = Paths.get(vmDir, diskName);
+				Path keptPath = Paths.get(vmDir, diskName + ".v" + vmVersion);
+				java.nio.file.Files.move(diskPath, keptPath);
+				try {
+					createOverlay(diskName, template, version);
+				} catch (IOException e) {
+					java.nio.file.Files.move(keptPath, diskPath);
+					throw e;
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+		ArrayList<VM> updatedList = new ArrayList<>();
+		for (int i = 0; i < updateList.size(); i++) {
+			VM vm = updateList.get(i);
+			try {
+				futureList.get(i).get();
+				vm.setProperty(VMProperties.TEMPLATE_VERSION, "" + version);
+				PersistenceService.markDirty(vm.getVmProperties());
+				updatedList.add(vm);
+			} catch (Exception e) {
+				Logger.error("TemplateLibrary: cannot update VM '" + vm.getName() + "' to template '"
+						+ template.getName() + "' v" + version, e instanceof ExecutionException ? e.getCause() : e);
+			}
+		}
+		Logger.info("TemplateLibrary: template '" + template.getName() + "' v" + version + " rolled out to "
+				+ updatedList.size() + " of " + updateList.size() + " VMs in "
+				+ (System.currentTimeMillis() - startMillis) + "ms");
+		return updatedList;
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * A template: the prototype properties and the versions of its disk.
+	 */
+	public class Template {
+
+		private VMProperties prototype;
+
+		/**
+		 * Construction.
+		 *
+		 * @param prototype		the prototype properties (TEMPLATE_VERSION is the current version)
+		 */
+		Template(VMProperties prototype) {
+
+			this.prototype = prototype;
+		}
+
+		/**
+		 * @param version
+		 * @return the disk of a version, relative to the VM directory
+		 */
+		public String getDiskName(int version) {
+
+			return DIR_NAME + File.separator + getNameSafe() + "-v" + version + ".qcow2";
+		}
+
+		/**
+		 * @return the name of the template
+		 */
+		public String getName() {
+
+			return prototype.getProperty(VMProperties.TEMPLATE);
+		}
+
+		/**
+		 * @return the name of the template, spaces replaced by underscores
+		 */
+		public String getNameSafe() {
+
+			return prototype.getProperty(VMProperties.VM_NAME_SAFE);
+		}
+
+		/**
+		 * @return the prototype properties of the VMs created from the template
+		 */
+		public VMProperties getPrototype() {
+
+			return prototype;
+		}
+
+		/**
+		 * @return the current version
+		 */
+		public int getVersion() {
+
+			return prototype.getPropertyInt(VMProperties.TEMPLATE_VERSION);
+		}
+
+		@Override
+		public String toString() {
+
+			return getName() + " (v" + getVersion() + ")";
+		}
+	}
+}
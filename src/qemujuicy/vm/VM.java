@@ -22,7 +22,9 @@
  */
 package qemujuicy.vm;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.swing.*;
 
@@ -68,13 +70,36 @@ public class VM {
 	
 	// all available OS types (by name)
 	public static final String[] OS_NAMES = OSType.toArray();
+	// the MAC address of VMs created by older releases (no MAC_ADDRESS property)
+	public static final String DEFAULT_MAC_ADDRESS = "52:54:98:76:54:32";
+
+	/**
+	 * The reason of the last exit of a VM.
+	 */
+	public enum ExitReason {
+
+		NONE,				// not exited since QemuJuicy started
+		EXITED,				// QEMU exited with exit code 0 (e.g. guest shutdown)
+		FAILED,				// QEMU exited with an exit code != 0
+		STOPPED,			// stopped on request (ACPI shutdown or QMP quit)
+		KILLED,				// stopped on request, QEMU had to be terminated
+	}
 
 	private VMProperties vmProperties;
-	private Process process;					// the process running this VM, if running
+	private volatile Process process;			// the process running this VM, if running
+	private volatile VMOutputSink outputSink;	// the output of the last run, if any
+	private volatile QmpConnection qmpConnection;	// the QMP control channel, if running
 	private ArrayList<VMDevice> vmDeviceList;		// the devices of this VM
+	private volatile QemuCommand command;		// the cached QEMU command (Qemu.getCommand())
 
-	private ImageIcon imageIcon;
-	private boolean isRunning;					// indicates if the VM has been started
+	private ImageIcon imageIcon;				// lazy creation, not needed in headless mode
+	private volatile boolean isRunning;			// indicates if the VM has been started
+	private volatile boolean isDiskBusy;		// a background job (e.g. flatten) works on the disk
+	private volatile long startTimeMillis;		// wall-clock time of the last start
+	private volatile long uptimeMillis;			// wall-clock uptime of the last run
+	private volatile int exitCode;				// exit code of the last run
+	private volatile ExitReason exitReason = ExitReason.NONE;
+	private volatile ExitReason stopReason;		// set by a stop request while running, null otherwise
 
 	/**
 	 * Construction from properties (usually a new VM).
@@ -84,16 +109,7 @@ public class VM {
 	public VM(VMProperties vmProperties) {
 		
 		this.vmProperties = vmProperties;
-		imageIcon = Images.find(vmProperties.getProperty(VMProperties.ICON_PATH));
-		imageIcon = Images.scale(imageIcon, 32);
-		vmDeviceList = new ArrayList<VMDevice>();
-		for (Device device : Device.values()) {
-			String path = vmProperties.getProperty(device.getPropertyName());
-			if (path != null && !path.trim().equals("")) {
-				VMDevice vmDev = new VMDevice(device);
-				vmDeviceList.add(vmDev);
-			}
-		}
+		vmDeviceList = createDeviceList(vmProperties);
 	}
 
 	/**
@@ -107,6 +123,25 @@ public class VM {
 		this(new VMProperties(vmPropertiesPath, true));
 	}
 
+	/**
+	 * Creates the list of the devices defined by the properties.
+	 * 
+	 * @param vmProperties
+	 * @return the devices
+	 */
+	private ArrayList<VMDevice> createDeviceList(VMProperties vmProperties) {
+		
+		ArrayList<VMDevice> deviceList = new ArrayList<VMDevice>();
+		for (Device device : Device.values()) {
+			String path = vmProperties.getProperty(device.getPropertyName());
+			if (path != null && !path.trim().equals("")) {
+				VMDevice vmDev = new VMDevice(device);
+				deviceList.add(vmDev);
+			}
+		}
+		return deviceList;
+	}
+
 	/**
 	 * @return the accelerator
 	 */
@@ -123,6 +158,22 @@ public class VM {
 		return  vmProperties.getProperty(VMProperties.VM_QEMU);
 	}
 
+	/**
+	 * @return the id of the VM this VM is a linked clone of, "" if it is not a linked clone
+	 */
+	public String getCloneOf() {
+
+		return vmProperties.getProperty(VMProperties.CLONE_OF, "");
+	}
+
+	/**
+	 * @return the cached QEMU command or null (see Qemu.getCommand())
+	 */
+	public QemuCommand getCommand() {
+		
+		return command;
+	}
+
 	/**
 	 * @return the (maximum) number of CPUs used by the VM (QEMU supports much more feature options) or 0
 	 */
@@ -160,6 +211,41 @@ public class VM {
 		return Integer.parseInt(vmProperties.getProperty(VMProperties.DRIVE_HDA_SIZE_GB));
 	}
 
+	/**
+	 * Sets the state of this VM after its process has exited.
+	 * 
+	 * @param exitCode		the exit code of the process
+	 */
+	void exited(int exitCode) {
+
+		this.exitCode = exitCode;
+		uptimeMillis = System.currentTimeMillis() - startTimeMillis;
+		if (stopReason != null) {
+			exitReason = stopReason;
+		} else {
+			exitReason = exitCode == 0 ? ExitReason.EXITED : ExitReason.FAILED;
+		}
+		stopReason = null;
+		process = null;
+		isRunning = false;
+	}
+
+	/**
+	 * @return the exit code of the last run of this VM
+	 */
+	public int getExitCode() {
+
+		return exitCode;
+	}
+
+	/**
+	 * @return the reason of the last exit of this VM
+	 */
+	public ExitReason getExitReason() {
+
+		return exitReason;
+	}
+
 	/**
 	 * @return the extra parameters formatted as a JTextArea string
 	 */
@@ -189,9 +275,29 @@ public class VM {
 	 */
 	public ImageIcon getImageIcon() {
 		
+		if (imageIcon == null) {
+			imageIcon = Images.scale(Images.find(vmProperties.getProperty(VMProperties.ICON_PATH)), 32);
+		}
 		return imageIcon;
 	}
 
+	/**
+	 * @return the stable id of the VM
+	 */
+	public String getId() {
+		
+		return vmProperties.getProperty(VMProperties.VM_ID);
+	}
+
+	/**
+	 * @return the MAC address of the NIC of the VM
+	 */
+	public String getMacAddress() {
+
+		String mac = vmProperties.getProperty(VMProperties.MAC_ADDRESS, "");
+		return mac.isEmpty() ? DEFAULT_MAC_ADDRESS : mac;
+	}
+
 	/**
 	 * @return the (maximum size) of the VM memory in MB
 	 */
@@ -216,6 +322,22 @@ public class VM {
 		return vmProperties.getProperty(VMProperties.VM_NAME_SAFE);
 	}
 
+	/**
+	 * @return the output sink (QEMU stdout/stderr) of the last run, or null if the VM never ran
+	 */
+	public VMOutputSink getOutputSink() {
+		
+		return outputSink;
+	}
+
+	/**
+	 * @return the QMP connection of the running VM, or null if not running
+	 */
+	public QmpConnection getQmpConnection() {
+		
+		return qmpConnection;
+	}
+
 	/**
 	 * @return the path name where the properties of this VM are stored
 	 */
@@ -232,6 +354,18 @@ public class VM {
 		return process;
 	}
 	
+	/**
+	 * @return the autostart priority, higher priorities start first
+	 */
+	public int getPriority() {
+
+		try {
+			return Integer.parseInt(vmProperties.getProperty(VMProperties.PRIORITY).trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
 	/**
 	 * @param key		the name/key of the property
 	 * @return the value of the property with the key
@@ -258,6 +392,29 @@ public class VM {
 		return vmProperties.getProperty(VMProperties.SOUND);
 	}
 	
+	/**
+	 * @return the autostart delay before starting the VM, in seconds
+	 */
+	public int getStartDelaySeconds() {
+
+		try {
+			return Math.max(0, Integer.parseInt(vmProperties.getProperty(VMProperties.START_DELAY).trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * @return the wall-clock uptime of the running VM, or of the last run if it has exited
+	 */
+	public long getUptimeMillis() {
+
+		if (isRunning && startTimeMillis > 0) {
+			return System.currentTimeMillis() - startTimeMillis;
+		}
+		return uptimeMillis;
+	}
+
 	/**
 	 * @return the properties of this VM
 	 */
@@ -266,6 +423,30 @@ public class VM {
 		return vmProperties;
 	}
 
+	/**
+	 * @return true, if the VM is started when QemuJuicy starts, false otherwise
+	 */
+	public boolean isAutostart() {
+
+		return vmProperties.getPropertyBool(VMProperties.AUTOSTART);
+	}
+
+	/**
+	 * @return true, if this VM is a linked clone (its disk has a backing file of another VM)
+	 */
+	public boolean isClone() {
+
+		return !getCloneOf().isEmpty();
+	}
+
+	/**
+	 * @return true, if a background job works on the disk of the VM (it cannot be started)
+	 */
+	public boolean isDiskBusy() {
+
+		return isDiskBusy;
+	}
+
 	/**
 	 * @return true, if the VM is running, false otherwise
 	 */
@@ -274,6 +455,23 @@ public class VM {
 		return isRunning;
 	}
 
+	/**
+	 * @return true, if the VM is running in this process or in another (headless mode, another
+	 * 			QemuJuicy instance, by its pid file)
+	 */
+	public boolean isRunningAnywhere() {
+
+		return isRunning || Qemu.findRunningProcess(this) != null;
+	}
+
+	/**
+	 * @return true, if the VM is running and a stop has been requested, false otherwise
+	 */
+	public boolean isStopping() {
+
+		return isRunning && stopReason != null;
+	}
+
 	/**
 	 * @return the xml file name where the properties of this VM are stored
 	 */
@@ -282,6 +480,39 @@ public class VM {
 		return  vmProperties.getProperty(VMProperties.VM_FILENAME);
 	}
 
+	/**
+	 * Replaces the properties, e.g. after the properties file has been changed by another
+	 * program. The state of a running VM is kept.
+	 * 
+	 * @param vmProperties		the new properties
+	 */
+	public void reload(VMProperties vmProperties) {
+		
+		this.vmProperties = vmProperties;
+		vmDeviceList = createDeviceList(vmProperties);
+		imageIcon = null;
+	}
+
+	/**
+	 * Sets the cached QEMU command (see Qemu.getCommand()).
+	 * 
+	 * @param command
+	 */
+	public void setCommand(QemuCommand command) {
+		
+		this.command = command;
+	}
+
+	/**
+	 * Sets the flag if a background job works on the disk of the VM.
+	 * 
+	 * @param flag
+	 */
+	public void setDiskBusy(boolean flag) {
+
+		isDiskBusy = flag;
+	}
+
 	/**
 	 * Sets the flag if the VM is currently executing or not.
 	 * 
@@ -292,6 +523,16 @@ public class VM {
 		isRunning = flag;
 	}
 
+	/**
+	 * Sets the output sink of the current run of this VM.
+	 * 
+	 * @param outputSink
+	 */
+	public void setOutputSink(VMOutputSink outputSink) {
+
+		this.outputSink = outputSink;
+	}
+
 	/**
 	 * Sets the process running this VM, or null (on exit).
 	 * 
@@ -302,6 +543,42 @@ public class VM {
 		this.process = process;
 	}
 
+	/**
+	 * Sets the QMP connection of the current run of this VM.
+	 * 
+	 * @param qmpConnection		the QMP connection or null
+	 */
+	public void setQmpConnection(QmpConnection qmpConnection) {
+
+		this.qmpConnection = qmpConnection;
+	}
+
+	/**
+	 * Sets the reason of a requested stop, the exit reason as soon as the VM exits.
+	 * 
+	 * @param stopReason		STOPPED or KILLED
+	 */
+	void setStopReason(ExitReason stopReason) {
+
+		this.stopReason = stopReason;
+	}
+
+	/**
+	 * Sets the state of this VM after its process has been started.
+	 * 
+	 * @param process		the process running this VM
+	 */
+	void started(Process process) {
+
+		this.process = process;
+		startTimeMillis = System.currentTimeMillis();
+		uptimeMillis = 0;
+		exitCode = 0;
+		exitReason = ExitReason.NONE;
+		stopReason = null;
+		isRunning = true;
+	}
+
 	/**
 	 * Sets a property of this VM.
 	 * 
@@ -321,7 +598,7 @@ public class VM {
 	public void verbose(String text) {
 
 //		if (Main.isVerbose() || vmProperties.getPropertyBool(VMProperties.VERBOSE)) {
-		if (vmProperties.getPropertyBool(VMProperties.VERBOSE)) {
+		if (vmProperties.getPropertyBool(VMProperties.VERBOSE) && !Main.isHeadless()) {		// stdout is machine-readable
 			System.out.println(text);
 		}
 	}
@@ -335,12 +612,72 @@ public class VM {
 		
 		private Device device;
 		private int driveIndex;
+		private Qcow2Image image;							// EDT only, qcow2 metadata of a drive
+		private String imagePath;							// EDT only
+		private CompletableFuture<Qcow2Image> imageFuture;	// EDT only, null to read again
 		
 		public VMDevice(Device device) {
 
 			this.device = device;
 			this.driveIndex = device.ordinal();
 		}
+
+		/**
+		 * @return the device
+		 */
+		public Device getDevice() {
+
+			return device;
+		}
+
+		/**
+		 * Gets the qcow2 metadata of a drive without blocking the EDT (the refcount blocks are
+		 * mapped): it is read in the background on first use, after refreshImage() and if the
+		 * path has changed, meanwhile the metadata read before is returned (null after a path
+		 * change, the metadata of the previous disk does not apply).
+		 * 
+		 * @param onRead		called on the EDT after the metadata has been read, e.g. to repaint
+		 * @return the metadata or null, if not read yet or not a qcow2 image
+		 */
+		public Qcow2Image getImage(Runnable onRead) {
+
+			String path = getPath();
+			if (imageFuture == null || !path.equals(imagePath)) {
+				if (!path.equals(imagePath)) {
+					image = null;
+					imagePath = path;
+				}
+				CompletableFuture<Qcow2Image> future = CompletableFuture.supplyAsync(() -> Qcow2Image.get(path));
+				imageFuture = future;
+				future.thenAccept(read -> SwingUtilities.invokeLater(() -> {
+					if (imageFuture == future || imageFuture == null) {
+						image = read;					// not superseded by another path
+						onRead.run();
+					}
+				}));
+			}
+			return image;
+		}
+
+		/**
+		 * @return the path of the device file, a relative name is within the VM directory
+		 */
+		public String getPath() {
+
+			String name = vmProperties.getProperty(device.getPropertyName()).trim();
+			if (new File(name).isAbsolute()) {
+				return name;
+			}
+			return Main.getProperty(AppProperties.VM_DISK_PATH) + File.separator + name;
+		}
+
+		/**
+		 * The qcow2 metadata is read again on next use, e.g. the VM has been selected again.
+		 */
+		public void refreshImage() {
+
+			imageFuture = null;
+		}
 	}
 }
 
@@ -0,0 +1,237 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import static qemujuicy.Message.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.swing.*;
+
+import qemujuicy.*;
+
+/**
+ * Watches the VM directory for VM properties files changed by other programs (e.g. provisioning
+ * scripts) and reloads, adds or removes only the changed VMs.
+ *
+ * <p>The watcher is event driven (WatchService), it never polls or rescans the directory.
+ * Events are collected until the directory is quiet, then each changed file is loaded on the
+ * watcher thread and applied on the EDT. A file equal to the content last loaded or written
+ * by this application (VMProperties.getStoredProperties()) is an own write and ignored.
+ * If a VM has been changed by another program and has unsaved changes too, the user decides.</p>
+ *
+ * Files which cannot be parsed (e.g. still being written) are skipped, the next event retries.
+ */
+public class VMDirectoryWatcher {
+
+	public static final long QUIET_MILLIS = 300;			// apply the changes after no event within this time
+
+	private Path dirPath;
+	private VMManager vmManager;
+	private WatchService watchService;
+
+	/**
+	 * Construction.
+	 *
+	 * @param dirPath		the VM directory
+	 * @param vmManager
+	 */
+	public VMDirectoryWatcher(String dirPath, VMManager vmManager) {
+
+		this.dirPath = Paths.get(dirPath).toAbsolutePath();
+		this.vmManager = vmManager;
+	}
+
+	/**
+	 * Applies the change of a VM properties file. Runs on the EDT.
+	 *
+	 * @param filename			the properties file (within the VM directory)
+	 * @param vmProperties		the loaded properties or null, if the file has been deleted
+	 */
+	private void apply(String filename, VMProperties vmProperties) {
+
+		VM vm = vmManager.findVmByFilename(filename);
+		if (vmProperties == null) {
+			if (vm != null && !new File(vm.getPathname()).exists()) {
+				vmManager.removeExternalVm(vm);
+			}
+			return;						// e.g. removed or renamed by this application
+		}
+		if (vm == null) {
+			VM renamedVm = vmManager.getVmById(vmProperties.getProperty(VMProperties.VM_ID));
+			if (renamedVm != null && !new File(renamedVm.getPathname()).exists()) {
+				// renamed: the file of the VM with that id is gone
+				vmManager.reloadVm(renamedVm, vmProperties, filename);
+				return;
+			}
+			vmManager.addExternalVm(vmProperties, filename);
+			return;
+		}
+		VMProperties current = vm.getVmProperties();
+		if (vmProperties.equals(current.getStoredProperties())) {
+			return;						// written by this application or unchanged
+		}
+		if (current.isChangedSinceStored() && !confirmReload(vm)) {
+			// keep the changes in memory, they overwrite the file
+			Logger.info("VMDirectoryWatcher: conflict on VM '" + vm.getName() + "', keeping the unsaved changes");
+			PersistenceService.markDirty(current);
+			return;
+		}
+		vmManager.reloadVm(vm, vmProperties, filename);
+	}
+
+	/**
+	 * Asks whether to reload a VM, which has unsaved changes.
+	 *
+	 * @param vm
+	 * @return true, if the VM is to be reloaded from its file
+	 */
+	private boolean confirmReload(VM vm) {
+
+		String[] options = {
+				Msg.get(NO_BTN_MSG),
+				Msg.get(YES_BTN_MSG)};
+		int answer = JOptionPane.showOptionDialog(Main.getMainView(),
+				Msg.get(VM_FILE_CONFLICT_MSG, vm.getName()),
+				Msg.get(VM_FILE_CHANGED_TITLE_MSG),
+				JOptionPane.YES_NO_OPTION,
+				JOptionPane.WARNING_MESSAGE,
+				null,
+				options,
+				options[0]);
+		return answer == 1;
+	}
+
+	/**
+	 * Loads the changed files and applies them on the EDT. Runs on the watcher thread.
+	 * Deleted files are applied last, so a renamed file is found by the id of its VM.
+	 *
+	 * @param filenameSet	the changed properties files (within the VM directory)
+	 */
+	private void process(Set<String> filenameSet) {
+
+		ArrayList<String> deletedList = new ArrayList<>();
+		for (String filename : filenameSet) {
+			File file = dirPath.resolve(filename).toFile();
+			if (!file.exists()) {
+				deletedList.add(filename);
+				continue;
+			}
+			try {
+				VMProperties vmProperties = new VMProperties(file.getPath(), true);
+				SwingUtilities.invokeAndWait(() -> apply(filename, vmProperties));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (InvocationTargetException e) {
+				Logger.error("VMDirectoryWatcher: cannot apply '" + file + "'", e.getCause());
+			} catch (Exception e) {
+				Logger.warning("VMDirectoryWatcher: cannot load '" + file + "' (yet): " + e.getMessage());
+			}
+		}
+		for (String filename : deletedList) {
+			try {
+				SwingUtilities.invokeAndWait(() -> apply(filename, null));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (InvocationTargetException e) {
+				Logger.error("VMDirectoryWatcher: cannot apply deleted '" + filename + "'", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Collects the events until the directory is quiet and processes the changed files.
+	 * Runs on the watcher thread until stopped.
+	 */
+	private void run() {
+
+		try {
+			while (true) {
+				Set<String> filenameSet = new LinkedHashSet<>();
+				WatchKey key = watchService.take();
+				while (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							Logger.warning("VMDirectoryWatcher: events lost (overflow)");
+							continue;
+						}
+						String filename = event.context().toString();
+						if (filename.endsWith(".xml")) {
+							filenameSet.add(filename);		// temporary files (*.tmp) are ignored
+						}
+					}
+					if (!key.reset()) {
+						Logger.warning("VMDirectoryWatcher: " + dirPath + " is not accessible any more");
+						return;
+					}
+					key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				process(filenameSet);
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * Starts watching the VM directory on a background thread.
+	 *
+	 * @return true, if started
+	 */
+	public boolean start() {
+
+		try {
+			watchService = dirPath.getFileSystem().newWatchService();
+			dirPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			Logger.error("VMDirectoryWatcher: cannot watch " + dirPath, e);
+			return false;
+		}
+		Thread thread = new Thread(this::run, "vmDirectoryWatcher");
+		thread.setDaemon(true);
+		thread.start();
+		Logger.info("VMDirectoryWatcher: watching " + dirPath);
+		return true;
+	}
+
+	/**
+	 * Stops watching.
+	 */
+	public void stop() {
+
+		try {
+			if (watchService != null) {
+				watchService.close();
+			}
+		} catch (IOException e) {
+			// closed anyway
+		}
+	}
+}
@@ -22,8 +22,10 @@
  */
 package qemujuicy.vm;
 
-import java.io.File;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import javax.swing.*;
 
@@ -38,11 +40,20 @@ import static qemujuicy.Message.*;
  */
 public class VMManager {
 
+	public static final int LOAD_THREADS = 16;				// parallel loading of the VM files (network home directory)
+
 	private ArrayList<VM> vmList;							// contains all VM objects
+	private VMRegistry registry;							// ids, files and order of the VMs
+	private HashMap<String, VM> vmIdMap = new HashMap<>();			// id -> VM
+	private HashMap<String, VM> vmNameMap = new HashMap<>();		// name and safe name -> VM
 	private JList<VM> vmJList;								// JList of VMs (mainView)
 	private DefaultListModel<VM> vmListModel;				// data model for the JList of VMs
 	private DefaultListModel<VM.VMDevice> deviceListModel;		// data model for the JList of devices
 	private VM selectedVm;									// data model for the JList of devices
+	private TemplateLibrary templateLibrary;				// lazy creation
+	private SnapshotManager snapshotManager;				// lazy creation
+	private DiskJobQueue diskJobQueue;						// lazy creation
+	private InstallMediaLibrary installMediaLibrary;		// lazy creation
 
 	/**
 	 * Construction with no VMs.
@@ -51,6 +62,7 @@ public class VMManager {
 		
 		vmList = new ArrayList<>(); 
 		deviceListModel = new DefaultListModel<VM.VMDevice>();
+		registry = new VMRegistry(Files.getAppDirPath());
 	}
 
 	/**
@@ -61,23 +73,114 @@ public class VMManager {
 	public VMManager(AppProperties properties) {
 		
 		this();
+		long startMillis = System.currentTimeMillis();
 		String vmDiskPath = properties.getProperty(AppProperties.VM_DISK_PATH);
-		int vmNr = 0;
-		for (;; vmNr++) {
-			String vmFile = properties.getProperty(AppProperties.VM_FILENAME + vmNr);
-			if (vmFile == null) {
-				break;
-			}
-			String vmPath = vmDiskPath + File.separator + vmFile;
+		if (!registry.isPersisted()) {
+			// older release: numbered keys within config.xml
+			registry.migrate(properties, vmDiskPath);
+		}
+		long registryMillis = System.currentTimeMillis() - startMillis;
+		// parse the VM files concurrently, icons are loaded later (when rendered)
+		ArrayList<String> idList = registry.getIdList();
+		int threads = Math.max(1, Math.min(idList.size(), LOAD_THREADS));
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "vmLoader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicLong parseNanos = new AtomicLong();
+		ArrayList<Future<VM>> futureList = new ArrayList<>();
+		for (String id : idList) {
+			String vmPath = vmDiskPath + File.separator + registry.getFilename(id);
+			futureList.add(executor.submit(() -> {
+				long start = System.nanoTime();
+				try {
+					return new VM(vmPath);
+				} finally {
+					parseNanos.addAndGet(System.nanoTime() - start);
+				}
+			}));
+		}
+		executor.shutdown();
+		// add the VMs in the order of the registry
+		int errors = 0;
+		for (int i = 0; i < idList.size(); i++) {
+			String id = idList.get(i);
+			String vmPath = vmDiskPath + File.separator + registry.getFilename(id);
 			try {
-				VM vm = new VM(vmPath);
+				VM vm = futureList.get(i).get();
+				if (!id.equals(vm.getId())) {
+					// e.g. a copied VM file, the registry defines the id
+					vm.setProperty(VMProperties.VM_ID, id);
+					PersistenceService.markDirty(vm.getVmProperties());
+				}
 				vmList.add(vm);
-				Logger.info("VMManager: creating VM #" + vmNr + ", file: '" + vmPath + "'");
+				putVmMaps(vm);
+				Logger.info("VMManager: creating VM " + id + ", file: '" + vmPath + "'");
 			} catch (Exception e) {
-				Logger.error("VMManager: error loading VM from '" + vmPath + "'", e);
+				errors++;
+				Logger.error("VMManager: error loading VM from '" + vmPath + "'",
+						e instanceof ExecutionException ? e.getCause() : e);
+				if (Main.isHeadless()) {
+					continue;
+				}
 				Gui.errorDlg(null, Msg.get(ERROR_LOADING_VM_DLG_MSG, vmPath), Msg.get(ERROR_TITLE_DLG_MSG));
 			}
 		}
+		Logger.info("VMManager: loaded " + vmList.size() + " VMs (" + errors + " errors) in "
+				+ (System.currentTimeMillis() - startMillis) + "ms: registry " + registryMillis + "ms, parsing "
+				+ parseNanos.get() / 1000000 + "ms on " + threads + " threads");
+	}
+
+	/**
+	 * Adds a VM, whose properties file has been created by another program (VMDirectoryWatcher).
+	 * A missing or duplicate id is replaced by a new one.
+	 * 
+	 * @param vmProperties		the loaded properties
+	 * @param filename			the properties file (within the VM directory)
+	 * @return true, if added, false if a VM with that name exists already
+	 */
+	public boolean addExternalVm(VMProperties vmProperties, String filename) {
+		
+		VM vm = new VM(vmProperties);
+		if (vmNameMap.containsKey(vm.getName()) || vmNameMap.containsKey(vm.getNameSafe())) {
+			Logger.warning("VMManager: ignoring '" + filename + "', a VM named '" + vm.getName() + "' exists already");
+			return false;
+		}
+		String id = vm.getId();
+		if (id.isEmpty() || vmIdMap.containsKey(id)) {
+			// e.g. a copied VM file
+			id = VMRegistry.createId();
+			vmProperties.setProperty(VMProperties.VM_ID, id);
+		}
+		if (!filename.equals(vm.getVmFilename())) {
+			vmProperties.setProperty(VMProperties.VM_FILENAME, filename);
+		}
+		if (vmProperties.isChangedSinceStored()) {
+			vmProperties.storeToXML();
+		}
+		registry.add(id, filename);
+		vmList.add(vm);
+		putVmMaps(vm);
+		if (vmListModel != null) {
+			vmListModel.addElement(vm);
+		}
+		Logger.info("VMManager: added VM " + id + " '" + vm.getName() + "', file: '" + filename + "'");
+		return true;
+	}
+
+	/**
+	 * Starts the autostart VMs staggered (BootScheduler), if any.
+	 * 
+	 * @return the future of the boot results
+	 */
+	public CompletableFuture<List<BootScheduler.BootResult>> autostart() {
+		
+		ArrayList<VM> autostartList = BootScheduler.findAutostartVms(vmList);
+		if (autostartList.isEmpty()) {
+			return CompletableFuture.completedFuture(new ArrayList<>());
+		}
+		return new BootScheduler(autostartList, vm -> startVm(vm) ? vm.getProcess().toHandle() : null).start();
 	}
 
 	/**
@@ -96,6 +199,238 @@ public class VMManager {
 		return vmListModel;
 	}
 
+	/**
+	 * Adds a new VM: assigns its id and MAC address (if not set), stores its properties and selects it.
+	 * 
+	 * @param vm
+	 */
+	private void addVm(VM vm) {
+		
+		VMProperties vmProperties = vm.getVmProperties();
+		String id = vm.getId();
+		if (id.isEmpty()) {
+			id = VMRegistry.createId();
+			vmProperties.setProperty(VMProperties.VM_ID, id);
+		}
+		if (vmProperties.getProperty(VMProperties.MAC_ADDRESS).isEmpty()) {
+			vmProperties.setProperty(VMProperties.MAC_ADDRESS, createMacAddress(Collections.emptySet()));
+		}
+		String filename = vmProperties.getProperty(VMProperties.VM_FILENAME);
+		Logger.info("creating VM " + id + ", file: '" + filename + "'");
+		if (vmProperties.isChangedSinceStored()) {
+			vmProperties.storeToXML();			// VMs created from a template are stored already
+		}
+		registry.add(id, filename);
+		vmList.add(vm);
+		putVmMaps(vm);
+		if (vmListModel != null) {
+			vmListModel.addElement(vm);
+			vmJList.setSelectedIndex(vmList.size() - 1);
+			vmJList.ensureIndexIsVisible(vmList.size() - 1);
+		}
+	}
+
+	/**
+	 * Queues the compaction of the disks of all stopped VMs, which waste at least the ratio
+	 * DISK_COMPACT_MIN_RATIO_PERCENT, the most wasteful first.
+	 * 
+	 * @param parent			the parent of dialogs
+	 * @param isCompressed		true, to compress the disks (zstd)
+	 */
+	public void compactAllVms(java.awt.Component parent, boolean isCompressed) {
+		
+		double minRatio = Main.getPropertyInt(AppProperties.DISK_COMPACT_MIN_RATIO_PERCENT) / 100.0;
+		ArrayList<VM> candidateList = new ArrayList<>();
+		for (VM vm : vmList) {
+			if (getDiskJobQueue().findActiveJob(vm) == null) {
+				candidateList.add(vm);
+			}
+		}
+		List<CompactJob> jobList = CompactJob.createCandidates(candidateList, minRatio, isCompressed);
+		if (jobList.isEmpty()) {
+			Gui.infoDlg(parent, Msg.get(COMPACT_NONE_MSG, Util.DECIMAL_FORMAT2.format(minRatio)), 
+					Msg.get(DISK_JOBS_MSG));
+			return;
+		}
+		getDiskJobQueue().submitAll(jobList);
+		MainView.setStatusMessage(Msg.get(COMPACT_QUEUED_MSG, jobList.size()));
+	}
+
+	/**
+	 * Queues the compaction of the disk of a VM.
+	 * 
+	 * @param parent			the parent of dialogs
+	 * @param selectedIndex
+	 * @param isCompressed		true, to compress the disk (zstd)
+	 */
+	public void compactVm(java.awt.Component parent, int selectedIndex, boolean isCompressed) {
+		
+		VM vm = vmList.get(selectedIndex);
+		String reason = CompactJob.check(vm);
+		if (reason == null && getDiskJobQueue().findActiveJob(vm) != null) {
+			reason = Msg.get(COMPACT_VM_RUNNING_MSG, vm.getName());
+		}
+		if (reason != null) {
+			Gui.errorDlg(parent, reason, Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		getDiskJobQueue().submit(new CompactJob(vm, isCompressed));
+	}
+
+	/**
+	 * Changes the backing file of linked clones (after their base disk has been renamed).
+	 * If a clone fails, the clones changed already are restored.
+	 * 
+	 * @param cloneMap			the disk paths of the clones and their metadata before the change
+	 * @param backingFile		the new backing file (within the VM directory)
+	 * @return true, if all clones have been changed
+	 */
+	private boolean changeBackingFiles(Map<String, Qcow2Image> cloneMap, String backingFile) {
+
+		ArrayList<String> changedList = new ArrayList<>();
+		for (String clonePath : cloneMap.keySet()) {
+			try {
+				Qcow2Writer.changeBackingFile(clonePath, backingFile, "qcow2");
+				changedList.add(clonePath);
+			} catch (IOException e) {
+				Logger.error("VMManager: cannot change the backing file of " + clonePath, e);
+				for (String changedPath : changedList) {
+					Qcow2Image image = cloneMap.get(changedPath);
+					try {
+						Qcow2Writer.changeBackingFile(changedPath, image.getBackingFile(), image.getBackingFormat());
+					} catch (IOException e2) {
+						Logger.error("VMManager: cannot restore the backing file of " + changedPath, e2);
+					}
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a linked clone of a VM: a copy of its properties and a qcow2 overlay disk, 
+	 * whose backing file is the disk of the base VM. The clone takes almost no disk space, 
+	 * as long as the base VM has linked clones it is started with -snapshot (read-only disk).
+	 * 
+	 * @param selectedIndex		the index of the base VM in the list
+	 * @return the clone or null, if the VM cannot be cloned
+	 */
+	public VM cloneVm(int selectedIndex) {
+		
+		VM baseVm = vmList.get(selectedIndex);
+		if (baseVm.isDiskBusy() || (baseVm.isRunning() && getClones(baseVm).isEmpty())) {
+			// the disk is being written
+			Gui.errorDlg(Main.getMainView(), Msg.get(CLONE_VM_RUNNING_MSG, baseVm.getName()), 
+					Msg.get(ERROR_TITLE_DLG_MSG));
+			return null;
+		}
+		String vmDir = Main.getProperty(AppProperties.VM_DISK_PATH);
+		String baseDiskName = baseVm.getDriveHdaName();
+		if (baseDiskName.isBlank() || Qcow2Image.get(vmDir + File.separator + baseDiskName) == null) {
+			Gui.errorDlg(Main.getMainView(), Msg.get(CLONE_VM_NO_QCOW2_MSG, baseVm.getName()), 
+					Msg.get(ERROR_TITLE_DLG_MSG));
+			return null;
+		}
+		long startNanos = System.nanoTime();
+		// a free name
+		String name = Msg.get(CLONE_NAME_MSG, baseVm.getName());
+		for (int i = 2; !isNameFree(name); i++) {
+			name = Msg.get(CLONE_NAME_MSG, baseVm.getName()) + " " + i;
+		}
+		String nameSafe = name.replace(" ", "_");
+		String filename = nameSafe + ".xml";
+		String diskName = nameSafe + ".qcow2";
+		VMProperties vmProperties;
+		try {
+			vmProperties = new VMProperties(vmDir + File.separator + filename, false);
+		} catch (Exception e) {
+			Logger.error("VMManager: cannot create the properties of a clone of '" + baseVm.getName() + "'", e);
+			return null;
+		}
+		vmProperties.putAll(baseVm.getVmProperties());
+		vmProperties.setProperty(VMProperties.VM_NAME, name);
+		vmProperties.setProperty(VMProperties.VM_NAME_SAFE, nameSafe);
+		vmProperties.setProperty(VMProperties.VM_FILENAME, filename);
+		vmProperties.setProperty(VMProperties.DRIVE_HDA_NAME, diskName);
+		vmProperties.setProperty(VMProperties.CLONE_OF, baseVm.getId());
+		vmProperties.setProperty(VMProperties.VM_ID, "");
+		String macAddress = createMacAddress(Collections.emptySet());
+		vmProperties.setProperty(VMProperties.MAC_ADDRESS, macAddress);
+		// the full definition of the base VM refers to its disk and MAC address
+		vmProperties.rewriteFullDefinition(baseDiskName, diskName, baseVm.getMacAddress(), macAddress);
+		VM vm = new VM(vmProperties);
+		if (!new Qemu().createLinkedDiskImage(vm, baseDiskName)) {
+			Gui.errorDlg(Main.getMainView(), Msg.get(CANNOT_CREATE_DISK_MSG, diskName),
+					Msg.get(ERROR_TITLE_DLG_MSG));
+			return null;
+		}
+		addVm(vm);
+		Logger.info("VMManager: VM '" + baseVm.getName() + "' cloned to '" + name + "' ("
+				+ (System.nanoTime() - startNanos) / 1000000 + " ms)");
+		return vm;
+	}
+
+	/**
+	 * Creates a MAC address not used by any VM (QEMU prefix 52:54:00, random).
+	 * 
+	 * @param reservedSet		MAC addresses reserved for VMs not added yet
+	 * @return the MAC address
+	 */
+	public String createMacAddress(Set<String> reservedSet) {
+		
+		HashSet<String> usedSet = new HashSet<>(reservedSet);
+		for (VM vm : vmList) {
+			usedSet.add(vm.getMacAddress());
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (true) {
+			String mac = String.format("52:54:00:%02x:%02x:%02x", 
+					random.nextInt(256), random.nextInt(256), random.nextInt(256));
+			if (!usedSet.contains(mac)) {
+				return mac;
+			}
+		}
+	}
+
+	/**
+	 * Creates a snapshot of a VM (asks for its name), including the VM state if it is running.
+	 * 
+	 * @param mainView
+	 * @param selectedIndex
+	 */
+	public void createSnapshot(MainView mainView, int selectedIndex) {
+		
+		VM vm = vmList.get(selectedIndex);
+		SnapshotManager.Operation operation = SnapshotManager.Operation.CREATE;
+		String reason = getSnapshotManager().check(vm, operation, !getClones(vm).isEmpty());
+		if (reason != null) {
+			Gui.errorDlg(mainView, reason, Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		SnapshotManager.Catalog catalog = getSnapshotManager().getCatalog(vm);
+		String defaultName = Msg.get(SNAPSHOT_DEFAULT_NAME_MSG, catalog.getSize() + 1);
+		for (int n = catalog.getSize() + 2; catalog.get(defaultName) != null; n++) {
+			defaultName = Msg.get(SNAPSHOT_DEFAULT_NAME_MSG, n);
+		}
+		Object input = JOptionPane.showInputDialog(mainView, Msg.get(SNAPSHOT_NAME_MSG), 
+				Msg.get(SNAPSHOT_CREATE_TT_MSG), JOptionPane.QUESTION_MESSAGE, null, null, defaultName);
+		if (input == null || input.toString().isBlank()) {
+			return;
+		}
+		String name = input.toString().trim();
+		if (!SnapshotManager.NAME_PATTERN.matcher(name).matches()) {
+			Gui.errorDlg(mainView, Msg.get(SNAPSHOT_NAME_INVALID_MSG, name), Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		if (catalog.get(name) != null) {
+			Gui.errorDlg(mainView, Msg.get(SNAPSHOT_NAME_EXISTS_MSG, vm.getName(), name), 
+					Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		startSnapshotJob(mainView, vm, operation, name);
+	}
+
 	/**
 	 * Crates a VM defined by its properties.
 	 * 
@@ -103,27 +438,40 @@ public class VMManager {
 	 */
 	public void createVM(VMProperties vmProperties) {
 		
+		createVM(vmProperties, false);
+	}
+
+	/**
+	 * Crates a VM defined by its properties.
+	 * 
+	 * @param vmProperties
+	 * @param isDiskImported	true, to use the existing disk (an imported image) as is,
+	 * 							false to create a new disk
+	 */
+	public void createVM(VMProperties vmProperties, boolean isDiskImported) {
+		
 		VM vm = new VM(vmProperties);
 		Qemu qemuImg = new Qemu();
-		qemuImg.createDiskImage(vm);
-		AppProperties properties = Main.getProperties();
-		int vmNr = 0;
-		for (;; vmNr++) {
-			String vmFile = properties.getProperty(AppProperties.VM_FILENAME + vmNr);
-			if (vmFile == null) {
-				break;
-			}
+		if (isDiskImported) {
+			Logger.info("VMManager: using the imported disk " + vm.getDriveHdaName());
+		} else if (!qemuImg.createDiskImage(vm)) {
+			Gui.errorDlg(Main.getMainView(), Msg.get(CANNOT_CREATE_DISK_MSG, vm.getDriveHdaName()),
+					Msg.get(ERROR_TITLE_DLG_MSG));		// the VM is created anyway, a drive can be set later
 		}
-		// vmNr: next free VM
-		String filename = vmProperties.getProperty(VMProperties.VM_FILENAME);
-		Logger.info("creating VM #" + vmNr + ", file: '" + filename + "'");
-		properties.setProperty(AppProperties.VM_FILENAME + vmNr, filename);
-		vmProperties.storeToXML();
-		properties.storeToXML();
-		vmList.add(vm);
-		vmListModel.addElement(vm);
-		vmJList.setSelectedIndex(vmList.size() - 1);
-		vmJList.ensureIndexIsVisible(vmList.size() - 1);
+		addVm(vm);
+	}
+
+	/**
+	 * Deletes a snapshot of a VM (after confirmation).
+	 * 
+	 * @param mainView
+	 * @param selectedIndex
+	 * @param name				the name of the snapshot, null if none is selected
+	 */
+	public void deleteSnapshot(MainView mainView, int selectedIndex, String name) {
+		
+		runConfirmedSnapshotJob(mainView, vmList.get(selectedIndex), SnapshotManager.Operation.DELETE, 
+				name, SNAPSHOT_DELETE_CONFIRM_MSG);
 	}
 
 	/**
@@ -134,12 +482,44 @@ public class VMManager {
 	 */
 	public boolean exists(String vmName) {
 		
-		for (VM vm : vmList) {
-			if (vmName.equals(vm.getName())) {
-				return true;
-			}
+		VM vm = vmNameMap.get(vmName);
+		return vm != null && vmName.equals(vm.getName());
+	}
+
+	/**
+	 * Queues the export of the disk of a VM to an image (asks for the file), the extension of
+	 * the file defines the format.
+	 * 
+	 * @param parent			the parent of dialogs
+	 * @param selectedIndex
+	 */
+	public void exportVm(java.awt.Component parent, int selectedIndex) {
+		
+		VM vm = vmList.get(selectedIndex);
+		String reason = ConvertJob.checkExport(vm);
+		if (reason == null && getDiskJobQueue().findActiveJob(vm) != null) {
+			reason = Msg.get(COMPACT_VM_RUNNING_MSG, vm.getName());
+		}
+		if (reason != null) {
+			Gui.errorDlg(parent, reason, Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		FileChooserDlg chooser = new FileChooserDlg(Msg.get(CONVERT_EXPORT_TT_MSG), 
+				Msg.get(OK_BTN_MSG), Msg.get(OK_BTN_MSG), JFileChooser.FILES_ONLY, null);
+		chooser.setSelectedFile(new File(vm.getNameSafe() + ".vmdk"));
+		if (chooser.showOpenDialog(parent) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		String targetPath = chooser.getSelectedFile().getPath();
+		if (ConvertJob.getFormat(targetPath) == null) {
+			Gui.errorDlg(parent, Msg.get(CONVERT_FORMAT_UNKNOWN_MSG, targetPath), Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
 		}
-		return false;
+		if (new File(targetPath).exists() || new File(targetPath + ConvertJob.TEMP_SUFFIX).exists()) {
+			Gui.errorDlg(parent, Msg.get(FILE_EXITS_ALREADY_MSG, targetPath), Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		getDiskJobQueue().submit(ConvertJob.createExport(vm, targetPath));
 	}
 
 	/**
@@ -155,9 +535,154 @@ public class VMManager {
 			return;
 		}
 		selectedVm = vmList.get(selectedIndex);
+		for (VM.VMDevice vmDevice : selectedVm.getDeviceList()) {
+			vmDevice.refreshImage();			// the disk may have changed since the last selection
+		}
 		deviceListModel.addAll(selectedVm.getDeviceList());
 	}
 
+	/**
+	 * Flattens a linked clone in the background: the data of the base VM is copied into the 
+	 * disk of the clone, which is independent afterwards. The clone cannot be started meanwhile.
+	 * 
+	 * @param mainView
+	 * @param selectedIndex		the index of the clone in the list
+	 */
+	public void flattenVm(MainView mainView, int selectedIndex) {
+		
+		VM vm = vmList.get(selectedIndex);
+		if (!vm.isClone() || vm.isRunning() || vm.isDiskBusy()) {
+			return;
+		}
+		Logger.info("VMManager: flattening the linked clone '" + vm.getName() + "'");
+		vm.setDiskBusy(true);
+		mainView.vmListSelectionEnabler();
+		MainView.setStatusMessage(Msg.get(FLATTEN_STARTED_MSG, vm.getName()));
+		new Qemu().flattenDiskImage(vm).thenAccept(isFlattened -> SwingUtilities.invokeLater(() -> {
+			vm.setDiskBusy(false);
+			if (isFlattened) {
+				vm.setProperty(VMProperties.CLONE_OF, "");
+				PersistenceService.markDirty(vm.getVmProperties());
+				MainView.setStatusMessage(Msg.get(FLATTEN_DONE_MSG, vm.getName()));
+			} else {
+				MainView.setStatusMessage("");
+				Gui.errorDlg(mainView, Msg.get(FLATTEN_FAILED_MSG, vm.getName()), Msg.get(ERROR_TITLE_DLG_MSG));
+			}
+			mainView.vmListSelectionEnabler();
+		}));
+	}
+
+	/**
+	 * Creates VMs from a template (asks for the template and the number of VMs).
+	 * 
+	 * @param mainView
+	 */
+	public void createVmsFromTemplate(MainView mainView) {
+		
+		JSpinner countSpinner = new JSpinner(new SpinnerNumberModel(1, 1, 100, 1));
+		TemplateLibrary.Template template = selectTemplate(mainView, countSpinner);
+		if (template == null) {
+			return;
+		}
+		int count = (Integer) countSpinner.getValue();
+		List<VM> createdList = getTemplateLibrary().createInstances(template, count);
+		for (VM vm : createdList) {
+			addVm(vm);
+		}
+		if (createdList.size() < count) {
+			Gui.errorDlg(mainView, Msg.get(TEMPLATE_INSTANCES_FAILED_MSG, count - createdList.size(), count), 
+					Msg.get(ERROR_TITLE_DLG_MSG));
+		}
+	}
+
+	/**
+	 * Finds a VM by its properties file.
+	 * 
+	 * @param filename		the properties file (within the VM directory)
+	 * @return the VM or null, if not found
+	 */
+	public VM findVmByFilename(String filename) {
+		
+		String id = registry.findId(filename);
+		return id != null ? vmIdMap.get(id) : null;
+	}
+
+	/**
+	 * Finds a VM by its name or its safe name.
+	 * 
+	 * @param vmName
+	 * @return the VM or null, if not found
+	 */
+	public VM findVm(String vmName) {
+		
+		return vmNameMap.get(vmName);
+	}
+
+	/**
+	 * @param vm
+	 * @return the linked clones of the VM (their disks have the disk of the VM as backing file)
+	 */
+	public List<VM> getClones(VM vm) {
+
+		ArrayList<VM> cloneList = new ArrayList<>();
+		String id = vm.getId();
+		for (VM other : vmList) {
+			if (id.equals(other.getCloneOf())) {
+				cloneList.add(other);
+			}
+		}
+		return cloneList;
+	}
+
+	/**
+	 * @param vmList
+	 * @return the names of the VMs, separated by commas
+	 */
+	public static String getNames(List<VM> vmList) {
+
+		StringJoiner names = new StringJoiner(", ");
+		vmList.forEach(vm -> names.add(vm.getName()));
+		return names.toString();
+	}
+
+	/**
+	 * @return the template library
+	 */
+	public synchronized TemplateLibrary getTemplateLibrary() {
+
+		if (templateLibrary == null) {
+			templateLibrary = new TemplateLibrary(this, Main.getProperty(AppProperties.VM_DISK_PATH));
+		}
+		return templateLibrary;
+	}
+
+	/**
+	 * @return the library of the installation media (ISO images)
+	 */
+	public synchronized InstallMediaLibrary getInstallMediaLibrary() {
+
+		if (installMediaLibrary == null) {
+			installMediaLibrary = new InstallMediaLibrary(Files.getAppDirPath());
+		}
+		return installMediaLibrary;
+	}
+
+	/**
+	 * @return the queue of the disk jobs, state changes update the main view (busy disks)
+	 */
+	public synchronized DiskJobQueue getDiskJobQueue() {
+
+		if (diskJobQueue == null) {
+			diskJobQueue = new DiskJobQueue(Files.getAppDirPath());
+			diskJobQueue.addListener((job, isStateChange) -> {
+				if (isStateChange && Main.getMainView() != null) {
+					SwingUtilities.invokeLater(() -> Main.getMainView().vmListSelectionEnabler());
+				}
+			});
+		}
+		return diskJobQueue;
+	}
+
 	/**
 	 * @return the deviceListModel
 	 */
@@ -176,6 +701,28 @@ public class VMManager {
 		return selectedVm;
 	}
 
+	/**
+	 * @return the snapshot manager
+	 */
+	public synchronized SnapshotManager getSnapshotManager() {
+
+		if (snapshotManager == null) {
+			snapshotManager = new SnapshotManager();
+		}
+		return snapshotManager;
+	}
+
+	/**
+	 * Returns the VM with an id.
+	 * 
+	 * @param id
+	 * @return the VM or null, if not found
+	 */
+	public VM getVmById(String id) {
+
+		return vmIdMap.get(id);
+	}
+
 	/**
 	 * Returns the VM at an index.
 	 * 
@@ -195,6 +742,60 @@ public class VMManager {
 		return vmList;
 	}
 
+	/**
+	 * Queues the import of a disk image (asks for the file and the name of the VM): it is converted
+	 * into the qcow2 disk of a new VM, the VM is created when the conversion is done.
+	 * 
+	 * @param parent			the parent of dialogs
+	 */
+	public void importVm(java.awt.Component parent) {
+		
+		FileChooserDlg chooser = new FileChooserDlg(Msg.get(CONVERT_SELECT_IMAGE_MSG), 
+				Msg.get(OK_BTN_MSG), Msg.get(OK_BTN_MSG), JFileChooser.FILES_ONLY, 
+				new javax.swing.filechooser.FileNameExtensionFilter(Msg.get(CONVERT_SELECT_IMAGE_MSG), 
+						ConvertJob.FORMAT_MAP.keySet().toArray(new String[0])));
+		if (chooser.showOpenDialog(parent) != JFileChooser.APPROVE_OPTION) {
+			return;
+		}
+		File sourceFile = chooser.getSelectedFile();
+		String name = sourceFile.getName();
+		if (name.lastIndexOf('.') > 0) {
+			name = name.substring(0, name.lastIndexOf('.'));
+		}
+		Object input = JOptionPane.showInputDialog(parent, Msg.get(CONVERT_IMPORT_NAME_MSG), 
+				Msg.get(CONVERT_IMPORT_TT_MSG), JOptionPane.QUESTION_MESSAGE, null, null, name);
+		if (input == null || input.toString().isBlank()) {
+			return;
+		}
+		String vmName = input.toString().trim();
+		ConvertJob job = ConvertJob.createImport(sourceFile.getPath(), vmName);
+		String reason = ConvertJob.checkImport(sourceFile.getPath(), vmName);
+		if (reason == null && new File(job.getTargetPath() + ConvertJob.TEMP_SUFFIX).exists()) {
+			reason = Msg.get(VM_EXITS_ALREADY_MSG, vmName);		// imported already
+		}
+		if (reason != null) {
+			Gui.errorDlg(parent, reason, Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		getDiskJobQueue().submit(job);
+	}
+
+	/**
+	 * Tests if a name can be used for a new VM: no VM with that name or safe name exists and 
+	 * there are no files of that name in the VM directory.
+	 * 
+	 * @param name
+	 * @return true, if the name is free
+	 */
+	public boolean isNameFree(String name) {
+		
+		String vmDir = Main.getProperty(AppProperties.VM_DISK_PATH);
+		String nameSafe = name.replace(" ", "_");
+		return !vmNameMap.containsKey(name) && !vmNameMap.containsKey(nameSafe)
+				&& !new File(vmDir + File.separator + nameSafe + ".xml").exists()
+				&& !new File(vmDir + File.separator + nameSafe + ".qcow2").exists();
+	}
+
 	/**
 	 * Moves the selected VM in the list one position down, if possible.
 	 * 
@@ -213,7 +814,7 @@ public class VMManager {
 		vmList.add(index, temp);
 		vmListModel.add(index, temp);
 		vmJList.setSelectedIndex(index);
-		reorgAndStoreVmListToConfigFile();
+		registry.move(temp.getId(), index);
 	}
 
 	/**
@@ -234,7 +835,127 @@ public class VMManager {
 		vmList.add(index, temp);
 		vmListModel.add(index, temp);
 		vmJList.setSelectedIndex(index);
-		reorgAndStoreVmListToConfigFile();
+		registry.move(temp.getId(), index);
+	}
+
+	/**
+	 * Adds a VM to the lookup maps (id, name and safe name).
+	 * 
+	 * @param vm
+	 */
+	private void putVmMaps(VM vm) {
+
+		vmIdMap.put(vm.getId(), vm);
+		vmNameMap.put(vm.getName(), vm);
+		vmNameMap.put(vm.getNameSafe(), vm);
+	}
+
+	/**
+	 * Promotes the selected VM to a template or a new version of its template (asks for the 
+	 * name). The disk is moved or merged in the background, the VM cannot be started meanwhile.
+	 * 
+	 * @param mainView
+	 * @param selectedIndex		the index of the VM in the list
+	 */
+	public void promoteVm(MainView mainView, int selectedIndex) {
+		
+		VM vm = vmList.get(selectedIndex);
+		if (vm.isRunningAnywhere() || vm.isDiskBusy() || vm.isClone() || !getClones(vm).isEmpty()) {
+			Gui.errorDlg(mainView, Msg.get(TEMPLATE_PROMOTE_NOT_POSSIBLE_MSG, vm.getName()), 
+					Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		String current = vm.getProperty(VMProperties.TEMPLATE);
+		Object input = JOptionPane.showInputDialog(mainView, Msg.get(TEMPLATE_NAME_MSG), 
+				Msg.get(TEMPLATE_PROMOTE_TT_MSG), JOptionPane.QUESTION_MESSAGE, null, null, 
+				current.isEmpty() ? vm.getName() : current);
+		if (input == null || input.toString().isBlank()) {
+			return;
+		}
+		String name = input.toString().trim();
+		vm.setDiskBusy(true);
+		mainView.vmListSelectionEnabler();
+		CompletableFuture.supplyAsync(() -> {
+			try {
+				return getTemplateLibrary().promote(vm, name);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}).whenComplete((template, e) -> SwingUtilities.invokeLater(() -> {
+			vm.setDiskBusy(false);
+			if (e != null) {
+				Logger.error("VMManager: cannot promote VM '" + vm.getName() + "' to a template", e);
+				Gui.errorDlg(mainView, Msg.get(TEMPLATE_PROMOTE_FAILED_MSG, vm.getName()), 
+						Msg.get(ERROR_TITLE_DLG_MSG));
+			} else {
+				MainView.setStatusMessage(Msg.get(TEMPLATE_PROMOTED_MSG, vm.getName(), template.toString()));
+			}
+			mainView.vmListSelectionEnabler();
+			mainView.updateVmComponents();
+		}));
+	}
+
+	/**
+	 * Replaces the properties of a VM, whose properties file has been changed by another
+	 * program (VMDirectoryWatcher). The list shows the change in place.
+	 * 
+	 * @param vm
+	 * @param vmProperties		the loaded properties
+	 * @param filename			the properties file (within the VM directory), may differ on rename
+	 * @return true, if reloaded, false if the new name is used by another VM
+	 */
+	public boolean reloadVm(VM vm, VMProperties vmProperties, String filename) {
+		
+		VM reloaded = new VM(vmProperties);
+		VM other = vmNameMap.get(reloaded.getName());
+		VM otherSafe = vmNameMap.get(reloaded.getNameSafe());
+		if ((other != null && other != vm) || (otherSafe != null && otherSafe != vm)) {
+			Logger.warning("VMManager: ignoring change of '" + filename + "', a VM named '" 
+					+ reloaded.getName() + "' exists already");
+			return false;
+		}
+		String id = vm.getId();
+		if (!id.equals(reloaded.getId())) {
+			// the registry defines the id
+			vmProperties.setProperty(VMProperties.VM_ID, id);
+		}
+		if (!filename.equals(vmProperties.getProperty(VMProperties.VM_FILENAME))) {
+			vmProperties.setProperty(VMProperties.VM_FILENAME, filename);
+		}
+		if (vmProperties.isChangedSinceStored()) {
+			PersistenceService.markDirty(vmProperties);
+		}
+		if (!filename.equals(registry.getFilename(id))) {
+			registry.setFilename(id, filename);
+		}
+		removeVmMaps(vm);
+		vm.reload(vmProperties);
+		putVmMaps(vm);
+		int index = vmList.indexOf(vm);
+		if (vmListModel != null && index >= 0) {
+			vmListModel.set(index, vm);
+			if (vmJList.getSelectedIndex() == index && Main.getMainView() != null) {
+				Main.getMainView().updateVmComponents();
+			}
+		}
+		Logger.info("VMManager: reloaded VM " + id + " '" + vm.getName() + "', file: '" + filename + "'");
+		return true;
+	}
+
+	/**
+	 * Rolls out the current version of a template to its instances (asks for the template).
+	 * 
+	 * @param mainView
+	 */
+	public void rolloutTemplate(MainView mainView) {
+		
+		TemplateLibrary.Template template = selectTemplate(mainView, null);
+		if (template == null) {
+			return;
+		}
+		List<VM> updatedList = getTemplateLibrary().rollout(template);
+		MainView.setStatusMessage(Msg.get(TEMPLATE_ROLLED_OUT_MSG, template.toString(), updatedList.size()));
+		mainView.updateVmComponents();
 	}
 
 	/**
@@ -246,6 +967,12 @@ public class VMManager {
 	public void removeVm(MainView mainView, int selectedIndex) {
 		
 		VM vm = vmList.get(selectedIndex);
+		List<VM> cloneList = getClones(vm);
+		if (!cloneList.isEmpty()) {
+			Gui.errorDlg(mainView, Msg.get(CLONE_BASE_MSG, vm.getName(), getNames(cloneList)), 
+					Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
 		Object[] options = {Msg.get(CANCEL_BTN_MSG),
 				Msg.get(NO_BTN_MSG),
 				Msg.get(YES_BTN_MSG)};
@@ -261,7 +988,9 @@ public class VMManager {
 			return;
 		}
 		Logger.info("removing VM '" + vm.getName() + "'");
+		PersistenceService.flushNow();			// no pending write may recreate the deleted file
 		vmList.remove(selectedIndex);
+		removeVmMaps(vm);
 		vmListModel.remove(selectedIndex);
 		String xmlFile = vm.getPathname();
 		new File(xmlFile).delete();
@@ -271,8 +1000,43 @@ public class VMManager {
 			Logger.info("VM '" + vm.getName() + "': removing file " + diskPath);
 			new File(diskPath).delete();
 		}
-		// reorganize the VM list on the disk (application properties)
-		reorgAndStoreVmListToConfigFile();
+		registry.remove(vm.getId());
+	}
+
+	/**
+	 * Removes a VM, whose properties file has been deleted by another program 
+	 * (VMDirectoryWatcher). A running VM is kept.
+	 * 
+	 * @param vm
+	 * @return true, if removed
+	 */
+	public boolean removeExternalVm(VM vm) {
+		
+		if (vm.isRunning()) {
+			Logger.warning("VMManager: the file of the running VM '" + vm.getName() + "' has been deleted, VM kept");
+			return false;
+		}
+		int index = vmList.indexOf(vm);
+		vmList.remove(index);
+		removeVmMaps(vm);
+		if (vmListModel != null) {
+			vmListModel.remove(index);
+		}
+		registry.remove(vm.getId());
+		Logger.info("VMManager: removed VM " + vm.getId() + " '" + vm.getName() + "', file deleted");
+		return true;
+	}
+
+	/**
+	 * Removes a VM from the lookup maps (id, name and safe name).
+	 * 
+	 * @param vm
+	 */
+	private void removeVmMaps(VM vm) {
+
+		vmIdMap.remove(vm.getId());
+		vmNameMap.remove(vm.getName(), vm);
+		vmNameMap.remove(vm.getNameSafe(), vm);
 	}
 
 	/**
@@ -285,25 +1049,30 @@ public class VMManager {
 
 		VM vm = vmList.get(selectedIndex);
 		String newNameSafe = newName.replace(" ", "_");
-		// check on duplicates
-		boolean duplicate = false;
-		for (int i = 0; i < vmList.size(); i++) {
-			if (i == selectedIndex) {
-				continue;					// the vm to be renamed
-			}
-			if (newName.equals(vmList.get(i).getName())) {
-				duplicate = true;
-				break;
-			}
-			if (newNameSafe.equals(vmList.get(i).getNameSafe())) {
-				duplicate = true;
-				break;
-			}
-		}
+		// check on duplicates (except the vm to be renamed)
+		VM otherVm = vmNameMap.get(newName);
+		boolean duplicate = otherVm != null && otherVm != vm;
+		otherVm = vmNameMap.get(newNameSafe);
+		duplicate |= otherVm != null && otherVm != vm;
 		if (duplicate) {
 			Gui.errorDlg(Main.getMainView(), Msg.get(VM_EXIST_ALREADY_MSG), Msg.get(ERROR_TITLE_DLG_MSG));
 			return false;
 		}
+		if (!newName.equals(vm.getName())) {
+			ArrayList<String> runningList = new ArrayList<>();
+			for (VM clone : getClones(vm)) {
+				if (clone.isRunningAnywhere()) {
+					runningList.add(clone.getName());
+				}
+			}
+			if (!runningList.isEmpty()) {
+				// a running clone has the backing file open by its old name
+				Gui.errorDlg(Main.getMainView(), Msg.get(CLONE_RENAME_RUNNING_MSG, vm.getName(),
+						String.join(", ", runningList)), Msg.get(ERROR_TITLE_DLG_MSG));
+				return false;
+			}
+		}
+		PersistenceService.flushNow();			// no pending write to the old file
 		String vmDir = Main.getProperty(AppProperties.VM_DISK_PATH);
 		String vmDiskPath = vmDir + File.separator + vm.getDriveHdaName();
 		String diskName = vm.getDriveHdaName();
@@ -311,22 +1080,51 @@ public class VMManager {
 		Logger.info("Renaming VM '" + vm.getName() + "' to '" + newName + "'");
 		if (!diskName.trim().equals("")) {
 			newDiskName = newNameSafe + diskName.substring(diskName.lastIndexOf("."));
-			String newVmDiskPath = vmDir + File.separator + newDiskName;
 			File vmDisk = new File(vmDiskPath);
-			if (vmDisk.exists()) {
-				vmDisk.renameTo(new File(newVmDiskPath));
+			File newVmDisk = new File(vmDir + File.separator + newDiskName);
+			if (!newDiskName.equals(diskName) && vmDisk.exists()) {
+				// the linked clones refer to the disk by name: read their headers before changing anything
+				LinkedHashMap<String, Qcow2Image> cloneMap = new LinkedHashMap<>();
+				try {
+					for (VM clone : getClones(vm)) {
+						String clonePath = vmDir + File.separator + clone.getDriveHdaName();
+						cloneMap.put(clonePath, Qcow2Image.read(new File(clonePath)));
+					}
+				} catch (IOException e) {
+					Logger.error("VMManager: cannot read the linked clones of VM '" + vm.getName() + "'", e);
+					Gui.errorDlg(Main.getMainView(), Msg.get(CLONE_RENAME_FAILED_MSG, vm.getName()), 
+							Msg.get(ERROR_TITLE_DLG_MSG));
+					return false;
+				}
+				if (newVmDisk.exists() || !vmDisk.renameTo(newVmDisk)) {
+					Logger.error("VMManager: cannot rename " + vmDisk + " to " + newVmDisk);
+					Gui.errorDlg(Main.getMainView(), Msg.get(DISK_RENAME_FAILED_MSG, diskName, newDiskName), 
+							Msg.get(ERROR_TITLE_DLG_MSG));
+					return false;
+				}
+				if (!changeBackingFiles(cloneMap, newDiskName)) {
+					if (!newVmDisk.renameTo(vmDisk)) {
+						Logger.error("VMManager: cannot rename " + newVmDisk + " back to " + vmDisk);
+					}
+					Gui.errorDlg(Main.getMainView(), Msg.get(CLONE_RENAME_FAILED_MSG, vm.getName()), 
+							Msg.get(ERROR_TITLE_DLG_MSG));
+					return false;
+				}
 			}
 		}
+		removeVmMaps(vm);
 		vm.setProperty(VMProperties.VM_NAME, newName);
 		vm.setProperty(VMProperties.VM_NAME_SAFE, newNameSafe);
 		vm.setProperty(VMProperties.DRIVE_HDA_NAME, newDiskName);
 		String filename = vm.getProperty(VMProperties.VM_FILENAME);
 		String newFilename = newNameSafe + filename.substring(filename.lastIndexOf("."));
 		vm.setProperty(VMProperties.VM_FILENAME, newFilename);
-		vm.getVmProperties().storeToXML();
 		File vmFile = new File(vmDir + File.separator + filename);
 		vmFile.renameTo(new File(vmDir + File.separator + newFilename));
-		reorgAndStoreVmListToConfigFile();
+		vm.getVmProperties().setPathname(vmDir + File.separator + newFilename);
+		vm.getVmProperties().storeToXML();
+		registry.setFilename(vm.getId(), newFilename);
+		putVmMaps(vm);
 		SwingUtilities.invokeLater(() -> {
 			vmJList.invalidate();
 			vmJList.repaint();
@@ -337,19 +1135,72 @@ public class VMManager {
 	}
 
 	/**
-	 * Reorganize the application properties list of VMs. This
-	 * will synchronize the list of Vms to the configuration file on disk.
+	 * Reverts a VM to a snapshot (after confirmation), including the VM state if it is running.
+	 * 
+	 * @param mainView
+	 * @param selectedIndex
+	 * @param name				the name of the snapshot, null if none is selected
+	 */
+	public void revertSnapshot(MainView mainView, int selectedIndex, String name) {
+		
+		VM vm = vmList.get(selectedIndex);
+		runConfirmedSnapshotJob(mainView, vm, SnapshotManager.Operation.REVERT, name, SNAPSHOT_REVERT_CONFIRM_MSG);
+	}
+
+	/**
+	 * Checks, confirms and starts a snapshot operation on an existing snapshot.
+	 * 
+	 * @param mainView
+	 * @param vm
+	 * @param operation
+	 * @param name				the name of the snapshot, null if none is selected
+	 * @param confirmMsg		the confirmation ($(1) VM, $(2) snapshot)
 	 */
-	private void reorgAndStoreVmListToConfigFile() {
+	private void runConfirmedSnapshotJob(MainView mainView, VM vm, SnapshotManager.Operation operation, 
+			String name, Message confirmMsg) {
+		
+		if (name == null) {
+			Gui.infoDlg(mainView, Msg.get(SNAPSHOT_NONE_SELECTED_MSG), operation.getDisplayName());
+			return;
+		}
+		String reason = getSnapshotManager().check(vm, operation, !getClones(vm).isEmpty());
+		if (reason != null) {
+			Gui.errorDlg(mainView, reason, Msg.get(ERROR_TITLE_DLG_MSG));
+			return;
+		}
+		int answer = JOptionPane.showConfirmDialog(mainView, Msg.get(confirmMsg, vm.getName(), name), 
+				operation.getDisplayName(), JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+		if (answer == JOptionPane.YES_OPTION) {
+			startSnapshotJob(mainView, vm, operation, name);
+		}
+	}
 
-		AppProperties properties = Main.getProperties();
-		int vmNr = 0;
-		for (;vmNr < vmList.size(); vmNr++) {
-			properties.setProperty(AppProperties.VM_FILENAME + vmNr, 
-					vmList.get(vmNr).getVmFilename());
+	/**
+	 * Asks for a template and optionally the number of VMs to create from it.
+	 * 
+	 * @param mainView
+	 * @param countSpinner		the number of VMs or null
+	 * @return the selected template or null, if canceled or there is no template
+	 */
+	private TemplateLibrary.Template selectTemplate(MainView mainView, JSpinner countSpinner) {
+		
+		List<TemplateLibrary.Template> templateList = getTemplateLibrary().getTemplates();
+		if (templateList.isEmpty()) {
+			Gui.errorDlg(mainView, Msg.get(TEMPLATE_NONE_MSG), Msg.get(ERROR_TITLE_DLG_MSG));
+			return null;
+		}
+		JComboBox<TemplateLibrary.Template> templateCbx = new JComboBox<>(
+				templateList.toArray(new TemplateLibrary.Template[0]));
+		JPanel panel = new JPanel(new java.awt.GridLayout(0, 2, 5, 5));
+		panel.add(new JLabel(Msg.get(TEMPLATE_MSG)));
+		panel.add(templateCbx);
+		if (countSpinner != null) {
+			panel.add(new JLabel(Msg.get(TEMPLATE_COUNT_MSG)));
+			panel.add(countSpinner);
 		}
-		properties.remove(AppProperties.VM_FILENAME + vmNr);	// if there is one after the last one (e.g. a remove)
-		properties.storeToXML();
+		int answer = JOptionPane.showConfirmDialog(mainView, panel, Msg.get(TEMPLATE_MSG), 
+				JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+		return answer == JOptionPane.OK_OPTION ? (TemplateLibrary.Template) templateCbx.getSelectedItem() : null;
 	}
 
 	/**
@@ -360,28 +1211,12 @@ public class VMManager {
 	 */
 	public void runInstallVm(MainView mainView, JList<VM> vmJList) {
 		
-		// ask for the image file or DVD to install the VM (once)
-		AppProperties properties = Main.getProperties();
-		FileChooserDlg chooser = new FileChooserDlg(
-				Msg.get(SELECT_OS_ICON_MSG), 
-				Msg.get(OK_BTN_MSG), 
-				Msg.get(OK_BTN_MSG), 
-				JFileChooser.FILES_ONLY, 
-				null);
-		String installDir = properties.getProperty(AppProperties.INSTALL_DIR);	// might not exist or could be empty
-		File dir = new File(installDir);
-		if (!installDir.trim().equals("") && dir.isDirectory()) {
-			// previous install from that directory, use it
-			chooser.setCurrentDirectory(dir);
-		}
-        if (chooser.showOpenDialog(mainView) != JFileChooser.APPROVE_OPTION) {
-        	return;
-        }
-        String vmInstallPath = chooser.getSelectedFile().getPath();
-        // remember the install directory
-        properties.setProperty(AppProperties.INSTALL_DIR, chooser.getCurrentDirectory().getAbsolutePath());
-        properties.storeToXML();
-        runVm(mainView, vmJList, vmInstallPath);
+		// ask for the image file or DVD to install the VM (once), the library or a file chooser
+		String vmInstallPath = InstallMediaDlg.select(mainView);
+		if (vmInstallPath == null) {
+			return;
+		}
+		runVm(mainView, vmJList, vmInstallPath);
 	}
 
 	/**
@@ -396,6 +1231,24 @@ public class VMManager {
 
 		int index = vmJList.getSelectedIndex();
 		VM vm = vmList.get(index);
+		if (vm.isDiskBusy()) {
+			return;
+		}
+		List<VM> cloneList = getClones(vm);
+		if (!cloneList.isEmpty()) {
+			// the base of linked clones runs with -snapshot, confirm on each start
+			String names = getNames(cloneList);
+			if (vmInstallPath != null) {
+				Gui.errorDlg(mainView, Msg.get(CLONE_BASE_INSTALL_MSG, vm.getName(), names), 
+						Msg.get(ERROR_TITLE_DLG_MSG));
+				return;
+			}
+			int answer = JOptionPane.showConfirmDialog(mainView, Msg.get(CLONE_BASE_START_MSG, vm.getName(), names), 
+					Msg.get(START_TT_MSG), JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+			if (answer != JOptionPane.YES_OPTION) {
+				return;
+			}
+		}
 		if (vmInstallPath != null) {
 			// this is a one-time installation run of the VM, from image file or DVD/CD
 			vm.getVmProperties().setPropertyAndStoreXml(
@@ -405,6 +1258,90 @@ public class VMManager {
 		}
 		vm.setIsRunning(true);
 		mainView.vmListSelectionEnabler();
-		new Qemu().runVm(vm, vmInstallPath);
+		if (!new Qemu().runVm(vm, vmInstallPath)) {
+			vm.setIsRunning(false);
+			mainView.vmListSelectionEnabler();
+		}
+	}
+
+	/**
+	 * Starts an installed VM (not the selected one, e.g. autostart).
+	 * 
+	 * @param vm
+	 * @return true, if the VM has been started, false otherwise
+	 */
+	public boolean startVm(VM vm) {
+
+		if (vm.isDiskBusy()) {
+			Logger.warning("VMManager: VM '" + vm.getName() + "' not started, its disk is busy");
+			return false;
+		}
+		if (!getClones(vm).isEmpty()) {
+			// unattended: the changes would be discarded (-snapshot) without asking
+			Logger.warning("VMManager: VM '" + vm.getName() + "' not started, it is the base of linked clones");
+			return false;
+		}
+		vm.setIsRunning(true);
+		VMSupervisor.notifyStateChanged(vm);
+		if (!new Qemu().runVm(vm, null)) {
+			vm.setIsRunning(false);
+			VMSupervisor.notifyStateChanged(vm);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Starts a snapshot job in the background, its progress is shown by the main view.
+	 * 
+	 * @param mainView
+	 * @param vm
+	 * @param operation
+	 * @param name				the name of the snapshot
+	 */
+	private void startSnapshotJob(MainView mainView, VM vm, SnapshotManager.Operation operation, String name) {
+		
+		String operationName = operation.getDisplayName();
+		SnapshotManager.Job job = getSnapshotManager().start(vm, operation, name, 
+				progressJob -> SwingUtilities.invokeLater(() -> {
+			mainView.showSnapshotJob(progressJob);
+			if (!progressJob.isDone()) {
+				MainView.setStatusMessage(Msg.get(SNAPSHOT_PROGRESS_MSG, operationName, name, vm.getName(), 
+						progressJob.getPercent() < 0 ? "" : progressJob.getPercent() + " %"));
+				return;
+			}
+			mainView.vmListSelectionEnabler();
+			if (progressJob.getFuture().join()) {
+				MainView.setStatusMessage(Msg.get(SNAPSHOT_DONE_MSG, operationName, name, vm.getName()));
+			} else {
+				MainView.setStatusMessage("");
+				Gui.errorDlg(mainView, Msg.get(SNAPSHOT_FAILED_MSG, operationName, name, vm.getName()), 
+						Msg.get(ERROR_TITLE_DLG_MSG));
+			}
+		}));
+		MainView.setStatusMessage(Msg.get(SNAPSHOT_PROGRESS_MSG, operationName, name, vm.getName(), ""));
+		mainView.showSnapshotJob(job);
+		mainView.vmListSelectionEnabler();
+	}
+
+	/**
+	 * Stops the selected VM (ACPI shutdown, escalating after the grace time).
+	 * 
+	 * @param mainView
+	 * @param vmJList
+	 */
+	public void stopVm(MainView mainView, JList<VM> vmJList) {
+
+		int index = vmJList.getSelectedIndex();
+		if (index < 0) {
+			return;
+		}
+		VM vm = vmList.get(index);
+		if (!vm.isRunning() || vm.isStopping()) {
+			return;
+		}
+		long graceMillis = Main.getPropertyInt(AppProperties.VM_STOP_GRACE_SECONDS) * 1000L;
+		VMSupervisor.stop(vm, System.currentTimeMillis() + graceMillis);
+		mainView.vmListSelectionEnabler();
 	}
 }
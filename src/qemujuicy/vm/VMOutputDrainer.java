@@ -0,0 +1,184 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+
+import qemujuicy.*;
+
+/**
+ * Drains the output streams of all running VMs into their VMOutputSink objects.
+ *
+ * One single daemon thread serves all VMs, regardless of their number: streams are
+ * only read if data is available (no blocking read), using one shared buffer.
+ * If no VM writes anything, the thread backs off up to IDLE_MAX_MILLIS, if no VM
+ * is running, the thread waits until a new VM is started.
+ */
+public class VMOutputDrainer {
+
+	public static final int BUFFER_SIZE = 16 * 1024;
+	public static final long IDLE_MAX_MILLIS = 50;		// maximum sleep time if there is no output
+	public static final int READS_PER_PASS = 4;			// maximum reads of one stream before serving the next
+
+	private static final VMOutputDrainer instance = new VMOutputDrainer();
+
+	private final ArrayList<Entry> entryList = new ArrayList<>();
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private Thread thread;
+
+	/**
+	 * Deny external construction, singleton.
+	 */
+	private VMOutputDrainer() {
+
+	}
+
+	/**
+	 * Drains the output of a VM process into a sink until the process has exited.
+	 * The process should have been started with merged stdout and stderr.
+	 *
+	 * @param process		the QEMU process of the VM
+	 * @param sink			the sink of the output
+	 */
+	public static void drain(Process process, VMOutputSink sink) {
+
+		synchronized (instance.entryList) {
+			instance.entryList.add(new Entry(process, process.getInputStream(), sink));
+			if (instance.thread == null) {
+				instance.thread = new Thread(instance::run, "vmOutputDrainer");
+				instance.thread.setDaemon(true);
+				instance.thread.start();
+			}
+			instance.entryList.notifyAll();
+		}
+	}
+
+	/**
+	 * Reads the available bytes of an entry.
+	 *
+	 * @param entry
+	 * @return true if something has been read, false otherwise
+	 */
+	private boolean drainEntry(Entry entry) throws IOException {
+
+		boolean hasRead = false;
+		for (int i = 0; i < READS_PER_PASS; i++) {
+			int available = entry.in.available();
+			if (available <= 0) {
+				break;
+			}
+			int count = entry.in.read(buffer, 0, Math.min(available, buffer.length));
+			if (count <= 0) {
+				break;
+			}
+			entry.sink.write(buffer, 0, count);
+			hasRead = true;
+		}
+		return hasRead;
+	}
+
+	/**
+	 * The drainer thread loop.
+	 */
+	private void run() {
+
+		long idleMillis = 1;
+		Entry[] entries = new Entry[0];
+		for (;;) {
+			synchronized (entryList) {
+				while (entryList.isEmpty()) {
+					try {
+						entryList.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				entries = entryList.toArray(entries);
+			}
+			boolean hasRead = false;
+			for (Entry entry : entries) {
+				if (entry == null) {
+					break;
+				}
+				try {
+					// read the alive state before reading, so no output gets lost
+					boolean isAlive = entry.process.isAlive();
+					hasRead |= drainEntry(entry);
+					if (!isAlive) {
+						while (drainEntry(entry)) {
+							// the rest of the output
+						}
+						remove(entry);
+					}
+				} catch (IOException e) {
+					Logger.error("VMOutputDrainer: error reading VM output", e);
+					remove(entry);
+				}
+			}
+			if (hasRead) {
+				idleMillis = 1;
+			} else {
+				Util.sleep(idleMillis);
+				idleMillis = Math.min(idleMillis * 2, IDLE_MAX_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Removes an entry and closes its stream and sink.
+	 *
+	 * @param entry
+	 */
+	private void remove(Entry entry) {
+
+		synchronized (entryList) {
+			entryList.remove(entry);
+		}
+		try {
+			entry.in.close();
+		} catch (IOException e) {
+			// intentionally do nothing
+		}
+		entry.sink.close();
+	}
+
+	/************************* inner classes *************************/
+
+	/**
+	 * A VM process, its output stream and the sink.
+	 */
+	private static class Entry {
+
+		private Process process;
+		private InputStream in;
+		private VMOutputSink sink;
+
+		public Entry(Process process, InputStream in, VMOutputSink sink) {
+
+			this.process = process;
+			this.in = in;
+			this.sink = sink;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.charset.*;
+
+import qemujuicy.*;
+
+/**
+ * A bounded sink for the output (stdout and stderr) of a running VM.
+ *
+ * The latest output is kept in a fixed size in-memory ring buffer, all output is
+ * written to a size-capped log file, which is rotated (name.log, name.log.1, ...).
+ */
+public class VMOutputSink {
+
+	public static final int RING_SIZE = 64 * 1024;				// bytes kept in memory
+	public static final long MAX_LOG_FILE_SIZE = 1024 * 1024;	// rotate the log file at this size
+	public static final int LOG_FILE_BACKUPS = 2;				// number of rotated log files kept
+
+	private final byte[] ring = new byte[RING_SIZE];
+	private int ringPos;						// next write position within the ring
+	private long totalBytes;					// number of bytes written since creation
+	private String logPath;
+	private OutputStream logStream;
+	private long logFileSize;
+
+	/**
+	 * Construction, the log file will be truncated.
+	 *
+	 * @param logPath		the path of the log file
+	 */
+	public VMOutputSink(String logPath) {
+
+		this.logPath = logPath;
+		try {
+			logStream = new FileOutputStream(logPath);
+		} catch (IOException e) {
+			// keep the ring buffer working anyway
+			Logger.error("VMOutputSink: cannot write log file '" + logPath + "'", e);
+		}
+	}
+
+	/**
+	 * Closes the log file.
+	 */
+	public synchronized void close() {
+
+		if (logStream == null) {
+			return;
+		}
+		try {
+			logStream.close();
+		} catch (IOException e) {
+			Logger.error("VMOutputSink: cannot close log file '" + logPath + "'", e);
+		}
+		logStream = null;
+	}
+
+	/**
+	 * @return the path of the current log file
+	 */
+	public String getLogPath() {
+
+		return logPath;
+	}
+
+	/**
+	 * @return the number of bytes written since creation
+	 */
+	public synchronized long getTotalBytes() {
+
+		return totalBytes;
+	}
+
+	/**
+	 * Renames the log file to name.log.1 (and so on) and starts a new log file.
+	 */
+	private void rotate() throws IOException {
+
+		logStream.close();
+		for (int i = LOG_FILE_BACKUPS; i > 0; i--) {
+			File from = new File(i == 1 ? logPath : logPath + "." + (i - 1));
+			File to = new File(logPath + "." + i);
+			if (from.exists()) {
+				to.delete();
+				from.renameTo(to);
+			}
+		}
+		logStream = new FileOutputStream(logPath);
+		logFileSize = 0;
+	}
+
+	/**
+	 * Returns the latest output as a string.
+	 *
+	 * @param maxBytes		the maximum number of (the latest) bytes, up to RING_SIZE
+	 * @return the latest output
+	 */
+	public synchronized String tail(int maxBytes) {
+
+		int count = (int) Math.min(Math.min(maxBytes, RING_SIZE), totalBytes);
+		byte[] bytes = new byte[count];
+		int start = ringPos - count;
+		if (start >= 0) {
+			System.arraycopy(ring, start, bytes, 0, count);
+		} else {
+			// wrapped around
+			start += RING_SIZE;
+			int firstPart = RING_SIZE - start;
+			System.arraycopy(ring, start, bytes, 0, firstPart);
+			System.arraycopy(ring, 0, bytes, firstPart, count - firstPart);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes output bytes into the ring buffer and the log file.
+	 * The bytes are copied, the caller may reuse the buffer.
+	 *
+	 * @param buffer
+	 * @param offset
+	 * @param length
+	 */
+	public synchronized void write(byte[] buffer, int offset, int length) {
+
+		totalBytes += length;
+		// ring buffer: only the last RING_SIZE bytes are of interest
+		int skip = Math.max(0, length - RING_SIZE);
+		int pos = offset + skip;
+		int remaining = length - skip;
+		while (remaining > 0) {
+			int chunk = Math.min(remaining, RING_SIZE - ringPos);
+			System.arraycopy(buffer, pos, ring, ringPos, chunk);
+			ringPos = (ringPos + chunk) % RING_SIZE;
+			pos += chunk;
+			remaining -= chunk;
+		}
+		// log file
+		if (logStream == null) {
+			return;
+		}
+		try {
+			logStream.write(buffer, offset, length);
+			logFileSize += length;
+			if (logFileSize >= MAX_LOG_FILE_SIZE) {
+				rotate();
+			}
+		} catch (IOException e) {
+			Logger.error("VMOutputSink: cannot write log file '" + logPath + "'", e);
+			close();
+		}
+	}
+}
@@ -33,15 +33,18 @@ import qemujuicy.*;
  * Note: Do not forget to handle additional properties if a new release is going to be rolled out.
  */
 @SuppressWarnings("serial")
-public class VMProperties extends Properties {
+public class VMProperties extends Properties implements PersistenceService.Storable {
 	
 	// property keys: do NOT forget to add a new property to checkDefaults() !!!
 	
 	public static final String ACCELERATOR = "accelerator"; 
+	public static final String AUTOSTART = "autostart"; 				// start the VM when QemuJuicy starts
+	public static final String CLONE_OF = "clone.of"; 				// linked clone: the id of the VM of the backing disk
 	public static final String CPUS = "cpus"; 
 	public static final String CREATION_TYPICAL = "creation.typical"; 
 	public static final String DRIVE_CD_DVD_NAME = "drive.cd.name";
 	public static final String DRIVE_HDA_NAME = "drive.hda.name";
+	public static final String DRIVE_HDA_PROFILE = "drive.hda.profile";		// the performance profile (DiskProfile spec)
 	public static final String DRIVE_HDA_SIZE_GB = "drive.hda.size.GB";		// in GB
 	public static final String DRIVE_HDB_NAME = "drive.hdb.name";
 	public static final String DRIVE_HDD_NAME = "drive.hdd.name";
@@ -53,12 +56,20 @@ public class VMProperties extends Properties {
 	public static final String ICON_PATH = "icon.path";
 	public static final String INSTALLED_FROM_PATH = "installed.from.path";
 	public static final String LOCALTIME = "localtime";				// use local time (instad of utc)
+	public static final String MAC_ADDRESS = "mac.address";			// of the NIC, unique per VM ("" -> VM.DEFAULT_MAC_ADDRESS)
 	public static final String NETWORK = "network"; 
 	public static final String OS = "os"; 
+	public static final String PRIORITY = "priority"; 				// autostart: higher priorities start first
 	public static final String QEMU_BOOT_MENU = "qemu.boot.menu"; 	
+	public static final String SNAPSHOT_CURRENT = "snapshot.current";	// the snapshot created or reverted to last
+	public static final String SNAPSHOT_PARENTS = "snapshot.parents";	// the lineage of the snapshots ("name=parent;...")
 	public static final String SOUND = "sound"; 
+	public static final String START_DELAY = "start.delay.seconds"; 	// autostart: delay before starting the VM
+	public static final String TEMPLATE = "template";				// the template the VM has been created from
+	public static final String TEMPLATE_VERSION = "template.version";	// the version of the template (its disk)
 	public static final String VERBOSE = "verbose";					// verbose output on stdout
 	public static final String VM_FILENAME = "vm.filename"; 		// the xml file containing this properties
+	public static final String VM_ID = "vm.id"; 					// the stable id of the VM (VMRegistry)
 	public static final String VM_MEMORY_MB = "vm.memory.MB"; 		// in MB
 	public static final String VM_NAME = "vm.name"; 				// the visible name of the VM
 	public static final String VM_NAME_SAFE = "vm.name.safe"; 		// the visible name of the VM, but spaces 
@@ -66,6 +77,8 @@ public class VMProperties extends Properties {
 	public static final String VM_QEMU = "vm.qemu"; 				// the emulator of the VM 
 	
 	private String pathname;
+	private volatile long version;				// incremented on each change (cache invalidation)
+	private volatile Properties storedProperties;		// the content as stored on disk (loaded or written)
 
 	/**
 	 * Construction from file or it takes the default values.
@@ -86,6 +99,7 @@ public class VMProperties extends Properties {
 			if (file.exists()) {
 				loadFromXML(new FileInputStream(file));
 				checkDefaults();
+				storedProperties = copy();
 			} else {
 				Logger.error("Cannot log VM properties from file '" + pathname + "'");
 				throw new Exception("Cannot log VM properties from file '" + pathname + "'");
@@ -102,10 +116,13 @@ public class VMProperties extends Properties {
 		
 		// not here set
 		checkProperty(ACCELERATOR, "");
+		checkProperty(AUTOSTART, "false");
+		checkProperty(CLONE_OF, "");
 		checkProperty(CPUS, "");
 		checkProperty(CREATION_TYPICAL, "");
 		checkProperty(DRIVE_CD_DVD_NAME, "");
 		checkProperty(DRIVE_HDA_NAME, "");
+		checkProperty(DRIVE_HDA_PROFILE, "");
 		checkProperty(DRIVE_HDA_SIZE_GB, "");
 		checkProperty(DRIVE_HDB_NAME, "");
 		checkProperty(DRIVE_HDD_NAME, "");
@@ -117,12 +134,20 @@ public class VMProperties extends Properties {
 		checkProperty(ICON_PATH, "");
 		checkProperty(INSTALLED_FROM_PATH, "");
 		checkProperty(LOCALTIME, "false");
+		checkProperty(MAC_ADDRESS, "");
 		checkProperty(NETWORK, "");
 		checkProperty(OS, "");
+		checkProperty(PRIORITY, "0");
 		checkProperty(QEMU_BOOT_MENU, "");
+		checkProperty(SNAPSHOT_CURRENT, "");
+		checkProperty(SNAPSHOT_PARENTS, "");
 		checkProperty(SOUND, "");
+		checkProperty(START_DELAY, "0");
+		checkProperty(TEMPLATE, "");
+		checkProperty(TEMPLATE_VERSION, "0");
 		checkProperty(VERBOSE, VMProperties.VERBOSE);
 		checkProperty(VM_FILENAME, "");
+		checkProperty(VM_ID, "");
 		checkProperty(VM_MEMORY_MB, "");
 		checkProperty(VM_NAME, "");
 		checkProperty(VM_NAME_SAFE, "");
@@ -139,6 +164,16 @@ public class VMProperties extends Properties {
 		}
 	}
 
+	/**
+	 * @return a copy of the properties (without the pathname)
+	 */
+	private Properties copy() {
+		
+		Properties copy = new Properties();
+		copy.putAll(this);
+		return copy;
+	}
+
 	/**
 	 * Creates the default properties.
 	 * A subclass may overwrite this method.
@@ -157,6 +192,32 @@ public class VMProperties extends Properties {
 		return pathname;
 	}
 
+	/**
+	 * @return the content as stored on disk (loaded or written), null if never stored
+	 */
+	public Properties getStoredProperties() {
+	
+		return storedProperties;
+	}
+
+	/**
+	 * @return true, if the properties have been changed since loaded or stored
+	 */
+	public boolean isChangedSinceStored() {
+	
+		return storedProperties == null || !equals(storedProperties);
+	}
+
+	/**
+	 * Sets the path of the properties file (e.g. after renaming the file).
+	 * 
+	 * @param pathname
+	 */
+	public void setPathname(String pathname) {
+		
+		this.pathname = pathname;
+	}
+
 	/**
 	 * Gets an boolean property (a flag).
 	 * 
@@ -179,6 +240,95 @@ public class VMProperties extends Properties {
 		return Integer.parseInt(getProperty(key));
 	}
 
+	/**
+	 * @return the version of the properties, incremented on each change
+	 */
+	public long getVersion() {
+		
+		return version;
+	}
+
+	/**
+	 * Removes all properties and increments the version.
+	 */
+	@Override
+	public synchronized void clear() {
+		
+		super.clear();
+		version++;
+	}
+
+	/**
+	 * Loads properties and increments the version.
+	 */
+	@Override
+	public synchronized void load(InputStream inStream) throws IOException {
+		
+		try {
+			super.load(inStream);
+		} finally {
+			version++;
+		}
+	}
+
+	/**
+	 * Loads properties and increments the version.
+	 */
+	@Override
+	public synchronized void load(Reader reader) throws IOException {
+		
+		try {
+			super.load(reader);
+		} finally {
+			version++;
+		}
+	}
+
+	/**
+	 * Loads XML properties and increments the version.
+	 */
+	@Override
+	public synchronized void loadFromXML(InputStream in) throws IOException, InvalidPropertiesFormatException {
+		
+		try {
+			super.loadFromXML(in);
+		} finally {
+			version++;
+		}
+	}
+
+	/**
+	 * Puts a property and increments the version, setProperty() uses this method.
+	 */
+	@Override
+	public synchronized Object put(Object key, Object value) {
+		
+		Object previous = super.put(key, value);
+		version++;
+		return previous;
+	}
+
+	/**
+	 * Puts properties and increments the version.
+	 */
+	@Override
+	public synchronized void putAll(Map<?, ?> map) {
+		
+		super.putAll(map);
+		version++;
+	}
+
+	/**
+	 * Removes a property and increments the version.
+	 */
+	@Override
+	public synchronized Object remove(Object key) {
+		
+		Object previous = super.remove(key);
+		version++;
+		return previous;
+	}
+
 	/**
 	 * Sets an integer property.
 	 * 
@@ -222,9 +372,12 @@ public class VMProperties extends Properties {
 	public void storeToXML() {
 		
         try {
-        	Util.storeToXML(this, "Version " + Version.getAsString(), pathname);
+        	Properties stored = copy();
+        	storedProperties = stored;			// before writing: the watcher must see it as own change
+        	Util.storeToXML(stored, "Version " + Version.getAsString(), pathname);
 		} catch (Exception e) {
-			Main.exitOnException(e);
+			// the previous file is still intact (written atomically), keep running
+			Logger.error("cannot store " + pathname, e);
 		}
 	}
 
@@ -247,4 +400,29 @@ public class VMProperties extends Properties {
 		}
 		return sb.toString();
 	}
+
+	/**
+	 * Rewrites the full QEMU definition for another identity: the disk name and the MAC address
+	 * of the VM the properties have been copied from are replaced (a linked clone, a template).
+	 * The disk name is replaced as a whole file name only (e.g. not within "data.qcow2").
+	 * 
+	 * @param oldDiskName
+	 * @param newDiskName
+	 * @param oldMac
+	 * @param newMac
+	 */
+	public void rewriteFullDefinition(String oldDiskName, String newDiskName, String oldMac, String newMac) {
+
+		String cmd = getProperty(FULL_QEMU_DEFINITION_CMD, "");
+		if (!oldDiskName.isBlank()) {
+			// whole names only: after a blank, '=', a quote or a path separator, up to a blank, ',' or a quote
+			cmd = cmd.replaceAll("(?<![^\\s=/\\\\\"'])" + java.util.regex.Pattern.quote(oldDiskName) 
+					+ "(?![^\\s,\"'])", java.util.regex.Matcher.quoteReplacement(newDiskName));
+		}
+		if (!oldMac.isBlank()) {
+			cmd = cmd.replaceAll("(?i)" + java.util.regex.Pattern.quote(oldMac), 
+					java.util.regex.Matcher.quoteReplacement(newMac));
+		}
+		setProperty(FULL_QEMU_DEFINITION_CMD, cmd);
+	}
 }
@@ -0,0 +1,372 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import qemujuicy.*;
+
+/**
+ * The registry of all VMs: stable VM ids, the properties file of each VM and the order
+ * of the VMs (as shown in the VM list).
+ *
+ * <p>The registry is a snapshot file plus a journal. A change (add, remove, move, rename)
+ * appends one line to the journal instead of rewriting the snapshot; the journal is merged
+ * into the snapshot (compacted) as soon as it has grown. Each journal line has a sequence
+ * number, lines already contained in the snapshot are skipped when the journal is replayed.</p>
+ *
+ * The numbered "vm.filename.N" keys of older releases (config.xml) are migrated automatically.
+ */
+public class VMRegistry {
+
+	public static final String SNAPSHOT_FILE = "vm-registry.xml";
+	public static final String JOURNAL_FILE = "vm-registry.journal";
+	public static final int COMPACT_LINES = 100;			// compact the journal at this size
+
+	private static final String SEQUENCE_KEY = "sequence";
+	private static final String ORDER_KEY = "order";
+	private static final String FILE_KEY = "file.";		// the id is appended
+
+	// journal operations
+	private static final String ADD = "ADD";
+	private static final String REMOVE = "REMOVE";
+	private static final String MOVE = "MOVE";
+	private static final String FILE = "FILE";
+
+	private String snapshotPath;
+	private String journalPath;
+	private final ArrayList<String> idList = new ArrayList<>();		// the order of the VMs
+	private final HashMap<String, String> fileMap = new HashMap<>();	// id -> properties file
+	private long sequence;						// the sequence number of the last change
+	private int journalLines;					// lines in the journal (not yet compacted)
+
+	/**
+	 * Construction, loads the snapshot and replays the journal.
+	 *
+	 * @param dirPath			the directory of the registry files (ending with a separator)
+	 */
+	public VMRegistry(String dirPath) {
+
+		snapshotPath = dirPath + SNAPSHOT_FILE;
+		journalPath = dirPath + JOURNAL_FILE;
+		loadSnapshot();
+		boolean isTorn = replayJournal();
+		if (isTorn || journalLines >= COMPACT_LINES) {
+			compact();
+		}
+	}
+
+	/**
+	 * Adds a VM at the end of the order.
+	 *
+	 * @param id
+	 * @param filename		the properties file of the VM (within the VM directory)
+	 */
+	public synchronized void add(String id, String filename) {
+
+		apply(ADD, id, filename);
+		journal(ADD, id, filename);
+	}
+
+	/**
+	 * Applies a change to the in-memory registry.
+	 *
+	 * @param op
+	 * @param id
+	 * @param arg			the argument of the operation or null
+	 */
+	private void apply(String op, String id, String arg) {
+
+		switch (op) {
+		case ADD:
+			if (!fileMap.containsKey(id)) {
+				idList.add(id);
+			}
+			fileMap.put(id, arg);
+			break;
+		case REMOVE:
+			idList.remove(id);
+			fileMap.remove(id);
+			break;
+		case MOVE:
+			if (idList.remove(id)) {
+				idList.add(Math.max(0, Math.min(Integer.parseInt(arg), idList.size())), id);
+			}
+			break;
+		case FILE:
+			if (fileMap.containsKey(id)) {
+				fileMap.put(id, arg);
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("unknown operation " + op);
+		}
+	}
+
+	/**
+	 * Writes the registry into the snapshot and clears the journal.
+	 * The snapshot is written atomically; if the journal is not cleared (crash), its lines
+	 * are skipped by their sequence numbers.
+	 */
+	public synchronized void compact() {
+
+		Properties snapshot = new Properties();
+		snapshot.setProperty(SEQUENCE_KEY, "" + sequence);
+		snapshot.setProperty(ORDER_KEY, String.join(",", idList));
+		for (Map.Entry<String, String> entry : fileMap.entrySet()) {
+			snapshot.setProperty(FILE_KEY + entry.getKey(), entry.getValue());
+		}
+		try {
+			Util.storeToXML(snapshot, "VM registry, order: VM ids", snapshotPath);
+			PersistenceService.write(journalPath, new byte[0]);
+			Logger.info("VMRegistry: compacted " + journalLines + " journal lines, " + idList.size() + " VMs");
+			journalLines = 0;
+		} catch (IOException e) {
+			Logger.error("VMRegistry: cannot write " + snapshotPath, e);
+		}
+	}
+
+	/**
+	 * Creates a new, unique VM id.
+	 *
+	 * @return the id
+	 */
+	public static String createId() {
+
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Finds the id of a VM by its properties file.
+	 *
+	 * @param filename		the properties file of the VM (within the VM directory)
+	 * @return the id or null, if not registered
+	 */
+	public synchronized String findId(String filename) {
+
+		for (Map.Entry<String, String> entry : fileMap.entrySet()) {
+			if (entry.getValue().equals(filename)) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param id
+	 * @return the properties file of a VM or null, if not registered
+	 */
+	public synchronized String getFilename(String id) {
+
+		return fileMap.get(id);
+	}
+
+	/**
+	 * @return a copy of the VM ids, in the order of the VM list
+	 */
+	public synchronized ArrayList<String> getIdList() {
+
+		return new ArrayList<>(idList);
+	}
+
+	/**
+	 * @return true, if the registry has been written before (or migrated)
+	 */
+	public boolean isPersisted() {
+
+		return new File(snapshotPath).exists() || new File(journalPath).exists();
+	}
+
+	/**
+	 * Appends a change to the journal, compacts the journal if it has grown.
+	 *
+	 * @param op
+	 * @param id
+	 * @param arg			the argument of the operation or null
+	 */
+	private void journal(String op, String id, String arg) {
+
+		sequence++;
+		String line = sequence + "\t" + op + "\t" + id + (arg != null ? "\t" + arg : "") + "\n";
+		try {
+			PersistenceService.append(journalPath, line.getBytes(StandardCharsets.UTF_8));
+			journalLines++;
+		} catch (IOException e) {
+			Logger.error("VMRegistry: cannot append to " + journalPath, e);
+			compact();				// at least try to keep the registry
+			return;
+		}
+		if (journalLines >= COMPACT_LINES) {
+			compact();
+		}
+	}
+
+	/**
+	 * Loads the snapshot, if any.
+	 */
+	private void loadSnapshot() {
+
+		File file = new File(snapshotPath);
+		if (!file.exists()) {
+			return;
+		}
+		Properties snapshot = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			snapshot.loadFromXML(in);
+		} catch (IOException e) {
+			Logger.error("VMRegistry: cannot read " + snapshotPath, e);
+			return;
+		}
+		sequence = Long.parseLong(snapshot.getProperty(SEQUENCE_KEY, "0"));
+		String order = snapshot.getProperty(ORDER_KEY, "");
+		for (String id : order.split(",")) {
+			String filename = snapshot.getProperty(FILE_KEY + id);
+			if (!id.isEmpty() && filename != null) {
+				idList.add(id);
+				fileMap.put(id, filename);
+			}
+		}
+	}
+
+	/**
+	 * Migrates the numbered "vm.filename.N" keys of the application properties into
+	 * the registry, the keys are removed. Each VM gets an id, if it has none.
+	 *
+	 * @param properties			the application properties
+	 * @param vmDiskPath			the directory of the VM properties files
+	 * @return the number of migrated VMs
+	 */
+	public synchronized int migrate(AppProperties properties, String vmDiskPath) {
+
+		int vmNr = 0;
+		for (;; vmNr++) {
+			String vmFile = properties.getProperty(AppProperties.VM_FILENAME + vmNr);
+			if (vmFile == null) {
+				break;
+			}
+			String vmPath = vmDiskPath + File.separator + vmFile;
+			try {
+				VMProperties vmProperties = new VMProperties(vmPath, true);
+				String id = vmProperties.getProperty(VMProperties.VM_ID);
+				if (id.isEmpty()) {
+					id = createId();
+					vmProperties.setProperty(VMProperties.VM_ID, id);
+					vmProperties.storeToXML();
+				}
+				apply(ADD, id, vmFile);
+			} catch (Exception e) {
+				// keep the old key, the VM cannot be loaded
+				Logger.error("VMRegistry: cannot migrate VM '" + vmPath + "'", e);
+				continue;
+			}
+			properties.remove(AppProperties.VM_FILENAME + vmNr);
+		}
+		sequence++;
+		compact();
+		properties.storeToXML();
+		Logger.info("VMRegistry: migrated " + idList.size() + " VMs from " + Main.CONFIG_FILE);
+		return idList.size();
+	}
+
+	/**
+	 * Moves a VM to another position of the order.
+	 *
+	 * @param id
+	 * @param index		the new position
+	 */
+	public synchronized void move(String id, int index) {
+
+		apply(MOVE, id, "" + index);
+		journal(MOVE, id, "" + index);
+	}
+
+	/**
+	 * Removes a VM.
+	 *
+	 * @param id
+	 */
+	public synchronized void remove(String id) {
+
+		apply(REMOVE, id, null);
+		journal(REMOVE, id, null);
+	}
+
+	/**
+	 * Replays the journal lines newer than the snapshot. A torn last line (a crash while
+	 * appending, no line end) is ignored, the journal has to be compacted then: the next
+	 * change would be appended to the torn line.
+	 *
+	 * @return true, if the journal ends with a torn line
+	 */
+	private boolean replayJournal() {
+
+		File file = new File(journalPath);
+		if (!file.exists()) {
+			return false;
+		}
+		String content;
+		try {
+			content = new String(java.nio.file.Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			Logger.error("VMRegistry: cannot read " + journalPath, e);
+			return false;
+		}
+		int end = content.lastIndexOf('\n') + 1;		// the end of the last complete line
+		for (String line : content.substring(0, end).split("\n")) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			journalLines++;
+			String[] fields = line.split("\t");
+			try {
+				long lineSequence = Long.parseLong(fields[0]);
+				if (lineSequence <= sequence) {
+					continue;			// contained in the snapshot
+				}
+				apply(fields[1], fields[2], fields.length > 3 ? fields[3] : null);
+				sequence = lineSequence;
+			} catch (RuntimeException e) {
+				Logger.warning("VMRegistry: ignoring journal line '" + line + "'");
+			}
+		}
+		if (end < content.length()) {
+			Logger.warning("VMRegistry: ignoring torn journal line '" + content.substring(end) + "'");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the properties file of a VM (rename).
+	 *
+	 * @param id
+	 * @param filename		the new properties file of the VM (within the VM directory)
+	 */
+	public synchronized void setFilename(String id, String filename) {
+
+		apply(FILE, id, filename);
+		journal(FILE, id, filename);
+	}
+}
@@ -0,0 +1,256 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import static qemujuicy.Message.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.swing.*;
+
+import qemujuicy.*;
+import qemujuicy.ui.*;
+
+/**
+ * Supervisor of all running VMs.
+ *
+ * There is no watcher thread per VM: the exit of a QEMU process is delivered by
+ * Process.onExit(), the exit handling runs on one shared daemon thread, the GUI is
+ * notified once per state change of a VM.
+ */
+public class VMSupervisor {
+
+	public static final long EARLY_EXIT_MILLIS = 5000;		// a failing VM exiting within this time is reported
+	public static final long QUIT_TIMEOUT_MILLIS = 3000;	// QMP "quit" to exit, before terminating the process
+	public static final long DESTROY_TIMEOUT_MILLIS = 2000;	// Process.destroy() to exit, before destroyForcibly()
+
+	private static final ScheduledExecutorService executor =
+			Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "vmSupervisor");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private static final Map<VM, Process> runningVmMap = new ConcurrentHashMap<>();
+
+	/**
+	 * Deny external construction.
+	 */
+	private VMSupervisor() {
+
+	}
+
+	/**
+	 * @return the shared executor of the supervisor, for short (non blocking) tasks only
+	 */
+	public static ScheduledExecutorService getExecutor() {
+
+		return executor;
+	}
+
+	/**
+	 * @return a snapshot list of all VMs currently running
+	 */
+	public static ArrayList<VM> getRunningVms() {
+
+		return new ArrayList<VM>(runningVmMap.keySet());
+	}
+
+	/**
+	 * Notifies the GUI about a state change of a VM (on the event dispatch thread).
+	 *
+	 * @param vm
+	 */
+	public static void notifyStateChanged(VM vm) {
+
+		if (Main.isHeadless()) {
+			return;
+		}
+		SwingUtilities.invokeLater(() -> {
+			MainView mainView = Main.getMainView();
+			if (mainView != null) {
+				mainView.vmListSelectionEnabler();
+			}
+		});
+	}
+
+	/**
+	 * Called on the supervisor thread as soon as the process of a VM has exited.
+	 *
+	 * @param vm
+	 * @param process
+	 */
+	private static void onExit(VM vm, Process process) {
+
+		runningVmMap.remove(vm);
+		QmpConnection qmpConnection = vm.getQmpConnection();
+		if (qmpConnection != null) {
+			qmpConnection.close();
+			new File(qmpConnection.getSocketPath()).delete();
+			vm.setQmpConnection(null);
+		}
+		int exitCode = process.exitValue();
+		vm.exited(exitCode);
+		long uptime = vm.getUptimeMillis();
+		String msg = "VM '" + vm.getName() + "' has exited, code " + exitCode
+				+ ", reason " + vm.getExitReason() + ", uptime " + uptime + "ms";
+		Logger.info(msg);
+		vm.verbose(msg);
+		notifyStateChanged(vm);
+		if (exitCode != 0 && uptime < EARLY_EXIT_MILLIS
+				&& vm.getExitReason() == VM.ExitReason.FAILED && Main.getMainView() != null) {
+			// QEMU refused to run the VM (image locked, wrong option, ...)
+			SwingUtilities.invokeLater(() -> Gui.errorDlg(Main.getMainView(),
+					Msg.get(VM_EXITS_WITH_CODE, exitCode), Msg.get(ERROR_TITLE_DLG_MSG)));
+		}
+	}
+
+	/**
+	 * Stops all running VMs in parallel, within one shared deadline.
+	 * Each VM gets an ACPI shutdown, escalating to termination if the deadline is reached.
+	 *
+	 * @param millis			the time for all VMs to stop (ACPI shutdown and escalation)
+	 * @return true, if all VMs have exited, false otherwise
+	 */
+	public static boolean stopAll(long millis) {
+
+		ArrayList<VM> runningVms = getRunningVms();
+		if (runningVms.isEmpty()) {
+			return true;
+		}
+		long start = System.currentTimeMillis();
+		// the shared deadline leaves time for the escalation steps
+		long deadline = start + Math.max(0, millis - QUIT_TIMEOUT_MILLIS - DESTROY_TIMEOUT_MILLIS);
+		ArrayList<CompletableFuture<VM>> futureList = new ArrayList<>();
+		for (VM vm : runningVms) {
+			futureList.add(stop(vm, deadline));
+		}
+		try {
+			CompletableFuture.allOf(futureList.toArray(new CompletableFuture<?>[0]))
+					.get(millis + DESTROY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			Logger.info("stopped " + runningVms.size() + " VMs in " + (System.currentTimeMillis() - start) + "ms");
+			return true;
+		} catch (Exception e) {
+			Logger.error("not all VMs stopped within " + millis + "ms", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops a running VM: ACPI shutdown (QMP "system_powerdown"), then after the deadline 
+	 * QMP "quit", then Process.destroy() and finally Process.destroyForcibly().
+	 * Without a QMP connection the process is terminated at once.
+	 *
+	 * @param vm				the VM
+	 * @param deadline			the end of the ACPI shutdown grace time (System.currentTimeMillis())
+	 * @return the future completing as soon as the VM has exited
+	 */
+	public static CompletableFuture<VM> stop(VM vm, long deadline) {
+
+		Process process = runningVmMap.get(vm);
+		if (process == null) {
+			return CompletableFuture.completedFuture(vm);
+		}
+		vm.setStopReason(VM.ExitReason.STOPPED);
+		notifyStateChanged(vm);
+		vm.verbose("stopping");
+		return stopProcess(vm.getName(), process.toHandle(), vm.getQmpConnection(), deadline,
+				() -> vm.setStopReason(VM.ExitReason.KILLED)).thenApply(isTerminated -> vm);
+	}
+
+	/**
+	 * Stops a QEMU process, also one not started by this QemuJuicy instance (headless mode):
+	 * ACPI shutdown, QMP "quit", ProcessHandle.destroy() and destroyForcibly().
+	 *
+	 * @param name				the name of the VM (logging)
+	 * @param handle			the QEMU process
+	 * @param qmpConnection		the QMP connection or null, to terminate the process at once
+	 * @param deadline			the end of the ACPI shutdown grace time (System.currentTimeMillis())
+	 * @param beforeTerminate	run before the process is terminated, may be null
+	 * @return the future of true, if the process had to be terminated, false if it has exited
+	 */
+	public static CompletableFuture<Boolean> stopProcess(String name, ProcessHandle handle,
+			QmpConnection qmpConnection, long deadline, Runnable beforeTerminate) {
+
+		CompletableFuture<Boolean> exited;
+		if (qmpConnection != null) {
+			Logger.info("VM '" + name + "': ACPI shutdown");
+			qmpConnection.execute("system_powerdown");
+			exited = waitForExit(handle, deadline - System.currentTimeMillis())
+					.thenCompose(hasExited -> {
+						if (hasExited) {
+							return CompletableFuture.completedFuture(true);
+						}
+						Logger.info("VM '" + name + "': no ACPI shutdown, QMP quit");
+						qmpConnection.execute("quit");
+						return waitForExit(handle, QUIT_TIMEOUT_MILLIS);
+					});
+		} else {
+			exited = CompletableFuture.completedFuture(false);
+		}
+		return exited.thenCompose(hasExited -> {
+			if (hasExited) {
+				return CompletableFuture.completedFuture(false);
+			}
+			Logger.info("VM '" + name + "': terminating process");
+			if (beforeTerminate != null) {
+				beforeTerminate.run();
+			}
+			handle.destroy();
+			return waitForExit(handle, DESTROY_TIMEOUT_MILLIS).thenCompose(hasExitedNow -> {
+				if (!hasExitedNow) {
+					Logger.warning("VM '" + name + "': killing process");
+					handle.destroyForcibly();
+				}
+				return handle.onExit().thenApply(h -> true);
+			});
+		});
+	}
+
+	/**
+	 * Supervises the process of a started VM, until it exits.
+	 *
+	 * @param vm				the VM
+	 * @param process			the QEMU process running the VM
+	 */
+	public static void supervise(VM vm, Process process) {
+
+		vm.started(process);
+		runningVmMap.put(vm, process);
+		process.onExit().thenAcceptAsync(p -> onExit(vm, p), executor);
+	}
+
+	/**
+	 * Waits for a process to exit, without blocking a thread.
+	 *
+	 * @param handle
+	 * @param millis			the timeout, 0 or less does not wait
+	 * @return the future of true, if the process has exited, false on timeout
+	 */
+	private static CompletableFuture<Boolean> waitForExit(ProcessHandle handle, long millis) {
+
+		return handle.onExit().thenApply(p -> true)
+				.completeOnTimeout(false, Math.max(0, millis), TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,64 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy;
+
+import java.lang.reflect.*;
+
+/**
+ * Runs all tests (the main() of each test class), see the target "test" of build.xml.
+ */
+public class AllTests {
+
+	private static final String[] TEST_CLASSES = {
+			"qemujuicy.PersistenceServiceTest",
+			"qemujuicy.vm.AcceleratorDetectorTest",
+			"qemujuicy.vm.DiskProfileTest",
+			"qemujuicy.vm.InstallMediaLibraryTest",
+			"qemujuicy.vm.Qcow2WriterTest",
+			"qemujuicy.vm.QmpClientTest",
+			"qemujuicy.vm.VMPropertiesTest",
+			"qemujuicy.vm.VMRegistryTest",
+	};
+
+	/**
+	 * Runs the tests, exits with 1 if a test failed.
+	 *
+	 * @param args		unused
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int failCount = 0;
+		for (String className : TEST_CLASSES) {
+			try {
+				Class.forName(className).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+				System.out.println("OK     " + className);
+			} catch (InvocationTargetException e) {
+				failCount++;
+				System.out.println("FAILED " + className + ": " + e.getCause());
+				e.getCause().printStackTrace(System.out);
+			}
+		}
+		System.out.println(TEST_CLASSES.length + " tests, " + failCount + " failed");
+		System.exit(failCount > 0 ? 1 : 0);
+	}
+}
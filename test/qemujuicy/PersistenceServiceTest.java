@@ -0,0 +1,60 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy;
+
+import java.util.concurrent.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests PersistenceService: flushNow() returns after a write already running is done.
+ */
+public class PersistenceServiceTest {
+
+	public static void main(String[] args) throws Exception {
+
+		createTempDir("persistence");
+		CountDownLatch startedLatch = new CountDownLatch(1);
+		boolean[] isWritten = new boolean[1];
+		PersistenceService.Storable storable = new PersistenceService.Storable() {
+			@Override
+			public String getPathname() {
+
+				return "slow.xml";
+			}
+
+			@Override
+			public void storeToXML() {
+
+				startedLatch.countDown();
+				Util.sleep(500);
+				isWritten[0] = true;
+			}
+		};
+		PersistenceService.markDirty(storable);
+		// the scheduled flush has taken the storable (the dirty set is empty) and is writing it
+		check(startedLatch.await(5, TimeUnit.SECONDS), "scheduled flush started");
+		PersistenceService.flushNow();
+		check(isWritten[0], "flushNow() returned before the running write was done");
+	}
+}
@@ -0,0 +1,114 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * The checks of the tests (plain Java, no test framework needed): a failed check throws an
+ * AssertionError, AllTests runs all tests.
+ */
+public class TestSupport {
+
+	private static File tempRoot;
+
+	/**
+	 * Deny external construction.
+	 */
+	private TestSupport() {
+	}
+
+	/**
+	 * @param condition
+	 * @param message		describes the check
+	 * @throws AssertionError if the condition is false
+	 */
+	public static void check(boolean condition, String message) {
+
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	/**
+	 * @param expected
+	 * @param actual
+	 * @param message		describes the check
+	 * @throws AssertionError if the values are not equal
+	 */
+	public static void checkEquals(Object expected, Object actual, String message) {
+
+		if (!Objects.equals(expected, actual)) {
+			throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+		}
+	}
+
+	/**
+	 * Creates a temporary directory, the log file of the tests is written there too.
+	 *
+	 * @param name
+	 * @return the directory (deleted on exit of the JVM)
+	 * @throws IOException
+	 */
+	public static synchronized File createTempDir(String name) throws IOException {
+
+		if (tempRoot == null) {
+			tempRoot = java.nio.file.Files.createTempDirectory("qemujuicy-test").toFile();
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(tempRoot)));
+			Logger.init(tempRoot.getPath() + File.separator + "test.log");
+		}
+		File dir = new File(tempRoot, name);
+		dir.mkdirs();
+		return dir;
+	}
+
+	/**
+	 * Deletes a file or a directory tree.
+	 *
+	 * @param file
+	 */
+	public static void delete(File file) {
+
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Writes a file.
+	 *
+	 * @param file
+	 * @param bytes
+	 * @throws IOException
+	 */
+	public static void write(File file, byte[] bytes) throws IOException {
+
+		java.nio.file.Files.write(file.toPath(), bytes, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+}
@@ -0,0 +1,87 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.charset.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests AcceleratorDetector with fake /proc, /dev and /sys roots: KVM is used with TCG as
+ * fallback, within a VM only if the KVM module of the CPU is loaded.
+ */
+public class AcceleratorDetectorTest {
+
+	private static final String FLAGS = "fpu vme de pse tsc msr pae";
+
+	public static void main(String[] args) throws Exception {
+
+		checkEquals("kvm:tcg", detect("host", FLAGS + " vmx", true, null), "vmx, /dev/kvm");
+		checkEquals("kvm:tcg", detect("svm", FLAGS + " svm", true, null), "svm, /dev/kvm");
+		checkEquals("tcg", detect("nokvm", FLAGS + " vmx", false, null), "no /dev/kvm");
+		checkEquals("tcg", detect("novmx", FLAGS, true, null), "no vmx/svm");
+		checkEquals("kvm:tcg", detect("nested", FLAGS + " vmx hypervisor", true, "Y"), "nested, kvm_intel loaded");
+		checkEquals("tcg", detect("nomodule", FLAGS + " vmx hypervisor", true, null), "nested, no kvm_intel");
+		File root = createTempDir("accel-arm");
+		AcceleratorDetector detector = new AcceleratorDetector(root.getPath(), root.getPath(), root.getPath(),
+				"amd64", OSType.LINUX);
+		checkEquals("tcg", detector.detect(Architecture.ARM64, null).getAccelOption(), "foreign guest");
+		detector = new AcceleratorDetector(root.getPath(), root.getPath(), root.getPath(), "amd64", OSType.WINDOWS);
+		checkEquals("whpx:tcg", detector.detect(Architecture.PC_X86_64, null).getAccelOption(), "Windows");
+	}
+
+	/**
+	 * Detects the accelerator for a x86_64 guest on a fake Linux x86_64 host.
+	 *
+	 * @param name		the name of the scenario
+	 * @param flags		the CPU flags
+	 * @param isKvm		true, if /dev/kvm exists
+	 * @param nested	the nested parameter of kvm_intel or null, if the module is not loaded
+	 * @return the accelerator option
+	 */
+	private static String detect(String name, String flags, boolean isKvm, String nested) throws IOException {
+
+		File root = createTempDir("accel-" + name);
+		File proc = new File(root, "proc");
+		File dev = new File(root, "dev");
+		File sys = new File(root, "sys");
+		proc.mkdirs();
+		dev.mkdirs();
+		write(new File(proc, "cpuinfo"), ("processor\t: 0\nflags\t\t: " + flags + "\n")
+				.getBytes(StandardCharsets.UTF_8));
+		if (isKvm) {
+			write(new File(dev, "kvm"), new byte[0]);
+		}
+		new File(sys, "module/kvm").mkdirs();
+		if (nested != null) {
+			new File(sys, "module/kvm_intel/parameters").mkdirs();
+			write(new File(sys, "module/kvm_intel/parameters/nested"), (nested + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		AcceleratorDetector detector = new AcceleratorDetector(proc.getPath(), dev.getPath(), sys.getPath(),
+				"x86_64", OSType.LINUX);
+		return detector.detect(Architecture.PC_X86_64, null).getAccelOption();
+	}
+}
@@ -0,0 +1,154 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.util.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests DiskProfile: the -blockdev/-device arguments of each preset, on a host supporting
+ * io_uring and direct I/O and on a host without (fallback to aio=threads and the host cache).
+ */
+public class DiskProfileTest {
+
+	public static final String DISK = "/vms/disk.qcow2";
+
+	public static void main(String[] args) throws Exception {
+
+		File dir = createTempDir("diskProfile");
+		OSType.getOS();
+		// the legacy profile is never adapted
+		List<String> legacy = List.of("-drive", "file=" + DISK + ",index=0,media=disk");
+		checkArgs(DiskProfile.Preset.COMPATIBLE, true, legacy);
+		checkArgs(DiskProfile.Preset.COMPATIBLE, false, legacy);
+		checkArgs(DiskProfile.Preset.VIRTIO_BLK, true, List.of(
+				"-object", "iothread,id=iothread-hda",
+				"-blockdev", blockdevFile("on", "io_uring"),
+				"-blockdev", blockdevFormat("on"),
+				"-device", "virtio-blk-pci,drive=hda,iothread=iothread-hda,num-queues=4"));
+		checkArgs(DiskProfile.Preset.VIRTIO_BLK, false, List.of(
+				"-object", "iothread,id=iothread-hda",
+				"-blockdev", blockdevFile("off", "threads"),
+				"-blockdev", blockdevFormat("off"),
+				"-device", "virtio-blk-pci,drive=hda,iothread=iothread-hda,num-queues=4"));
+		checkArgs(DiskProfile.Preset.VIRTIO_SCSI, true, List.of(
+				"-object", "iothread,id=iothread-hda",
+				"-blockdev", blockdevFile("on", "io_uring"),
+				"-blockdev", blockdevFormat("on"),
+				"-device", "virtio-scsi-pci,id=scsi-hda,iothread=iothread-hda,num_queues=4",
+				"-device", "scsi-hd,drive=hda,bus=scsi-hda.0"));
+		checkArgs(DiskProfile.Preset.VIRTIO_SCSI, false, List.of(
+				"-object", "iothread,id=iothread-hda",
+				"-blockdev", blockdevFile("off", "threads"),
+				"-blockdev", blockdevFormat("off"),
+				"-device", "virtio-scsi-pci,id=scsi-hda,iothread=iothread-hda,num_queues=4",
+				"-device", "scsi-hd,drive=hda,bus=scsi-hda.0"));
+		List<String> writeback = List.of(
+				"-object", "iothread,id=iothread-hda",
+				"-blockdev", blockdevFile("off", "threads"),
+				"-blockdev", blockdevFormat("off"),
+				"-device", "virtio-blk-pci,drive=hda,iothread=iothread-hda,num-queues=4");
+		checkArgs(DiskProfile.Preset.VIRTIO_WRITEBACK, true, writeback);
+		checkArgs(DiskProfile.Preset.VIRTIO_WRITEBACK, false, writeback);
+		checkArgs(DiskProfile.Preset.IDE_DIRECT, true, List.of(
+				"-blockdev", blockdevFile("on", "native"),
+				"-blockdev", blockdevFormat("on"),
+				"-device", "ide-hd,drive=hda"));
+		checkArgs(DiskProfile.Preset.IDE_DIRECT, false, List.of(
+				"-blockdev", blockdevFile("off", "threads"),
+				"-blockdev", blockdevFormat("off"),
+				"-device", "ide-hd,drive=hda"));
+		// the base of linked clones: a -drive with snapshot=on
+		checkEquals(List.of("-object", "iothread,id=iothread-hda", "-drive",
+				"if=none,id=hda,file=" + DISK + ",format=qcow2,cache=none,aio=io_uring,discard=unmap,"
+				+ "detect-zeroes=unmap,snapshot=on",
+				"-device", "virtio-blk-pci,drive=hda,iothread=iothread-hda,num-queues=4"),
+				DiskProfile.parse(DiskProfile.Preset.VIRTIO_BLK.getSpec()).adaptTo(true, true)
+						.createArgs("hda", DISK, 4, true), "snapshot args");
+		// io_uring: an emulator linked with liburing (Linux only)
+		File withUring = new File(dir, "qemu-with-uring");
+		write(withUring, "\u007fELF....libglib-2.0.so.0.liburing.so.2.libc.so.6".getBytes());
+		File withoutUring = new File(dir, "qemu-without-uring");
+		write(withoutUring, "\u007fELF....libglib-2.0.so.0.libaio.so.1.libc.so.6".getBytes());
+		checkEquals(OSType.isLinux(), DiskProfile.isIoUringSupported(withUring.getPath()), "liburing linked");
+		check(!DiskProfile.isIoUringSupported(withoutUring.getPath()), "liburing not linked");
+		check(!DiskProfile.isIoUringSupported(new File(dir, "missing").getPath()), "no emulator");
+		checkEquals(OSType.isLinux() ? "aio=io_uring" : "aio=threads",
+				findAio(DiskProfile.parse(DiskProfile.Preset.VIRTIO_BLK.getSpec())
+						.adaptTo(withUring.getPath(), DISK).createArgs("hda", DISK, 4, false)), "adapted aio");
+		checkEquals("aio=threads", findAio(DiskProfile.parse(DiskProfile.Preset.VIRTIO_BLK.getSpec())
+				.adaptTo(withoutUring.getPath(), DISK).createArgs("hda", DISK, 4, false)), "adapted aio");
+	}
+
+	/**
+	 * @param cacheDirect
+	 * @param aio
+	 * @return the protocol layer -blockdev
+	 */
+	private static String blockdevFile(String cacheDirect, String aio) {
+
+		return "driver=file,node-name=hda-file,filename=" + DISK + ",cache.direct=" + cacheDirect
+				+ ",aio=" + aio + ",discard=unmap";
+	}
+
+	/**
+	 * @param cacheDirect
+	 * @return the format layer -blockdev
+	 */
+	private static String blockdevFormat(String cacheDirect) {
+
+		return "driver=qcow2,node-name=hda,file=hda-file,cache.direct=" + cacheDirect
+				+ ",discard=unmap,detect-zeroes=unmap";
+	}
+
+	/**
+	 * @param preset
+	 * @param isSupported		true, if the host supports io_uring and direct I/O
+	 * @param expected
+	 */
+	private static void checkArgs(DiskProfile.Preset preset, boolean isSupported, List<String> expected) {
+
+		checkEquals(expected, DiskProfile.parse(preset.getSpec()).adaptTo(isSupported, isSupported)
+				.createArgs("hda", DISK, 4, false), preset + (isSupported ? "" : " (fallback)"));
+	}
+
+	/**
+	 * @param argList
+	 * @return the aio option of the protocol layer
+	 */
+	private static String findAio(List<String> argList) {
+
+		for (String arg : argList) {
+			for (String option : arg.split(",")) {
+				if (option.startsWith("aio=")) {
+					return option;
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,77 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests InstallMediaLibrary: more images verified at once than CHECKSUM_THREADS (the checksum
+ * tasks wait for their read ahead), checksum files and the states of the images.
+ */
+public class InstallMediaLibraryTest {
+
+	public static final int IMAGE_COUNT = 3 * InstallMediaLibrary.CHECKSUM_THREADS;
+
+	public static void main(String[] args) throws Exception {
+
+		File dir = createTempDir("installMedia");
+		StringBuilder sums = new StringBuilder();
+		ArrayList<InstallMediaLibrary.Medium> mediumList = new ArrayList<>();
+		for (int i = 0; i < IMAGE_COUNT; i++) {
+			File isoFile = new File(dir, "image" + i + ".iso");
+			byte[] bytes = new byte[(InstallMediaLibrary.PVD_SECTOR + 4) * InstallMediaLibrary.SECTOR_SIZE];
+			Arrays.fill(bytes, (byte) i);
+			write(isoFile, bytes);
+			String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+			// the last image is listed with a wrong checksum
+			sums.append(i == IMAGE_COUNT - 1 ? "0".repeat(64) : sha256).append(" *").append(isoFile.getName()).append("\n");
+			mediumList.add(new InstallMediaLibrary.Medium(isoFile.getPath(), isoFile.length(), isoFile.lastModified()));
+		}
+		write(new File(dir, "SHA256SUMS"), sums.toString().getBytes());
+		InstallMediaLibrary library = new InstallMediaLibrary(dir.getPath() + File.separator);
+		ArrayList<CompletableFuture<InstallMediaLibrary.Medium>> futureList = new ArrayList<>();
+		for (InstallMediaLibrary.Medium medium : mediumList) {
+			futureList.add(library.verify(medium));
+		}
+		for (int i = 0; i < IMAGE_COUNT; i++) {
+			InstallMediaLibrary.Medium medium;
+			try {
+				medium = futureList.get(i).get(30, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				throw new AssertionError("verification of image" + i + " hangs");
+			}
+			checkEquals(i == IMAGE_COUNT - 1 ? InstallMediaLibrary.State.CORRUPT : InstallMediaLibrary.State.VERIFIED,
+					medium.getState(), "state of image" + i);
+			check(!library.isVerifying(medium), "image" + i + " still verifying");
+		}
+		// a verified image is not hashed again
+		check(library.verify(mediumList.get(0)).isDone(), "cached checksum");
+	}
+}
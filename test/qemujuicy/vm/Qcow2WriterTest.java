@@ -0,0 +1,136 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests Qcow2Writer: the created images are parsed back with Qcow2Image (header, L1 table,
+ * refcounts), also after changing the backing file.
+ */
+public class Qcow2WriterTest {
+
+	private static final long MB = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+
+		File dir = createTempDir("qcow2writer");
+		// empty image: header, refcount table and block, L1 table
+		File file = new File(dir, "off.qcow2");
+		new Qcow2Writer(file.getPath(), 1024 * MB).create();
+		Qcow2Image image = Qcow2Image.read(file);
+		checkEquals(3, image.getVersion(), "version");
+		checkEquals(1024 * MB, image.getVirtualSize(), "virtual size");
+		checkEquals((long) Qcow2Writer.DEFAULT_CLUSTER_SIZE, image.getClusterSize(), "cluster size");
+		checkEquals(2, readHeaderInt(file, 36), "L1 entries (8192 clusters per L2 table)");
+		checkEquals(0, image.getL2TablesAllocated(), "no L2 table");
+		checkEquals(0L, image.getFileSize() % image.getClusterSize(), "whole clusters");
+		checkEquals(image.getFileSize() / image.getClusterSize(), image.getAllocatedClusters(), "refcounts");
+		check(!image.isDirty() && !image.isCorrupt(), "clean");
+		check(image.getBackingFile() == null, "no backing file");
+		// preallocated metadata: all L2 tables allocated
+		file = new File(dir, "metadata.qcow2");
+		new Qcow2Writer(file.getPath(), 10 * MB).setClusterSize(4096)
+				.setPreallocation(Qcow2Writer.Preallocation.METADATA).create();
+		image = Qcow2Image.read(file);
+		checkEquals(4096L, image.getClusterSize(), "small cluster size");
+		checkEquals(5, image.getL2TablesAllocated(), "L2 tables (512 clusters per table)");
+		check(image.getFileSize() >= 10 * MB, "data clusters preallocated");
+		checkEquals(image.getFileSize() / image.getClusterSize(), image.getAllocatedClusters(), "refcounts");
+		// many refcount blocks (256 refcounts per block)
+		file = new File(dir, "refcounts.qcow2");
+		new Qcow2Writer(file.getPath(), 8 * MB).setClusterSize(Qcow2Writer.MIN_CLUSTER_SIZE)
+				.setPreallocation(Qcow2Writer.Preallocation.METADATA).setLazyRefcounts(true).create();
+		image = Qcow2Image.read(file);
+		check(image.getAllocatedClusters() > 256 * 64, "refcounts over several blocks");
+		checkEquals(image.getFileSize() / image.getClusterSize(), image.getAllocatedClusters(), "refcounts");
+		checkEquals(1L, readHeaderLong(file, 80), "lazy refcounts");
+		// overlay: the size of the backing file, the backing file and format in the header
+		File overlay = new File(dir, "overlay.qcow2");
+		new Qcow2Writer(overlay.getPath(), 0).setBackingFile("off.qcow2", "qcow2").create();
+		image = Qcow2Image.read(overlay);
+		checkEquals(1024 * MB, image.getVirtualSize(), "virtual size of the backing file");
+		checkEquals("off.qcow2", image.getBackingFile(), "backing file");
+		checkEquals("qcow2", image.getBackingFormat(), "backing format");
+		checkEquals(new File(dir, "off.qcow2").getPath(), image.getBackingChain().get(0), "backing chain");
+		// rename the backing file
+		Files.move(new File(dir, "off.qcow2").toPath(), new File(dir, "renamed.qcow2").toPath());
+		Qcow2Writer.changeBackingFile(overlay.getPath(), "renamed.qcow2", "qcow2");
+		image = Qcow2Image.read(overlay);
+		checkEquals("renamed.qcow2", image.getBackingFile(), "changed backing file");
+		checkEquals("qcow2", image.getBackingFormat(), "backing format kept");
+		checkEquals(1024 * MB, image.getVirtualSize(), "virtual size kept");
+		checkEquals(image.getFileSize() / image.getClusterSize(), image.getAllocatedClusters(), "refcounts kept");
+		// errors
+		try {
+			new Qcow2Writer(overlay.getPath(), MB).create();
+			check(false, "existing image overwritten");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			new Qcow2Writer(new File(dir, "cluster.qcow2").getPath(), MB).setClusterSize(3000).create();
+			check(false, "invalid cluster size accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * @param file
+	 * @param offset
+	 * @return the 32 bit header field at the offset
+	 */
+	private static int readHeaderInt(File file, int offset) throws IOException {
+
+		return readHeader(file).getInt(offset);
+	}
+
+	/**
+	 * @param file
+	 * @param offset
+	 * @return the 64 bit header field at the offset
+	 */
+	private static long readHeaderLong(File file, int offset) throws IOException {
+
+		return readHeader(file).getLong(offset);
+	}
+
+	/**
+	 * @param file
+	 * @return the first 112 bytes of the image (big endian)
+	 */
+	private static ByteBuffer readHeader(File file) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(112).order(ByteOrder.BIG_ENDIAN);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			channel.read(header, 0);
+		}
+		return header;
+	}
+}
@@ -0,0 +1,164 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests QmpClient against a stand-in QMP server on a Unix domain socket: the greeting,
+ * qmp_capabilities before any command, pipelined commands answered out of order, events
+ * interleaved with the responses (also split across writes), errors and the close by QEMU.
+ */
+public class QmpClientTest {
+
+	private static final long TIMEOUT_SECONDS = 5;
+
+	public static void main(String[] args) throws Exception {
+
+		File socket = new File(createTempDir("qmp"), "vm.qmp");
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(socket.getPath()));
+		CountDownLatch greetingLatch = new CountDownLatch(1);
+		CompletableFuture<List<String>> serverFuture = CompletableFuture.supplyAsync(() -> {
+			try (SocketChannel channel = server.accept()) {
+				return serve(channel, greetingLatch);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+		QmpConnection connection = QmpClient.connect("test", socket.getPath());
+		LinkedBlockingQueue<String> eventQueue = new LinkedBlockingQueue<>();
+		connection.addEventListener((c, event, data) -> eventQueue.add(event + data.getOrDefault("reason", "")));
+		// issued before the greeting: sent after qmp_capabilities, in order
+		CompletableFuture<Object> status = connection.execute("query-status");
+		CompletableFuture<Object> name = connection.execute("query-name");
+		greetingLatch.countDown();
+		connection.getReadyFuture().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		check(connection.getGreeting() != null && connection.getGreeting().containsKey("QMP"), "greeting");
+		checkEquals("running", Json.getString(status.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "status"),
+				"response after an event");
+		checkEquals("vm", Json.getString(name.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "name"),
+				"response out of order");
+		checkEquals(QmpConnection.EVENT_STOP, eventQueue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS), "first event");
+		checkEquals(QmpConnection.EVENT_RESUME, eventQueue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+				"event split across writes");
+		try {
+			connection.execute("bogus").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			check(false, "error response completed normally");
+		} catch (ExecutionException e) {
+			check(e.getCause() instanceof QmpConnection.QmpException, "QmpException: " + e.getCause());
+			checkEquals("CommandNotFound", ((QmpConnection.QmpException) e.getCause()).getErrorClass(), "error class");
+		}
+		// QEMU exits on quit: the event, then the socket is closed without a response
+		CompletableFuture<Object> quit = connection.execute("quit");
+		checkEquals(QmpConnection.EVENT_SHUTDOWN + "host-qmp-quit", eventQueue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS),
+				"event with data");
+		connection.getClosedFuture().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		try {
+			quit.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			check(false, "command pending on close completed normally");
+		} catch (ExecutionException e) {
+			check(e.getCause() instanceof IOException, "IOException: " + e.getCause());
+		}
+		checkEquals(List.of("qmp_capabilities", "query-status", "query-name", "bogus", "quit"),
+				serverFuture.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "commands received by the server");
+		server.close();
+	}
+
+	/**
+	 * Reads a command from the client.
+	 *
+	 * @param reader
+	 * @return the command, its id is the value of the key "id"
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> readCommand(BufferedReader reader) throws IOException {
+
+		String line = reader.readLine();
+		if (line == null) {
+			throw new EOFException("client closed the connection");
+		}
+		return (Map<String, Object>) Json.parse(line);
+	}
+
+	/**
+	 * Serves one client like QEMU does.
+	 *
+	 * @param channel
+	 * @param greetingLatch		released when the greeting may be sent
+	 * @return the commands received
+	 */
+	private static List<String> serve(SocketChannel channel, CountDownLatch greetingLatch) throws Exception {
+
+		ArrayList<String> commandList = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel),
+				StandardCharsets.UTF_8));
+		OutputStream out = Channels.newOutputStream(channel);
+		greetingLatch.await();
+		write(out, "{\"QMP\": {\"version\": {\"qemu\": {\"micro\": 0, \"minor\": 2, \"major\": 8}}, "
+				+ "\"capabilities\": [\"oob\"]}}\n");
+		Map<String, Object> command = readCommand(reader);
+		commandList.add(command.get("execute").toString());
+		write(out, "{\"return\": {}, \"id\": " + command.get("id") + "}\n");
+		Map<String, Object> status = readCommand(reader);
+		Map<String, Object> name = readCommand(reader);
+		commandList.add(status.get("execute").toString());
+		commandList.add(name.get("execute").toString());
+		write(out, "{\"timestamp\": {\"seconds\": 1, \"microseconds\": 2}, \"event\": \"STOP\"}\n"
+				+ "{\"return\": {\"name\": \"vm\"}, \"id\": " + name.get("id") + "}\n{\"timestamp\": "
+				+ "{\"seconds\": 1, \"microseconds\": 3}, \"eve");
+		Thread.sleep(100);
+		write(out, "nt\": \"RESUME\"}\n{\"return\": {\"status\": \"running\", \"running\": true}, \"id\": "
+				+ status.get("id") + "}\n");
+		command = readCommand(reader);
+		commandList.add(command.get("execute").toString());
+		write(out, "{\"error\": {\"class\": \"CommandNotFound\", \"desc\": \"The command bogus has not been found\"}, "
+				+ "\"id\": " + command.get("id") + "}\n");
+		command = readCommand(reader);
+		commandList.add(command.get("execute").toString());
+		write(out, "{\"timestamp\": {\"seconds\": 2, \"microseconds\": 0}, \"event\": \"SHUTDOWN\", "
+				+ "\"data\": {\"guest\": false, \"reason\": \"host-qmp-quit\"}}\n");
+		return commandList;
+	}
+
+	/**
+	 * Writes a string and flushes it.
+	 *
+	 * @param out
+	 * @param text
+	 */
+	private static void write(OutputStream out, String text) throws IOException {
+
+		out.write(text.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+}
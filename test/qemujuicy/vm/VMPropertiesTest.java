@@ -0,0 +1,71 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests VMProperties: each change increments the version (the QEMU command cache is
+ * invalidated), also remove(), putAll() and loading. The full definition of a copy is rewritten.
+ */
+public class VMPropertiesTest {
+
+	public static void main(String[] args) throws Exception {
+
+		File file = new File(createTempDir("vmproperties"), "vm.xml");
+		VMProperties props = new VMProperties(file.getPath(), false);
+		long version = props.getVersion();
+		props.setProperty("a", "1");
+		check(props.getVersion() != version, "setProperty() increments the version");
+		version = props.getVersion();
+		props.remove("a");
+		check(props.getVersion() != version, "remove() increments the version");
+		version = props.getVersion();
+		props.putAll(Map.of("b", "2"));
+		check(props.getVersion() != version, "putAll() increments the version");
+		version = props.getVersion();
+		props.load(new StringReader("c=3\n"));
+		check(props.getVersion() != version, "load() increments the version");
+		version = props.getVersion();
+		Properties stored = new Properties();
+		stored.setProperty("d", "4");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		stored.storeToXML(out, null, StandardCharsets.UTF_8);
+		props.loadFromXML(new ByteArrayInputStream(out.toByteArray()));
+		check(props.getVersion() != version, "loadFromXML() increments the version");
+		version = props.getVersion();
+		props.clear();
+		check(props.getVersion() != version, "clear() increments the version");
+		// the full definition of a copy: whole disk names and the MAC address (any case)
+		props.setProperty(VMProperties.FULL_QEMU_DEFINITION_CMD, "qemu-system-x86_64 -drive file=/vms/a.qcow2,if=virtio "
+				+ "-drive file=/vms/data.qcow2 -drive file=/vms/a.qcow2.bak a.qcow2 -device e1000,mac=52:54:00:AB:CD:EF");
+		props.rewriteFullDefinition("a.qcow2", "b.qcow2", "52:54:00:ab:cd:ef", "52:54:00:12:34:56");
+		checkEquals("qemu-system-x86_64 -drive file=/vms/b.qcow2,if=virtio -drive file=/vms/data.qcow2 "
+				+ "-drive file=/vms/a.qcow2.bak b.qcow2 -device e1000,mac=52:54:00:12:34:56",
+				props.getProperty(VMProperties.FULL_QEMU_DEFINITION_CMD), "rewritten full definition");
+	}
+}
@@ -0,0 +1,61 @@
+
+/**
+	This file is part of QemuJuicy, a graphical user interface to run QEMU.
+	
+	Copyright (C) 2021 Heinz Silberbauer and contributors.
+
+	This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 2 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License along
+    with this program; if not, write to the Free Software Foundation, Inc.,
+    51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+    
+    See <http://www.gnu.org/licenses/>.
+ */
+package qemujuicy.vm;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import qemujuicy.*;
+
+import static qemujuicy.TestSupport.*;
+
+/**
+ * Tests VMRegistry: the journal is replayed on construction, a torn last line (a crash while
+ * appending) is ignored and does not swallow the next change.
+ */
+public class VMRegistryTest {
+
+	public static void main(String[] args) throws Exception {
+
+		String dirPath = createTempDir("registry").getPath() + File.separator;
+		VMRegistry registry = new VMRegistry(dirPath);
+		registry.add("a", "A.xml");
+		registry.add("b", "B.xml");
+		registry.move("b", 0);
+		registry.setFilename("a", "A2.xml");
+		registry = new VMRegistry(dirPath);
+		checkEquals(List.of("b", "a"), registry.getIdList(), "replayed order");
+		checkEquals("A2.xml", registry.getFilename("a"), "replayed rename");
+		// a crash while appending: the last line has no line end
+		try (FileOutputStream out = new FileOutputStream(dirPath + VMRegistry.JOURNAL_FILE, true)) {
+			out.write("5\tADD\tc\tC.x".getBytes(StandardCharsets.UTF_8));
+		}
+		registry = new VMRegistry(dirPath);
+		checkEquals(List.of("b", "a"), registry.getIdList(), "torn line ignored");
+		registry.add("d", "D.xml");
+		registry = new VMRegistry(dirPath);
+		checkEquals(List.of("b", "a", "d"), registry.getIdList(), "change after a torn line");
+		checkEquals("D.xml", registry.getFilename("d"), "file after a torn line");
+	}
+}